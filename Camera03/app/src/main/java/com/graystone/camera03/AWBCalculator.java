@@ -1,26 +1,61 @@
 package com.graystone.camera03;
 
-import android.graphics.Rect;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.params.RggbChannelVector;
+import android.media.Image;
 import android.util.Log;
 
+import com.med.util.BayerStatistics;
+import com.med.util.ZoneStatistics;
+import com.med.util.awb.AwbAlgorithm;
+import com.med.util.awb.ChannelSumAwb;
+import com.med.util.awb.GrayEdgeAwb;
+import com.med.util.awb.GrayWorldAwb;
+import com.med.util.awb.ShadesOfGrayAwb;
+import com.med.util.awb.WhitePatchAwb;
+
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class AWBCalculator {
     private static final String TAG = "AWBCalculator";
     private static final float WBFactor = 1.0f;
     private static final float EvenGreen = 1.0f;
     private static final float OddGreen = 1.0f;
+    private static final int ZONES_X = 64;
+    private static final int ZONES_Y = 48;
+
+    /**
+     * The margin of the central ROI. (the central half in both directions)
+     */
+    private static final float ROI_MARGIN = 0.25f;
+
+    /**
+     * The quads with a pixel at or above this fraction of the white level are excluded.
+     */
+    private static final float SATURATION_LEVEL = 0.98f;
 
     private final int mSensorWidth;
     private final int mSensorHeight;
-    private final Rect mRoi;
     private float mGainB = 1.0f;
     private float mGainR = 1.0f;
 
-    private final int mColorFilter;
+    private final ZoneStatistics mZoneStatistics;
+    private final float[] mIlluminant = new float[AwbAlgorithm.ILLUMINANT_SIZE];
+
+    /**
+     * All available algorithms. The first one is the default.
+     */
+    private final AwbAlgorithm[] mAlgorithms = {
+            new ChannelSumAwb(),
+            new GrayWorldAwb(),
+            new GrayWorldAwb(ROI_MARGIN),
+            new WhitePatchAwb(),
+            new ShadesOfGrayAwb(),
+            new GrayEdgeAwb(),
+    };
+    private AwbAlgorithm mAlgorithm = mAlgorithms[0];
 
     /**
      * Constructor.
@@ -29,184 +64,108 @@ public class AWBCalculator {
      * @param sensorColorFilter Color filter type. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
      */
     public AWBCalculator(int sensorWidth, int sensorHeight, int sensorColorFilter) {
-        mColorFilter = sensorColorFilter;
         mSensorWidth = sensorWidth;
         mSensorHeight = sensorHeight;
-        mRoi = new Rect(
-                sensorWidth/4,
-                sensorHeight/4,
-                sensorWidth-(sensorWidth/4),
-                sensorHeight-(sensorHeight/4));
+        mZoneStatistics = new ZoneStatistics(ZONES_X, ZONES_Y, sensorColorFilter);
+        mZoneStatistics.setParallel(ForkJoinPool.commonPool());
     }
 
     /**
-     * This method is used to get the R/B gains
-     * @return A RggbChannelVector object contained the result.
+     * To set the black and white levels of the sensor. The black level is subtracted from the zone sums,
+     * and the quads near the white level are excluded.
+     * @param blackLevelPattern The black level offsets of the 2x2 quad (CameraAttrib.getBlackLevelPattern()), or null.
+     * @param whiteLevel The white level (CameraAttrib.getWhiteLevel()), or 0 to keep every quad.
      */
-    public RggbChannelVector getWbGains() {
-        return new RggbChannelVector(mGainR, EvenGreen, OddGreen, mGainB);
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mZoneStatistics.setBlackLevelPattern(blackLevelPattern);
+        mZoneStatistics.setSaturationLevel((whiteLevel > 0)? (int)(whiteLevel * SATURATION_LEVEL) : BayerStatistics.SATURATION_DISABLED);
     }
 
     /**
-     * To do WB calibration.
-     * @param rawData The RAW data for calibrating WB gains.
+     * @return All available algorithms.
      */
-    public void calculate(byte[] rawData) {
-//        algorithm1(rawData, mSensorWidth, mSensorHeight, mRoi);
-        algorithm2(rawData, mSensorWidth, mSensorHeight);
+    public AwbAlgorithm[] getAlgorithms() {
+        return mAlgorithms.clone();
     }
 
     /**
-     * Calibration algorithm 1.
-     * @param rawData Sensor RAW data.
-     * @param rawWidth Sensor width.
-     * @param rawHeight Sensor height.
-     * @param roi Specified the ROI for WB calibration.
+     * To select the algorithm used by calculate().
+     * @param algorithm The algorithm.
      */
-    private void algorithm1(byte[] rawData, int rawWidth, int rawHeight, Rect roi) {
-        Log.i(TAG, String.format("length of RAW: %d", rawData.length));
-        Log.i(TAG, String.format("Sensor dimension: %d x %d", rawWidth, rawHeight));
-        Log.i(TAG, "ROI: " + roi.toString());
-
-        // byte array to short array (for 16-bit RAW)
-        short[] shortRaw = new short[rawData.length / 2];
-        ByteBuffer.wrap(rawData).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(shortRaw);
-
-        PixelSum pixelSum = new PixelSum(mColorFilter);
-
-        for (int row=0; row<rawHeight; row++) {
-            for (int col = 0; col < rawWidth; col++) {
-                if (roi.contains(row, col)) {
-                    int idx = row * rawHeight + col;
-                    pixelSum.add(row, col, shortRaw[idx]);
-                }
-            }
-        }
-
-        Log.i(TAG, String.format("Avg.  B: %f", pixelSum.getAverageOfB()));
-        Log.i(TAG, String.format("Avg. Gb: %f", pixelSum.getAverageOfGb()));
-        Log.i(TAG, String.format("Avg. Gr: %f", pixelSum.getAverageOfGr()));
-        Log.i(TAG, String.format("Avg.  R: %f", pixelSum.getAverageOfR()));
-        mGainB = WBFactor * pixelSum.getAverageOfGb() / pixelSum.getAverageOfB();
-        mGainR = WBFactor * pixelSum.getAverageOfGr() / pixelSum.getAverageOfR();
-        Log.i(TAG, String.format("WB gain, R: %f,  B: %f", mGainR, mGainB));
+    public void setAlgorithm(AwbAlgorithm algorithm) {
+        mAlgorithm = algorithm;
     }
 
     /**
-     * Calibration Algorithm.
-     * @param byteRaw Sensor RAW data.
-     * @param rawWidth Sensor width.
-     * @param rawHeight Sensor height.
+     * This method is used to get the R/B gains
+     * @return A RggbChannelVector object contained the result.
      */
-    private void algorithm2(byte[] byteRaw, int rawWidth, int rawHeight) {
-        short[] shortRaw = new short[byteRaw.length / 2];
-        ByteBuffer.wrap(byteRaw).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(shortRaw);
-
-        PixelSum pixelSum = new PixelSum(mColorFilter);
+    public RggbChannelVector getWbGains() {
+        return new RggbChannelVector(mGainR, EvenGreen, OddGreen, mGainB);
+    }
 
-        for (int row=0; row<rawHeight; row++) {
-            for (int col=0; col<rawWidth; col++) {
-                int idx = row * rawHeight + col;
-                pixelSum.add(row, col, shortRaw[idx]);
-            }
+    /**
+     * To run an algorithm on the statistics of the latest frame. The frame is not scanned again.
+     * @param algorithm The algorithm.
+     * @return The WB gains, or unity gains if the illuminant could not be estimated.
+     */
+    public RggbChannelVector getWbGains(AwbAlgorithm algorithm) {
+        algorithm.estimate(mZoneStatistics, mIlluminant);
+        float r = mIlluminant[AwbAlgorithm.ILLUMINANT_R];
+        float g = mIlluminant[AwbAlgorithm.ILLUMINANT_G];
+        float b = mIlluminant[AwbAlgorithm.ILLUMINANT_B];
+        if (!(r > 0.0f && g > 0.0f && b > 0.0f)) {
+            Log.w(TAG, String.format("%s: invalid illuminant (%f, %f, %f)", algorithm.getName(), r, g, b));
+            return new RggbChannelVector(1.0f, EvenGreen, OddGreen, 1.0f);
         }
-
-        float K = (pixelSum.getSumOfR() + pixelSum.getSumOfGr() + pixelSum.getSumOfGb() + pixelSum.getSumOfB()) / 4.0f;
-        float gainR = K / pixelSum.getSumOfR();
-        float gainGr = K / pixelSum.getSumOfGr();
-        float gainGb = K / pixelSum.getSumOfGb();
-        float gainB = K / pixelSum.getSumOfB();
-        float gainG = Math.min(gainGr, gainGb);
-        mGainB = gainB / gainG;
-        mGainR = gainR / gainG;
-        Log.i(TAG, String.format("Algo2: R: %f,  Gr: %f,  Gb: %f,  B: %f", mGainR, gainGr/gainG, gainGb/gainG, mGainB));
+        return new RggbChannelVector(WBFactor * g / r, EvenGreen, OddGreen, WBFactor * g / b);
     }
 
     /**
-     * To count the sum and average of pixel values.
+     * To run all algorithms on the statistics of the latest frame, e.g. to compare them.
+     * @return The WB gains of every algorithm, keyed by its name.
      */
-    static class IntSum {
-        private int mSum = 0;
-        private int mCount = 0;
-
-        void add(int value) {
-            mSum += value;
-            mCount += 1;
+    public Map<String, RggbChannelVector> getAllWbGains() {
+        Map<String, RggbChannelVector> result = new LinkedHashMap<>();
+        for (AwbAlgorithm algorithm : mAlgorithms) {
+            RggbChannelVector gains = getWbGains(algorithm);
+            Log.d(TAG, String.format("%s: R: %f,  B: %f", algorithm.getName(), gains.getRed(), gains.getBlue()));
+            result.put(algorithm.getName(), gains);
         }
-
-        float getAverage() { return (float)mSum / (float)mCount; }
-        int getSum() { return mSum; }
+        return result;
     }
 
     /**
-     * To count the sum and average by position of pixel.
+     * To do WB calibration.
+     * @param rawData The RAW data for calibrating WB gains.
      */
-    static class PixelSum {
-        private final IntSum mSumLeftTop = new IntSum();
-        private final IntSum mSumRightTop = new IntSum();
-        private final IntSum mSumLeftBottom = new IntSum();
-        private final IntSum mSumRightBottom = new IntSum();
-        private final IntSum mR;
-        private final IntSum mGr;
-        private final IntSum mGb;
-        private final IntSum mB;
-
-        PixelSum(int colorFilter) {
-            switch(colorFilter)
-            {
-                case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_RGGB:
-                    mR = mSumLeftTop;
-                    mGr = mSumRightTop;
-                    mGb = mSumLeftBottom;
-                    mB = mSumRightBottom;
-                    break;
-                case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GRBG:
-                    mGr = mSumLeftTop;
-                    mR = mSumRightTop;
-                    mB = mSumLeftBottom;
-                    mGb = mSumRightBottom;
-                    break;
-                case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GBRG:
-                    mGb = mSumLeftTop;
-                    mB = mSumRightTop;
-                    mR = mSumLeftBottom;
-                    mGr = mSumRightBottom;
-                    break;
-                default:
-                    mB = mSumLeftTop;
-                    mGb = mSumRightTop;
-                    mGr = mSumLeftBottom;
-                    mR = mSumRightBottom;
-            }
-        }
+    public void calculate(byte[] rawData) {
+        mZoneStatistics.compute(ByteBuffer.wrap(rawData), mSensorWidth, mSensorHeight, mSensorWidth * 2, 2);
+        updateGains();
+    }
 
-        void add(int row, int col, int value) {
-            if (row%2 == 0) {
-                if (col%2 == 0) {
-                    mSumLeftTop.add(value);
-                }
-                else {
-                    mSumRightTop.add(value);
-                }
-            }
-            else {
-                if (col%2 == 0) {
-                    mSumLeftBottom.add(value);
-                }
-                else {
-                    mSumRightBottom.add(value);
-                }
-            }
-        }
+    /**
+     * To do WB calibration.
+     * The RAW plane is read in place, so it must be called before the image is closed.
+     * @param image A RAW_SENSOR, RAW10 or RAW12 image.
+     */
+    public void calculate(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        mZoneStatistics.compute(plane.getBuffer(), image.getFormat(), image.getWidth(), image.getHeight(), plane.getRowStride(), plane.getPixelStride());
+        updateGains();
+    }
 
-        float getAverageOfR() { return mR.getAverage(); }
-        float getAverageOfGr() { return mGr.getAverage(); }
-        float getAverageOfGb() { return mGb.getAverage(); }
-        float getAverageOfB() { return mB.getAverage(); }
+    private void updateGains() {
+        RggbChannelVector gains = getWbGains(mAlgorithm);
+        mGainR = gains.getRed();
+        mGainB = gains.getBlue();
+        Log.i(TAG, String.format("%s: R: %f,  B: %f", mAlgorithm.getName(), mGainR, mGainB));
+    }
 
-        int getSumOfR() { return mR.getSum(); }
-        int getSumOfGr() { return mGr.getSum(); }
-        int getSumOfGb() { return mGb.getSum(); }
-        int getSumOfB() { return mB.getSum(); }
+    /**
+     * @return The zone statistics of the latest frame.
+     */
+    public ZoneStatistics getZoneStatistics() {
+        return mZoneStatistics;
     }
 }
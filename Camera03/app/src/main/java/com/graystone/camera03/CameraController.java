@@ -3,6 +3,7 @@ package com.graystone.camera03;
 import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -13,6 +14,7 @@ import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.BlackLevelPattern;
 import android.hardware.camera2.params.ColorSpaceTransform;
 import android.hardware.camera2.params.MeteringRectangle;
 import android.hardware.camera2.params.OutputConfiguration;
@@ -22,6 +24,7 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Range;
 import android.util.Size;
@@ -31,6 +34,7 @@ import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 
 import com.graystone.camerautil.AeStatistic;
+import com.med.util.FrameLatencyTracker;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -49,6 +53,28 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
         void onCaptureComplete(Long exposureTime, Integer ISO, Long frameNo);
     }
 
+    public interface LiveViewResultListener {
+        /**
+         * Called with the result of every live-view frame, on the thread of the camera.
+         * @param result The result, whose SENSOR_TIMESTAMP is the timestamp of the images of the frame.
+         */
+        void onLiveViewResult(TotalCaptureResult result);
+    }
+
+    public interface BurstListener {
+        /**
+         * Called with the result of every frame of the burst, on the thread of the camera.
+         * @param result The result, whose SENSOR_TIMESTAMP is the timestamp of the images of the frame.
+         */
+        void onBurstResult(TotalCaptureResult result);
+
+        /**
+         * Called once when the capture sequence of the burst is completed or aborted, on the thread of the camera.
+         * Some images may still be on their way to the readers.
+         */
+        void onBurstDone();
+    }
+
     public static class CameraAttrib {
         private final String mCameraId;
         private final CameraCharacteristics mCharacteristics;
@@ -85,6 +111,36 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
             return mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
         }
 
+        /**
+         * @return The black level offsets of the 2x2 CFA quad in the order left-top, right-top,
+         *         left-bottom, right-bottom, or null if they are not available.
+         */
+        public int[] getBlackLevelPattern() {
+            BlackLevelPattern pattern = mCharacteristics.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+            if (pattern == null) {
+                return null;
+            }
+            int[] offsets = new int[BlackLevelPattern.COUNT];
+            pattern.copyTo(offsets, 0);
+            return offsets;
+        }
+
+        /**
+         * @return The maximum raw value output by the sensor, or 0 if it is not available.
+         */
+        public int getWhiteLevel() {
+            Integer whiteLevel = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+            return (whiteLevel != null)? whiteLevel : 0;
+        }
+
+        /**
+         * @return True if the sensor timestamps are in the time base of SystemClock.elapsedRealtimeNanos().
+         */
+        public boolean isTimestampRealtime() {
+            Integer source = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            return source != null && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        }
+
         public StreamConfigurationMap getStreamConfigurationMap() {
             return mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         }
@@ -103,6 +159,24 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
             return defaultSize;
         }
 
+        /**
+         * To choose the RAW format of the RAW streams. The packed formats are preferred because they
+         * take less memory bandwidth than the 16-bit RAW_SENSOR, and WBCalibration decodes them in place.
+         * @return ImageFormat.RAW10, RAW12 or RAW_SENSOR.
+         */
+        public int getPreferredRawFormat() {
+            StreamConfigurationMap streamMap = mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (streamMap != null) {
+                if (streamMap.isOutputSupportedFor(ImageFormat.RAW10)) {
+                    return ImageFormat.RAW10;
+                }
+                if (streamMap.isOutputSupportedFor(ImageFormat.RAW12)) {
+                    return ImageFormat.RAW12;
+                }
+            }
+            return ImageFormat.RAW_SENSOR;
+        }
+
         public void dumpAllSupportedSize() {
             StreamConfigurationMap streamMap = mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
             if (streamMap != null) {
@@ -192,10 +266,18 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
     private boolean mFixedWBGains = false;
     private RggbChannelVector mWbGains;
 
+    /**
+     * The color correction matrix solved from a ColorChecker. It is applied with the fixed WB gains.
+     */
+    private ColorSpaceTransform mCalibratedTransform = null;
+
     private boolean mSceneMode = false;
 
     private boolean mDumpCaptureRequestTags = false;
 
+    private FrameLatencyTracker mLatencyTracker = null;
+    private LiveViewResultListener mLiveViewResultListener = null;
+
     private int [] mColorMatrixElements = null;
     private final ColorCorrectionController mColorCorrectionController = new ColorCorrectionController();
 
@@ -300,6 +382,22 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
         return mAeOn;
     }
 
+    /**
+     * To record the start of every live-view frame in the tracker.
+     * @param tracker The tracker, or null to stop.
+     */
+    public void setFrameLatencyTracker(FrameLatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    /**
+     * To deliver the result of every live-view frame to the listener, e.g. to pair it with the RAW image of the frame.
+     * @param listener The listener, or null to stop.
+     */
+    public void setLiveViewResultListener(LiveViewResultListener listener) {
+        mLiveViewResultListener = listener;
+    }
+
     /**
      * ICameraControl
      * Set the ISO value
@@ -510,6 +608,9 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
             builder.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_OFF);
             builder.set(CaptureRequest.COLOR_CORRECTION_MODE, CaptureRequest.COLOR_CORRECTION_MODE_TRANSFORM_MATRIX);
             builder.set(CaptureRequest.COLOR_CORRECTION_GAINS, mWbGains);
+            if (mCalibratedTransform != null) {
+                builder.set(CaptureRequest.COLOR_CORRECTION_TRANSFORM, mCalibratedTransform);
+            }
 //            if (mColorMatrixElements != null) {
 //                float saturation = 1.0f + (mSaturationLevel / 5.0f);
 //                ColorSpaceTransform colorSpaceTransform = new ColorSpaceTransform(mColorCorrectionController.getAdaptedColorSpaceTransform(mColorMatrixElements, saturation));
@@ -649,6 +750,101 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
         mCameraHandler.post(new SnapshotRunnable(snapshotSurface));
     }
 
+    /**
+     * A burst of frames with the manual exposure, e.g. the frame pairs of the photon transfer curve.
+     * All the requests are sent with one captureBurst(), so the frames are taken back to back in order.
+     */
+    class BurstRunnable implements Runnable {
+        private final Surface mSurface;
+        private final int mBurstIso;
+        private final long[] mExposureTimes;
+        private final int mFramesPerExposure;
+        private final BurstListener mListener;
+
+        BurstRunnable(Surface surface, int iso, long[] exposureTimes, int framesPerExposure, BurstListener listener) {
+            mSurface = surface;
+            mBurstIso = iso;
+            mExposureTimes = exposureTimes;
+            mFramesPerExposure = framesPerExposure;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<CaptureRequest> requestList = new ArrayList<>();
+                for (long exposureTime : mExposureTimes) {
+                    CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                    builder.addTarget(mSurface);
+                    builder.setTag(SnapShotTag);
+                    builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+                    builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposureTime);
+                    builder.set(CaptureRequest.SENSOR_SENSITIVITY, mBurstIso);
+                    CaptureRequest request = builder.build();
+                    for (int i=0; i<mFramesPerExposure; i++) {
+                        requestList.add(request);
+                    }
+                }
+                mCameraSession.captureBurst(requestList, new BurstCaptureCallback(mListener), mCameraHandler);
+            }
+            catch (CameraAccessException e) {
+                Log.e(TAG, "captureBurst() failed", e);
+                mListener.onBurstDone();
+            }
+        }
+    }
+
+    /**
+     * The capture callback of a burst. The results are handled as those of a snapshot and passed to the listener,
+     * which is told when the sequence ends.
+     */
+    class BurstCaptureCallback extends CameraCaptureSession.CaptureCallback {
+        private final BurstListener mListener;
+
+        BurstCaptureCallback(BurstListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            mCaptureCallback.onCaptureCompleted(session, request, result);
+            mListener.onBurstResult(result);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            mCaptureCallback.onCaptureFailed(session, request, failure);
+        }
+
+        @Override
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber) {
+            Log.w(TAG, String.format(Locale.US, "burst buffer lost, frame No.=%d", frameNumber));
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session, int sequenceId, long frameNumber) {
+            mListener.onBurstDone();
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session, int sequenceId) {
+            Log.i(TAG, String.format(Locale.US, "burst aborted, sequenceId=%d", sequenceId));
+            mListener.onBurstDone();
+        }
+    }
+
+    /**
+     * @param surface The surface of the frames.
+     * @param iso The ISO of every frame.
+     * @param exposureTimes The exposure times in nanoseconds.
+     * @param framesPerExposure The number of frames of every exposure time, e.g. 2 for a pair.
+     * @param listener The listener of the results of the burst.
+     */
+    public void takeBurst(Surface surface, int iso, long[] exposureTimes, int framesPerExposure, @NonNull BurstListener listener) {
+        Log.i(TAG, String.format(Locale.US, "takeBurst() %d x %d frames at ISO %d", exposureTimes.length, framesPerExposure, iso));
+        mCameraHandler.post(new BurstRunnable(surface, iso, exposureTimes, framesPerExposure, listener));
+    }
+
     /**
      * OneShot capture.
      *
@@ -794,6 +990,10 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
         public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
             super.onCaptureStarted(session, request, timestamp, frameNumber);
 //            Log.i(TAG, "onCaptureStarted()");
+            FrameLatencyTracker tracker = mLatencyTracker;
+            if (tracker != null && LiveViewTag.equals(request.getTag())) {
+                tracker.onCaptureStarted(timestamp, SystemClock.elapsedRealtimeNanos());
+            }
         }
 
         @Override
@@ -810,6 +1010,10 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
                     mCallback.onCaptureComplete(exposureTime, gain, result.getFrameNumber());
                 }
                 else if (LiveViewTag.equals(tag)) {
+                    LiveViewResultListener listener = mLiveViewResultListener;
+                    if (listener != null) {
+                        listener.onLiveViewResult(result);
+                    }
                     AeStatistic.log(result, "CAP_STAT", 10);
                     long frameNo = result.getFrameNumber();
                     if (frameNo % 10 == 0) {
@@ -950,8 +1154,22 @@ public class CameraController implements Executor, IEdgeMode, INoiseReduction, I
         buildAndSendLiveViewRequest();
     }
 
+    /**
+     * To fix the WB gains and the color correction matrix, e.g. from a ColorChecker calibration.
+     * The matrix is kept for the later fixedWBGains() calls, until autoWB().
+     * @param gainR The R gain.
+     * @param gainB The B gain.
+     * @param transform The matrix from the white-balanced sensor RGB to linear sRGB.
+     */
+    public void fixedColorCorrection(float gainR, float gainB, ColorSpaceTransform transform) {
+        Log.d(TAG, "<CameraController> fixedColorCorrection, " + transform);
+        mCalibratedTransform = transform;
+        fixedWBGains(gainR, gainB);
+    }
+
     public void autoWB() {
         mFixedWBGains = false;
+        mCalibratedTransform = null;
     }
 
     public boolean isWBGainsFixed() {
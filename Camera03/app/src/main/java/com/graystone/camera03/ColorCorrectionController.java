@@ -1,12 +1,27 @@
 package com.graystone.camera03;
 
 import android.hardware.camera2.params.ColorSpaceTransform;
+import android.media.Image;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.med.util.ColorCheckerCalibrator;
+import com.med.util.ColorMatrix;
+
+import java.util.concurrent.ForkJoinPool;
+
 public class ColorCorrectionController {
     private final static String TAG = "Camera03";
+
+    /**
+     * The patch area of the ColorChecker is expected in the centered region of this fraction of the RAW frame width.
+     * The height of the region follows the 6 x 4 patches.
+     */
+    private final static float CHART_REGION_WIDTH = 0.6f;
+
+    private ColorCheckerCalibrator mColorChecker = null;
     private final static ColorSpaceTransform[] mColorSpaceTransformArray = new ColorSpaceTransform [] {
             // Saturation -4
             new ColorSpaceTransform(new int[] {
@@ -72,82 +87,72 @@ public class ColorCorrectionController {
     }
 
 
-    private final float [] mRgbToYuv = new float [] {
-            0.299f, -0.169f, 0.5f,
-            0.587f, -0.331f, -0.419f,
-            0.114f, 0.5f, -0.081f
-    };
-
-    private final float [] mYuvToRgb = new float [] {
-            1.0f, 1.0f, 1.0f,
-            -0.00093f, -0.3437f, 1.77216f,
-            1.401687f, -0.71417f, 0.00099f
-    };
-
-    private final float [] mAdjustMatrix = new float[] {
-            1.0f, 0.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 0.0f, 1.0f
-    };
-
+    /**
+     * To adapt a color correction matrix to a saturation level.
+     * @param elements The color correction matrix. (the int[18] of ColorSpaceTransform.copyElements())
+     * @param saturation The scale of the chroma, e.g. 1 to keep the saturation.
+     * @return The new matrix in the same layout.
+     */
     public int [] getAdaptedColorSpaceTransform(int [] elements, float saturation) {
-        int [] result = new int[18];
-        float [] cc = new float[9];
-        mAdjustMatrix[0] = 1.0f;
-        mAdjustMatrix[4] = saturation;
-        mAdjustMatrix[8] = saturation;
-        for (int i=0; i<9; i++) {
-            cc[i] = elements[i*2] / (float)elements[i*2+1];
-        }
-//        cc[0] = elements[0] / (float)elements[1];
-//        cc[1] = elements[2] / (float)elements[3];
-//        cc[2] = elements[4] / (float)elements[5];
-//        cc[3] = elements[6] / (float)elements[7];
-//        cc[4] = elements[8] / (float)elements[9];
-//        cc[5] = elements[10] / (float)elements[11];
-//        cc[6] = elements[12] / (float)elements[13];
-//        cc[7] = elements[14] / (float)elements[15];
-//        cc[8] = elements[16] / (float)elements[17];
-
-        float [] rgb = Transform3x3Matrix(Multiply3x3Matrix(Multiply3x3Matrix(Multiply3x3Matrix(cc, mRgbToYuv), mAdjustMatrix), mYuvToRgb));
-        for (int i=0; i<9; i++) {
-            result[i*2] = Math.round(rgb[i] * 1000000.0f);
-            result[i*2+1] = 1000000;
-        }
-        return result;
+        return ColorMatrix.adaptSaturation(elements, saturation);
     }
 
-    private float [] Multiply3x3Matrix(float [] m1, float [] m2) {
-        float [] result = new float[9];
+    /**
+     * To set the sensor for the ColorChecker calibration.
+     * @param colorFilter The color filter arrangement. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+     * @param blackLevelPattern The black level offsets of the 2x2 quad. Null for no black level.
+     * @param whiteLevel The maximum raw value. 0 for the default 10-bit level.
+     */
+    public void setSensor(int colorFilter, int[] blackLevelPattern, int whiteLevel) {
+        mColorChecker = new ColorCheckerCalibrator(colorFilter);
+        mColorChecker.setParallel(ForkJoinPool.commonPool());
+        mColorChecker.setSensorLevels(blackLevelPattern, whiteLevel);
+    }
 
-        for (int col=0; col<3; col++) {
-            for (int row=0; row<3; row++) {
-                result[col*3+row] = m1[col*3] * m2[row] + m1[col*3+1] * m2[row+3] + m1[col*3+2] * m2[row+6];
-            }
+    /**
+     * To solve the color correction matrix from a RAW frame of a ColorChecker.
+     * The patch area of the chart must fill the centered region of CHART_REGION_WIDTH of the frame.
+     * The RAW plane is read in place, so it must be called before the image is closed.
+     * @param image A RAW_SENSOR, RAW10 or RAW12 image.
+     * @return Null if the matrix is solved, otherwise the reason.
+     */
+    public String calibrate(@NonNull Image image) {
+        if (mColorChecker == null) {
+            return "the sensor is not set";
         }
-
-//        result[0] = m1[0] * m2[0] + m1[1] * m2[3] + m1[2] * m2[6];
-//        result[1] = m1[0] * m2[1] + m1[1] * m2[4] + m1[2] * m2[7];
-//        result[2] = m1[0] * m2[2] + m1[1] * m2[5] + m1[2] * m2[8];
-//
-//        result[3] = m1[3] * m2[0] + m1[4] * m2[3] + m1[5] * m2[6];
-//        result[4] = m1[3] * m2[1] + m1[4] * m2[4] + m1[5] * m2[7];
-//        result[5] = m1[3] * m2[2] + m1[4] * m2[5] + m1[5] * m2[8];
-//
-//        result[6] = m1[6] * m2[0] + m1[7] * m2[3] + m1[8] * m2[6];
-//        result[7] = m1[6] * m2[1] + m1[7] * m2[4] + m1[8] * m2[7];
-//        result[8] = m1[6] * m2[2] + m1[7] * m2[5] + m1[8] * m2[8];
-
-        return result;
+        int chartWidth = (int)(image.getWidth() * CHART_REGION_WIDTH);
+        int chartHeight = chartWidth * ColorCheckerCalibrator.PATCH_ROWS / ColorCheckerCalibrator.PATCH_COLS;
+        if (chartHeight > image.getHeight()) {
+            chartHeight = image.getHeight();
+            chartWidth = chartHeight * ColorCheckerCalibrator.PATCH_COLS / ColorCheckerCalibrator.PATCH_ROWS;
+        }
+        Image.Plane plane = image.getPlanes()[0];
+        long start = SystemClock.elapsedRealtime();
+        String error = mColorChecker.calibrate(plane.getBuffer(), image.getFormat(), image.getWidth(), image.getHeight(),
+                plane.getRowStride(), plane.getPixelStride(),
+                (image.getWidth() - chartWidth) / 2, (image.getHeight() - chartHeight) / 2, chartWidth, chartHeight);
+        long duration = SystemClock.elapsedRealtime() - start;
+        if (error != null) {
+            Log.w(TAG, String.format("ColorChecker calibration failed in %d ms: %s", duration, error));
+            return error;
+        }
+        float[] ccm = mColorChecker.getCcm();
+        Log.d(TAG, String.format("ColorChecker calibration: %d ms, WB gains R: %f, B: %f, RMS error: %f",
+                duration, mColorChecker.getGainR(), mColorChecker.getGainB(), mColorChecker.getError()));
+        for (int row=0; row<3; row++) {
+            Log.d(TAG, String.format("  CCM %f %f %f", ccm[row*3], ccm[row*3+1], ccm[row*3+2]));
+        }
+        return null;
     }
 
-    private float [] Transform3x3Matrix(float [] m1) {
-        float [] result = new float[9];
-        for (int col=0; col<3; col++) {
-            for (int row=0; row<3; row++) {
-                result[col*3+row] = m1[row*3+col];
-            }
-        }
-        return result;
+    /**
+     * @return The color correction matrix of the latest ColorChecker calibration.
+     */
+    public ColorSpaceTransform getCalibratedTransform() {
+        return new ColorSpaceTransform(ColorMatrix.toRational(mColorChecker.getCcm()));
     }
+
+    public float getCalibratedGainR() { return mColorChecker.getGainR(); }
+    public float getCalibratedGainB() { return mColorChecker.getGainB(); }
+    public float getCalibrationError() { return mColorChecker.getError(); }
 }
@@ -12,6 +12,7 @@ import android.content.ContextWrapper;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.hardware.Sensor;
@@ -20,6 +21,8 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.RggbChannelVector;
+import android.media.Image;
+import android.media.ImageReader;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -45,14 +48,26 @@ import android.widget.Toast;
 
 import com.google.android.material.slider.Slider;
 import com.google.android.material.snackbar.Snackbar;
+import com.med.util.AwbTracker;
+import com.med.util.BayerStatistics;
+import com.med.util.CalibrationStore;
+import com.med.util.DefectMap;
+import com.med.util.DefectPixelDetector;
+import com.med.util.FrameLatencyTracker;
+import com.med.util.FrameQueue;
+import com.med.util.PhotonTransferCurve;
 import com.med.util.WBCalibration;
+import com.med.util.WBCalibrator;
 
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
 public class MainActivity extends AppCompatActivity implements CameraController.StateCallback,
         SurfaceHolder.Callback,
@@ -67,6 +82,41 @@ public class MainActivity extends AppCompatActivity implements CameraController.
     private static final int REQUEST_PERMISSIONS_REQUEST_CODE = 34;
     private static final double NANOSECONDS_PER_SECOND = 1000000000.0;
 
+    /**
+     * Calibrate every Nth frame of the RAW stream in AWB tracking mode.
+     */
+    private static final int AWB_TRACKING_FRAME_INTERVAL = 4;
+    private static final int AWB_TRACKING_SAMPLING_STEP = 4;
+
+    /**
+     * The file of the WB calibration results of every camera, sensor mode and exposure.
+     */
+    private static final String CALIBRATION_STORE_FILE = "wb_calibration.bin";
+
+    /**
+     * The topology of the streams. If true, every ImageReader has its own threads and backpressure policy
+     * (see StreamConsumer), otherwise all of them share the aux thread.
+     */
+    private static final boolean SEPARATE_STREAM_THREADS = true;
+
+    /**
+     * A live-view frame is late if it waits for its consumer longer than a frame at 30 fps.
+     */
+    private static final long LIVE_VIEW_LATE_THRESHOLD = 33333333L;
+
+    /**
+     * If true, the RAW snapshot is the frame of the press of the button, from the latest RAW frames kept in memory,
+     * otherwise it is the next frame.
+     */
+    private static final boolean ZSL_SNAPSHOT = true;
+
+    /**
+     * The format of the software live view (see PreviewProcessor), ImageFormat.JPEG or ImageFormat.YUV_420_888,
+     * or 0 for none. It is one more output of the live-view session, and the long press of the preview window
+     * button switches the aux view between the RAW view, the software live view and none.
+     */
+    private static final int SOFTWARE_PREVIEW_FORMAT = ImageFormat.YUV_420_888;
+
     private SensorManager mSensorManager;
     private final float[] mAccelerometerReading = new float[3];
     private final float[] mMagnetometerReading = new float[3];
@@ -78,7 +128,7 @@ public class MainActivity extends AppCompatActivity implements CameraController.
     private boolean mSnapshotMode = false;
     private SurfaceView mPreviewSurface;
     private SurfaceView mSurfaceViewAux;
-    //private PreviewProcessor mPreviewProcessor;
+    private PreviewProcessor mPreviewProcessor;
     private PreviewRawProcessor mPreviewRawProcessor;
     private boolean mUsingAuxView = false;
     private SnapshotProcessor mSnapshotProcessor;
@@ -98,6 +148,12 @@ public class MainActivity extends AppCompatActivity implements CameraController.
     private long mExposureTime = 5000000L;  // 5 milliseconds
     private int mRegValue = 16;
 
+    /**
+     * The exposure times of the pending photon transfer burst, which is sent once the snapshot session is configured.
+     */
+    private long[] mPhotonTransferExposureTimes = null;
+    private int mPhotonTransferIso = 100;
+
     private InputDialog mExpTimeDialog;
     private InputDialog mIsoDialog;
     private InputDialog mExpLineDialog;
@@ -121,6 +177,24 @@ public class MainActivity extends AppCompatActivity implements CameraController.
 
     private WBCalibration mAwbCalculator;
 
+    /**
+     * The scene AWB algorithms. They are run on the frame of the one-shot WB and logged next to its gains.
+     */
+    private AWBCalculator mSceneAwbCalculator;
+
+    /**
+     * The results of the one-shot WB. The latest one of the camera is applied when it is opened, and the one of
+     * the nearest exposure once the live view reports its exposure, so a tap is only needed when the scene changes.
+     */
+    private CalibrationStore mCalibrationStore;
+    private Rect mSensorArraySize;
+    private volatile boolean mCachedGainsPending = false;
+    private AwbTracker mAwbTracker;
+    private final ColorCorrectionController mColorCorrectionController = new ColorCorrectionController();
+    private final DefectPixelDetector mDefectDetector = new DefectPixelDetector();
+    private final FrameLatencyTracker mLatencyTracker = new FrameLatencyTracker();
+    private final ArrayList<StreamConsumer> mStreamConsumers = new ArrayList<>();
+
     private Handler mHandler;
     private Handler mUiHandler;
 
@@ -231,6 +305,22 @@ public class MainActivity extends AppCompatActivity implements CameraController.
 
         // Get the text view for displaying debug information
         mTextView = findViewById(R.id.text1);
+        mTextView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                // dump the latency of the latest frames
+                StringBuilder builder = new StringBuilder(mLatencyTracker.getReport());
+                for (StreamConsumer consumer : mStreamConsumers) {
+                    builder.append(consumer.getStatistics()).append('\n');
+                }
+                String report = builder.toString();
+                Log.i(TAG, report);
+                mStreamController.write(String.format(Locale.US, "latency-%d", System.currentTimeMillis()),
+                        ISaveFile.FileType.TXT, report.getBytes(StandardCharsets.UTF_8));
+                Toast.makeText(MainActivity.this, "Latency report saved.", Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
 
         Spinner spinner = findViewById(R.id.imageFormat);
         ArrayAdapter<CharSequence> adapter = new ArrayAdapter<CharSequence>(this, R.layout.spinner_item, new String[]{"RAW", "JPEG"});
@@ -276,6 +366,14 @@ public class MainActivity extends AppCompatActivity implements CameraController.
                         }
                     }
                 });
+        btn00.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                Log.i(TAG, "Photon transfer curve");
+                startPhotonTransferSession();
+                return true;
+            }
+        });
 
         // *****
         // AE Lock button
@@ -312,6 +410,14 @@ public class MainActivity extends AppCompatActivity implements CameraController.
                 }
             }
         });
+        mAwbBtn.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                Log.i(TAG, "ColorChecker calibration");
+                mPreviewRawProcessor.takeRawInMemory(mColorCheckerRawCallback);
+                return true;
+            }
+        });
 
         // *****
         // Preview Switch button
@@ -321,9 +427,43 @@ public class MainActivity extends AppCompatActivity implements CameraController.
             public void onClick(View v) {
                 Log.i(TAG, "switch preview window");
                 mUsingAuxView = !mUsingAuxView;
+                if (mUsingAuxView) {
+                    // the aux view becomes an output of the session
+                    mPreviewRawProcessor.stopRawView();
+                    if (mPreviewProcessor != null) {
+                        mPreviewProcessor.stopView();
+                    }
+                }
                 createLiveViewSession();
             }
         });
+        btn02.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (mUsingAuxView) {
+                    Toast.makeText(MainActivity.this, "The aux view is in use.", Toast.LENGTH_SHORT).show();
+                }
+                else if (mPreviewRawProcessor.isRawView()) {
+                    Log.i(TAG, "stop RAW view");
+                    mPreviewRawProcessor.stopRawView();
+                    if (mPreviewProcessor != null) {
+                        Log.i(TAG, "start software live view");
+                        mLatencyTracker.clear();
+                        mPreviewProcessor.startView(mSurfaceViewAux);
+                    }
+                }
+                else if (mPreviewProcessor != null && mPreviewProcessor.isView()) {
+                    Log.i(TAG, "stop software live view");
+                    mPreviewProcessor.stopView();
+                }
+                else {
+                    Log.i(TAG, "start RAW view");
+                    mLatencyTracker.clear();
+                    mPreviewRawProcessor.startRawView(mSurfaceViewAux);
+                }
+                return true;
+            }
+        });
 
         // *****
         // Snapshot button for taking a RAW image
@@ -332,7 +472,11 @@ public class MainActivity extends AppCompatActivity implements CameraController.
             @Override
             public void onClick(View v) {
                 Log.i(TAG, "BTN03 click");
-                if (!mUsingAuxView) {
+                if (!mUsingAuxView && mPreviewProcessor != null && mPreviewProcessor.isView()) {
+                    Log.i(TAG, "### Capture the software live view ###");
+                    mPreviewProcessor.takeSnapshot();
+                }
+                else if (!mUsingAuxView) {
                     Log.i(TAG, "### Capture RAW ###");
                     mPreviewRawProcessor.takeSnapShot();
                 }
@@ -342,6 +486,14 @@ public class MainActivity extends AppCompatActivity implements CameraController.
                 }
             }
         });
+        btn03.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                Log.i(TAG, "Defect pixel detection");
+                mPreviewRawProcessor.takeRawInMemory(mDefectRawCallback);
+                return true;
+            }
+        });
 
         // *****
         // Open Camera button
@@ -354,6 +506,8 @@ public class MainActivity extends AppCompatActivity implements CameraController.
                 }
                 else {
                     mCameraController.closeCameraAndWait();
+                    quitStreamConsumers();
+                    stopZslSnapshot();
                     mCameraOpened = false;
                 }
                 updateCameraButtonStatus();
@@ -377,6 +531,21 @@ public class MainActivity extends AppCompatActivity implements CameraController.
                 mPreviewRawProcessor.takeRawInMemory(mTakeRawCallback);
             }
         });
+        mFilterBtn.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (mPreviewRawProcessor.isContinuousRaw()) {
+                    Log.i(TAG, "stop AWB tracking");
+                    mPreviewRawProcessor.stopContinuousRaw();
+                }
+                else {
+                    Log.i(TAG, "start AWB tracking");
+                    mAwbTracker.reset();
+                    mPreviewRawProcessor.startContinuousRaw(mTrackRawCallback);
+                }
+                return true;
+            }
+        });
 
         mIsoDialog = new InputDialog(this, "IsoInputDialog", "Change ISO", this);
         ImageView isoIcon = findViewById(R.id.isoIcon);
@@ -479,6 +648,54 @@ public class MainActivity extends AppCompatActivity implements CameraController.
         }
     }
 
+    /**
+     * To give every ImageReader its own consumer. The live view takes the latest frame, and the snapshots
+     * keep every frame of a burst, so a slow save holds back the camera instead of losing frames.
+     */
+    private void createStreamConsumers() {
+        quitStreamConsumers();
+        if (!SEPARATE_STREAM_THREADS) {
+            return;
+        }
+        StreamConsumer rawConsumer = new StreamConsumer("preview-raw", mPreviewRawProcessor.getImageReader(),
+                FrameQueue.POLICY_DROP_OLDEST, 1, mPreviewRawProcessor);
+        rawConsumer.setLateThreshold(LIVE_VIEW_LATE_THRESHOLD);
+        mStreamConsumers.add(rawConsumer);
+        if (mPreviewProcessor != null) {
+            StreamConsumer previewConsumer = new StreamConsumer("preview", mPreviewProcessor.getImageReader(),
+                    FrameQueue.POLICY_DROP_OLDEST, 1, mPreviewProcessor);
+            previewConsumer.setLateThreshold(LIVE_VIEW_LATE_THRESHOLD);
+            mStreamConsumers.add(previewConsumer);
+        }
+        for (ImageReader reader : mSnapshotProcessor.getImageReaders()) {
+            // the photon transfer curve keeps the first image of a pair, so only one may wait
+            mStreamConsumers.add(new StreamConsumer("snapshot-" + CameraInfo.ImageFormatToString(reader.getImageFormat()), reader,
+                    FrameQueue.POLICY_BLOCK, 1, mSnapshotProcessor));
+        }
+    }
+
+    /**
+     * To stop the threads of every consumer, e.g. when the camera is closed.
+     */
+    private void quitStreamConsumers() {
+        for (StreamConsumer consumer : mStreamConsumers) {
+            consumer.quit();
+        }
+        mStreamConsumers.clear();
+    }
+
+    /**
+     * To release the ZSL frames and stop the capture results to them, e.g. when the camera is closed.
+     */
+    private void stopZslSnapshot() {
+        if (mCameraController != null) {
+            mCameraController.setLiveViewResultListener(null);
+        }
+        if (mPreviewRawProcessor != null) {
+            mPreviewRawProcessor.stopZsl();
+        }
+    }
+
     /**
      * Find and open the camera if it exists.
      *
@@ -520,11 +737,38 @@ public class MainActivity extends AppCompatActivity implements CameraController.
                 cameraAttrib.dumpDistortionCorrectionMode();
 
                 Rect sensorArraySize = cameraAttrib.getSensorActiveArraySize();
+                mSensorArraySize = sensorArraySize;
+                applyCachedGains();
                 mAwbCalculator = new WBCalibration(sensorArraySize.width(), sensorArraySize.height(), cameraAttrib.getSensorColorFilter());
-
-                //mPreviewProcessor = new PreviewProcessor(this, cameraAttrib, surfaceView, mHandler, mStreamController);
+                mAwbCalculator.setParallelMode(true);
+                mAwbCalculator.setSensorLevels(cameraAttrib.getBlackLevelPattern(), cameraAttrib.getWhiteLevel());
+                mSceneAwbCalculator = new AWBCalculator(sensorArraySize.width(), sensorArraySize.height(), cameraAttrib.getSensorColorFilter());
+                mSceneAwbCalculator.setSensorLevels(cameraAttrib.getBlackLevelPattern(), cameraAttrib.getWhiteLevel());
+                WBCalibrator trackingCalibrator = new WBCalibrator(cameraAttrib.getSensorColorFilter());
+                trackingCalibrator.setParallel(ForkJoinPool.commonPool());
+                trackingCalibrator.setSamplingStep(AWB_TRACKING_SAMPLING_STEP);
+                trackingCalibrator.setSensorLevels(cameraAttrib.getBlackLevelPattern(), cameraAttrib.getWhiteLevel());
+                mAwbTracker = new AwbTracker(trackingCalibrator);
+                mAwbTracker.setFrameInterval(AWB_TRACKING_FRAME_INTERVAL);
+                mColorCorrectionController.setSensor(cameraAttrib.getSensorColorFilter(), cameraAttrib.getBlackLevelPattern(), cameraAttrib.getWhiteLevel());
+
+                if (SOFTWARE_PREVIEW_FORMAT != 0) {
+                    mPreviewProcessor = new PreviewProcessor(this, cameraAttrib, mHandler, mStreamController, SOFTWARE_PREVIEW_FORMAT);
+                    mPreviewProcessor.setFrameLatencyTracker(mLatencyTracker);
+                }
                 mPreviewRawProcessor = new PreviewRawProcessor(cameraAttrib, mHandler, mStreamController, mCameraController);
+                mLatencyTracker.setSensorRealtime(cameraAttrib.isTimestampRealtime());
+                mPreviewRawProcessor.setFrameLatencyTracker(mLatencyTracker);
+                mCameraController.setFrameLatencyTracker(mLatencyTracker);
+                if (ZSL_SNAPSHOT) {
+                    String error = mPreviewRawProcessor.startZsl();
+                    if (error != null) {
+                        Log.w(TAG, error);
+                    }
+                    mCameraController.setLiveViewResultListener(mPreviewRawProcessor);
+                }
                 mSnapshotProcessor = new SnapshotProcessor(cameraAttrib, this, mHandler, mStreamController);
+                createStreamConsumers();
 
                 // Open the camera
                 mCameraController.openCamera(mCameraId);
@@ -565,6 +809,15 @@ public class MainActivity extends AppCompatActivity implements CameraController.
         if (mCameraController != null) {
             mCameraController.closeCameraAndWait();
         }
+        quitStreamConsumers();
+        stopZslSnapshot();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        Log.d(TAG, "onDestroy()");
+        quitStreamConsumers();
     }
 
     @Override
@@ -672,7 +925,12 @@ public class MainActivity extends AppCompatActivity implements CameraController.
         Log.d(TAG, "onSessionConfigured()");
 
         if (mSnapshotMode) {
-            if (mIsoTest) {
+            if (mPhotonTransferExposureTimes != null) {
+                mCameraController.takeBurst(mSnapshotProcessor.getSurface(), mPhotonTransferIso, mPhotonTransferExposureTimes,
+                        SnapshotProcessor.PTC_FRAMES_PER_EXPOSURE, mSnapshotProcessor);
+                mPhotonTransferExposureTimes = null;
+            }
+            else if (mIsoTest) {
                 mCameraController.takeSnapshotEx(mSnapshotProcessor.getSurface(), mIso, mExposureTime);
             }
             else {
@@ -689,6 +947,9 @@ public class MainActivity extends AppCompatActivity implements CameraController.
                 ArrayList<Surface> surfaceList = new ArrayList<>();
                 surfaceList.add(mPreviewSurface.getHolder().getSurface());
                 surfaceList.addAll(mPreviewRawProcessor.getSurfaceList());
+                if (mPreviewProcessor != null) {
+                    surfaceList.add(mPreviewProcessor.getSurface());
+                }
                 mCameraController.startLiveView(surfaceList);
             }
         }
@@ -781,9 +1042,134 @@ public class MainActivity extends AppCompatActivity implements CameraController.
      */
     PreviewRawProcessor.TakeRawCallback mTakeRawCallback = new PreviewRawProcessor.TakeRawCallback() {
         @Override
-        public void onRawReady(byte[] rawData) {
-            mAwbCalculator.calibrate(rawData);
-            mCameraController.fixedWBGains(mAwbCalculator.getGainR(), mAwbCalculator.getGainB());
+        public void onRawReady(Image image) {
+            // the zone statistics are computed once, and every algorithm is estimated from them
+            mSceneAwbCalculator.calculate(image);
+            mSceneAwbCalculator.getAllWbGains();
+            if (mAwbCalculator.calibrate(image)) {
+                mCachedGainsPending = false;
+                mCameraController.fixedWBGains(mAwbCalculator.getGainR(), mAwbCalculator.getGainB());
+                saveCalibration(mAwbCalculator.getGainR(), mAwbCalculator.getGainB());
+            }
+        }
+    };
+
+    /**
+     * To apply the latest cached WB gains of the camera, so the first frames are white-balanced without a tap.
+     */
+    private void applyCachedGains() {
+        if (mCalibrationStore == null) {
+            mCalibrationStore = new CalibrationStore(new File(getFilesDir(), CALIBRATION_STORE_FILE));
+        }
+        mCalibrationStore.load();
+        CalibrationStore.Entry entry = mCalibrationStore.getLatest(mCameraId, mSensorArraySize.width(), mSensorArraySize.height());
+        mCachedGainsPending = (entry != null);
+        if (entry != null) {
+            Log.d(TAG, "apply cached gains: " + entry);
+            mCameraController.fixedWBGains(entry.getGainR(), entry.getGainB());
+        }
+    }
+
+    /**
+     * To apply the cached WB gains of the exposure nearest the reported one, once after the camera is opened.
+     */
+    private void applyNearestGains(int iso, long exposureTime) {
+        mCachedGainsPending = false;
+        if (!mCameraController.isWBGainsFixed()) {
+            return;
+        }
+        CalibrationStore.Entry latest = mCalibrationStore.getLatest(mCameraId, mSensorArraySize.width(), mSensorArraySize.height());
+        CalibrationStore.Entry entry = mCalibrationStore.getNearest(mCameraId, mSensorArraySize.width(), mSensorArraySize.height(), iso, exposureTime);
+        if (entry != null && entry != latest) {
+            Log.d(TAG, "apply cached gains of the nearest exposure: " + entry);
+            mCameraController.fixedWBGains(entry.getGainR(), entry.getGainB());
+        }
+    }
+
+    /**
+     * To add a result of the one-shot WB to the store, at the current exposure, and write the file.
+     */
+    private void saveCalibration(float gainR, float gainB) {
+        if (mCalibrationStore == null || mSensorArraySize == null) {
+            return;
+        }
+        mCalibrationStore.put(new CalibrationStore.Entry(mCameraId, mSensorArraySize.width(), mSensorArraySize.height(),
+                mCameraController.getIso(), mCameraController.getExposureTime(), System.currentTimeMillis(), gainR, gainB));
+        try {
+            mCalibrationStore.save();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "failed to save the calibration result: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The callback of the ColorChecker calibration. The WB gains and the matrix are applied together.
+     */
+    PreviewRawProcessor.TakeRawCallback mColorCheckerRawCallback = new PreviewRawProcessor.TakeRawCallback() {
+        @Override
+        public void onRawReady(Image image) {
+            String error = mColorCorrectionController.calibrate(image);
+            if (error != null) {
+                runOnUiThread(() -> Toast.makeText(getApplicationContext(), error, Toast.LENGTH_LONG).show());
+                return;
+            }
+            mCameraController.fixedColorCorrection(mColorCorrectionController.getCalibratedGainR(),
+                    mColorCorrectionController.getCalibratedGainB(), mColorCorrectionController.getCalibratedTransform());
+            String message = String.format(Locale.US, "CCM solved, RMS error %.4f", mColorCorrectionController.getCalibrationError());
+            runOnUiThread(() -> {
+                mAwbBtn.setImageDrawable(mIconAwbOff);
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+            });
+        }
+    };
+
+    /**
+     * The callback of the defect pixel detection, on a dark frame (lens covered) or a flat frame.
+     * The defects are added to the map of the camera, so both frames can be taken one after the other.
+     */
+    PreviewRawProcessor.TakeRawCallback mDefectRawCallback = new PreviewRawProcessor.TakeRawCallback() {
+        @Override
+        public void onRawReady(Image image) {
+            Image.Plane plane = image.getPlanes()[0];
+            DefectMap defects = new DefectMap(image.getWidth(), image.getHeight());
+            long start = System.currentTimeMillis();
+            boolean usable = mDefectDetector.detect(plane.getBuffer(), image.getFormat(), image.getWidth(), image.getHeight(),
+                    plane.getRowStride(), plane.getPixelStride(), defects);
+            Log.d(TAG, String.format(Locale.US, "Defect pixel detection: %d ms, %d defects", System.currentTimeMillis() - start, defects.size()));
+            if (!usable) {
+                runOnUiThread(() -> Toast.makeText(getApplicationContext(), "Too many defects, the frame is not dark or flat", Toast.LENGTH_LONG).show());
+                return;
+            }
+            File file = new File(getFilesDir(), "defects_" + mCameraId + ".bin");
+            DefectMap map = DefectMap.load(file);
+            if (map != null && map.getWidth() == defects.getWidth() && map.getHeight() == defects.getHeight()) {
+                map.merge(defects);
+            }
+            else {
+                map = defects;
+            }
+            try {
+                map.save(file);
+            }
+            catch (IOException e) {
+                Log.e(TAG, "failed to save the defect map: " + e.getMessage());
+            }
+            String message = String.format(Locale.US, "%d defects found, %d in the map", defects.size(), map.size());
+            runOnUiThread(() -> Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show());
+        }
+    };
+
+    /**
+     * The callback of the continuous RAW stream for AWB tracking.
+     * The gains are sent to the camera only when the tracker reports a change.
+     */
+    PreviewRawProcessor.TakeRawCallback mTrackRawCallback = new PreviewRawProcessor.TakeRawCallback() {
+        @Override
+        public void onRawReady(Image image) {
+            if (mAwbTracker.update(image)) {
+                mCameraController.fixedWBGains(mAwbTracker.getGainR(), mAwbTracker.getGainB());
+            }
         }
     };
 
@@ -821,11 +1207,20 @@ public class MainActivity extends AppCompatActivity implements CameraController.
 //                        String.format(Locale.US, "\n %3d/%3d %3d/%3d %3d/%3d", mColorTransform[ 0], mColorTransform[ 1], mColorTransform[ 2], mColorTransform[ 3], mColorTransform[ 4], mColorTransform[ 5]) +
 //                        String.format(Locale.US, "\n %3d/%3d %3d/%3d %3d/%3d", mColorTransform[ 6], mColorTransform[ 7], mColorTransform[ 8], mColorTransform[ 9], mColorTransform[10], mColorTransform[11]) +
 //                        String.format(Locale.US, "\n %3d/%3d %3d/%3d %3d/%3d", mColorTransform[12], mColorTransform[13], mColorTransform[14], mColorTransform[15], mColorTransform[16], mColorTransform[17]);
+            if ((mPreviewRawProcessor != null && mPreviewRawProcessor.isRawView()) || (mPreviewProcessor != null && mPreviewProcessor.isView())) {
+                info += "\n " + mLatencyTracker.getSummary();
+            }
             mTextView.setText(info);
         }
     }
     @Override
     public void onUpdateExposureInfo(CapResult capResult) {
+        if (mCachedGainsPending) {
+            applyNearestGains(capResult.getIso(), capResult.getExposureTime());
+        }
+        if (mPreviewRawProcessor != null && mPreviewRawProcessor.isRawView()) {
+            mPreviewRawProcessor.setWbGains(capResult.getWbGains());
+        }
         runOnUiThread(new UpdateExposureTime(capResult));
     }
 
@@ -890,6 +1285,9 @@ public class MainActivity extends AppCompatActivity implements CameraController.
             for (Surface s : surfaceList) {
                 outputList.add(new OutputConfiguration(s));
             }
+            if (mPreviewProcessor != null) {
+                outputList.addAll(mPreviewProcessor.buildOutputList());
+            }
             mCameraController.startCameraSession(outputList);
         }
     }
@@ -903,6 +1301,30 @@ public class MainActivity extends AppCompatActivity implements CameraController.
         mCameraController.startCameraSession(outputList);
     }
 
+    /**
+     * To measure the photon transfer curve of a uniform target, with a burst of frame pairs around the current exposure.
+     */
+    private void startPhotonTransferSession() {
+        mPhotonTransferIso = mCameraController.getIso();
+        mPhotonTransferExposureTimes = mSnapshotProcessor.startPhotonTransfer(mCameraController.getExposureTime(), mPhotonTransferListener);
+        mSnapshotMode = true;
+        mCameraController.abortCaptures();
+        mSnapshotProcessor.changeImageType(SnapshotProcessor.ImageType.RAW);
+        ArrayList<OutputConfiguration> outputList = new ArrayList<>();
+        outputList.add(new OutputConfiguration(mSnapshotProcessor.getSurface()));
+        mCameraController.startCameraSession(outputList);
+    }
+
+    private final SnapshotProcessor.OnPhotonTransferListener mPhotonTransferListener = new SnapshotProcessor.OnPhotonTransferListener() {
+        @Override
+        public void onPhotonTransferDone(PhotonTransferCurve curve, String error) {
+            String message = (error != null)? "PTC failed: " + error :
+                    String.format(Locale.US, "ISO %d: %.3f e-/DN, read noise %.2f e- (Gr)", mPhotonTransferIso,
+                            curve.getConversionGain(BayerStatistics.CHANNEL_GR), curve.getReadNoise(BayerStatistics.CHANNEL_GR));
+            runOnUiThread(() -> Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show());
+        }
+    };
+
     // Get readings from accelerometer and magnetometer. To simplify calculations,
     // consider storing these readings as unit vectors.
     @Override
@@ -6,11 +6,15 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.ImageFormat;
+import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
@@ -18,14 +22,31 @@ import android.view.SurfaceView;
 
 import androidx.annotation.NonNull;
 
+import com.med.util.FrameLatencyTracker;
+import com.med.util.YuvConverter;
+
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
-public class PreviewProcessor implements ImageReader.OnImageAvailableListener {
+public class PreviewProcessor implements ImageReader.OnImageAvailableListener, StreamConsumer.ImageHandler {
     private static final String TAG = "Camera03";
+
+    /**
+     * The largest YUV stream of the live view. The frames are converted in software, so it is kept to the size of the screen.
+     */
+    private static final int MAX_YUV_PIXELS = 1920 * 1080;
+
+    private final int mFormat;
     private final ImageReader mImageReader;
-    private final SurfaceView mSurfaceView;
+
+    /**
+     * The view which the frames are drawn into, or null. See startView().
+     */
+    private SurfaceView mSurfaceView = null;
 //    private int mOrientation;
 //    private final Matrix mRotateMatrix = new Matrix();
     private boolean mTakeSnapshot = false;
@@ -34,21 +55,85 @@ public class PreviewProcessor implements ImageReader.OnImageAvailableListener {
     private final SharedPreferences mSharedPreferences;
     private final ISaveFile mSaveFile;
 
-    PreviewProcessor(Context context, CameraController.CameraAttrib attrib, @NonNull SurfaceView view, Handler handler, ISaveFile saveFile) {
+    /**
+     * The pooled objects of the preview path, so a frame allocates nothing once the sizes are settled:
+     * the JPEG data is copied into mJpegBytes, which only grows, and decoded into mBitmap through inBitmap,
+     * subsampled by the largest power of 2 which keeps it at least as large as the canvas.
+     * The JPEG frames are decoded into RGB_565, which halves the memory and the bandwidth of the decoding and
+     * the draw against ARGB_8888. The frame has no alpha and is only drawn; the snapshot is saved from the JPEG data.
+     */
+    private byte[] mJpegBytes = new byte[0];
+    private final BitmapFactory.Options mDecodeOptions = new BitmapFactory.Options();
+    private Bitmap mBitmap = null;
+    private final Matrix mDrawMatrix = new Matrix();
+    private final Paint mDrawPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private int mImageWidth = 0;
+    private int mImageHeight = 0;
+    private int mCanvasWidth = 0;
+    private int mCanvasHeight = 0;
+
+    /**
+     * The YUV mode converts the frame into mArgb and copies it into mBitmap. Both are reused while the size stays.
+     */
+    private final YuvConverter mYuvConverter = new YuvConverter();
+    private int[] mArgb = new int[0];
+    private final ByteArrayOutputStream mSnapshotStream = new ByteArrayOutputStream();
+
+    private FrameLatencyTracker mLatencyTracker = null;
+
+    PreviewProcessor(Context context, CameraController.CameraAttrib attrib, Handler handler, ISaveFile saveFile) {
+        this(context, attrib, handler, saveFile, ImageFormat.JPEG);
+    }
+
+    /**
+     * Constructor.
+     * @param format The format of the live view: ImageFormat.JPEG, which the camera encodes and the app decodes,
+     *               or ImageFormat.YUV_420_888, which the app converts on all the cores without the encoding.
+     */
+    PreviewProcessor(Context context, CameraController.CameraAttrib attrib, Handler handler, ISaveFile saveFile, int format) {
         mContext = context;
-        mSurfaceView = view;
+        mFormat = (format == ImageFormat.YUV_420_888)? format : ImageFormat.JPEG;
 //        mOrientation = Configuration.ORIENTATION_LANDSCAPE;
         mSaveFile = saveFile;
         mSharedPreferences = context.getSharedPreferences(context.getString(R.string.preference_file_key), Context.MODE_PRIVATE);
         mSnapshotCount = mSharedPreferences.getInt(context.getString(R.string.preview_snapshot_count_key), 0);
 
-        Size size = attrib.maximumSize(ImageFormat.JPEG, new Size(720, 720));
-        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.JPEG, 4);
+        Size size;
+        if (mFormat == ImageFormat.YUV_420_888) {
+            size = previewSize(attrib.getStreamConfigurationMap(), new Size(1280, 720));
+            mYuvConverter.setParallel(ForkJoinPool.commonPool());
+        }
+        else {
+            size = attrib.maximumSize(ImageFormat.JPEG, new Size(720, 720));
+        }
+        Log.i(TAG, String.format(Locale.US, "[Preview] format 0x%x, %dx%d", mFormat, size.getWidth(), size.getHeight()));
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), mFormat, 4);
         mImageReader.setOnImageAvailableListener(this, handler);
+        mDecodeOptions.inMutable = true;
+        mDecodeOptions.inPreferredConfig = Bitmap.Config.RGB_565;
 
 //        mRotateMatrix.postRotate(90.0f);
     }
 
+    /**
+     * @return The largest YUV_420_888 size up to MAX_YUV_PIXELS, or the default size if there is none.
+     */
+    private static Size previewSize(StreamConfigurationMap streamMap, @NonNull Size defaultSize) {
+        Size best = null;
+        if (streamMap != null) {
+            Size[] sizes = streamMap.getOutputSizes(ImageFormat.YUV_420_888);
+            if (sizes != null) {
+                for (Size size : sizes) {
+                    long pixels = (long)size.getWidth() * size.getHeight();
+                    if (pixels <= MAX_YUV_PIXELS && (best == null || pixels > (long)best.getWidth() * best.getHeight())) {
+                        best = size;
+                    }
+                }
+            }
+        }
+        return (best != null)? best : defaultSize;
+    }
+
     public ArrayList<OutputConfiguration> buildOutputList() {
         ArrayList<OutputConfiguration> outputList = new ArrayList<>();
         outputList.add(new OutputConfiguration(mImageReader.getSurface()));
@@ -59,10 +144,38 @@ public class PreviewProcessor implements ImageReader.OnImageAvailableListener {
         return mImageReader.getSurface();
     }
 
+    /**
+     * To draw every frame into the view, until stopView() is called. The frames are read either way.
+     * @param view The view, which must not be an output of the camera session.
+     */
+    public void startView(SurfaceView view) {
+        synchronized (this) {
+            mSurfaceView = view;
+        }
+    }
+
+    public void stopView() {
+        synchronized (this) {
+            mSurfaceView = null;
+        }
+    }
+
+    public boolean isView() {
+        return mSurfaceView != null;
+    }
+
 //    public void setOrientation(int orientation) {
 //        mOrientation = orientation;
 //    }
 
+    /**
+     * To record the arrival and the display of every frame in the tracker.
+     * @param tracker The tracker, or null to stop.
+     */
+    public void setFrameLatencyTracker(FrameLatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
     public void takeSnapshot() {
         Log.i(TAG, "[Preview] take snapshot");
         synchronized (this) {
@@ -70,42 +183,173 @@ public class PreviewProcessor implements ImageReader.OnImageAvailableListener {
         }
     }
 
+    /**
+     * To pick the subsampling of the decoder when the size of the image or the canvas changes.
+     */
+    private void updateDecodeSize(int imageWidth, int imageHeight, int canvasWidth, int canvasHeight) {
+        if (imageWidth == mImageWidth && imageHeight == mImageHeight && canvasWidth == mCanvasWidth && canvasHeight == mCanvasHeight) {
+            return;
+        }
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= canvasWidth && imageHeight / (sampleSize * 2) >= canvasHeight) {
+            sampleSize *= 2;
+        }
+        mDecodeOptions.inSampleSize = sampleSize;
+        Log.d(TAG, String.format(Locale.US, "[Preview] %dx%d JPEG on a %dx%d canvas, sample size %d",
+                imageWidth, imageHeight, canvasWidth, canvasHeight, sampleSize));
+    }
+
+    /**
+     * To decode the JPEG data into the pooled bitmap. A new bitmap is only made if the pooled one is too small.
+     * @return The decoded bitmap, or null if the data can not be decoded.
+     */
+    private Bitmap decode(int length) {
+        mDecodeOptions.inBitmap = mBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(mJpegBytes, 0, length, mDecodeOptions);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap can not hold the frame
+            mDecodeOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(mJpegBytes, 0, length, mDecodeOptions);
+        }
+        if (bitmap != null && bitmap != mBitmap) {
+            Log.d(TAG, String.format(Locale.US, "[Preview] new bitmap %dx%d", bitmap.getWidth(), bitmap.getHeight()));
+            mBitmap = bitmap;
+        }
+        return bitmap;
+    }
+
+    /**
+     * To convert a YUV frame into the pooled ARGB bitmap.
+     * @return The bitmap of the frame.
+     */
+    private Bitmap convertYuv(Image img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        if (mArgb.length < width * height) {
+            mArgb = new int[width * height];
+        }
+        if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            Log.d(TAG, String.format(Locale.US, "[Preview] new bitmap %dx%d", width, height));
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        Image.Plane[] planes = img.getPlanes();
+        mYuvConverter.convert(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                width, height, mArgb);
+        mBitmap.setPixels(mArgb, 0, width, 0, 0, width, height);
+        return mBitmap;
+    }
+
+    /**
+     * To save a snapshot of the live view.
+     * @param bytes The JPEG data. It is written on another thread, so it must not be reused.
+     */
+    private void saveSnapshot(int imageWidth, int imageHeight, byte[] bytes) {
+        mSnapshotCount++;
+        mSaveFile.write(
+                String.format(Locale.US, "preview-%dx%d-%03d", imageWidth, imageHeight, mSnapshotCount),
+                ISaveFile.FileType.JPEG,
+                bytes);
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(mContext.getString(R.string.preview_snapshot_count_key), mSnapshotCount);
+        editor.apply();
+    }
+
+    public ImageReader getImageReader() {
+        return mImageReader;
+    }
+
     @Override
     public void onImageAvailable(ImageReader reader) {
+        Image img = reader.acquireLatestImage();
+        if (img != null) {
+            onImage(img);
+        }
+    }
+
+    /**
+     * @return True, as the image is closed here as soon as its data is read, before the frame is drawn.
+     */
+    @Override
+    public boolean onImage(Image img) {
+        SurfaceView view;
+        boolean takeSnapshot;
         synchronized (this) {
-            Image img = reader.acquireLatestImage();
-            if (img != null) {
-                Canvas canvas = mSurfaceView.getHolder().lockCanvas();
-                if (canvas != null) {
-                    ByteBuffer buffer = img.getPlanes()[0].getBuffer();
-                    byte[] bytes = new byte[buffer.remaining()];
-                    buffer.get(bytes);
-                    if (mTakeSnapshot) {
-                        mSnapshotCount++;
-                        mSaveFile.write(
-                                String.format(Locale.US, "preview-%dx%d-%03d", img.getWidth(), img.getHeight(), mSnapshotCount),
-                                ISaveFile.FileType.JPEG,
-                                bytes);
-                        mTakeSnapshot = false;
-                        SharedPreferences.Editor editor = mSharedPreferences.edit();
-                        editor.putInt(mContext.getString(R.string.preview_snapshot_count_key), mSnapshotCount);
-                        editor.apply();
-                    }
-                    Bitmap bmpIn = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, null);
-                    Bitmap bmpResized;
-//                    if (mOrientation == Configuration.ORIENTATION_PORTRAIT) {
-//                        Bitmap bmpRotated = Bitmap.createBitmap(bmpIn, 0, 0, bmpIn.getWidth(), bmpIn.getHeight(), mRotateMatrix, true);
-//                        bmpResized = Bitmap.createScaledBitmap(bmpRotated, canvas.getWidth(), canvas.getHeight(), true);
-//                    }
-//                    else {
-//                        bmpResized = Bitmap.createScaledBitmap(bmpIn, canvas.getWidth(), canvas.getHeight(), true);
-//                    }
-                    bmpResized = Bitmap.createScaledBitmap(bmpIn, canvas.getWidth(), canvas.getHeight(), true);
-                    canvas.drawBitmap(bmpResized, 0, 0, new Paint());
-                    mSurfaceView.getHolder().unlockCanvasAndPost(canvas);
-                }
-                img.close();
+            view = mSurfaceView;
+            takeSnapshot = mTakeSnapshot;
+            mTakeSnapshot = false;
+        }
+        if (view == null && !takeSnapshot) {
+            img.close();
+            return true;
+        }
+        FrameLatencyTracker tracker = (view != null)? mLatencyTracker : null;
+        long timestamp = img.getTimestamp();
+        if (tracker != null) {
+            tracker.onImage(timestamp, SystemClock.elapsedRealtimeNanos());
+        }
+        int imageWidth = img.getWidth();
+        int imageHeight = img.getHeight();
+        Bitmap bitmap;
+        if (mFormat == ImageFormat.YUV_420_888) {
+            bitmap = convertYuv(img);
+            img.close();
+            if (takeSnapshot) {
+                // the camera does not encode the YUV stream, so the snapshot is encoded from the converted frame
+                mSnapshotStream.reset();
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 95, mSnapshotStream);
+                saveSnapshot(imageWidth, imageHeight, mSnapshotStream.toByteArray());
+            }
+        }
+        else {
+            ByteBuffer buffer = img.getPlanes()[0].getBuffer();
+            int length = buffer.remaining();
+            if (mJpegBytes.length < length) {
+                mJpegBytes = new byte[length];
+            }
+            buffer.get(mJpegBytes, 0, length);
+            img.close();
+            if (takeSnapshot) {
+                // the file is written on another thread, so it gets its own copy
+                saveSnapshot(imageWidth, imageHeight, Arrays.copyOf(mJpegBytes, length));
+            }
+
+            if (view == null) {
+                return true;
+            }
+            Rect frame = view.getHolder().getSurfaceFrame();
+            if (frame.width() <= 0 || frame.height() <= 0) {
+                return true;
+            }
+            updateDecodeSize(imageWidth, imageHeight, frame.width(), frame.height());
+            bitmap = decode(length);
+            if (bitmap == null) {
+                Log.w(TAG, "[Preview] failed to decode the JPEG frame");
+                return true;
+            }
+        }
+        if (view == null) {
+            return true;
+        }
+        // the surface is only locked for the draw, the decoding is done before
+        Canvas canvas = view.getHolder().lockCanvas();
+        if (canvas != null) {
+//            if (mOrientation == Configuration.ORIENTATION_PORTRAIT) {
+//                mDrawMatrix.postRotate(90.0f);
+//            }
+            mDrawMatrix.setScale((float)canvas.getWidth() / bitmap.getWidth(), (float)canvas.getHeight() / bitmap.getHeight());
+            canvas.drawBitmap(bitmap, mDrawMatrix, mDrawPaint);
+            view.getHolder().unlockCanvasAndPost(canvas);
+            if (tracker != null) {
+                tracker.onPosted(timestamp, SystemClock.elapsedRealtimeNanos());
             }
         }
+        return true;
     }
 }
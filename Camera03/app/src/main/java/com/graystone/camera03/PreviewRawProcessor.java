@@ -1,43 +1,104 @@
 package com.graystone.camera03;
 
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.ImageFormat;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
+import android.view.SurfaceView;
 
+import com.med.util.FrameLatencyTracker;
+import com.med.util.RawBinner;
+import com.med.util.RawFrameRing;
+import com.med.util.WBCalibration;
 
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
-public class PreviewRawProcessor implements ImageReader.OnImageAvailableListener {
+public class PreviewRawProcessor implements ImageReader.OnImageAvailableListener, StreamConsumer.ImageHandler,
+        CameraController.LiveViewResultListener {
     private static final String TAG = "Camera03";
+
+    /**
+     * The most RAW frames kept for the zero-shutter-lag snapshot, about 0.25 s at 30 fps.
+     */
+    private static final int ZSL_MAX_FRAMES = 8;
+
+    /**
+     * The part of the heap which the ZSL frames may use. The direct buffers are allocated in the heap on Android.
+     */
+    private static final int ZSL_HEAP_DIVISOR = 4;
+
     private final ImageReader mImageReader;
     private final ISaveFile mSaveFile;
     private final ICameraControl mCameraControl;
 
     private boolean mTakeSnapshot = false;
     private boolean mTakeRawInMemory = false;
+    private boolean mContinuousRaw = false;
 
     interface TakeRawCallback {
-        void onRawReady(byte[] rawData);
+        /**
+         * Called with the RAW image on the thread which processes the stream.
+         * The image is closed after this call returns, so its planes must not be kept.
+         * @param image The RAW_SENSOR, RAW10 or RAW12 image.
+         */
+        void onRawReady(Image image);
     }
 
     private TakeRawCallback mTakeRawCallback = null;
+    private TakeRawCallback mContinuousRawCallback = null;
+
+    /**
+     * The RAW view renders every RAW frame, binned and white-balanced in software, into a SurfaceView.
+     * The pixels and the bitmap are reused while the size stays.
+     */
+    private final RawBinner mRawBinner;
+    private SurfaceView mRawView = null;
+    private int[] mRawPixels = new int[0];
+    private Bitmap mRawBitmap = null;
+    private final Matrix mRawMatrix = new Matrix();
+    private final Paint mRawPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private FrameLatencyTracker mLatencyTracker = null;
+
+    /**
+     * In the ZSL mode, every RAW frame is copied into a ring of preallocated buffers with its capture result,
+     * and a snapshot saves the frame whose exposure starts the closest to the press of the button,
+     * instead of the next frame. mZslPressTime is the time of the press which is not saved yet, or 0,
+     * and mZslTarget is the press in the time base of the sensor, guarded by the lock of the processor.
+     */
+    private final boolean mTimestampRealtime;
+    private volatile RawFrameRing<TotalCaptureResult> mZslRing = null;
+    private volatile long mZslPressTime = 0;
+    private long mZslTarget = Long.MIN_VALUE;
 
     PreviewRawProcessor(CameraController.CameraAttrib attrib, Handler handler, ISaveFile saveFile, ICameraControl cameraControl) {
         mSaveFile = saveFile;
         mCameraControl = cameraControl;
 
-        Size size = attrib.maximumSize(ImageFormat.RAW_SENSOR, new Size(720, 720));
-        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.RAW_SENSOR, 4);
+        int rawFormat = attrib.getPreferredRawFormat();
+        Size size = attrib.maximumSize(rawFormat, new Size(720, 720));
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), rawFormat, 4);
         mImageReader.setOnImageAvailableListener(this, handler);
+
+        mRawBinner = new RawBinner(attrib.getSensorColorFilter());
+        mRawBinner.setSensorLevels(attrib.getBlackLevelPattern(), attrib.getWhiteLevel());
+        mRawBinner.setParallel(ForkJoinPool.commonPool());
+        mTimestampRealtime = attrib.isTimestampRealtime();
     }
 
     public ArrayList<Surface> getSurfaceList() {
@@ -47,7 +108,67 @@ public class PreviewRawProcessor implements ImageReader.OnImageAvailableListener
     }
 
     public void takeSnapShot() {
-        mTakeSnapshot = true;
+        if (mZslRing != null) {
+            mZslPressTime = SystemClock.elapsedRealtimeNanos();
+        }
+        else {
+            mTakeSnapshot = true;
+        }
+    }
+
+    /**
+     * To start the ZSL mode. The buffers of the frames are allocated here, sized from the resolution of the reader,
+     * as many as fit in the part of the heap for them.
+     * The capture results come from CameraController.setLiveViewResultListener().
+     * @return The error, or null if the ZSL mode is started.
+     */
+    public String startZsl() {
+        int format = mImageReader.getImageFormat();
+        if (!WBCalibration.isSupportedFormat(format)) {
+            return "ZSL is not supported in " + CameraInfo.ImageFormatToString(format);
+        }
+        return allocateZsl(RawFrameRing.frameBytes(format, mImageReader.getWidth(), mImageReader.getHeight()));
+    }
+
+    private String allocateZsl(int frameBytes) {
+        long budget = Runtime.getRuntime().maxMemory() / ZSL_HEAP_DIVISOR;
+        int capacity = RawFrameRing.capacityFor(frameBytes, budget, ZSL_MAX_FRAMES);
+        if (capacity == 0) {
+            mZslRing = null;
+            return String.format(Locale.US, "ZSL needs %d bytes for a frame, only %d are available", frameBytes, budget);
+        }
+        mZslRing = new RawFrameRing<>(capacity, frameBytes);
+        Log.i(TAG, String.format(Locale.US, "[PreviewRaw] ZSL: %d frames of %d bytes", capacity, frameBytes));
+        return null;
+    }
+
+    /**
+     * To stop the ZSL mode and release the buffers of the frames, e.g. when the camera is closed.
+     */
+    public void stopZsl() {
+        synchronized (this) {
+            mZslRing = null;
+            mZslPressTime = 0;
+            mZslTarget = Long.MIN_VALUE;
+        }
+    }
+
+    public boolean isZsl() {
+        return mZslRing != null;
+    }
+
+    /**
+     * CameraController.LiveViewResultListener
+     * To pair the capture result with its frame in the ZSL ring.
+     * @param result The result of a live-view frame.
+     */
+    @Override
+    public void onLiveViewResult(TotalCaptureResult result) {
+        RawFrameRing<TotalCaptureResult> ring = mZslRing;
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (ring != null && timestamp != null) {
+            ring.setMetadata(timestamp, result);
+        }
     }
 
     public void takeRawInMemory(TakeRawCallback callback) {
@@ -55,6 +176,179 @@ public class PreviewRawProcessor implements ImageReader.OnImageAvailableListener
         mTakeRawInMemory = true;
     }
 
+    /**
+     * To deliver every RAW frame of the stream to the callback, until stopContinuousRaw() is called.
+     * The callback decides which frames to process.
+     * @param callback The callback called on the listener thread.
+     */
+    public void startContinuousRaw(TakeRawCallback callback) {
+        synchronized (this) {
+            mContinuousRawCallback = callback;
+            mContinuousRaw = true;
+        }
+    }
+
+    public void stopContinuousRaw() {
+        synchronized (this) {
+            mContinuousRaw = false;
+            mContinuousRawCallback = null;
+        }
+    }
+
+    public boolean isContinuousRaw() {
+        return mContinuousRaw;
+    }
+
+    /**
+     * To render every RAW frame into the view, until stopRawView() is called.
+     * @param view The view, which must not be an output of the camera session.
+     */
+    public void startRawView(SurfaceView view) {
+        synchronized (this) {
+            mRawView = view;
+        }
+    }
+
+    public void stopRawView() {
+        synchronized (this) {
+            mRawView = null;
+        }
+    }
+
+    public boolean isRawView() {
+        return mRawView != null;
+    }
+
+    /**
+     * To record the arrival and the display of every frame of the RAW view in the tracker.
+     * @param tracker The tracker, or null to stop.
+     */
+    public void setFrameLatencyTracker(FrameLatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    /**
+     * To set the white-balance gains of the RAW view, e.g. those of the latest capture result.
+     * @param gains The gains of R, G even, G odd and B. (CapResult.getWbGains())
+     */
+    public void setWbGains(float[] gains) {
+        mRawBinner.setGains(gains[0], gains[1], gains[2], gains[3]);
+    }
+
+    /**
+     * To render a RAW frame into the RAW view. The step in quads keeps the rendered size at about the size of the view.
+     */
+    private void renderRawView(Image img) {
+        FrameLatencyTracker tracker = mLatencyTracker;
+        if (tracker != null) {
+            tracker.onImage(img.getTimestamp(), SystemClock.elapsedRealtimeNanos());
+        }
+        Rect frame = mRawView.getHolder().getSurfaceFrame();
+        if (frame.width() <= 0 || frame.height() <= 0) {
+            return;
+        }
+        int step = Math.max(1, Math.min(img.getWidth() / 2 / frame.width(), img.getHeight() / 2 / frame.height()));
+        int width = RawBinner.outputSize(img.getWidth(), step);
+        int height = RawBinner.outputSize(img.getHeight(), step);
+        if (mRawPixels.length < width * height) {
+            mRawPixels = new int[width * height];
+        }
+        if (mRawBitmap == null || mRawBitmap.getWidth() != width || mRawBitmap.getHeight() != height) {
+            Log.d(TAG, String.format(Locale.US, "[PreviewRaw] RAW view %dx%d, step %d", width, height, step));
+            mRawBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        Image.Plane plane = img.getPlanes()[0];
+        mRawBinner.bin(plane.getBuffer(), img.getFormat(), img.getWidth(), img.getHeight(), plane.getRowStride(), plane.getPixelStride(), step, mRawPixels);
+        mRawBitmap.setPixels(mRawPixels, 0, width, 0, 0, width, height);
+
+        Canvas canvas = mRawView.getHolder().lockCanvas();
+        if (canvas != null) {
+            mRawMatrix.setScale((float)canvas.getWidth() / width, (float)canvas.getHeight() / height);
+            canvas.drawBitmap(mRawBitmap, mRawMatrix, mRawPaint);
+            mRawView.getHolder().unlockCanvasAndPost(canvas);
+            if (tracker != null) {
+                tracker.onPosted(img.getTimestamp(), SystemClock.elapsedRealtimeNanos());
+            }
+        }
+    }
+
+    /**
+     * To copy the frame into the ZSL ring, and to save the frame of a press once a frame after the press has come.
+     */
+    private void addZslFrame(Image img) {
+        Image.Plane plane = img.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        if (buffer.remaining() > mZslRing.getFrameBytes()) {
+            // the rows are padded, the ring is allocated once more with the real size;
+            // the old ring is released first, so the two are never in the heap together
+            mZslRing = null;
+            String error = allocateZsl(buffer.remaining());
+            if (error != null) {
+                Log.e(TAG, "[PreviewRaw] " + error);
+                if (mZslPressTime != 0) {
+                    // the pending press takes the next frame, as without ZSL
+                    mTakeSnapshot = true;
+                    mZslPressTime = 0;
+                    mZslTarget = Long.MIN_VALUE;
+                }
+                return;
+            }
+        }
+        // the pending press is kept and is served from the new ring
+        RawFrameRing<TotalCaptureResult> ring = mZslRing;
+        ring.add(img.getTimestamp(), buffer, img.getFormat(), img.getWidth(), img.getHeight(), plane.getRowStride(), plane.getPixelStride());
+
+        long pressTime = mZslPressTime;
+        if (pressTime == 0) {
+            return;
+        }
+        if (mZslTarget == Long.MIN_VALUE) {
+            // the press in the time base of the sensor; without a realtime timestamp, it is estimated from the arrival of this frame
+            mZslTarget = mTimestampRealtime? pressTime : img.getTimestamp() + (pressTime - SystemClock.elapsedRealtimeNanos());
+        }
+        if (ring.getNewestTimestamp() < mZslTarget) {
+            return;
+        }
+        saveZslFrame(ring, ring.findClosest(mZslTarget), mZslTarget);
+        mZslTarget = Long.MIN_VALUE;
+        mZslPressTime = 0;
+    }
+
+    private void saveZslFrame(RawFrameRing<TotalCaptureResult> ring, int slot, long target) {
+        TotalCaptureResult result = ring.getMetadata(slot);
+        int iso = mCameraControl.getIso();
+        long exposureTime = mCameraControl.getExposureTime();
+        if (result != null) {
+            Integer resultIso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            Long resultExposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            iso = (resultIso != null)? resultIso : iso;
+            exposureTime = (resultExposureTime != null)? resultExposureTime : exposureTime;
+        }
+        else {
+            Log.w(TAG, "[PreviewRaw] ZSL: no capture result of the frame, the current exposure is saved");
+        }
+        Log.i(TAG, String.format(Locale.US, "[PreviewRaw] ZSL: frame %.2f ms from the press, %d frames in the ring",
+                (ring.getTimestamp(slot) - target) / 1e6, ring.size()));
+        String filename = snapshotFilename(ring.getFormat(slot), ring.getWidth(slot), ring.getHeight(slot), ring.getRowStride(slot), iso, exposureTime);
+        mSaveFile.write(filename, ISaveFile.FileType.RAW, ring.copyData(slot));
+    }
+
+    /**
+     * @return The filename of a snapshot: the time, the exposure, the resolution, and the format and row stride of RAW.
+     */
+    private String snapshotFilename(int imageFormat, int width, int height, int rowStride, int iso, long exposureTime) {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+        String timestamp = simpleDateFormat.format(Calendar.getInstance().getTime());
+        String imgResolution = String.format(Locale.US, "%dx%d", width, height);
+        String exposureInfo = String.format(Locale.US, "-Iso+%d-Exp+%d-", iso, exposureTime);
+        String filename = timestamp + exposureInfo + imgResolution;
+        if (WBCalibration.isSupportedFormat(imageFormat)) {
+            // the RAW data is saved as is, with the padding of its rows, so the format and row stride are kept in the filename
+            filename += String.format(Locale.US, "-%s+%d", CameraInfo.ImageFormatToString(imageFormat), rowStride);
+        }
+        return filename;
+    }
+
     private byte [] readBytes(Image.Plane plane) {
         ByteBuffer byteBuffer = plane.getBuffer();
 
@@ -63,45 +357,58 @@ public class PreviewRawProcessor implements ImageReader.OnImageAvailableListener
         return bytes;
     }
 
+    public ImageReader getImageReader() {
+        return mImageReader;
+    }
+
     @Override
     public void onImageAvailable(ImageReader reader) {
+        Image img = reader.acquireLatestImage();
+        if (img != null) {
+            onImage(img);
+            img.close();
+        }
+    }
+
+    @Override
+    public boolean onImage(Image img) {
         synchronized (this) {
-            Image img = reader.acquireLatestImage();
-            if (img != null) {
-                if (mTakeSnapshot) {
-                    int imageFormat = img.getFormat();
-                    Log.d(TAG, "[PreviewRaw] image format: " + CameraInfo.ImageFormatToString(imageFormat));
-                    Image.Plane[] planes = img.getPlanes();
-                    Log.d(TAG, "num of planes: " + planes.length);
-                    SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
-                    String timestamp = simpleDateFormat.format(Calendar.getInstance().getTime());
-                    String imgResolution = String.format(Locale.US, "%dx%d", img.getWidth(), img.getHeight());
-                    String exposureInfo = String.format(Locale.US, "-Iso+%d-Exp+%d-", mCameraControl.getIso(), mCameraControl.getExposureTime());
-                    if (imageFormat == ImageFormat.RAW_SENSOR) {
-                        String filename = timestamp + exposureInfo + imgResolution;
-                        byte [] rawData = readBytes(planes[0]);
-                        mSaveFile.write(filename, ISaveFile.FileType.RAW, rawData);
-                    } else if (imageFormat == ImageFormat.JPEG) {
-                        String filename = timestamp + exposureInfo + imgResolution;
-                        mSaveFile.write(filename, ISaveFile.FileType.JPEG, readBytes(planes[0]));
-                    } else {
-                        Log.e(TAG, "Unsupported image format!");
-                    }
-                    mTakeSnapshot = false;
+            if (mTakeSnapshot) {
+                int imageFormat = img.getFormat();
+                Log.d(TAG, "[PreviewRaw] image format: " + CameraInfo.ImageFormatToString(imageFormat));
+                Image.Plane[] planes = img.getPlanes();
+                Log.d(TAG, "num of planes: " + planes.length);
+                String filename = snapshotFilename(imageFormat, img.getWidth(), img.getHeight(), planes[0].getRowStride(),
+                        mCameraControl.getIso(), mCameraControl.getExposureTime());
+                if (WBCalibration.isSupportedFormat(imageFormat)) {
+                    byte [] rawData = readBytes(planes[0]);
+                    mSaveFile.write(filename, ISaveFile.FileType.RAW, rawData);
+                } else if (imageFormat == ImageFormat.JPEG) {
+                    mSaveFile.write(filename, ISaveFile.FileType.JPEG, readBytes(planes[0]));
+                } else {
+                    Log.e(TAG, "Unsupported image format!");
                 }
-                if (mTakeRawInMemory) {
-                    int imageFormat = img.getFormat();
-                    if (imageFormat == ImageFormat.RAW_SENSOR) {
-                        Image.Plane[] planes = img.getPlanes();
-                        byte[] rawData = readBytes(planes[0]);
-                        if (mTakeRawCallback != null) {
-                            mTakeRawCallback.onRawReady(rawData);
-                        }
+                mTakeSnapshot = false;
+            }
+            if (mTakeRawInMemory) {
+                int imageFormat = img.getFormat();
+                if (WBCalibration.isSupportedFormat(imageFormat)) {
+                    if (mTakeRawCallback != null) {
+                        mTakeRawCallback.onRawReady(img);
                     }
-                    mTakeRawInMemory = false;
                 }
-                img.close();
+                mTakeRawInMemory = false;
+            }
+            if (mZslRing != null && WBCalibration.isSupportedFormat(img.getFormat())) {
+                addZslFrame(img);
+            }
+            if (mContinuousRaw && WBCalibration.isSupportedFormat(img.getFormat())) {
+                mContinuousRawCallback.onRawReady(img);
+            }
+            if (mRawView != null && WBCalibration.isSupportedFormat(img.getFormat())) {
+                renderRawView(img);
             }
         }
+        return false;
     }
 }
@@ -1,28 +1,66 @@
 package com.graystone.camera03;
 
 import android.graphics.ImageFormat;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
 
+import com.med.util.BayerStatistics;
+import com.med.util.PhotonTransferCurve;
+
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
 
-public class SnapshotProcessor implements ImageReader.OnImageAvailableListener {
+public class SnapshotProcessor implements ImageReader.OnImageAvailableListener, StreamConsumer.ImageHandler,
+        CameraController.BurstListener {
     private static final String TAG = "Camera03";
 
     public interface OnSnapshotFinishedListener {
         void onSnapshotFinished();
     }
 
+    public interface OnPhotonTransferListener {
+        /**
+         * @param curve The measured points and, if the error is null, the fitted results.
+         * @param error Null if the curve is fitted, otherwise the reason.
+         */
+        void onPhotonTransferDone(PhotonTransferCurve curve, String error);
+    }
+
+    /**
+     * The photon transfer burst: a pair of frames at every half stop from 1/16 to 8 times the current exposure time.
+     */
+    private static final int PTC_HALF_STOPS_BELOW = 8;
+    private static final int PTC_HALF_STOPS_ABOVE = 6;
+    public static final int PTC_FRAMES_PER_EXPOSURE = 2;
+
+    /**
+     * The frames of the burst which wait for their capture results. The reader has 4 images, and the first frame
+     * of a pair and the frame in the queue of the consumer take one each.
+     */
+    private static final int PTC_MAX_WAITING_FRAMES = 2;
+
+    /**
+     * The time the last frames may come after the capture sequence is completed, and the time the burst may take
+     * on top of its exposure times, e.g. to configure the session.
+     */
+    private static final long PTC_LAST_FRAME_TIMEOUT_MS = 1000;
+    private static final long PTC_BURST_TIMEOUT_MARGIN_MS = 5000;
+
     private final OnSnapshotFinishedListener mListener;
     private ImageReader mImageReader;
     private final ImageReader mImageReaderRaw;
@@ -30,19 +68,55 @@ public class SnapshotProcessor implements ImageReader.OnImageAvailableListener {
     private Long mExposureTime = 1000L;
     private Integer mIso = 100;
     private final ISaveFile mSaveFile;
+    private final Handler mHandler;
+
+    private final PhotonTransferCurve mPhotonTransfer;
+    private final Range<Long> mExposureTimeRange;
+    private OnPhotonTransferListener mPhotonTransferListener = null;
+
+    /**
+     * The frames of the photon transfer burst are paired by the exposure time of their capture results, which are
+     * found by the sensor timestamp, so a lost frame or result only drops its own pair. The first frame of a pair
+     * whose second frame has another exposure time is dropped. The burst is finished once the capture sequence
+     * is completed and the frame of every result has come, or on a timeout.
+     */
+    private Image mFirstOfPair = null;
+    private long mFirstExposureTime = 0;
+    private final ArrayList<Image> mWaitingFrames = new ArrayList<>();
+    private final HashMap<Long, Long> mBurstExposureTimes = new HashMap<>();
+    private int mBurstResultCount = 0;
+    private int mBurstFrameCount = 0;
+    private boolean mBurstSequenceDone = false;
+    private final Runnable mPhotonTransferTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SnapshotProcessor.this) {
+                if (mPhotonTransferListener != null) {
+                    Log.w(TAG, String.format(Locale.US, "PTC burst timed out with %d frames of %d results", mBurstFrameCount, mBurstResultCount));
+                    finishPhotonTransfer();
+                }
+            }
+        }
+    };
 
     SnapshotProcessor(CameraController.CameraAttrib cameraAttrib, OnSnapshotFinishedListener listener, @NonNull Handler handler, ISaveFile saveFile) {
         mListener = listener;
         mSaveFile = saveFile;
+        mHandler = handler;
 
         Size jpegSize = cameraAttrib.maximumSize(ImageFormat.JPEG, new Size(1280, 720));
-        Size rawSize = cameraAttrib.maximumSize(ImageFormat.RAW_SENSOR, new Size(1280, 270));
+        int rawFormat = cameraAttrib.getPreferredRawFormat();
+        Size rawSize = cameraAttrib.maximumSize(rawFormat, new Size(1280, 270));
 
         mImageReaderJpeg = ImageReader.newInstance(jpegSize.getWidth(), jpegSize.getHeight(), ImageFormat.JPEG, 4);
         mImageReaderJpeg.setOnImageAvailableListener(this, handler);
-        mImageReaderRaw = ImageReader.newInstance(rawSize.getWidth(), rawSize.getHeight(), ImageFormat.RAW_SENSOR, 4);
+        mImageReaderRaw = ImageReader.newInstance(rawSize.getWidth(), rawSize.getHeight(), rawFormat, 4);
         mImageReaderRaw.setOnImageAvailableListener(this, handler);
         mImageReader = mImageReaderRaw;
+
+        mPhotonTransfer = new PhotonTransferCurve(cameraAttrib.getSensorColorFilter());
+        mPhotonTransfer.setSensorLevels(cameraAttrib.getBlackLevelPattern(), cameraAttrib.getWhiteLevel());
+        mExposureTimeRange = cameraAttrib.getExposureTimeRange();
     }
 
     public Surface getSurface() {
@@ -73,6 +147,172 @@ public class SnapshotProcessor implements ImageReader.OnImageAvailableListener {
         }
     }
 
+    /**
+     * To measure the photon transfer curve with the next RAW burst instead of saving the frames.
+     * The frames of a pair are compared as they arrive, and are closed right after, so nothing is copied.
+     * The burst must be taken with this processor as its CameraController.BurstListener.
+     * @param exposureTime The current exposure time in nanoseconds, which is in the middle of the curve.
+     * @param listener Called when the burst is done, on the thread of its last frame or result, or of the handler on a timeout.
+     * @return The exposure times of the burst for CameraController.takeBurst(), with PTC_FRAMES_PER_EXPOSURE frames each.
+     */
+    public long[] startPhotonTransfer(long exposureTime, @NonNull OnPhotonTransferListener listener) {
+        long[] exposureTimes = new long[PTC_HALF_STOPS_BELOW + PTC_HALF_STOPS_ABOVE + 1];
+        long burstTime = 0;
+        for (int i=0; i<exposureTimes.length; i++) {
+            long time = Math.round(exposureTime * Math.pow(2.0, (i - PTC_HALF_STOPS_BELOW) / 2.0));
+            exposureTimes[i] = (mExposureTimeRange != null)? mExposureTimeRange.clamp(time) : time;
+            burstTime += exposureTimes[i] * PTC_FRAMES_PER_EXPOSURE;
+        }
+        synchronized (this) {
+            releaseBurstFrames();
+            mPhotonTransfer.clear();
+            mBurstResultCount = 0;
+            mBurstFrameCount = 0;
+            mBurstSequenceDone = false;
+            mPhotonTransferListener = listener;
+            mHandler.removeCallbacks(mPhotonTransferTimeout);
+            mHandler.postDelayed(mPhotonTransferTimeout, burstTime / 1000000 + PTC_BURST_TIMEOUT_MARGIN_MS);
+        }
+        return exposureTimes;
+    }
+
+    @Override
+    public void onBurstResult(TotalCaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        synchronized (this) {
+            if (mPhotonTransferListener == null || timestamp == null || exposureTime == null) {
+                return;
+            }
+            mBurstResultCount++;
+            mBurstExposureTimes.put(timestamp, exposureTime);
+            // a frame may come before its capture result
+            pairWaitingFrames();
+        }
+    }
+
+    @Override
+    public void onBurstDone() {
+        synchronized (this) {
+            if (mPhotonTransferListener == null) {
+                return;
+            }
+            mBurstSequenceDone = true;
+            if (mBurstFrameCount >= mBurstResultCount) {
+                finishPhotonTransfer();
+            }
+            else {
+                // the last frames may still be in the queue, or lost
+                mHandler.removeCallbacks(mPhotonTransferTimeout);
+                mHandler.postDelayed(mPhotonTransferTimeout, PTC_LAST_FRAME_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * To add a frame of the photon transfer burst. It waits for its capture result before it is paired.
+     * @return True, as the frame is kept until it is paired, or closed here.
+     */
+    private boolean addPhotonTransferFrame(Image img) {
+        mBurstFrameCount++;
+        mWaitingFrames.add(img);
+        if (mWaitingFrames.size() > PTC_MAX_WAITING_FRAMES) {
+            Log.w(TAG, "PTC frame without a capture result dropped");
+            mWaitingFrames.remove(0).close();
+        }
+        pairWaitingFrames();
+        if (mBurstSequenceDone && mBurstFrameCount >= mBurstResultCount) {
+            finishPhotonTransfer();
+        }
+        return true;
+    }
+
+    /**
+     * To pair the waiting frames, in the order they came, whose capture results have come.
+     */
+    private void pairWaitingFrames() {
+        while (!mWaitingFrames.isEmpty()) {
+            Image img = mWaitingFrames.get(0);
+            Long exposureTime = mBurstExposureTimes.remove(img.getTimestamp());
+            if (exposureTime == null) {
+                return;
+            }
+            mWaitingFrames.remove(0);
+            if (mFirstOfPair != null && mFirstExposureTime != exposureTime) {
+                // the other frame of its pair is lost, and a pair across two exposure times has no meaning
+                Log.w(TAG, String.format(Locale.US, "PTC frame of %d ns without a pair dropped", mFirstExposureTime));
+                mFirstOfPair.close();
+                mFirstOfPair = null;
+            }
+            if (mFirstOfPair == null) {
+                mFirstOfPair = img;
+                mFirstExposureTime = exposureTime;
+                continue;
+            }
+            addPhotonTransferPair(mFirstOfPair, img);
+            mFirstOfPair.close();
+            mFirstOfPair = null;
+            img.close();
+        }
+    }
+
+    /**
+     * To measure a pair of frames of the same exposure time. The center half of the frame is measured, where the shading is low.
+     */
+    private void addPhotonTransferPair(Image imgA, Image imgB) {
+        Image.Plane planeA = imgA.getPlanes()[0];
+        Image.Plane planeB = imgB.getPlanes()[0];
+        int width = imgB.getWidth();
+        int height = imgB.getHeight();
+        long start = SystemClock.elapsedRealtime();
+        String error = mPhotonTransfer.addPair(planeA.getBuffer(), planeB.getBuffer(), imgB.getFormat(), planeA.getRowStride(), planeA.getPixelStride(),
+                width / 4, height / 4, width / 2, height / 2);
+        if (error != null) {
+            // e.g. the longest exposures are clipped, the curve is fitted without them
+            Log.w(TAG, "PTC pair skipped: " + error);
+        }
+        else {
+            int point = mPhotonTransfer.getPointCount() - 1;
+            Log.d(TAG, String.format(Locale.US, "PTC pair %d: %d ms, Gr signal %.1f, variance %.2f", point, SystemClock.elapsedRealtime() - start,
+                    mPhotonTransfer.getSignal(point, BayerStatistics.CHANNEL_GR), mPhotonTransfer.getVariance(point, BayerStatistics.CHANNEL_GR)));
+        }
+    }
+
+    /**
+     * To close the frames which are kept and forget the capture results of the burst.
+     */
+    private void releaseBurstFrames() {
+        if (mFirstOfPair != null) {
+            mFirstOfPair.close();
+            mFirstOfPair = null;
+        }
+        for (Image img : mWaitingFrames) {
+            img.close();
+        }
+        mWaitingFrames.clear();
+        mBurstExposureTimes.clear();
+    }
+
+    /**
+     * To fit the curve of the pairs so far and report it. The frames without a pair are dropped.
+     */
+    private void finishPhotonTransfer() {
+        mHandler.removeCallbacks(mPhotonTransferTimeout);
+        pairWaitingFrames();
+        releaseBurstFrames();
+        String error = mPhotonTransfer.fit();
+        if (error == null) {
+            for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+                Log.i(TAG, String.format(Locale.US, "PTC channel %d: conversion gain %.3f e-/DN, read noise %.2f e-",
+                        channel, mPhotonTransfer.getConversionGain(channel), mPhotonTransfer.getReadNoise(channel)));
+            }
+        }
+        OnPhotonTransferListener listener = mPhotonTransferListener;
+        mPhotonTransferListener = null;
+        listener.onPhotonTransferDone(mPhotonTransfer, error);
+        mListener.onSnapshotFinished();
+    }
+
     private String makeFilename() {
         Date currentTime = Calendar.getInstance().getTime();
         SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
@@ -88,6 +328,16 @@ public class SnapshotProcessor implements ImageReader.OnImageAvailableListener {
         mSaveFile.write(title, fileType, data);
     }
 
+    /**
+     * To save RAW data as is. It is named as the RAW snapshot of the preview, timestamp-Iso+N-Exp+N-WxH-FORMAT+rowStride,
+     * so the format and row stride are kept and the batch calibration tool can read it.
+     */
+    private void writeRaw(byte [] data, int width, int height, int format, int rowStride) {
+        String title = makeFilename() + String.format(Locale.US, "-Iso+%d-Exp+%d-%dx%d-%s+%d", mIso, mExposureTime,
+                width, height, CameraInfo.ImageFormatToString(format), rowStride);
+        mSaveFile.write(title, ISaveFile.FileType.RAW, data);
+    }
+
     private byte [] readByteData(Image.Plane plane) {
         ByteBuffer byteBuffer = plane.getBuffer();
         Log.d(TAG, "  length: " + byteBuffer.remaining() + "bytes");
@@ -99,32 +349,52 @@ public class SnapshotProcessor implements ImageReader.OnImageAvailableListener {
         return bytes;
     }
 
+    /**
+     * @return The readers of both formats, only one of which is an output at a time.
+     */
+    public ImageReader[] getImageReaders() {
+        return new ImageReader[] {mImageReaderRaw, mImageReaderJpeg};
+    }
+
     @Override
     public void onImageAvailable(ImageReader reader) {
         Log.d(TAG, "SnapshotProcessor.onImageAvailable()");
         synchronized (this) {
-            Image img = reader.acquireLatestImage();
-            if (img != null) {
-                Log.d(TAG, "Got a image.");
-                Log.d(TAG, "Snapshot image format: " + CameraInfo.ImageFormatToString(img.getFormat()));
-                Image.Plane[] planes = img.getPlanes();
-                Log.d(TAG, "  num. of planes: " + planes.length);
-                int imgFormat = img.getFormat();
-                switch (imgFormat)
-                {
-                    case ImageFormat.RAW_SENSOR:
-                        // for RAW data
-                        writeImage(readByteData(planes[0]), ImageType.RAW);
-                        break;
-                    case ImageFormat.JPEG:
-                        writeImage(readByteData(planes[0]), ImageType.JPEG);
-                        break;
-                    default:
-                        Log.i(TAG, "Cannot save an unsupported format.");
-                }
-                mListener.onSnapshotFinished();
+            // every frame of the photon transfer burst is needed
+            Image img = (mPhotonTransferListener != null)? reader.acquireNextImage() : reader.acquireLatestImage();
+            if (img != null && !onImage(img)) {
                 img.close();
             }
         }
     }
+
+    @Override
+    public boolean onImage(Image img) {
+        synchronized (this) {
+            if (mPhotonTransferListener != null) {
+                return addPhotonTransferFrame(img);
+            }
+            Log.d(TAG, "Got a image.");
+            Log.d(TAG, "Snapshot image format: " + CameraInfo.ImageFormatToString(img.getFormat()));
+            Image.Plane[] planes = img.getPlanes();
+            Log.d(TAG, "  num. of planes: " + planes.length);
+            int imgFormat = img.getFormat();
+            switch (imgFormat)
+            {
+                case ImageFormat.RAW_SENSOR:
+                case ImageFormat.RAW10:
+                case ImageFormat.RAW12:
+                    // for RAW data, the format and row stride are kept in the filename
+                    writeRaw(readByteData(planes[0]), img.getWidth(), img.getHeight(), imgFormat, planes[0].getRowStride());
+                    break;
+                case ImageFormat.JPEG:
+                    writeImage(readByteData(planes[0]), ImageType.JPEG);
+                    break;
+                default:
+                    Log.i(TAG, "Cannot save an unsupported format.");
+            }
+            mListener.onSnapshotFinished();
+        }
+        return false;
+    }
 }
@@ -0,0 +1,135 @@
+package com.graystone.camera03;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.med.util.FrameQueue;
+
+import java.util.Locale;
+
+/**
+ * The consumer of one ImageReader. The images are acquired on a reader thread of the stream as soon as they arrive,
+ * and processed in order on a consumer thread of the stream, so a slow stream never stalls the others.
+ * Between the two threads is a FrameQueue with the declared policy of the stream, which counts the dropped and late frames.
+ * The reader holds one image while it is queued and the consumer holds one while it is processed, so the capacity
+ * of the queue plus the images kept by the handler must stay below the maxImages of the reader.
+ */
+public class StreamConsumer implements ImageReader.OnImageAvailableListener {
+    private static final String TAG = "Camera03";
+
+    interface ImageHandler {
+        /**
+         * Called with every image which is not dropped, on the consumer thread.
+         * @param image The image. It is closed after this call returns, unless it is kept.
+         * @return True if the image is kept by the handler, which closes it later.
+         */
+        boolean onImage(Image image);
+    }
+
+    private final String mName;
+    private final ImageHandler mImageHandler;
+    private final FrameQueue<Image> mQueue;
+    private final HandlerThread mReaderThread;
+    private final Thread mConsumerThread;
+
+    /**
+     * Constructor. The consumer replaces the listener of the reader.
+     * @param name The name of the stream, for the threads and the statistics.
+     * @param reader The reader of the stream.
+     * @param policy The policy when the consumer is behind. (FrameQueue.POLICY_*)
+     * @param capacity The number of images which may wait.
+     * @param imageHandler The handler which processes the images.
+     */
+    StreamConsumer(String name, ImageReader reader, int policy, int capacity, ImageHandler imageHandler) {
+        if (capacity > reader.getMaxImages() - 2) {
+            throw new IllegalArgumentException(String.format(Locale.US, "%s: %d images can not wait on a reader of %d images",
+                    name, capacity, reader.getMaxImages()));
+        }
+        mName = name;
+        mImageHandler = imageHandler;
+        mQueue = new FrameQueue<>(capacity, policy, Image::close);
+
+        mReaderThread = new HandlerThread(name + "-reader");
+        mReaderThread.start();
+        reader.setOnImageAvailableListener(this, new Handler(mReaderThread.getLooper()));
+
+        mConsumerThread = new Thread(this::consume, name + "-consumer");
+        mConsumerThread.start();
+        Log.i(TAG, String.format(Locale.US, "[Stream] %s: %s, %d waiting", name, FrameQueue.policyName(policy), capacity));
+    }
+
+    /**
+     * @param nanoseconds An image is counted as late if it waits longer than this, e.g. the frame duration.
+     */
+    public void setLateThreshold(long nanoseconds) {
+        mQueue.setLateThreshold(nanoseconds);
+    }
+
+    /**
+     * Every image in the reader is acquired, not only the one of the callback, so an image which could not be
+     * acquired by an earlier callback, as maxImages were in use, is read here instead of being left in the reader.
+     */
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        while (true) {
+            Image img;
+            try {
+                img = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                // maxImages are in use, the images left in the reader are drained by the next callback
+                Log.w(TAG, String.format(Locale.US, "[Stream] %s: no image to acquire", mName));
+                return;
+            }
+            if (img == null) {
+                return;
+            }
+            try {
+                mQueue.offer(img);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void consume() {
+        try {
+            Image img;
+            while ((img = mQueue.take()) != null) {
+                boolean kept = false;
+                try {
+                    kept = mImageHandler.onImage(img);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, String.format(Locale.US, "[Stream] %s: %s", mName, e));
+                } finally {
+                    if (!kept) {
+                        img.close();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "[Stream] " + getStatistics());
+    }
+
+    /**
+     * To stop both threads. The waiting images are closed.
+     */
+    public void quit() {
+        mQueue.close();
+        mReaderThread.quitSafely();
+    }
+
+    /**
+     * @return A line of the counters of the stream.
+     */
+    public String getStatistics() {
+        return String.format(Locale.US, "%s (%s): %d received, %d processed, %d dropped, %d late, %d blocked",
+                mName, FrameQueue.policyName(mQueue.getPolicy()), mQueue.getOfferedCount(), mQueue.getTakenCount(),
+                mQueue.getDroppedCount(), mQueue.getLateCount(), mQueue.getBlockedCount());
+    }
+}
@@ -3,21 +3,14 @@ package com.graystone.camera03;
 import android.hardware.camera2.params.TonemapCurve;
 import android.util.Log;
 
+import com.med.util.ToneCurve;
+
 import java.util.HashMap;
 
 public class ToneCurveController {
     private static final String TAG = "Camera03";
 
-    private static final float[] mOriginCurve = new float[] {
-            0.0f,        0.0f,        0.032258064f, 0.08993158f, 0.06451613f, 0.19061583f, 0.09677419f, 0.27077225f,
-            0.12903225f, 0.3431085f,  0.16129032f,  0.39687195f, 0.19354838f, 0.44770283f, 0.22580644f, 0.4907136f,
-            0.2580645f,  0.5356794f,  0.29032257f,  0.57087f,    0.32258064f, 0.6041056f,  0.3548387f,  0.6344086f,
-            0.38709676f, 0.6656892f,  0.41935483f,  0.6911046f,  0.4516129f,  0.714565f,   0.48387095f, 0.7380254f,
-            0.516129f,   0.7614858f,  0.5483871f,   0.7820137f,  0.58064514f, 0.80254155f, 0.61290324f, 0.82013685f,
-            0.6451613f,  0.83968717f, 0.67741936f,  0.856305f,   0.7096774f,  0.87194526f, 0.7419355f,  0.88856304f,
-            0.7741935f,  0.9042033f,  0.8064516f,   0.9178886f,  0.83870965f, 0.9325513f,  0.87096775f, 0.94525903f,
-            0.9032258f,  0.9599218f,  0.9354839f,   0.97262955f, 0.9677419f,  0.98533726f, 1.0f,        1.0f
-    };
+    private static final float[] mOriginCurve = ToneCurve.getDefaultCurve();
 
     private static final HashMap<Integer, Float> mContrastFactorMap = new HashMap<Integer, Float>() {{
         put(-4, 0.68f);
@@ -70,24 +63,6 @@ public class ToneCurveController {
         return result;
     }
 
-    /**
-     * Generates a tone curve for the contrast adjustment.
-     * @param inputCurve The base tone curve.
-     * @param contrastFactor The factor to adjust contrast. Its valid range is from 0.5 to 1.5.
-     * @return The new tone curve.
-     */
-    private float [] generate_tone_curve(float[] inputCurve, float contrastFactor) {
-        float [] outputCurve = inputCurve.clone();
-        float validContrastFactor = Math.min(1.5f, Math.max(0.5f, contrastFactor));
-
-        for (int idx=0; idx<inputCurve.length; idx+=2) {
-            // output node of the tone curve
-            outputCurve[idx+1] = Math.min(0.5f, Math.max(-0.5f, (inputCurve[idx+1] - 0.5f) * validContrastFactor)) + 0.5f;
-        }
-
-        return outputCurve;
-    }
-
     /**
      * Get a new tone map curve for the brightness and contrast adjustment.
      * @param brightness The level of the brightness. Valid range is from -4 to +4.
@@ -96,8 +71,7 @@ public class ToneCurveController {
      */
     public TonemapCurve getToneMapCurve(int brightness, int contrast) {
 //        float [] toneMapCurve = generate_curve(brightness, contrast);
-        float contrastFactor = 1.0f + (contrast * 0.08f);
-        float [] toneMapCurve = generate_tone_curve(mOriginCurve, contrastFactor);
+        float [] toneMapCurve = ToneCurve.getContrastCurve(contrast);
         return new TonemapCurve(toneMapCurve, toneMapCurve, toneMapCurve);
     }
 }
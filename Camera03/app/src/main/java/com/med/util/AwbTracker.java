@@ -0,0 +1,76 @@
+package com.med.util;
+
+import android.media.Image;
+import android.util.Log;
+
+/**
+ * This class tracks the WB gains on a running RAW stream.
+ * The smoothing and the hysteresis are done by WBTracker of the core module.
+ */
+public class AwbTracker {
+    private static final String TAG = AwbTracker.class.getSimpleName();
+
+    private final WBTracker mTracker;
+
+    /**
+     * Constructor.
+     * @param calibrator The calibrator used on the sampled frames.
+     */
+    public AwbTracker(WBCalibrator calibrator) {
+        mTracker = new WBTracker(calibrator);
+    }
+
+    /**
+     * @param interval Calibrate every Nth frame. 1 for every frame.
+     */
+    public void setFrameInterval(int interval) {
+        mTracker.setFrameInterval(interval);
+    }
+
+    /**
+     * @param smoothing The weight of a new measurement in the moving average, in (0, 1]. 1 for no smoothing.
+     */
+    public void setSmoothing(float smoothing) {
+        mTracker.setSmoothing(smoothing);
+    }
+
+    /**
+     * @param threshold The minimum relative change of the R or B gain to report, e.g. 0.02 for 2%.
+     */
+    public void setThreshold(float threshold) {
+        mTracker.setThreshold(threshold);
+    }
+
+    /**
+     * To restart the tracking. The next calibrated frame is reported without smoothing.
+     */
+    public void reset() {
+        mTracker.reset();
+    }
+
+    /**
+     * To feed a frame of the stream. It must be called before the image is closed.
+     * @param image A RAW_SENSOR, RAW10 or RAW12 image.
+     * @return True if the gains changed by more than the threshold, and getGainR()/getGainB() should be applied.
+     */
+    public boolean update(Image image) {
+        float gainR = mTracker.getGainR();
+        float gainB = mTracker.getGainB();
+        Image.Plane plane = image.getPlanes()[0];
+        if (!mTracker.update(plane.getBuffer(), image.getFormat(), image.getWidth(), image.getHeight(), plane.getRowStride(), plane.getPixelStride())) {
+            return false;
+        }
+        Log.d(TAG, String.format("gains R: %f -> %f,  B: %f -> %f", gainR, mTracker.getGainR(), gainB, mTracker.getGainB()));
+        return true;
+    }
+
+    /**
+     * @return The smoothed R gain which was reported last.
+     */
+    public float getGainR() { return mTracker.getGainR(); }
+
+    /**
+     * @return The smoothed B gain which was reported last.
+     */
+    public float getGainB() { return mTracker.getGainB(); }
+}
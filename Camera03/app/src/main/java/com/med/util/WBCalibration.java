@@ -1,11 +1,14 @@
 package com.med.util;
 
-import android.hardware.camera2.CameraCharacteristics;
+import android.media.Image;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
 
+/**
+ * The white-balance calibration on RAW images. The math is done by WBCalibrator of the core module.
+ */
 public class WBCalibration {
     private static final String TAG = WBCalibration.class.getSimpleName();
 
@@ -13,7 +16,7 @@ public class WBCalibration {
     private final int mSensorHeight;
     private final int mColorFilter;
 
-    private static final float NUM_OF_CHANNELS = 4.0f;
+    private final WBCalibrator mCalibrator;
 
     private float mGainR = 1.0f;
     private float mGainB = 1.0f;
@@ -22,82 +25,109 @@ public class WBCalibration {
         mSensorWidth = sensorWidth;
         mSensorHeight = sensorHeight;
         mColorFilter = colorFilter;
+        mCalibrator = new WBCalibrator(colorFilter);
+    }
+
+    /**
+     * @param format The image format. (Image.getFormat())
+     * @return True if the format can be calibrated. (ImageFormat.RAW_SENSOR, RAW10 and RAW12)
+     */
+    public static boolean isSupportedFormat(int format) {
+        return WBCalibrator.isSupportedFormat(format);
+    }
+
+    /**
+     * To set the black and white levels of the sensor. The black level is subtracted from the channel sums,
+     * and the quads near the white level are excluded. Both are done inside the statistics pass.
+     * @param blackLevelPattern The black level offsets in the order left-top, right-top, left-bottom, right-bottom.
+     *                          (CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN) Null for no black level.
+     * @param whiteLevel The maximum raw value. (CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL) 0 for the default 10-bit level.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mCalibrator.setSensorLevels(blackLevelPattern, whiteLevel);
+        Log.i(TAG, String.format("black level: %d, white level: %d", mCalibrator.getBlackLevel(), mCalibrator.getWhiteLevel()));
+    }
+
+    /**
+     * To enable or disable the parallel reduction mode.
+     * The frame is split into bands which are summed on the common ForkJoinPool.
+     * @param enable True to sum the frame on all cores.
+     */
+    public void setParallelMode(boolean enable) {
+        mCalibrator.setParallel(enable? ForkJoinPool.commonPool() : null);
+    }
+
+    /**
+     * To enable the fast calibration mode. Only every Nth 2x2 quad in both directions is visited.
+     * If the estimated error of the gains exceeds the tolerance, the frame is calibrated again with a full pass.
+     * @param step The sampling step, e.g. 4 to visit 1/16 of the frame. 1 to disable the fast mode.
+     */
+    public void setSamplingStep(int step) {
+        mCalibrator.setSamplingStep(step);
+    }
+
+    /**
+     * @param tolerance The maximum relative error of the R/B gains in fast mode, e.g. 0.01 for 1%.
+     */
+    public void setGainTolerance(float tolerance) {
+        mCalibrator.setGainTolerance(tolerance);
     }
 
     /**
      * WhiteBalance Calibration
      * @param byteRaw 16-bit RAW data
+     * @return False if the frame is clipped or underexposed. The gains are not changed in this case.
      */
-    public void calibrate(byte[] byteRaw) {
-        int sumOfLeftTop = 0;
-        int sumOfRightTop = 0;
-        int sumOfLeftBottom = 0;
-        int sumOfRightBottom = 0;
-        float K;
-        float factorR;
-        float factorG;
-        float factorB;
-
+    public boolean calibrate(byte[] byteRaw) {
         Log.i(TAG, String.format("Sensor active array: %d x %d, color filter: %d", mSensorWidth, mSensorHeight, mColorFilter));
+        return onCalibrated(mCalibrator.calibrate(ByteBuffer.wrap(byteRaw), BayerStatistics.FORMAT_RAW16, mSensorWidth, mSensorHeight, mSensorWidth * 2, 2));
+    }
 
-        // from byte to short for 16-bit RAW
-        short[] shortRaw = new short[byteRaw.length / 2];
-        ByteBuffer.wrap(byteRaw).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(shortRaw);
-
-        for (int row=0; row<mSensorHeight; row++) {
-            for (int col=0; col<mSensorWidth; col++) {
-                int idx = row * mSensorHeight + col;
-                if (row%2 == 0) {
-                    if (col%2 == 0) {
-                        sumOfLeftTop += shortRaw[idx];
-                    }
-                    else {
-                        sumOfRightTop += shortRaw[idx];
-                    }
-                }
-                else {
-                    if (col%2 == 0) {
-                        sumOfLeftBottom += shortRaw[idx];
-                    }
-                    else {
-                        sumOfRightBottom += shortRaw[idx];
-                    }
-                }
+    /**
+     * WhiteBalance Calibration
+     * The RAW plane is read in place, so it must be called before the image is closed.
+     * The packed RAW10 and RAW12 formats are decoded inside the statistics pass.
+     * @param image A RAW_SENSOR, RAW10 or RAW12 image.
+     * @return False if the frame is clipped or underexposed. The gains are not changed in this case.
+     */
+    public boolean calibrate(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        Log.i(TAG, String.format("RAW image: %d x %d, row stride: %d, color filter: %d", image.getWidth(), image.getHeight(), plane.getRowStride(), mColorFilter));
+        return onCalibrated(mCalibrator.calibrate(plane.getBuffer(), image.getFormat(), image.getWidth(), image.getHeight(), plane.getRowStride(), plane.getPixelStride()));
+    }
+
+    /**
+     * @param error The result of WBCalibrator.calibrate().
+     * @return True if the gains are updated.
+     */
+    private boolean onCalibrated(String error) {
+        int step = mCalibrator.getSamplingStep();
+        if (step > 1) {
+            Log.d(TAG, String.format("sampling step %d, estimated error R: %f,  B: %f", step, mCalibrator.getGainErrorR(), mCalibrator.getGainErrorB()));
+            if (mCalibrator.isFullPassRepeated()) {
+                Log.i(TAG, "sampling error is out of tolerance, a full pass is done");
             }
         }
-
-        // get the value of K
-        K = (sumOfLeftTop + sumOfRightTop + sumOfLeftBottom + sumOfRightBottom) / NUM_OF_CHANNELS;
-        switch(mColorFilter)
-        {
-            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_RGGB:
-                factorR = K / (float)sumOfLeftTop;
-                factorG = K / ((sumOfRightTop + sumOfLeftBottom)/2.0f);
-                factorB = K / (float)sumOfRightBottom;
-                break;
-            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GRBG:
-                factorR = K / (float)sumOfRightTop;
-                factorG = K / ((sumOfLeftTop + sumOfRightBottom)/2.0f);
-                factorB = K / (float)sumOfLeftBottom;
-                break;
-            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GBRG:
-                factorR = K / (float)sumOfLeftBottom;
-                factorG = K / ((sumOfLeftTop + sumOfRightBottom)/2.0f);
-                factorB = K / (float)sumOfRightTop;
-                break;
-            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_BGGR:
-            default:
-                factorR = K / (float)sumOfRightBottom;
-                factorG = K / ((sumOfRightTop + sumOfLeftBottom)/2.0f);
-                factorB = K / (float)sumOfLeftTop;
+        if (error != null) {
+            Log.w(TAG, error);
+            return false;
         }
-
-        Log.d(TAG, String.format("factor R: %f,  G: %f,  B: %f", factorR, factorG, factorB));
-        mGainR = factorR / factorG;
-        mGainB = factorB / factorG;
+        mGainR = mCalibrator.getGainR();
+        mGainB = mCalibrator.getGainB();
         Log.i(TAG, String.format("gain R: %f,  B: %f", mGainR, mGainB));
+        return true;
     }
 
     public float getGainR() { return mGainR; }
     public float getGainB() { return mGainB; }
+
+    /**
+     * @return The estimated relative error of the R gain against a full pass. 0 after a full pass.
+     */
+    public float getGainErrorR() { return mCalibrator.getGainErrorR(); }
+
+    /**
+     * @return The estimated relative error of the B gain against a full pass. 0 after a full pass.
+     */
+    public float getGainErrorB() { return mCalibrator.getGainErrorB(); }
 }
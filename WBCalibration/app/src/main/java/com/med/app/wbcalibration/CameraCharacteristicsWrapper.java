@@ -1,8 +1,12 @@
 package com.med.app.wbcalibration;
 
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Size;
 
 import java.util.HashMap;
 
@@ -55,4 +59,73 @@ public class CameraCharacteristicsWrapper {
     public int getSensorColorFilter() {
         return mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
     }
+
+    /**
+     * @return The black level offsets of the 2x2 CFA quad in the order left-top, right-top,
+     *         left-bottom, right-bottom, or null if they are not available.
+     */
+    public int[] getBlackLevelPattern() {
+        BlackLevelPattern pattern = mCharacteristics.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+        if (pattern == null) {
+            return null;
+        }
+        int[] offsets = new int[BlackLevelPattern.COUNT];
+        pattern.copyTo(offsets, 0);
+        return offsets;
+    }
+
+    /**
+     * To choose the RAW format for calibration. The packed formats are preferred because they
+     * take less memory bandwidth than the 16-bit RAW_SENSOR.
+     * @return ImageFormat.RAW10, RAW12 or RAW_SENSOR.
+     */
+    public int getPreferredRawFormat() {
+        StreamConfigurationMap streamMap = mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (streamMap != null) {
+            if (streamMap.isOutputSupportedFor(ImageFormat.RAW10)) {
+                return ImageFormat.RAW10;
+            }
+            if (streamMap.isOutputSupportedFor(ImageFormat.RAW12)) {
+                return ImageFormat.RAW12;
+            }
+        }
+        return ImageFormat.RAW_SENSOR;
+    }
+
+    /**
+     * To choose a small YUV_420_888 size, for the statistics of the processed frames. A stream no larger than the
+     * preview can be added to the preview and RAW streams of a RAW capable camera.
+     * @param minWidth The minimum width.
+     * @return The smallest size at least minWidth wide, the largest size if none is, or null if YUV is not supported.
+     */
+    public Size getSmallYuvSize(int minWidth) {
+        StreamConfigurationMap streamMap = mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (streamMap == null) {
+            return null;
+        }
+        Size[] sizes = streamMap.getOutputSizes(ImageFormat.YUV_420_888);
+        if (sizes == null) {
+            return null;
+        }
+        Size selected = null;
+        Size largest = null;
+        for (Size size : sizes) {
+            long area = (long)size.getWidth() * size.getHeight();
+            if (size.getWidth() >= minWidth && (selected == null || area < (long)selected.getWidth() * selected.getHeight())) {
+                selected = size;
+            }
+            if (largest == null || area > (long)largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+        }
+        return (selected != null)? selected : largest;
+    }
+
+    /**
+     * @return The maximum raw value output by the sensor, or 0 if it is not available.
+     */
+    public int getWhiteLevel() {
+        Integer whiteLevel = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        return (whiteLevel != null)? whiteLevel : 0;
+    }
 }
@@ -20,7 +20,12 @@ import android.view.Surface;
 import androidx.annotation.NonNull;
 
 import com.med.hpframework.util.WBCalibration;
+import com.med.util.CalibrationStore;
+import com.med.util.IlluminantGainTable;
+import com.med.util.LensShadingCalibrator;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.Executor;
@@ -36,6 +41,11 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
     private static final String TAG = IConstant.TAG;
     private static final long CAMERA_CLOSE_TIMEOUT = 2000; // milliseconds
 
+    /**
+     * The cached gains are kept if the revalidation moves the R or B gain by less than this fraction.
+     */
+    private static final float REVALIDATION_TOLERANCE = 0.02f;
+
     /**
      * The id of the opened camera.
      */
@@ -59,6 +69,41 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
     private boolean mFixedWbGains = false;
     private RggbChannelVector mWbGains;
 
+    /**
+     * The calibration results of the previous runs, by camera, sensor mode and exposure. The latest one is applied
+     * when the camera is opened, the one of the nearest exposure once AE has converged, and it is revalidated
+     * on a RAW frame of the preview. A calibration which the user starts cancels the revalidation.
+     */
+    private CalibrationStore mCalibrationStore = null;
+    private Rect mActiveArray;
+    private boolean mRevalidationPending = false;
+    private boolean mRevalidating = false;
+
+    /**
+     * True while the closed-loop calibration runs. Its gains are already applied to the running session.
+     */
+    private boolean mClosedLoop = false;
+
+    /**
+     * The tag of the repeating request, set by the latest applyWbGains(), so its first capture result can be found.
+     */
+    private String mRequestTag = null;
+
+    /**
+     * The gains of the reference illuminants. If 2 or more are calibrated, the gains of the preview follow the
+     * live illuminant by interpolating the table.
+     */
+    private final IlluminantGainTable mGainTable = new IlluminantGainTable();
+    private File mGainTableDir = null;
+    private int mReferenceIlluminant = -1;
+    private final float[] mLookupResult = new float[IlluminantGainTable.LOOKUP_SIZE];
+
+    /**
+     * The latest converged exposure, saved with the calibration results.
+     */
+    private int mIso = 0;
+    private long mExposureTime = 0;
+
     /**
      * CameraDevice state listener.
      */
@@ -142,6 +187,22 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
         mCaptureCallback = captureCallback;
     }
 
+    /**
+     * To persist the calibration results and apply them when the camera is opened.
+     * @param store The store, or null to always start with the auto WB.
+     */
+    public void setCalibrationStore(CalibrationStore store) {
+        mCalibrationStore = store;
+    }
+
+    /**
+     * To enable the multi-illuminant mode. The table of each camera is saved in the directory.
+     * @param dir The directory of the tables, or null to disable the mode.
+     */
+    public void setIlluminantTableDir(File dir) {
+        mGainTableDir = dir;
+    }
+
     /**
      * To get a list of available camera devices.
      * @param context The application context.
@@ -177,6 +238,7 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
            if (mCameraDevice != null) {
                throw new IllegalStateException("Camera already open");
            }
+           applyCachedGains();
            try {
                mCameraManager.openCamera(mCameraId, mCameraDeviceListener, mHandler);
            }
@@ -187,6 +249,164 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
         });
     }
 
+    /**
+     * To apply the latest cached gains of the camera, so the first preview frames are white-balanced
+     * without a calibration round trip. The gains are revalidated later by startRevalidation().
+     */
+    private void applyCachedGains() {
+        loadGainTable();
+        CameraCharacteristics characteristics = getCameraCharacteristics(mCameraId);
+        if (mCalibrationStore == null || characteristics == null) {
+            return;
+        }
+        mActiveArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        mCalibrationStore.load();
+        CalibrationStore.Entry entry = mCalibrationStore.getLatest(mCameraId, mActiveArray.width(), mActiveArray.height());
+        if (entry != null) {
+            Log.d(TAG, "apply cached gains: " + entry);
+            mFixedWbGains = true;
+            mWbGains = new RggbChannelVector(entry.getGainR(), 1.0f, 1.0f, entry.getGainB());
+            mRevalidationPending = true;
+        }
+    }
+
+    private File getGainTableFile() {
+        return new File(mGainTableDir, String.format(IConstant.ILLUMINANT_TABLE_FILE, mCameraId));
+    }
+
+    private void loadGainTable() {
+        if (mGainTableDir != null && mGainTable.load(getGainTableFile())) {
+            Log.d(TAG, String.format("%d reference illuminants are calibrated", mGainTable.getCount()));
+        }
+    }
+
+    /**
+     * @return True if the gains of the preview follow the live illuminant. See getIlluminantCallback().
+     */
+    public boolean isIlluminantTracking() {
+        return mGainTable.getCount() >= 2 && mReferenceIlluminant < 0 && !mRevalidating;
+    }
+
+    /**
+     * The callback of the live illuminant estimation. The estimated gains only select the position in
+     * the table, and the interpolated gains are applied if they moved. The capture session is unchanged.
+     */
+    private final WBCalibration.ResultCallback mIlluminantCallback = new WBCalibration.ResultCallback() {
+        @Override
+        public void onCalibrationDone(float gainR, float gainB) {
+            if (!mGainTable.lookup(gainR, gainB, mLookupResult)) {
+                return;
+            }
+            float tableGainR = mLookupResult[IlluminantGainTable.LOOKUP_GAIN_R];
+            float tableGainB = mLookupResult[IlluminantGainTable.LOOKUP_GAIN_B];
+            if (mFixedWbGains && mWbGains != null
+                    && Math.abs(tableGainR / mWbGains.getRed() - 1.0f) < REVALIDATION_TOLERANCE
+                    && Math.abs(tableGainB / mWbGains.getBlue() - 1.0f) < REVALIDATION_TOLERANCE) {
+                return;
+            }
+            Log.d(TAG, String.format("illuminant %.0f K, gains: %f, %f", mLookupResult[IlluminantGainTable.LOOKUP_CCT], tableGainR, tableGainB));
+            mFixedWbGains = true;
+            mWbGains = new RggbChannelVector(tableGainR, 1.0f, 1.0f, tableGainB);
+            startLiveView();
+        }
+
+        @Override
+        public void onCalibrationFailed(String errMessage) {
+            // keep the current gains until a usable frame comes
+        }
+    };
+
+    /**
+     * @return The callback to pass the WB estimated on a RAW frame of the preview, while isIlluminantTracking().
+     */
+    public WBCalibration.ResultCallback getIlluminantCallback() {
+        return mIlluminantCallback;
+    }
+
+    /**
+     * To save the lens shading gain map of the opened camera alongside its WB results.
+     * It is called on the thread of the flat-field calibration.
+     * @param calibrator The calibrator of the latest successful flat-field calibration.
+     */
+    public void saveShadingMap(LensShadingCalibrator calibrator) {
+        if (mCalibrationStore == null || mActiveArray == null) {
+            return;
+        }
+        mCalibrationStore.putShadingMap(new CalibrationStore.ShadingMap(mCameraId, mActiveArray.width(), mActiveArray.height(),
+                calibrator.getColumns(), calibrator.getRows(), calibrator.getGains()));
+        try {
+            mCalibrationStore.save();
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save the shading map: " + e.getMessage());
+        }
+    }
+
+    /**
+     * To update the exposure of the preview. It is saved with the next calibration result.
+     * @param iso The ISO of a converged frame.
+     * @param exposureTime The exposure time of a converged frame.
+     */
+    public void updateExposure(int iso, long exposureTime) {
+        mIso = iso;
+        mExposureTime = exposureTime;
+    }
+
+    /**
+     * To start the revalidation of the cached gains, once AE has converged.
+     * The next calibration result only updates the repeating request, and only if it moved.
+     * @return True if a RAW frame of the preview should be calibrated.
+     */
+    public boolean startRevalidation() {
+        if (!mRevalidationPending) {
+            return false;
+        }
+        mRevalidationPending = false;
+        applyNearestGains();
+        mRevalidating = true;
+        return true;
+    }
+
+    /**
+     * To apply the cached gains of the exposure nearest the converged one, if they are not the applied gains.
+     */
+    private void applyNearestGains() {
+        if (mCalibrationStore == null || mActiveArray == null || mWbGains == null) {
+            return;
+        }
+        CalibrationStore.Entry entry = mCalibrationStore.getNearest(mCameraId, mActiveArray.width(), mActiveArray.height(), mIso, mExposureTime);
+        if (entry == null || (entry.getGainR() == mWbGains.getRed() && entry.getGainB() == mWbGains.getBlue())) {
+            return;
+        }
+        Log.d(TAG, "apply cached gains of the nearest exposure: " + entry);
+        mWbGains = new RggbChannelVector(entry.getGainR(), 1.0f, 1.0f, entry.getGainB());
+        // the session is unchanged, so only the repeating request is replaced
+        startLiveView();
+    }
+
+    /**
+     * To stop the revalidation of the cached gains, so the next calibration result goes to the listener.
+     */
+    private void cancelRevalidation() {
+        mRevalidationPending = false;
+        mRevalidating = false;
+    }
+
+    /**
+     * To add a calibration result to the store and write the file.
+     */
+    private void saveCalibration(float gainR, float gainB) {
+        if (mCalibrationStore == null || mActiveArray == null) {
+            return;
+        }
+        mCalibrationStore.put(new CalibrationStore.Entry(mCameraId, mActiveArray.width(), mActiveArray.height(),
+                mIso, mExposureTime, System.currentTimeMillis(), gainR, gainB));
+        try {
+            mCalibrationStore.save();
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save the calibration result: " + e.getMessage());
+        }
+    }
+
     /**
      * Close the camera and wait for the close callback to be called in the camera thread.
      * Times out after @{value CAMERA_CLOSE_TIMEOUT} ms.
@@ -228,6 +448,17 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
         return mCameraDevice.createCaptureRequest(templateType);
     }
 
+    /**
+     * To apply fixed WB gains. Only the repeating request is replaced, the session is unchanged.
+     */
+    @Override
+    public void applyWbGains(float gainR, float gainB, String tag) {
+        mRequestTag = tag;
+        mFixedWbGains = true;
+        mWbGains = new RggbChannelVector(gainR, 1.0f, 1.0f, gainB);
+        startLiveView();
+    }
+
     class LiveViewCreator implements Runnable {
         private final ArrayList<Surface> mSurfaceList;
 
@@ -254,6 +485,7 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
                     builder.set(CaptureRequest.COLOR_CORRECTION_GAINS, mWbGains);
                 }
 
+                builder.setTag(mRequestTag);
                 CaptureRequest request = builder.build();
                 mCameraSession.setRepeatingRequest(request, mCaptureCallback, mHandler);
             } catch (CameraAccessException e) {
@@ -318,8 +550,11 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
         Rect rect = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
         int colorFilter = characteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
 
+        cancelRevalidation();
         mResultListener = listener;
-        WBCController1 controller1 = new WBCController1(rect.width(), rect.height(), colorFilter);
+        CameraCharacteristicsWrapper wrapper = new CameraCharacteristicsWrapper(characteristics);
+        WBCController1 controller1 = new WBCController1(rect.width(), rect.height(), colorFilter, wrapper.getPreferredRawFormat());
+        controller1.setSensorLevels(wrapper.getBlackLevelPattern(), wrapper.getWhiteLevel());
         controller1.startCalibration(previewSurface, this, this);
     }
 
@@ -334,8 +569,11 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
         Rect rect = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
         int colorFilter = characteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
 
+        cancelRevalidation();
         mResultListener = listener;
-        WBCController2 controller2 = new WBCController2(rect.width(), rect.height(), colorFilter, this);
+        CameraCharacteristicsWrapper wrapper = new CameraCharacteristicsWrapper(characteristics);
+        WBCController2 controller2 = new WBCController2(rect.width(), rect.height(), colorFilter, wrapper.getPreferredRawFormat(), this);
+        controller2.setSensorLevels(wrapper.getBlackLevelPattern(), wrapper.getWhiteLevel());
         controller2.startCalibration(iso, exposureTime, this);
     }
 
@@ -344,14 +582,100 @@ public class CameraController implements ICameraControl, WBCalibration.ResultCal
      * @param listener The result listener.
      */
     public void doWBCalibration(WBCResultListener listener) {
+        cancelRevalidation();
+        mResultListener = listener;
+    }
+
+    /**
+     * Execute the closed-loop white-balance calibration in the running session, without restarting it.
+     * The controller must be fed with the capture results, the RAW frames and the YUV frames of the live view.
+     * @param controller The closed-loop controller.
+     * @param listener The result listener.
+     */
+    public void doClosedLoopCalibration(WBCController3 controller, WBCResultListener listener) {
+        cancelRevalidation();
+        mResultListener = listener;
+        mClosedLoop = true;
+        controller.startCalibration(this, this);
+    }
+
+    /**
+     * Execute white-balance calibration under a reference illuminant. The result is saved in the
+     * illuminant table and applied as doWBCalibration(WBCResultListener) does.
+     * @param illuminant The reference illuminant. (IlluminantGainTable.ILLUMINANT_*)
+     * @param listener The result listener.
+     */
+    public void doIlluminantCalibration(int illuminant, WBCResultListener listener) {
+        cancelRevalidation();
+        mReferenceIlluminant = illuminant;
         mResultListener = listener;
     }
 
+    /**
+     * @param after The reference illuminant calibrated last, or -1 to start from the first one.
+     * @return The first reference illuminant after the given one which is not in the illuminant table yet,
+     *         or the next one if every reference illuminant is calibrated.
+     */
+    public int getNextIlluminant(int after) {
+        for (int i=1; i<=IlluminantGainTable.ILLUMINANT_COUNT; i++) {
+            int illuminant = (after + i) % IlluminantGainTable.ILLUMINANT_COUNT;
+            if (!mGainTable.hasGains(illuminant)) {
+                return illuminant;
+            }
+        }
+        return (after + 1) % IlluminantGainTable.ILLUMINANT_COUNT;
+    }
+
     @Override
     public void onCalibrationDone(float gainR, float gainB) {
+        saveCalibration(gainR, gainB);
+        if (mReferenceIlluminant >= 0) {
+            Log.d(TAG, String.format("reference illuminant %s: %f, %f", IlluminantGainTable.getName(mReferenceIlluminant), gainR, gainB));
+            mGainTable.setGains(mReferenceIlluminant, gainR, gainB);
+            mReferenceIlluminant = -1;
+            if (mGainTableDir != null) {
+                try {
+                    mGainTable.save(getGainTableFile());
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to save the illuminant table: " + e.getMessage());
+                }
+            }
+        }
+        if (mClosedLoop) {
+            mClosedLoop = false;
+            mResultListener.onCalibrationDone();
+            return;
+        }
+        if (mRevalidating) {
+            mRevalidating = false;
+            if (Math.abs(gainR / mWbGains.getRed() - 1.0f) < REVALIDATION_TOLERANCE
+                    && Math.abs(gainB / mWbGains.getBlue() - 1.0f) < REVALIDATION_TOLERANCE) {
+                Log.d(TAG, "cached gains are still valid");
+                return;
+            }
+            Log.d(TAG, String.format("cached gains are updated to %f, %f", gainR, gainB));
+            mWbGains = new RggbChannelVector(gainR, 1.0f, 1.0f, gainB);
+            // the session is unchanged, so only the repeating request is replaced
+            startLiveView();
+            return;
+        }
         mFixedWbGains = true;
         mWbGains = new RggbChannelVector(gainR, 1.0f, 1.0f, gainB);
         startLiveViewSession();
         mResultListener.onCalibrationDone();
     }
+
+    @Override
+    public void onCalibrationFailed(String errMessage) {
+        if (mRevalidating) {
+            // keep the cached gains, and try again on a later frame
+            Log.d(TAG, "revalidation failed: " + errMessage);
+            mRevalidating = false;
+            mRevalidationPending = true;
+            return;
+        }
+        mReferenceIlluminant = -1;
+        mClosedLoop = false;
+        mResultListener.onCalibrationFailed(errMessage);
+    }
 }
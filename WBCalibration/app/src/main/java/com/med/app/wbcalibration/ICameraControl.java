@@ -7,4 +7,10 @@ import android.hardware.camera2.params.SessionConfiguration;
 public interface ICameraControl {
     void createCaptureSession(SessionConfiguration config);
     CaptureRequest.Builder getBuilder(int templateType) throws CameraAccessException;
+
+    /**
+     * To apply fixed WB gains to the running session, without creating a new one.
+     * @param tag The tag of the repeating request which applies the gains. (CaptureRequest.getTag())
+     */
+    void applyWbGains(float gainR, float gainB, String tag);
 }
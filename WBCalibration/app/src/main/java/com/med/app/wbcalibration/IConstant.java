@@ -2,4 +2,30 @@ package com.med.app.wbcalibration;
 
 public interface IConstant {
     String TAG = "WBCalibration";
+
+    /**
+     * The sampling step of the fast calibration mode. 4 visits 1/16 of the frame.
+     */
+    int CALIBRATION_SAMPLING_STEP = 4;
+
+    /**
+     * The YUV stream of the closed-loop calibration is at least this wide, and every Nth chroma sample is measured.
+     */
+    int YUV_MIN_WIDTH = 320;
+    int YUV_SAMPLING_STEP = 2;
+
+    /**
+     * The file of the calibration results in the app files directory.
+     */
+    String CALIBRATION_STORE_FILE = "wb_calibration.bin";
+
+    /**
+     * The file of the reference illuminant gains of a camera in the app files directory. (%s is the camera id)
+     */
+    String ILLUMINANT_TABLE_FILE = "wb_illuminants_%s.bin";
+
+    /**
+     * The live illuminant is estimated on every Nth RAW frame of the preview.
+     */
+    int ILLUMINANT_TRACKING_INTERVAL = 15;
 }
@@ -22,6 +22,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
+import android.util.Size;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
@@ -33,10 +34,14 @@ import android.widget.Toast;
 
 import com.google.android.material.snackbar.Snackbar;
 import com.med.hpframework.util.WBCalibration;
+import com.med.util.CalibrationStore;
+import com.med.util.IlluminantGainTable;
+import com.med.util.LensShadingCalibrator;
 
-import java.nio.ByteBuffer;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
 public class MainActivity extends AppCompatActivity implements
         ImageReader.OnImageAvailableListener,
@@ -48,6 +53,11 @@ public class MainActivity extends AppCompatActivity implements
 
     private SurfaceView mPreviewSurface;
     private ImageReader mImageReader;
+
+    /**
+     * The small YUV stream of the live view. Only the closed-loop calibration reads it, on the processed frames.
+     */
+    private ImageReader mYuvReader;
     private TextView mTextView;
 
     private Handler mHandler;
@@ -68,6 +78,8 @@ public class MainActivity extends AppCompatActivity implements
 
         mCameraController = new CameraController(this);
         mCameraController.setCaptureCallback(mCaptureCallback);
+        mCameraController.setCalibrationStore(new CalibrationStore(new File(getFilesDir(), IConstant.CALIBRATION_STORE_FILE)));
+        mCameraController.setIlluminantTableDir(getFilesDir());
 
         // set button click listener
         ImageButton wbBtn = findViewById(R.id.WBCalibrateBtn);
@@ -78,6 +90,16 @@ public class MainActivity extends AppCompatActivity implements
 
         ImageButton wbBtn3 = findViewById(R.id.WBCalibrationBtn3);
         wbBtn3.setOnClickListener(v -> startWBCalibration(3));
+        wbBtn3.setOnLongClickListener(v -> {
+            startWBCalibration(6);
+            return true;
+        });
+
+        ImageButton wbBtn4 = findViewById(R.id.WBCalibrationBtn4);
+        wbBtn4.setOnClickListener(v -> startWBCalibration(4));
+
+        ImageButton flatFieldBtn = findViewById(R.id.FlatFieldCalibrationBtn);
+        flatFieldBtn.setOnClickListener(v -> startWBCalibration(5));
 
         if (needToGrantCameraPermissions()) {
             requestCameraPermissions();
@@ -149,12 +171,31 @@ public class MainActivity extends AppCompatActivity implements
                 CameraCharacteristics characteristics = mCameraController.getCameraCharacteristics(selectedCameraId);
                 Rect rect = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
                 int colorFilter = characteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
-                mImageReader = ImageReader.newInstance(rect.width(), rect.height(), ImageFormat.RAW_SENSOR, 4);
+                CameraCharacteristicsWrapper wrapper = new CameraCharacteristicsWrapper(characteristics);
+                mImageReader = ImageReader.newInstance(rect.width(), rect.height(), wrapper.getPreferredRawFormat(), 4);
                 mImageReader.setOnImageAvailableListener(this, mHandler);
+                Size yuvSize = wrapper.getSmallYuvSize(IConstant.YUV_MIN_WIDTH);
+                if (yuvSize != null) {
+                    mYuvReader = ImageReader.newInstance(yuvSize.getWidth(), yuvSize.getHeight(), ImageFormat.YUV_420_888, 3);
+                    mYuvReader.setOnImageAvailableListener(mYuvListener, mHandler);
+                }
                 mWBCalibration = new WBCalibration(rect.width(), rect.height(), colorFilter);
+                mWBCalibration.setParallelMode(true);
+                mWBCalibration.setSensorLevels(wrapper.getBlackLevelPattern(), wrapper.getWhiteLevel());
+                mWBCController3 = new WBCController3(rect.width(), rect.height(), colorFilter);
+                mWBCController3.setSensorLevels(wrapper.getBlackLevelPattern(), wrapper.getWhiteLevel());
+                mIlluminantEstimator = new WBCalibration(rect.width(), rect.height(), colorFilter);
+                mIlluminantEstimator.setSamplingStep(IConstant.CALIBRATION_SAMPLING_STEP);
+                mIlluminantEstimator.setSensorLevels(wrapper.getBlackLevelPattern(), wrapper.getWhiteLevel());
+                mShadingCalibrator = new LensShadingCalibrator(LensShadingCalibrator.DEFAULT_COLUMNS, LensShadingCalibrator.DEFAULT_ROWS, colorFilter);
+                mShadingCalibrator.setParallel(ForkJoinPool.commonPool());
+                mShadingCalibrator.setSensorLevels(wrapper.getBlackLevelPattern(), wrapper.getWhiteLevel());
                 ArrayList<OutputConfiguration> outputList = new ArrayList<>();
                 outputList.add(new OutputConfiguration(mPreviewSurface.getHolder().getSurface()));
                 outputList.add(new OutputConfiguration(mImageReader.getSurface()));
+                if (mYuvReader != null) {
+                    outputList.add(new OutputConfiguration(mYuvReader.getSurface()));
+                }
 
                 mCameraController.openCamera(selectedCameraId, outputList);
             }
@@ -178,19 +219,6 @@ public class MainActivity extends AppCompatActivity implements
         }
     }
 
-    /**
-     * To get byte[] from Image plane.
-     * @param plane The Image plane.
-     * @return A byte[].
-     */
-    private byte[] readBytes(Image.Plane plane) {
-        ByteBuffer byteBuffer = plane.getBuffer();
-
-        byte [] bytes = new byte[byteBuffer.remaining()];
-        byteBuffer.get(bytes);
-        return bytes;
-    }
-
     private int mIso;
     private long mExposrueTime;
     private String mCaptureInfo;
@@ -198,6 +226,7 @@ public class MainActivity extends AppCompatActivity implements
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
+            mWBCController3.onCaptureResult(result);
             long frameNo = result.getFrameNumber();
             if (frameNo % 10 == 0) {
                 long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
@@ -206,6 +235,11 @@ public class MainActivity extends AppCompatActivity implements
                 if (aeState != null && aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
                     mIso = iso;
                     mExposrueTime = exposureTime;
+                    mCameraController.updateExposure(iso, exposureTime);
+                    if (mCameraController.startRevalidation()) {
+                        // calibrate a RAW frame of the running preview in the background
+                        mTakeRaw = true;
+                    }
                 }
                 RggbChannelVector wbGains = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
                 mCaptureInfo = String.format(Locale.US, "frame: %d\n", frameNo) +
@@ -273,6 +307,13 @@ public class MainActivity extends AppCompatActivity implements
 
     }
 
+    /**
+     * The next reference illuminant of the multi-illuminant calibration, or -1 to start from the first one
+     * which is not calibrated yet. (IlluminantGainTable.ILLUMINANT_*)
+     */
+    private int mReferenceIlluminant = -1;
+    private boolean mIlluminantCalibration = false;
+
     /**
      * Start the white-balance calibration.
      */
@@ -287,6 +328,23 @@ public class MainActivity extends AppCompatActivity implements
                 case 2:
                     mCameraController.doWBCalibration(mIso, mExposrueTime, this);
                     break;
+                case 4:
+                    // the gray card must be lit by the reference illuminant
+                    if (mReferenceIlluminant < 0) {
+                        mReferenceIlluminant = mCameraController.getNextIlluminant(-1);
+                    }
+                    Toast.makeText(this, "Calibrating under " + IlluminantGainTable.getName(mReferenceIlluminant), Toast.LENGTH_SHORT).show();
+                    mCameraController.doIlluminantCalibration(mReferenceIlluminant, this);
+                    mIlluminantCalibration = true;
+                    mTakeRaw = true;
+                    break;
+                case 5:
+                    // the camera must face a uniform, evenly lit target
+                    mTakeFlatField = true;
+                    break;
+                case 6:
+                    mCameraController.doClosedLoopCalibration(mWBCController3, this);
+                    break;
                 case 3:
                 default:
                     mCameraController.doWBCalibration(this);
@@ -299,26 +357,90 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     public void onCalibrationDone() {
         mCalibrationRunning = false;
+        if (mIlluminantCalibration) {
+            // a failed illuminant is calibrated again the next time
+            mIlluminantCalibration = false;
+            mReferenceIlluminant = mCameraController.getNextIlluminant(mReferenceIlluminant);
+        }
     }
 
     @Override
     public void onCalibrationFailed(String errMessage) {
         Log.e(TAG, "===== WB calibration failed =====");
         mCalibrationRunning = false;
-        Toast.makeText(this, "Camera access permission denied.", Toast.LENGTH_LONG).show();
+        mIlluminantCalibration = false;
+        Toast.makeText(this, errMessage, Toast.LENGTH_LONG).show();
     }
 
     private boolean mTakeRaw = false;
     private WBCalibration mWBCalibration;
+
+    /**
+     * The closed-loop calibration. It is fed with every capture result, RAW frame and YUV frame, and ignores them when idle.
+     */
+    private WBCController3 mWBCController3;
+
+    /**
+     * The sampled gray-world estimate of the live illuminant. It only selects the position in the illuminant table.
+     */
+    private WBCalibration mIlluminantEstimator;
+    private int mRawFrameCount = 0;
+
+    /**
+     * The lens shading calibration of a flat-field RAW frame. The gain map is saved alongside the WB results.
+     */
+    private LensShadingCalibrator mShadingCalibrator;
+    private boolean mTakeFlatField = false;
+
+    /**
+     * To compute the lens shading gain map of a flat-field frame, and save it if the frame can be used.
+     */
+    private void calibrateShading(Image img) {
+        Image.Plane plane = img.getPlanes()[0];
+        String error = mShadingCalibrator.calibrate(plane.getBuffer(), img.getFormat(), img.getWidth(), img.getHeight(),
+                plane.getRowStride(), plane.getPixelStride());
+        if (error == null) {
+            int middle = mShadingCalibrator.getRows() / 2;
+            Log.d(TAG, String.format("shading gains at the left-middle: %f, %f, %f, %f",
+                    mShadingCalibrator.getGain(0, middle, 0), mShadingCalibrator.getGain(0, middle, 1),
+                    mShadingCalibrator.getGain(0, middle, 2), mShadingCalibrator.getGain(0, middle, 3)));
+            mCameraController.saveShadingMap(mShadingCalibrator);
+        }
+        runOnUiThread(() -> {
+            mCalibrationRunning = false;
+            Toast.makeText(this, (error != null)? error : "Lens shading map saved.", Toast.LENGTH_LONG).show();
+        });
+    }
+    private final ImageReader.OnImageAvailableListener mYuvListener = reader -> {
+        Image img = reader.acquireLatestImage();
+        if (img != null) {
+            if (mWBCController3.onImage(img)) {
+                Log.d(TAG, "YUV frame measured by the closed-loop calibration");
+            }
+            img.close();
+        }
+    };
+
     @Override
     public void onImageAvailable(ImageReader reader) {
         synchronized (this) {
             Image img = reader.acquireLatestImage();
             if (img != null) {
                 int format = img.getFormat();
-                if (mTakeRaw && format == ImageFormat.RAW_SENSOR) {
-                    Image.Plane[] planes = img.getPlanes();
-                    mWBCalibration.calibrate(readBytes(planes[0]), mCameraController);
+                if (mWBCController3.onImage(img)) {
+                    Log.d(TAG, "RAW frame measured by the closed-loop calibration");
+                }
+                else if (mTakeFlatField && WBCalibration.isSupportedFormat(format)) {
+                    mTakeFlatField = false;
+                    calibrateShading(img);
+                }
+                else if (mTakeRaw && WBCalibration.isSupportedFormat(format)) {
+                    mTakeRaw = false;
+                    mWBCalibration.calibrate(img, mCameraController);
+                }
+                else if (!mCalibrationRunning && mCameraController.isIlluminantTracking() && WBCalibration.isSupportedFormat(format)
+                        && ++mRawFrameCount % IConstant.ILLUMINANT_TRACKING_INTERVAL == 0) {
+                    mIlluminantEstimator.calibrate(img, mCameraController.getIlluminantCallback());
                 }
                 img.close();
             }
@@ -1,6 +1,5 @@
 package com.med.app.wbcalibration;
 
-import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
@@ -21,7 +20,6 @@ import androidx.annotation.NonNull;
 
 import com.med.hpframework.util.WBCalibration;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.Executor;
 
@@ -43,15 +41,26 @@ public class WBCController1 implements ImageReader.OnImageAvailableListener {
     };
     ArrayList<OutputConfiguration> mOutputList = new ArrayList<>();
 
-    WBCController1(int sensorWidth, int sensorHeight, int colorFilter) {
+    WBCController1(int sensorWidth, int sensorHeight, int colorFilter, int rawFormat) {
         HandlerThread thread = new HandlerThread("calibration thread 1");
         thread.start();
         mHandler = new Handler(thread.getLooper());
         mWBCalibration = new WBCalibration(sensorWidth, sensorHeight, colorFilter);
-        mImageReader = ImageReader.newInstance(sensorWidth, sensorHeight, ImageFormat.RAW_SENSOR, 4);
+        mWBCalibration.setParallelMode(true);
+        mWBCalibration.setSamplingStep(IConstant.CALIBRATION_SAMPLING_STEP);
+        mImageReader = ImageReader.newInstance(sensorWidth, sensorHeight, rawFormat, 4);
         mImageReader.setOnImageAvailableListener(this, mHandler);
     }
 
+    /**
+     * To set the black and white levels of the sensor for the calibration.
+     * @param blackLevelPattern The black level offsets of the 2x2 quad, or null.
+     * @param whiteLevel The white level, or 0 for the default.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mWBCalibration.setSensorLevels(blackLevelPattern, whiteLevel);
+    }
+
     public void startCalibration(Surface previewSurface, ICameraControl cameraControl, WBCalibration.ResultCallback callback) {
         mTimeScope.begin();
         mCameraControl = cameraControl;
@@ -126,29 +135,16 @@ public class WBCController1 implements ImageReader.OnImageAvailableListener {
         mTimeScope.end();
     }
 
-    /**
-     * To read byte data from a image plane.
-     * @param plane The image plane.
-     * @return The byte data.
-     */
-    private byte[] readBytes(Image.Plane plane) {
-        ByteBuffer byteBuffer = plane.getBuffer();
-        byte [] byteRaw = new byte[byteBuffer.remaining()];
-        byteBuffer.get(byteRaw);
-        return byteRaw;
-    }
-
     @Override
     public void onImageAvailable(ImageReader reader) {
         synchronized (this) {
             Image img = reader.acquireLatestImage();
             if (img != null) {
                 int format = img.getFormat();
-                if (mWBCState == 1 && format == ImageFormat.RAW_SENSOR) {
+                if (mWBCState == 1 && WBCalibration.isSupportedFormat(format)) {
                     mWBCState = 2;
                     mTimeScope.addStamp("take RAW");
-                    Image.Plane[] planes = img.getPlanes();
-                    mWBCalibration.calibrate(readBytes(planes[0]), mResultCallback);
+                    mWBCalibration.calibrate(img, mResultCallback);
                     onSuccess();
                 }
                 img.close();
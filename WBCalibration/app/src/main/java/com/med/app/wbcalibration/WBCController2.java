@@ -1,6 +1,5 @@
 package com.med.app.wbcalibration;
 
-import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
@@ -19,7 +18,6 @@ import androidx.annotation.NonNull;
 
 import com.med.hpframework.util.WBCalibration;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.Executor;
 
@@ -79,17 +77,28 @@ public class WBCController2 implements ImageReader.OnImageAvailableListener {
         }
     };
 
-    WBCController2(int sensorWidth, int sensorHeight, int colorFilter, WBCalibration.ResultCallback callback) {
+    WBCController2(int sensorWidth, int sensorHeight, int colorFilter, int rawFormat, WBCalibration.ResultCallback callback) {
         HandlerThread thread = new HandlerThread("wb thread");
         thread.start();
         mHandler = new Handler(thread.getLooper());
 
         mWbCalibration = new WBCalibration(sensorWidth, sensorHeight, colorFilter);
+        mWbCalibration.setParallelMode(true);
+        mWbCalibration.setSamplingStep(IConstant.CALIBRATION_SAMPLING_STEP);
         mResultCallback = callback;
-        mImageReader = ImageReader.newInstance(sensorWidth, sensorHeight, ImageFormat.RAW_SENSOR, 4);
+        mImageReader = ImageReader.newInstance(sensorWidth, sensorHeight, rawFormat, 4);
         mImageReader.setOnImageAvailableListener(this, mHandler);
     }
 
+    /**
+     * To set the black and white levels of the sensor for the calibration.
+     * @param blackLevelPattern The black level offsets of the 2x2 quad, or null.
+     * @param whiteLevel The white level, or 0 for the default.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mWbCalibration.setSensorLevels(blackLevelPattern, whiteLevel);
+    }
+
     public void startCalibration(int iso, long exposureTime, ICameraControl cameraControl) {
         mTimeScope.begin();
         ArrayList<OutputConfiguration> outputList = new ArrayList<>();
@@ -108,19 +117,6 @@ public class WBCController2 implements ImageReader.OnImageAvailableListener {
         cameraControl.createCaptureSession(config);
     }
 
-
-    /**
-     * To read byte data from a image plane.
-     * @param plane The image plane.
-     * @return The byte data.
-     */
-    private byte[] readBytes(Image.Plane plane) {
-        ByteBuffer byteBuffer = plane.getBuffer();
-        byte [] byteRaw = new byte[byteBuffer.remaining()];
-        byteBuffer.get(byteRaw);
-        return byteRaw;
-    }
-
     private void onFailed(String message) {
         Log.e(TAG, message);
     }
@@ -135,10 +131,9 @@ public class WBCController2 implements ImageReader.OnImageAvailableListener {
             Image img = reader.acquireLatestImage();
             if (img != null) {
                 int format = img.getFormat();
-                if (format == ImageFormat.RAW_SENSOR) {
+                if (WBCalibration.isSupportedFormat(format)) {
                     mTimeScope.addStamp("take RAW");
-                    Image.Plane[] planes = img.getPlanes();
-                    mWbCalibration.calibrate(readBytes(planes[0]), mResultCallback);
+                    mWbCalibration.calibrate(img, mResultCallback);
                     onSuccess();
                 }
                 img.close();
@@ -0,0 +1,232 @@
+package com.med.app.wbcalibration;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.util.Log;
+
+import com.med.hpframework.util.WBCalibration;
+import com.med.util.YuvStatistics;
+
+import java.util.Locale;
+
+/**
+ * The closed-loop white-balance calibration. It runs in the live-view session which is already running,
+ * on the capture results, the RAW frames and a small YUV_420_888 stream of the preview, so the session is
+ * never restarted.
+ * The first RAW frame after AE converges gives the initial gains. Every iteration then applies the gains with
+ * a tagged repeating request, finds the first capture result of that request, and measures the residual
+ * R/G and B/G on the YUV frame of the same frame number. The RAW frames are not white-balanced, so only the
+ * processed frames can show what is left. The residual is multiplied into the gains until
+ * max(|R/G-1|, |B/G-1|) is below CONVERGENCE_EPSILON, or the calibration fails after MAX_ITERATIONS.
+ */
+public class WBCController3 implements WBCalibration.ResultCallback {
+    private static final String TAG = IConstant.TAG;
+
+    /**
+     * The calibration converges when the residual R/G and B/G of a processed frame are within this fraction of 1.
+     */
+    private static final float CONVERGENCE_EPSILON = 0.005f;
+
+    private static final int MAX_ITERATIONS = 5;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAIT_AE = 1;
+    private static final int STATE_MEASURE_RAW = 2;
+    private static final int STATE_WAIT_GAINS = 3;
+    private static final int STATE_MEASURE_YUV = 4;
+
+    private final WBCalibration mWBCalibration;
+    private final YuvStatistics mYuvStatistics = new YuvStatistics();
+    private final ExecutionTimeScope mTimeScope = new ExecutionTimeScope("WB 3");
+    private ICameraControl mCameraControl;
+    private WBCalibration.ResultCallback mResultCallback;
+
+    private int mState = STATE_IDLE;
+    private int mIteration = 0;
+    private int mFrameCount = 0;
+    private long mFirstFrameNo = -1;
+
+    /**
+     * The gains of the current iteration, and the tag of the request which applies them.
+     * The serial number is never reset, so a request of an earlier run is never taken for the current one.
+     */
+    private float mGainR = 1.0f;
+    private float mGainB = 1.0f;
+    private String mRequestTag = null;
+    private int mRequestSerial = 0;
+
+    /**
+     * The frame number and the sensor timestamp of the frame to measure. The frames before it are not measured.
+     */
+    private long mTargetFrameNo = -1;
+    private long mTargetTimestamp = 0;
+
+    WBCController3(int sensorWidth, int sensorHeight, int colorFilter) {
+        mWBCalibration = new WBCalibration(sensorWidth, sensorHeight, colorFilter);
+        mWBCalibration.setParallelMode(true);
+        mWBCalibration.setSamplingStep(IConstant.CALIBRATION_SAMPLING_STEP);
+        mYuvStatistics.setSamplingStep(IConstant.YUV_SAMPLING_STEP);
+    }
+
+    /**
+     * To set the black and white levels of the sensor for the calibration.
+     * @param blackLevelPattern The black level offsets of the 2x2 quad, or null.
+     * @param whiteLevel The white level, or 0 for the default.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mWBCalibration.setSensorLevels(blackLevelPattern, whiteLevel);
+    }
+
+    /**
+     * To start the calibration. The first RAW frame after AE converges gives the initial gains.
+     * @param cameraControl The camera which applies the gains to the running session.
+     * @param callback The result is passed to it once the gains are converged. They are already applied.
+     */
+    public synchronized void startCalibration(ICameraControl cameraControl, WBCalibration.ResultCallback callback) {
+        mTimeScope.begin();
+        mCameraControl = cameraControl;
+        mResultCallback = callback;
+        mIteration = 0;
+        mFrameCount = 0;
+        mFirstFrameNo = -1;
+        mTargetFrameNo = -1;
+        mRequestTag = null;
+        mState = STATE_WAIT_AE;
+    }
+
+    public synchronized boolean isRunning() {
+        return mState != STATE_IDLE;
+    }
+
+    /**
+     * To be called with every capture result of the live view.
+     * @param result The capture result.
+     */
+    public synchronized void onCaptureResult(TotalCaptureResult result) {
+        if (mState == STATE_IDLE) {
+            return;
+        }
+        if (mFirstFrameNo < 0) {
+            mFirstFrameNo = result.getFrameNumber();
+        }
+        mFrameCount = (int)(result.getFrameNumber() - mFirstFrameNo + 1);
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) {
+            return;
+        }
+        switch (mState)
+        {
+            case STATE_WAIT_AE: {
+                Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                if (aeState != null && aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
+                    mTimeScope.addStamp(String.format(Locale.US, "AE stable at frame %d", result.getFrameNumber()));
+                    mTargetFrameNo = result.getFrameNumber();
+                    mTargetTimestamp = timestamp;
+                    mState = STATE_MEASURE_RAW;
+                }
+                break;
+            }
+            case STATE_WAIT_GAINS: {
+                // the first frame of the tagged request is the first one which carries the gains
+                if (mRequestTag.equals(result.getRequest().getTag())) {
+                    mTimeScope.addStamp(String.format(Locale.US, "iteration %d, gains applied at frame %d", mIteration, result.getFrameNumber()));
+                    mTargetFrameNo = result.getFrameNumber();
+                    mTargetTimestamp = timestamp;
+                    mState = STATE_MEASURE_YUV;
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * To be called with every RAW or YUV frame of the live view, before it is closed.
+     * A frame may come before its capture result, so a frame is matched to the target frame number by its
+     * sensor timestamp. A dropped target frame is replaced by the next one, which carries the same gains.
+     * @param image The RAW or YUV_420_888 image.
+     * @return True if the frame is measured.
+     */
+    public synchronized boolean onImage(Image image) {
+        if (mTargetFrameNo < 0 || image.getTimestamp() < mTargetTimestamp) {
+            return false;
+        }
+        if (mState == STATE_MEASURE_RAW && WBCalibration.isSupportedFormat(image.getFormat())) {
+            mState = STATE_WAIT_GAINS;
+            mTargetFrameNo = -1;
+            mWBCalibration.calibrate(image, this);
+            return true;
+        }
+        if (mState == STATE_MEASURE_YUV && image.getFormat() == ImageFormat.YUV_420_888) {
+            mTargetFrameNo = -1;
+            measureResidual(image);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * To measure the residual of a processed frame, and converge or correct the gains.
+     */
+    private void measureResidual(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        String error = mYuvStatistics.compute(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride(), image.getWidth(), image.getHeight());
+        if (error != null) {
+            fail(error);
+            return;
+        }
+        float ratioR = mYuvStatistics.getRatioR();
+        float ratioB = mYuvStatistics.getRatioB();
+        mTimeScope.addStamp(String.format(Locale.US, "iteration %d, residual R/G: %f, B/G: %f", mIteration, ratioR, ratioB));
+        if (mYuvStatistics.getResidual() < CONVERGENCE_EPSILON) {
+            mState = STATE_IDLE;
+            mTimeScope.addStamp(String.format(Locale.US, "converged to %f, %f in %d iterations, %d frames", mGainR, mGainB, mIteration, mFrameCount));
+            mTimeScope.end();
+            mResultCallback.onCalibrationDone(mGainR, mGainB);
+            return;
+        }
+        if (mIteration >= MAX_ITERATIONS) {
+            fail(String.format(Locale.US, "WB did not converge in %d iterations, residual %f", MAX_ITERATIONS, mYuvStatistics.getResidual()));
+            return;
+        }
+        applyGains(mGainR / ratioR, mGainB / ratioB);
+    }
+
+    /**
+     * To start an iteration with the gains. The result of the tagged request is waited for.
+     */
+    private void applyGains(float gainR, float gainB) {
+        mIteration++;
+        mGainR = gainR;
+        mGainB = gainB;
+        mRequestTag = String.format(Locale.US, "WB 3 #%d", ++mRequestSerial);
+        mState = STATE_WAIT_GAINS;
+        mTimeScope.addStamp(String.format(Locale.US, "iteration %d, apply gains %f, %f", mIteration, gainR, gainB));
+        mCameraControl.applyWbGains(gainR, gainB, mRequestTag);
+    }
+
+    private void fail(String errMessage) {
+        Log.e(TAG, errMessage);
+        mState = STATE_IDLE;
+        mTimeScope.addStamp(String.format(Locale.US, "failed after %d iterations, %d frames", mIteration, mFrameCount));
+        mTimeScope.end();
+        mResultCallback.onCalibrationFailed(errMessage);
+    }
+
+    /**
+     * The initial gains of the RAW frame.
+     */
+    @Override
+    public synchronized void onCalibrationDone(float gainR, float gainB) {
+        applyGains(gainR, gainB);
+    }
+
+    @Override
+    public synchronized void onCalibrationFailed(String errMessage) {
+        fail(errMessage);
+    }
+}
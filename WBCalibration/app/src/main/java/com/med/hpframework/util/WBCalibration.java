@@ -8,16 +8,20 @@
 
 package com.med.hpframework.util;
 
-import android.hardware.camera2.CameraCharacteristics;
+import android.media.Image;
 import android.util.Log;
 
+import com.med.util.BayerStatistics;
+import com.med.util.WBCalibrator;
+
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class provide a method to do white-balance calibration.
  * You should give the width, height and color filter arrangement which
  * can be obtained from CameraCharacteristics when creating an instance.
+ * The statistics and the gain math are done by WBCalibrator of the core module.
  */
 public class WBCalibration {
     /**
@@ -41,9 +45,9 @@ public class WBCalibration {
     private final int mColorFilter;
 
     /**
-     * The number of color channels.
+     * The calibration engine. It is reused for every calibration.
      */
-    private static final float NUM_OF_CHANNELS = 4.0f;
+    private final WBCalibrator mCalibrator;
 
     /**
      * A simple constructor.
@@ -55,80 +59,116 @@ public class WBCalibration {
         mSensorWidth = sensorWidth;
         mSensorHeight = sensorHeight;
         mColorFilter = colorFilter;
+        mCalibrator = new WBCalibrator(colorFilter);
+    }
+
+    /**
+     * To check if the format of an image can be calibrated.
+     * @param format The image format. (Image.getFormat())
+     * @return True for ImageFormat.RAW_SENSOR, RAW10 and RAW12.
+     */
+    public static boolean isSupportedFormat(int format) {
+        return WBCalibrator.isSupportedFormat(format);
+    }
+
+    /**
+     * To set the black and white levels of the sensor. The black level is subtracted from the channel sums,
+     * and the quads near the white level are excluded. Both are done inside the statistics pass.
+     * @param blackLevelPattern The black level offsets in the order left-top, right-top, left-bottom, right-bottom.
+     *                          (CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN) Null for no black level.
+     * @param whiteLevel The maximum raw value. (CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL) 0 for the default 10-bit level.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mCalibrator.setSensorLevels(blackLevelPattern, whiteLevel);
+        Log.d(TAG, String.format("black level: %d, white level: %d", mCalibrator.getBlackLevel(), mCalibrator.getWhiteLevel()));
+    }
+
+    /**
+     * To enable or disable the parallel reduction mode.
+     * The frame is split into bands of rows which are summed on the common ForkJoinPool.
+     * @param enable True to sum the frame on all cores.
+     */
+    public void setParallelMode(boolean enable) {
+        mCalibrator.setParallel(enable? ForkJoinPool.commonPool() : null);
+    }
+
+    /**
+     * To enable the fast calibration mode. Only every Nth 2x2 quad in both directions is visited.
+     * If the estimated error of the gains exceeds the tolerance, the frame is calibrated again with a full pass.
+     * @param step The sampling step, e.g. 4 to visit 1/16 of the frame. 1 to disable the fast mode.
+     */
+    public void setSamplingStep(int step) {
+        mCalibrator.setSamplingStep(step);
     }
 
+    /**
+     * To set the tolerance of the fast calibration mode.
+     * @param tolerance The maximum relative error of the R/B gains, e.g. 0.01 for 1%.
+     */
+    public void setGainTolerance(float tolerance) {
+        mCalibrator.setGainTolerance(tolerance);
+    }
+
+    /**
+     * @return The estimated relative error of the latest R gain against a full pass. 0 after a full pass.
+     */
+    public float getGainErrorR() { return mCalibrator.getGainErrorR(); }
+
+    /**
+     * @return The estimated relative error of the latest B gain against a full pass. 0 after a full pass.
+     */
+    public float getGainErrorB() { return mCalibrator.getGainErrorB(); }
+
     /**
      * To do the white-balance calibration and pass the result.
+     * The calibration fails if the frame is clipped or underexposed.
      * @param byteRaw A 16-bit RAW data for calibration.
      * @param callback A callback to pass the calibration result.
      */
     public void calibrate(byte[] byteRaw, ResultCallback callback) {
-        int sumOfLeftTop = 0;
-        int sumOfRightTop = 0;
-        int sumOfLeftBottom = 0;
-        int sumOfRightBottom = 0;
-        float K;
-        float factorR, factorG, factorB;
-        float gainR, gainB;
-
         Log.d(TAG, String.format("Sensor active array: %d x %d, color filter: %d", mSensorWidth, mSensorHeight, mColorFilter));
+        String error = mCalibrator.calibrate(ByteBuffer.wrap(byteRaw), BayerStatistics.FORMAT_RAW16, mSensorWidth, mSensorHeight, mSensorWidth * 2, 2);
+        passResult(error, callback);
+    }
 
-        // from byte to short for 16-bit RAW
-        short[] shortRaw = new short[byteRaw.length / 2];
-        ByteBuffer.wrap(byteRaw).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(shortRaw);
-
-        for (int row=0; row<mSensorHeight; row++) {
-            for (int col=0; col<mSensorWidth; col++) {
-                int idx = row * mSensorHeight + col;
-                if (row%2 == 0) {
-                    if (col%2 == 0) {
-                        sumOfLeftTop += shortRaw[idx];
-                    }
-                    else {
-                        sumOfRightTop += shortRaw[idx];
-                    }
-                }
-                else {
-                    if (col%2 == 0) {
-                        sumOfLeftBottom += shortRaw[idx];
-                    }
-                    else {
-                        sumOfRightBottom += shortRaw[idx];
-                    }
-                }
+    /**
+     * To do the white-balance calibration and pass the result.
+     * The calibration fails if the frame is clipped or underexposed.
+     * The RAW plane is read in place, so it must be called before the image is closed.
+     * The packed RAW10 and RAW12 formats are decoded inside the statistics pass.
+     * @param image A RAW_SENSOR, RAW10 or RAW12 image for calibration.
+     * @param callback A callback to pass the calibration result.
+     */
+    public void calibrate(Image image, ResultCallback callback) {
+        Image.Plane plane = image.getPlanes()[0];
+        Log.d(TAG, String.format("RAW image: %d x %d, row stride: %d, color filter: %d", image.getWidth(), image.getHeight(), plane.getRowStride(), mColorFilter));
+        String error = mCalibrator.calibrate(plane.getBuffer(), image.getFormat(), image.getWidth(), image.getHeight(), plane.getRowStride(), plane.getPixelStride());
+        passResult(error, callback);
+    }
+
+    /**
+     * To pass the result of the latest calibration.
+     * @param error The result of WBCalibrator.calibrate().
+     * @param callback A callback to pass the calibration result.
+     */
+    private void passResult(String error, ResultCallback callback) {
+        int step = mCalibrator.getSamplingStep();
+        if (step > 1) {
+            Log.d(TAG, String.format("sampling step %d, estimated error R: %f,  B: %f", step, mCalibrator.getGainErrorR(), mCalibrator.getGainErrorB()));
+            if (mCalibrator.isFullPassRepeated()) {
+                Log.d(TAG, "sampling error is out of tolerance, a full pass is done");
             }
         }
-
-        // get the value of K
-        K = (sumOfLeftTop + sumOfRightTop + sumOfLeftBottom + sumOfRightBottom) / NUM_OF_CHANNELS;
-        // get the factorR, factorG and factorB
-        switch(mColorFilter)
-        {
-            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_RGGB:
-                factorR = K / (float)sumOfLeftTop;
-                factorG = K / ((sumOfRightTop + sumOfLeftBottom)/2.0f);
-                factorB = K / (float)sumOfRightBottom;
-                break;
-            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GRBG:
-                factorR = K / (float)sumOfRightTop;
-                factorG = K / ((sumOfLeftTop + sumOfRightBottom)/2.0f);
-                factorB = K / (float)sumOfLeftBottom;
-                break;
-            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GBRG:
-                factorR = K / (float)sumOfLeftBottom;
-                factorG = K / ((sumOfLeftTop + sumOfRightBottom)/2.0f);
-                factorB = K / (float)sumOfRightTop;
-                break;
-            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_BGGR:
-            default:
-                factorR = K / (float)sumOfRightBottom;
-                factorG = K / ((sumOfRightTop + sumOfLeftBottom)/2.0f);
-                factorB = K / (float)sumOfLeftTop;
+        if (error != null) {
+            Log.w(TAG, error);
+            if (callback != null) {
+                callback.onCalibrationFailed(error);
+            }
+            return;
         }
 
-        Log.d(TAG, String.format("factor R: %f,  G: %f,  B: %f", factorR, factorG, factorB));
-        gainR = factorR / factorG;
-        gainB = factorB / factorG;
+        float gainR = mCalibrator.getGainR();
+        float gainB = mCalibrator.getGainB();
         Log.d(TAG, String.format("gain R: %f,  B: %f", gainR, gainB));
         if (callback != null) {
             callback.onCalibrationDone(gainR, gainB);
@@ -145,5 +185,11 @@ public class WBCalibration {
          * @param gainB The B gain.
          */
         void onCalibrationDone(float gainR, float gainB);
+
+        /**
+         * Called when the frame can not be used for calibration, e.g. it is clipped or underexposed.
+         * @param errMessage The reason.
+         */
+        void onCalibrationFailed(String errMessage);
     }
 }
@@ -0,0 +1,125 @@
+package com.med.util.benchmark;
+
+import com.med.util.BayerStatistics;
+import com.med.util.WBCalibrator;
+import com.med.util.ZoneStatistics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Bayer summation of one frame: the former AWBCalculator.algorithm2() against the statistics engine
+ * in its sequential, parallel, sampled and packed RAW10 modes, the zone grid, and the whole calibration.
+ * The score is frames per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class BayerStatisticsBenchmark {
+    private static final int ZONES_X = 64;
+    private static final int ZONES_Y = 48;
+    private static final int SAMPLING_STEP = 4;
+
+    @Param({Frames.RESOLUTION_2MP, Frames.RESOLUTION_12MP, Frames.RESOLUTION_48MP})
+    public String resolution;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mFrame;
+    private ByteBuffer mRaw16;
+    private ByteBuffer mRaw10;
+
+    private ForkJoinPool mPool;
+    private BayerStatistics mSequential;
+    private BayerStatistics mParallel;
+    private BayerStatistics mSampled;
+    private ZoneStatistics mZones;
+    private WBCalibrator mCalibrator;
+
+    @Setup
+    public void setUp() {
+        int[] size = Frames.size(resolution);
+        mWidth = size[0];
+        mHeight = size[1];
+        mFrame = Frames.raw16(mWidth, mHeight);
+        mRaw16 = Frames.direct(mFrame);
+        mRaw10 = Frames.direct(Frames.raw10(mFrame, mWidth, mHeight));
+
+        mPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        mSequential = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        mParallel = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        mParallel.setParallel(mPool);
+        mSampled = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        mSampled.setSamplingStep(SAMPLING_STEP);
+        mZones = new ZoneStatistics(ZONES_X, ZONES_Y, BayerStatistics.COLOR_FILTER_RGGB);
+        mZones.setParallel(mPool);
+        mCalibrator = new WBCalibrator(BayerStatistics.COLOR_FILTER_RGGB);
+        mCalibrator.setParallel(mPool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Benchmark
+    public float[] legacyAlgorithm2() {
+        return LegacyAlgorithm2.calculate(mFrame, mWidth, mHeight);
+    }
+
+    @Benchmark
+    public long sequential() {
+        mSequential.compute(mRaw16, mWidth, mHeight, mWidth * 2, 2);
+        return mSequential.getSum(BayerStatistics.CHANNEL_R);
+    }
+
+    @Benchmark
+    public long parallel() {
+        mParallel.compute(mRaw16, mWidth, mHeight, mWidth * 2, 2);
+        return mParallel.getSum(BayerStatistics.CHANNEL_R);
+    }
+
+    @Benchmark
+    public long sampled() {
+        mSampled.compute(mRaw16, mWidth, mHeight, mWidth * 2, 2);
+        return mSampled.getSum(BayerStatistics.CHANNEL_R);
+    }
+
+    @Benchmark
+    public long sequentialRaw10() {
+        mSequential.compute(mRaw10, BayerStatistics.FORMAT_RAW10, mWidth, mHeight, mWidth * 5 / 4, 0);
+        return mSequential.getSum(BayerStatistics.CHANNEL_R);
+    }
+
+    @Benchmark
+    public long zones() {
+        mZones.compute(mRaw16, mWidth, mHeight, mWidth * 2, 2);
+        return mZones.getTotalSum(BayerStatistics.CHANNEL_R);
+    }
+
+    /**
+     * The parallel pass with the histograms, the black level, the saturation and the exposure check.
+     */
+    @Benchmark
+    public float calibrate() {
+        mCalibrator.calibrate(mRaw16, BayerStatistics.FORMAT_RAW16, mWidth, mHeight, mWidth * 2, 2);
+        return mCalibrator.getGainR();
+    }
+}
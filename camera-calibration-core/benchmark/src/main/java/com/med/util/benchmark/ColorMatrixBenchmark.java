@@ -0,0 +1,43 @@
+package com.med.util.benchmark;
+
+import com.med.util.ColorMatrix;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The matrix of ColorCorrectionController.getAdaptedColorSpaceTransform(), which is rebuilt for every
+ * request while the saturation slider moves. The score is matrices per microsecond.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorMatrixBenchmark {
+    /**
+     * A typical sensor color correction matrix.
+     */
+    private final int[] mElements = {
+            1720000, 1000000, -560000, 1000000, -160000, 1000000,
+            -250000, 1000000, 1480000, 1000000, -230000, 1000000,
+             -40000, 1000000, -610000, 1000000, 1650000, 1000000
+    };
+
+    private float mSaturation = 1.2f;
+
+    @Benchmark
+    public int[] adaptSaturation() {
+        return ColorMatrix.adaptSaturation(mElements, mSaturation);
+    }
+}
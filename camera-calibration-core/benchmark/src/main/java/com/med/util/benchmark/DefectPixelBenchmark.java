@@ -0,0 +1,68 @@
+package com.med.util.benchmark;
+
+import com.med.util.BayerStatistics;
+import com.med.util.DefectMap;
+import com.med.util.DefectPixelDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The defect pixel detection of a flat frame in RAW16 and packed RAW10. The score is frames per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class DefectPixelBenchmark {
+    @Param({Frames.RESOLUTION_2MP, Frames.RESOLUTION_12MP, Frames.RESOLUTION_48MP})
+    public String resolution;
+
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mRaw16;
+    private ByteBuffer mRaw10;
+    private DefectPixelDetector mDetector;
+    private DefectMap mMap;
+
+    @Setup
+    public void setUp() {
+        int[] size = Frames.size(resolution);
+        mWidth = size[0];
+        mHeight = size[1];
+        byte[] frame = Frames.flatRaw16(mWidth, mHeight);
+        mRaw16 = Frames.direct(frame);
+        mRaw10 = Frames.direct(Frames.raw10(frame, mWidth, mHeight));
+        mDetector = new DefectPixelDetector();
+        mDetector.setMaxDefects(Integer.MAX_VALUE / 2);
+        mMap = new DefectMap(mWidth, mHeight);
+    }
+
+    @Benchmark
+    public int raw16() {
+        mMap.clear();
+        mDetector.detect(mRaw16, BayerStatistics.FORMAT_RAW16, mWidth, mHeight, mWidth * 2, 2, mMap);
+        return mMap.size();
+    }
+
+    @Benchmark
+    public int raw10() {
+        mMap.clear();
+        mDetector.detect(mRaw10, BayerStatistics.FORMAT_RAW10, mWidth, mHeight, mWidth * 5 / 4, 0, mMap);
+        return mMap.size();
+    }
+}
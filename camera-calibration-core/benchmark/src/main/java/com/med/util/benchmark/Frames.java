@@ -0,0 +1,95 @@
+package com.med.util.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Synthetic RAW frames of the benchmarked resolutions.
+ */
+final class Frames {
+    /**
+     * The resolutions of the @Param of the frame benchmarks.
+     */
+    static final String RESOLUTION_2MP = "2MP";
+    static final String RESOLUTION_12MP = "12MP";
+    static final String RESOLUTION_48MP = "48MP";
+
+    private static final long SEED = 6743;
+
+    private Frames() {
+    }
+
+    /**
+     * @return {width, height} of the resolution.
+     */
+    static int[] size(String resolution) {
+        switch (resolution)
+        {
+            case RESOLUTION_2MP:
+                return new int[] {1920, 1080};
+            case RESOLUTION_12MP:
+                return new int[] {4000, 3000};
+            case RESOLUTION_48MP:
+                return new int[] {8000, 6000};
+            default:
+                throw new IllegalArgumentException("unknown resolution: " + resolution);
+        }
+    }
+
+    /**
+     * @return A 16-bit RAW frame of random 10-bit values in little-endian.
+     */
+    static byte[] raw16(int width, int height) {
+        Random random = new Random(SEED);
+        byte[] frame = new byte[width * height * 2];
+        for (int i=0; i<frame.length; i+=2) {
+            int value = 64 + random.nextInt(900);
+            frame[i] = (byte)value;
+            frame[i+1] = (byte)(value >> 8);
+        }
+        return frame;
+    }
+
+    /**
+     * @return A 16-bit flat frame of 500 with a little noise and a hot pixel every 4096 pixels, in little-endian.
+     */
+    static byte[] flatRaw16(int width, int height) {
+        Random random = new Random(SEED);
+        byte[] frame = new byte[width * height * 2];
+        for (int i=0; i<frame.length; i+=2) {
+            int value = ((i >> 1) % 4096 == 2047)? 1023 : 496 + random.nextInt(9);
+            frame[i] = (byte)value;
+            frame[i+1] = (byte)(value >> 8);
+        }
+        return frame;
+    }
+
+    /**
+     * @return The 16-bit frame packed to MIPI RAW10 with a row stride of width * 5 / 4.
+     */
+    static byte[] raw10(byte[] raw16, int width, int height) {
+        int rowStride = width * 5 / 4;
+        byte[] frame = new byte[rowStride * height];
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int index = (y * width + x) * 2;
+                int value = (raw16[index] & 0xFF) | ((raw16[index+1] & 0xFF) << 8);
+                int group = y * rowStride + (x / 4) * 5;
+                frame[group + x % 4] = (byte)(value >> 2);
+                frame[group + 4] |= (byte)((value & 0x3) << ((x % 4) * 2));
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * @return A direct buffer holding the frame, as the planes of Image are.
+     */
+    static ByteBuffer direct(byte[] frame) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(frame);
+        buffer.clear();
+        return buffer;
+    }
+}
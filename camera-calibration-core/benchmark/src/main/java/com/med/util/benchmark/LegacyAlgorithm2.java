@@ -0,0 +1,78 @@
+package com.med.util.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The gray-world sum of the former AWBCalculator.algorithm2(), kept as the baseline of the engine.
+ * The frame is copied to a short array and every pixel is added through a chain of small objects.
+ * The row index is fixed to row * width, so the baseline visits the same pixels as the engine.
+ * The int sums overflow on large frames as they did in the app. Only the cost is of interest here.
+ */
+final class LegacyAlgorithm2 {
+    private LegacyAlgorithm2() {
+    }
+
+    /**
+     * @return The R and B gains. (RGGB)
+     */
+    static float[] calculate(byte[] byteRaw, int rawWidth, int rawHeight) {
+        short[] shortRaw = new short[byteRaw.length / 2];
+        ByteBuffer.wrap(byteRaw).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(shortRaw);
+
+        PixelSum pixelSum = new PixelSum();
+
+        for (int row=0; row<rawHeight; row++) {
+            for (int col=0; col<rawWidth; col++) {
+                int idx = row * rawWidth + col;
+                pixelSum.add(row, col, shortRaw[idx]);
+            }
+        }
+
+        float K = (pixelSum.mR.getSum() + pixelSum.mGr.getSum() + pixelSum.mGb.getSum() + pixelSum.mB.getSum()) / 4.0f;
+        float gainR = K / pixelSum.mR.getSum();
+        float gainGr = K / pixelSum.mGr.getSum();
+        float gainGb = K / pixelSum.mGb.getSum();
+        float gainB = K / pixelSum.mB.getSum();
+        float gainG = Math.min(gainGr, gainGb);
+        return new float[] {gainR / gainG, gainB / gainG};
+    }
+
+    private static class IntSum {
+        private int mSum = 0;
+        private int mCount = 0;
+
+        void add(int value) {
+            mSum += value;
+            mCount += 1;
+        }
+
+        int getSum() { return mSum; }
+    }
+
+    private static class PixelSum {
+        private final IntSum mR = new IntSum();
+        private final IntSum mGr = new IntSum();
+        private final IntSum mGb = new IntSum();
+        private final IntSum mB = new IntSum();
+
+        void add(int row, int col, int value) {
+            if (row%2 == 0) {
+                if (col%2 == 0) {
+                    mR.add(value);
+                }
+                else {
+                    mGr.add(value);
+                }
+            }
+            else {
+                if (col%2 == 0) {
+                    mGb.add(value);
+                }
+                else {
+                    mB.add(value);
+                }
+            }
+        }
+    }
+}
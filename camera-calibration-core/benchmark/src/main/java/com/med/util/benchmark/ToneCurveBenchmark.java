@@ -0,0 +1,36 @@
+package com.med.util.benchmark;
+
+import com.med.util.ToneCurve;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tone curve of ToneCurveController.getToneMapCurve(), which is rebuilt for every request
+ * while the contrast slider moves. The score is curves per microsecond.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ToneCurveBenchmark {
+    @Param({"-4", "0", "4"})
+    public int contrast;
+
+    @Benchmark
+    public float[] contrastCurve() {
+        return ToneCurve.getContrastCurve(contrast);
+    }
+}
@@ -0,0 +1,75 @@
+package com.med.util.benchmark;
+
+import com.med.util.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The YUV_420_888 to ARGB conversion of the YUV live view, on a semi-planar frame of a preview size,
+ * on the calling thread and on the common pool. The score is frames per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class YuvConverterBenchmark {
+    @Param({"1280x720", "1920x1080"})
+    public String previewSize;
+
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int[] mArgb;
+    private final YuvConverter mSerial = new YuvConverter();
+    private final YuvConverter mParallel = new YuvConverter();
+
+    @Setup
+    public void setUp() {
+        String[] size = previewSize.split("x");
+        mWidth = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+        Random random = new Random(6743);
+        byte[] luma = new byte[mWidth * mHeight];
+        random.nextBytes(luma);
+        byte[] chroma = new byte[mWidth * mHeight / 2];
+        random.nextBytes(chroma);
+        mY = Frames.direct(luma);
+        ByteBuffer interleaved = Frames.direct(chroma);
+        mU = interleaved.slice();
+        interleaved.position(1);
+        mV = interleaved.slice();
+        mArgb = new int[mWidth * mHeight];
+        mParallel.setParallel(ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public int[] serial() {
+        mSerial.convert(mY, mWidth, mU, mV, mWidth, 2, mWidth, mHeight, mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] parallel() {
+        mParallel.convert(mY, mWidth, mU, mV, mWidth, 2, mWidth, mHeight, mArgb);
+        return mArgb;
+    }
+}
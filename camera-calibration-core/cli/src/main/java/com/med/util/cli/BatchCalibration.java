@@ -0,0 +1,284 @@
+package com.med.util.cli;
+
+import com.med.util.BayerStatistics;
+import com.med.util.WBCalibrator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * The command-line tool which calibrates a directory of RAW dumps on a build host.
+ * Every dump is memory-mapped with FileChannel.map() and read in place by the calibration and statistics engines,
+ * so a file is never copied to the heap. The files are processed in parallel, one file per thread, and the results
+ * are written as a CSV summary in the order of the file names.
+ */
+public class BatchCalibration {
+    private static final String USAGE =
+            "usage: BatchCalibration <directory> [--output <file.csv>] [--cfa RGGB|GRBG|GBRG|BGGR] [--black <level>] [--white <level>] [--threads <n>]\n"
+            + "  The dumps are named timestamp-Iso+N-Exp+N-WxH-FORMAT+rowStride.raw, FORMAT is RAW_SENSOR, RAW10 or RAW12.\n"
+            + "  A dump without -FORMAT+rowStride is 16-bit RAW without row padding.\n"
+            + "  The summary is written to the standard output if no output file is given.";
+
+    private static final String CSV_HEADER = "file,timestamp,iso,exposure_ns,width,height,format,"
+            + "average_r,average_gr,average_gb,average_b,gain_r,gain_b,time_ms,error";
+
+    private static final String[] COLOR_FILTER_NAMES = {"RGGB", "GRBG", "GBRG", "BGGR"};
+
+    /**
+     * The outcome of a dump: its CSV line, and the reason if it is not calibrated.
+     */
+    public static class Result {
+        private final String mLine;
+        private final String mError;
+
+        Result(String line, String error) {
+            mLine = line;
+            mError = error;
+        }
+
+        public String getLine() { return mLine; }
+
+        /**
+         * @return The reason why the dump is not calibrated, or null if it is.
+         */
+        public String getError() { return mError; }
+
+        public boolean isCalibrated() { return mError == null; }
+    }
+
+    private final int mColorFilter;
+    private final int[] mBlackLevelPattern;
+    private final int mWhiteLevel;
+
+    /**
+     * Constructor.
+     * @param colorFilter The color filter arrangement. (BayerStatistics.COLOR_FILTER_*)
+     * @param blackLevel The black level of every channel.
+     * @param whiteLevel The white level, or 0 for the default 10-bit level.
+     */
+    public BatchCalibration(int colorFilter, int blackLevel, int whiteLevel) {
+        mColorFilter = colorFilter;
+        mBlackLevelPattern = new int[] {blackLevel, blackLevel, blackLevel, blackLevel};
+        mWhiteLevel = whiteLevel;
+    }
+
+    /**
+     * To list the RAW dumps of a directory.
+     * @param directory The directory.
+     * @return The dumps, sorted by name. The files which are not named as dumps are left out.
+     * @throws IOException If the directory can not be read.
+     */
+    public static List<Path> listDumps(Path directory) throws IOException {
+        List<Path> dumps = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> Files.isRegularFile(path) && RawDump.parse(path.getFileName().toString()) != null)
+                    .sorted()
+                    .forEach(dumps::add);
+        }
+        return dumps;
+    }
+
+    /**
+     * To calibrate a dump. It is called on the worker threads, so every call has its own engines.
+     * @param path The file of the dump.
+     * @return The result of the dump. A dump which can not be read or calibrated has its reason in the error column.
+     */
+    public Result process(Path path) {
+        String filename = path.getFileName().toString();
+        RawDump dump = RawDump.parse(filename);
+        if (dump == null) {
+            return result(filename, null, null, 0, "not a RAW dump name");
+        }
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < dump.getMinimumSize()) {
+                return result(filename, dump, null, 0, String.format(Locale.US, "the file has %d bytes, %d expected", size, dump.getMinimumSize()));
+            }
+            if (size > Integer.MAX_VALUE) {
+                return result(filename, dump, null, 0, "the file is too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            WBCalibrator calibrator = new WBCalibrator(mColorFilter);
+            calibrator.setSensorLevels(mBlackLevelPattern, mWhiteLevel);
+            String error = calibrator.calibrate(buffer, dump.getFormat(), dump.getWidth(), dump.getHeight(),
+                    dump.getRowStride(), dump.getPixelStride());
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            return result(filename, dump, calibrator, elapsed, error);
+        } catch (IOException e) {
+            return result(filename, dump, null, 0, e.getMessage());
+        }
+    }
+
+    private static Result result(String filename, RawDump dump, WBCalibrator calibrator, long elapsed, String error) {
+        return new Result(csvLine(filename, dump, calibrator, elapsed, error), error);
+    }
+
+    /**
+     * To format the CSV line of a dump. The gains are left empty if the frame is rejected.
+     */
+    private static String csvLine(String filename, RawDump dump, WBCalibrator calibrator, long elapsed, String error) {
+        StringBuilder line = new StringBuilder(filename);
+        if (dump != null) {
+            line.append(String.format(Locale.US, ",%s,%d,%d,%d,%d,%s", dump.getTimestamp(), dump.getIso(), dump.getExposureTime(),
+                    dump.getWidth(), dump.getHeight(), dump.getFormatName()));
+        }
+        else {
+            line.append(",,,,,,");
+        }
+        if (calibrator != null) {
+            BayerStatistics statistics = calibrator.getStatistics();
+            for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+                line.append(String.format(Locale.US, ",%.2f", statistics.getAverage(channel)));
+            }
+            if (error == null) {
+                line.append(String.format(Locale.US, ",%.5f,%.5f", calibrator.getGainR(), calibrator.getGainB()));
+            }
+            else {
+                line.append(",,");
+            }
+            line.append(',').append(elapsed);
+        }
+        else {
+            line.append(",,,,,,,");
+        }
+        line.append(',');
+        if (error != null) {
+            // the messages have commas, so the column is quoted
+            line.append('"').append(error.replace("\"", "\"\"")).append('"');
+        }
+        return line.toString();
+    }
+
+    /**
+     * To calibrate the dumps in parallel and write the summary.
+     * @param dumps The files of the dumps.
+     * @param threads The number of worker threads.
+     * @param output The summary.
+     * @return The number of dumps which are not calibrated.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public int run(List<Path> dumps, int threads, PrintWriter output) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> results = new ArrayList<>();
+            for (Path path : dumps) {
+                results.add(executor.submit(() -> process(path)));
+            }
+            output.println(CSV_HEADER);
+            int failures = 0;
+            for (int i=0; i<results.size(); i++) {
+                Result result;
+                try {
+                    result = results.get(i).get();
+                } catch (ExecutionException e) {
+                    result = result(dumps.get(i).getFileName().toString(), null, null, 0, String.valueOf(e.getCause()));
+                }
+                if (!result.isCalibrated()) {
+                    failures++;
+                }
+                output.println(result.getLine());
+            }
+            output.flush();
+            return failures;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int parseColorFilter(String name) {
+        int index = Arrays.asList(COLOR_FILTER_NAMES).indexOf(name.toUpperCase(Locale.US));
+        if (index < 0) {
+            throw new IllegalArgumentException("unknown color filter: " + name);
+        }
+        return index;
+    }
+
+    public static void main(String[] args) {
+        PrintStream console = System.err;
+        String directory = null;
+        String outputFile = null;
+        int colorFilter = BayerStatistics.COLOR_FILTER_RGGB;
+        int blackLevel = 0;
+        int whiteLevel = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i=0; i<args.length; i++) {
+                switch (args[i])
+                {
+                    case "--output":
+                        outputFile = args[++i];
+                        break;
+                    case "--cfa":
+                        colorFilter = parseColorFilter(args[++i]);
+                        break;
+                    case "--black":
+                        blackLevel = Integer.parseInt(args[++i]);
+                        break;
+                    case "--white":
+                        whiteLevel = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || directory != null) {
+                            throw new IllegalArgumentException("unknown argument: " + args[i]);
+                        }
+                        directory = args[i];
+                        break;
+                }
+            }
+            if (directory == null) {
+                throw new IllegalArgumentException("no directory");
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            console.println(e.getMessage());
+            console.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        try {
+            List<Path> dumps = listDumps(Paths.get(directory));
+            long totalSize = 0;
+            for (Path path : dumps) {
+                totalSize += Files.size(path);
+            }
+            long start = System.currentTimeMillis();
+            int failures;
+            if (outputFile != null) {
+                try (PrintWriter output = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8))) {
+                    failures = new BatchCalibration(colorFilter, blackLevel, whiteLevel).run(dumps, threads, output);
+                }
+            }
+            else {
+                PrintWriter output = new PrintWriter(System.out);
+                failures = new BatchCalibration(colorFilter, blackLevel, whiteLevel).run(dumps, threads, output);
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            console.println(String.format(Locale.US, "%d dumps, %d not calibrated, %.1f MB in %d ms (%.1f MB/s) on %d threads",
+                    dumps.size(), failures, totalSize / 1e6, elapsed, totalSize / 1e3 / elapsed, threads));
+        } catch (IOException | InterruptedException e) {
+            console.println("failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.med.util.cli;
+
+import com.med.util.BayerStatistics;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The capture settings of a RAW dump, parsed from its file name. The RAW snapshots of Camera03 name a dump
+ * timestamp-Iso+N-Exp+N-WxH-FORMAT+rowStride.raw, where FORMAT is RAW_SENSOR, RAW10 or RAW12, as the data is saved
+ * with the padding of its rows. An older 16-bit dump without the format has no padding.
+ */
+public class RawDump {
+    private static final Pattern NAME_PATTERN = Pattern.compile(
+            "(\\d{8}-\\d{6})-Iso\\+(\\d+)-Exp\\+(\\d+)-(\\d+)x(\\d+)(?:-(RAW_SENSOR|RAW10|RAW12)\\+(\\d+))?\\.raw");
+
+    private final String mTimestamp;
+    private final int mIso;
+    private final long mExposureTime;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final int mRowStride;
+
+    private RawDump(String timestamp, int iso, long exposureTime, int width, int height, int format, int rowStride) {
+        mTimestamp = timestamp;
+        mIso = iso;
+        mExposureTime = exposureTime;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mRowStride = rowStride;
+    }
+
+    /**
+     * @param filename The file name of a dump, without the directory.
+     * @return The settings of the dump, or null if the name is not of a RAW dump.
+     */
+    public static RawDump parse(String filename) {
+        Matcher matcher = NAME_PATTERN.matcher(filename);
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            int width = Integer.parseInt(matcher.group(4));
+            int height = Integer.parseInt(matcher.group(5));
+            int format = BayerStatistics.FORMAT_RAW16;
+            int rowStride = width * 2;
+            if (matcher.group(6) != null) {
+                switch (matcher.group(6))
+                {
+                    case "RAW10":
+                        format = BayerStatistics.FORMAT_RAW10;
+                        break;
+                    case "RAW12":
+                        format = BayerStatistics.FORMAT_RAW12;
+                        break;
+                    default:
+                        break;
+                }
+                rowStride = Integer.parseInt(matcher.group(7));
+            }
+            if (width < 2 || height < 2) {
+                return null;
+            }
+            return new RawDump(matcher.group(1), Integer.parseInt(matcher.group(2)), Long.parseLong(matcher.group(3)),
+                    width, height, format, rowStride);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getTimestamp() { return mTimestamp; }
+    public int getIso() { return mIso; }
+    public long getExposureTime() { return mExposureTime; }
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+
+    /**
+     * @return BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     */
+    public int getFormat() { return mFormat; }
+    public int getRowStride() { return mRowStride; }
+
+    /**
+     * @return The pixel stride in bytes. Only used by RAW16.
+     */
+    public int getPixelStride() {
+        return (mFormat == BayerStatistics.FORMAT_RAW16)? 2 : 0;
+    }
+
+    /**
+     * @return The minimum size of the file in bytes. The last row may end right after its last pixel.
+     */
+    public long getMinimumSize() {
+        long lastRow;
+        switch (mFormat)
+        {
+            case BayerStatistics.FORMAT_RAW10:
+                lastRow = (mWidth + 3) / 4 * 5L;
+                break;
+            case BayerStatistics.FORMAT_RAW12:
+                lastRow = (mWidth + 1) / 2 * 3L;
+                break;
+            default:
+                lastRow = mWidth * 2L;
+                break;
+        }
+        return (long)mRowStride * (mHeight - 1) + lastRow;
+    }
+
+    /**
+     * @return The name of the format, as in the file name.
+     */
+    public String getFormatName() {
+        switch (mFormat)
+        {
+            case BayerStatistics.FORMAT_RAW10:
+                return "RAW10";
+            case BayerStatistics.FORMAT_RAW12:
+                return "RAW12";
+            default:
+                return "RAW16";
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.med.util.cli;
+
+import com.med.util.BayerStatistics;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchCalibrationTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    /**
+     * R, Gr, Gb and B of the RGGB frames. The gains are 2 for R and 1.5 for B.
+     */
+    private static final int[] CHANNEL_VALUES = {250, 500, 500, 333};
+
+    private static int valueAt(int x, int y) {
+        return CHANNEL_VALUES[(y & 1) * 2 + (x & 1)];
+    }
+
+    private static File newDirectory() throws IOException {
+        File directory = Files.createTempDirectory("dumps").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static void write(File directory, String name, byte[] data) throws IOException {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+    }
+
+    private static void writeRaw16(File directory, String name) throws IOException {
+        byte[] data = new byte[WIDTH * HEIGHT * 2];
+        for (int y=0; y<HEIGHT; y++) {
+            for (int x=0; x<WIDTH; x++) {
+                int value = valueAt(x, y);
+                data[(y * WIDTH + x) * 2] = (byte)value;
+                data[(y * WIDTH + x) * 2 + 1] = (byte)(value >> 8);
+            }
+        }
+        write(directory, name, data);
+    }
+
+    private static void writeRaw10(File directory, String name, int rowStride) throws IOException {
+        byte[] data = new byte[rowStride * HEIGHT];
+        for (int y=0; y<HEIGHT; y++) {
+            for (int x=0; x<WIDTH; x+=4) {
+                int group = y * rowStride + x / 4 * 5;
+                int lsb = 0;
+                for (int i=0; i<4; i++) {
+                    int value = valueAt(x + i, y);
+                    data[group + i] = (byte)(value >> 2);
+                    lsb |= (value & 0x3) << (i * 2);
+                }
+                data[group + 4] = (byte)lsb;
+            }
+        }
+        write(directory, name, data);
+    }
+
+    @Test
+    public void run_directoryOfDumps_writesOneLinePerDumpInOrder() throws Exception {
+        File directory = newDirectory();
+        writeRaw16(directory, "20240115-093012-Iso+100-Exp+5000000-64x48.raw");
+        writeRaw10(directory, "20240115-093013-Iso+200-Exp+2500000-64x48-RAW10+96.raw", 96);
+        // too short for its name
+        write(directory, "20240115-093014-Iso+100-Exp+5000000-640x480.raw", new byte[100]);
+        write(directory, "notes.txt", new byte[10]);
+
+        List<Path> dumps = BatchCalibration.listDumps(directory.toPath());
+        assertEquals(3, dumps.size());
+
+        StringWriter csv = new StringWriter();
+        int failures = new BatchCalibration(BayerStatistics.COLOR_FILTER_RGGB, 0, 1023).run(dumps, 2, new PrintWriter(csv));
+        assertEquals(1, failures);
+
+        String[] lines = csv.toString().split("\\R");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith("file,timestamp,iso"));
+        String[] raw16 = lines[1].split(",", -1);
+        assertEquals("100", raw16[2]);
+        assertEquals("RAW16", raw16[6]);
+        assertEquals(2.0f, Float.parseFloat(raw16[11]), 0.01f);
+        assertEquals(1.5f, Float.parseFloat(raw16[12]), 0.01f);
+        assertEquals("", raw16[14]);
+        String[] raw10 = lines[2].split(",", -1);
+        assertEquals("RAW10", raw10[6]);
+        assertEquals(raw16[11], raw10[11]);
+        assertEquals(raw16[12], raw10[12]);
+        assertTrue(lines[3].contains("bytes"));
+    }
+}
@@ -0,0 +1,57 @@
+package com.med.util.cli;
+
+import com.med.util.BayerStatistics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RawDumpTest {
+    @Test
+    public void parse_raw16Name() {
+        RawDump dump = RawDump.parse("20240115-093012-Iso+400-Exp+16666666-4032x3024.raw");
+        assertNotNull(dump);
+        assertEquals("20240115-093012", dump.getTimestamp());
+        assertEquals(400, dump.getIso());
+        assertEquals(16666666L, dump.getExposureTime());
+        assertEquals(4032, dump.getWidth());
+        assertEquals(3024, dump.getHeight());
+        assertEquals(BayerStatistics.FORMAT_RAW16, dump.getFormat());
+        assertEquals(4032 * 2, dump.getRowStride());
+        assertEquals(2, dump.getPixelStride());
+        assertEquals(4032L * 2 * 3024, dump.getMinimumSize());
+    }
+
+    @Test
+    public void parse_packedNames() {
+        RawDump raw10 = RawDump.parse("20240115-093012-Iso+100-Exp+5000000-4000x3000-RAW10+5008.raw");
+        assertNotNull(raw10);
+        assertEquals(BayerStatistics.FORMAT_RAW10, raw10.getFormat());
+        assertEquals(5008, raw10.getRowStride());
+        assertEquals(5008L * 2999 + 5000, raw10.getMinimumSize());
+
+        RawDump raw12 = RawDump.parse("20240115-093012-Iso+100-Exp+5000000-4000x3000-RAW12+6016.raw");
+        assertNotNull(raw12);
+        assertEquals(BayerStatistics.FORMAT_RAW12, raw12.getFormat());
+        assertEquals("RAW12", raw12.getFormatName());
+    }
+
+    @Test
+    public void parse_raw16NameWithRowStride() {
+        RawDump dump = RawDump.parse("20240115-093012-Iso+400-Exp+16666666-4032x3024-RAW_SENSOR+8192.raw");
+        assertNotNull(dump);
+        assertEquals(BayerStatistics.FORMAT_RAW16, dump.getFormat());
+        assertEquals(8192, dump.getRowStride());
+        assertEquals(2, dump.getPixelStride());
+        assertEquals(8192L * 3023 + 4032 * 2, dump.getMinimumSize());
+        assertEquals("RAW16", dump.getFormatName());
+    }
+
+    @Test
+    public void parse_otherNames_areRejected() {
+        assertNull(RawDump.parse("20240115-093012_ISO100+5000000.raw"));
+        assertNull(RawDump.parse("20240115-093012-Iso+100-Exp+5000000-4000x3000.jpg"));
+        assertNull(RawDump.parse("20240115-093012-Iso+100-Exp+5000000-4000x3000-RAW14+6016.raw"));
+        assertNull(RawDump.parse("20240115-093012-Iso+99999999999-Exp+5000000-4000x3000.raw"));
+    }
+}
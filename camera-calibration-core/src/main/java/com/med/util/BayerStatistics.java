@@ -0,0 +1,857 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class accumulates the sums of the four Bayer channels of a 16-bit RAW frame.
+ * The RAW data is read in place from the given buffer (e.g. the buffer of an Image.Plane),
+ * the row stride and pixel stride of the buffer are honored, and no copy of the frame is made.
+ * One instance can be reused for every frame, so there is no per-frame allocation.
+ * In parallel mode the frame is split into bands of quad rows which are summed on a ForkJoinPool.
+ * In sampling mode only every Nth quad in both directions is visited, and the sums of squares are
+ * kept as well so that the sampling error can be estimated.
+ * Optionally a histogram of every channel is filled in the same pass.
+ * Besides 16-bit RAW, the packed RAW10 and RAW12 formats are decoded on the fly inside the pass.
+ * The black level is subtracted from the results, and quads which have a pixel at or above the
+ * saturation level are excluded from the sums. Both are done inside the pass on the original data.
+ */
+public class BayerStatistics {
+    /**
+     * The channel indices.
+     */
+    public static final int CHANNEL_R = 0;
+    public static final int CHANNEL_GR = 1;
+    public static final int CHANNEL_GB = 2;
+    public static final int CHANNEL_B = 3;
+    public static final int NUM_OF_CHANNELS = 4;
+
+    /**
+     * The color filter arrangements.
+     * The values are the same as CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_*.
+     */
+    public static final int COLOR_FILTER_RGGB = 0;
+    public static final int COLOR_FILTER_GRBG = 1;
+    public static final int COLOR_FILTER_GBRG = 2;
+    public static final int COLOR_FILTER_BGGR = 3;
+
+    /**
+     * The RAW formats. The values are the same as ImageFormat.RAW_SENSOR, ImageFormat.RAW10 and ImageFormat.RAW12.
+     */
+    public static final int FORMAT_RAW16 = 0x20;
+    public static final int FORMAT_RAW10 = 0x25;
+    public static final int FORMAT_RAW12 = 0x26;
+
+    /**
+     * The positions in a 2x2 quad.
+     */
+    private static final int LEFT_TOP = 0;
+    private static final int RIGHT_TOP = 1;
+    private static final int LEFT_BOTTOM = 2;
+    private static final int RIGHT_BOTTOM = 3;
+
+    private final int mColorFilter;
+
+    /**
+     * Maps a channel index to its position in the 2x2 quad.
+     */
+    private final int[] mChannelPosition;
+
+    /**
+     * The index of the number of accumulated quads in a sums array.
+     */
+    private static final int QUAD_COUNT = NUM_OF_CHANNELS;
+    private static final int SUMS_SIZE = NUM_OF_CHANNELS + 1;
+
+    /**
+     * A saturation level which no 16-bit pixel can reach.
+     */
+    public static final int SATURATION_DISABLED = 0x10000;
+
+    /**
+     * The raw sums indexed by the position in the 2x2 quad. The black level is not subtracted.
+     * The last element is the number of accumulated quads.
+     */
+    private final long[] mPositionSums = new long[SUMS_SIZE];
+    private long mQuadCount = 0;
+
+    /**
+     * The number of visited quads, including the saturated ones.
+     */
+    private long mVisitedQuadCount = 0;
+
+    /**
+     * The black level indexed by the position in the 2x2 quad.
+     */
+    private final int[] mBlackLevel = new int[NUM_OF_CHANNELS];
+
+    /**
+     * A quad is excluded from the sums if any of its pixels is at or above this level.
+     */
+    private int mSaturationLevel = SATURATION_DISABLED;
+
+    /**
+     * The minimum number of quad rows in a band of the parallel mode.
+     */
+    private static final int MIN_BAND_QUAD_ROWS = 32;
+
+    /**
+     * The number of standard errors used as the bound of the estimated sampling error.
+     */
+    private static final double ERROR_BOUND_SIGMA = 3.0;
+
+    /**
+     * The pool for the parallel mode. Null if the parallel mode is disabled.
+     */
+    private ForkJoinPool mPool = null;
+
+    /**
+     * The sampling step in quads. 1 means every quad is visited.
+     */
+    private int mSamplingStep = 1;
+
+    /**
+     * The sums of squares indexed by the position in the 2x2 quad. Only valid in sampling mode.
+     */
+    private final long[] mPositionSquares = new long[NUM_OF_CHANNELS];
+
+    /**
+     * The histograms indexed by [position * bins + bin]. Null if the histogram is disabled.
+     * It is reused while the number of bins is unchanged.
+     */
+    private int[] mHistogram = null;
+    private int mHistogramBins = 0;
+
+    /**
+     * A pixel value is shifted right by this amount to get its bin.
+     */
+    private int mHistogramShift = 0;
+
+    /**
+     * Constructor.
+     * @param colorFilter The color filter arrangement. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+     */
+    public BayerStatistics(int colorFilter) {
+        mColorFilter = colorFilter;
+        mChannelPosition = channelPositions(colorFilter);
+    }
+
+    /**
+     * To get the position in the 2x2 quad of each channel.
+     * @param colorFilter The color filter arrangement.
+     * @return An array indexed by channel (R, Gr, Gb, B) which holds the position in the quad.
+     */
+    public static int[] channelPositions(int colorFilter) {
+        switch (colorFilter)
+        {
+            case COLOR_FILTER_RGGB:
+                return new int[] {LEFT_TOP, RIGHT_TOP, LEFT_BOTTOM, RIGHT_BOTTOM};
+            case COLOR_FILTER_GRBG:
+                return new int[] {RIGHT_TOP, LEFT_TOP, RIGHT_BOTTOM, LEFT_BOTTOM};
+            case COLOR_FILTER_GBRG:
+                return new int[] {LEFT_BOTTOM, RIGHT_BOTTOM, LEFT_TOP, RIGHT_TOP};
+            case COLOR_FILTER_BGGR:
+            default:
+                return new int[] {RIGHT_BOTTOM, LEFT_BOTTOM, RIGHT_TOP, LEFT_TOP};
+        }
+    }
+
+    /**
+     * To enable or disable the parallel mode.
+     * @param pool The pool to run the band tasks, or null to sum the frame on the calling thread.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    public boolean isParallel() { return mPool != null; }
+
+    /**
+     * To set the sampling step. Only every Nth quad in both directions is visited,
+     * e.g. a step of 4 visits 1/16 of the frame. The sampling mode always runs on the calling thread.
+     * @param step The sampling step in quads. 1 to visit every quad.
+     */
+    public void setSamplingStep(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("sampling step must be >= 1");
+        }
+        mSamplingStep = step;
+    }
+
+    public int getSamplingStep() { return mSamplingStep; }
+
+    /**
+     * To set the black level which is subtracted from the sums and averages.
+     * @param pattern The offsets of the 2x2 quad in the order left-top, right-top, left-bottom, right-bottom,
+     *                as given by BlackLevelPattern.copyTo(). Null to reset to 0.
+     */
+    public void setBlackLevelPattern(int[] pattern) {
+        for (int i=0; i<NUM_OF_CHANNELS; i++) {
+            mBlackLevel[i] = (pattern != null)? pattern[i] : 0;
+        }
+    }
+
+    /**
+     * To set the saturation level. A quad is excluded from the sums if any of its pixels is at or
+     * above this level. The histograms still count every pixel.
+     * @param level The saturation level, e.g. a little below SENSOR_INFO_WHITE_LEVEL. SATURATION_DISABLED to keep every quad.
+     */
+    public void setSaturationLevel(int level) {
+        mSaturationLevel = Math.min(level, SATURATION_DISABLED);
+    }
+
+    /**
+     * To enable or disable the histograms. The histograms are filled in the same pass as the sums.
+     * Values beyond the bit depth are counted into the last bin.
+     * @param bins The number of bins of each channel, a power of two not larger than 2^bitDepth, e.g. 1024. 0 to disable.
+     * @param bitDepth The bit depth of the pixel values, e.g. 10.
+     */
+    public void setHistogram(int bins, int bitDepth) {
+        if (bins == 0) {
+            mHistogram = null;
+            mHistogramBins = 0;
+            return;
+        }
+        if (bins < 0 || Integer.bitCount(bins) != 1 || bitDepth < 1 || bitDepth > 16 || bins > (1 << bitDepth)) {
+            throw new IllegalArgumentException(String.format("invalid histogram: %d bins, %d bits", bins, bitDepth));
+        }
+        if (bins != mHistogramBins) {
+            mHistogram = new int[NUM_OF_CHANNELS * bins];
+            mHistogramBins = bins;
+        }
+        mHistogramShift = bitDepth - Integer.numberOfTrailingZeros(bins);
+    }
+
+    public boolean isHistogramEnabled() { return mHistogram != null; }
+
+    /**
+     * To accumulate the channel sums of a 16-bit RAW frame.
+     * The previous result is discarded. A trailing odd row or column is ignored.
+     * @param buffer The RAW data. Its byte order is set to little-endian.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes.
+     */
+    public void compute(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride) {
+        compute(buffer, FORMAT_RAW16, width, height, rowStride, pixelStride);
+    }
+
+    /**
+     * To accumulate the channel sums of a RAW frame.
+     * The previous result is discarded. A trailing odd row is ignored, and so are the columns
+     * which do not fill a whole quad (RAW16, RAW12) or a whole 4-pixel group (RAW10).
+     * @param buffer The RAW data. Its byte order is set to little-endian.
+     * @param format FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12. (the same as Image.getFormat())
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes. Only used by RAW16.
+     */
+    public void compute(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride) {
+        if (format != FORMAT_RAW16 && format != FORMAT_RAW10 && format != FORMAT_RAW12) {
+            throw new IllegalArgumentException(String.format("unsupported RAW format: 0x%x", format));
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        Arrays.fill(mPositionSums, 0);
+        Arrays.fill(mPositionSquares, 0);
+        if (mHistogram != null) {
+            Arrays.fill(mHistogram, 0);
+        }
+        // a RAW10 group of 5 bytes holds 4 pixels, so only whole groups are used
+        int quadCols = (format == FORMAT_RAW10)? (width / 4) * 2 : width / 2;
+        int quadRows = height / 2;
+        if (mSamplingStep > 1) {
+            int offset = mSamplingStep / 2;
+            long sampledCols = Math.max(0, (quadCols - offset + mSamplingStep - 1) / mSamplingStep);
+            long sampledRows = Math.max(0, (quadRows - offset + mSamplingStep - 1) / mSamplingStep);
+            accumulateSampled(buffer, format, quadCols, quadRows, mSamplingStep, rowStride, pixelStride, mSaturationLevel,
+                    mPositionSums, mPositionSquares, mHistogram, mHistogramBins, mHistogramShift);
+            mQuadCount = mPositionSums[QUAD_COUNT];
+            mVisitedQuadCount = sampledCols * sampledRows;
+            return;
+        }
+        if (mPool != null && quadRows >= MIN_BAND_QUAD_ROWS * 2) {
+            int bandQuadRows = Math.max(MIN_BAND_QUAD_ROWS, quadRows / (mPool.getParallelism() * 4));
+            long[] sums = mPool.invoke(new BandTask(buffer, format, quadCols, 0, quadRows, bandQuadRows, rowStride, pixelStride,
+                    mSaturationLevel, mHistogram, mHistogramBins, mHistogramShift));
+            System.arraycopy(sums, 0, mPositionSums, 0, SUMS_SIZE);
+        }
+        else {
+            accumulateRows(buffer, format, quadCols, 0, quadRows, rowStride, pixelStride, mSaturationLevel, mPositionSums,
+                    mHistogram, mHistogramBins, mHistogramShift);
+        }
+        mQuadCount = mPositionSums[QUAD_COUNT];
+        mVisitedQuadCount = (long)quadCols * quadRows;
+    }
+
+    /**
+     * To add the quad rows [quadRowBegin, quadRowEnd) to the sums with the kernel of the format.
+     */
+    private static void accumulateRows(ByteBuffer buffer, int format, int quadCols, int quadRowBegin, int quadRowEnd,
+                                       int rowStride, int pixelStride, int saturation, long[] sums,
+                                       int[] histogram, int bins, int shift) {
+        switch (format)
+        {
+            case FORMAT_RAW10:
+                accumulateRaw10(buffer, quadCols, quadRowBegin, quadRowEnd, rowStride, saturation, sums, histogram, bins, shift);
+                break;
+            case FORMAT_RAW12:
+                accumulateRaw12(buffer, quadCols, quadRowBegin, quadRowEnd, rowStride, saturation, sums, histogram, bins, shift);
+                break;
+            default:
+                if (histogram != null) {
+                    accumulateWithHistogram(buffer, quadCols, quadRowBegin, quadRowEnd, rowStride, pixelStride, saturation, sums,
+                            histogram, bins, shift);
+                }
+                else {
+                    accumulate(buffer, quadCols, quadRowBegin, quadRowEnd, rowStride, pixelStride, saturation, sums);
+                }
+        }
+    }
+
+    /**
+     * To add the pixel values of the quad rows [quadRowBegin, quadRowEnd) to the sums.
+     * @param buffer The RAW data in little-endian.
+     * @param quadCols The number of quads in a row.
+     * @param quadRowBegin The first quad row.
+     * @param quadRowEnd The end (exclusive) of quad rows.
+     * @param rowStride The row stride in bytes.
+     * @param pixelStride The pixel stride in bytes.
+     * @param saturation The saturation level. A quad with a pixel at or above it is skipped.
+     * @param sums The sums indexed by the position in the quad, and the number of accumulated quads.
+     */
+    private static void accumulate(ByteBuffer buffer, int quadCols, int quadRowBegin, int quadRowEnd,
+                                   int rowStride, int pixelStride, int saturation, long[] sums) {
+        long sumOfLeftTop = 0;
+        long sumOfRightTop = 0;
+        long sumOfLeftBottom = 0;
+        long sumOfRightBottom = 0;
+        long valid = 0;
+        int quadStride = pixelStride * 2;
+
+        for (int quadRow=quadRowBegin; quadRow<quadRowEnd; quadRow++) {
+            int top = quadRow * 2 * rowStride;
+            int bottom = top + rowStride;
+            int end = top + quadCols * quadStride;
+            for (; top<end; top+=quadStride, bottom+=quadStride) {
+                int leftTop = buffer.getShort(top) & 0xFFFF;
+                int rightTop = buffer.getShort(top + pixelStride) & 0xFFFF;
+                int leftBottom = buffer.getShort(bottom) & 0xFFFF;
+                int rightBottom = buffer.getShort(bottom + pixelStride) & 0xFFFF;
+                // the mask is all ones if every pixel is below the saturation level, otherwise 0. (no branch)
+                int mask = (Math.max(Math.max(leftTop, rightTop), Math.max(leftBottom, rightBottom)) - saturation) >> 31;
+                sumOfLeftTop += leftTop & mask;
+                sumOfRightTop += rightTop & mask;
+                sumOfLeftBottom += leftBottom & mask;
+                sumOfRightBottom += rightBottom & mask;
+                valid -= mask;
+            }
+        }
+
+        sums[LEFT_TOP] += sumOfLeftTop;
+        sums[RIGHT_TOP] += sumOfRightTop;
+        sums[LEFT_BOTTOM] += sumOfLeftBottom;
+        sums[RIGHT_BOTTOM] += sumOfRightBottom;
+        sums[QUAD_COUNT] += valid;
+    }
+
+    /**
+     * The same as accumulate(), and every pixel value is also counted into the histogram.
+     * @param histogram The histograms indexed by [position * bins + bin].
+     * @param bins The number of bins of each position.
+     * @param shift A pixel value is shifted right by this amount to get its bin.
+     */
+    private static void accumulateWithHistogram(ByteBuffer buffer, int quadCols, int quadRowBegin, int quadRowEnd,
+                                                int rowStride, int pixelStride, int saturation, long[] sums,
+                                                int[] histogram, int bins, int shift) {
+        long sumOfLeftTop = 0;
+        long sumOfRightTop = 0;
+        long sumOfLeftBottom = 0;
+        long sumOfRightBottom = 0;
+        long valid = 0;
+        int quadStride = pixelStride * 2;
+        int lastBin = bins - 1;
+        int baseOfRightTop = RIGHT_TOP * bins;
+        int baseOfLeftBottom = LEFT_BOTTOM * bins;
+        int baseOfRightBottom = RIGHT_BOTTOM * bins;
+
+        for (int quadRow=quadRowBegin; quadRow<quadRowEnd; quadRow++) {
+            int top = quadRow * 2 * rowStride;
+            int bottom = top + rowStride;
+            int end = top + quadCols * quadStride;
+            for (; top<end; top+=quadStride, bottom+=quadStride) {
+                int leftTop = buffer.getShort(top) & 0xFFFF;
+                int rightTop = buffer.getShort(top + pixelStride) & 0xFFFF;
+                int leftBottom = buffer.getShort(bottom) & 0xFFFF;
+                int rightBottom = buffer.getShort(bottom + pixelStride) & 0xFFFF;
+                histogram[Math.min(leftTop >>> shift, lastBin)]++;
+                histogram[baseOfRightTop + Math.min(rightTop >>> shift, lastBin)]++;
+                histogram[baseOfLeftBottom + Math.min(leftBottom >>> shift, lastBin)]++;
+                histogram[baseOfRightBottom + Math.min(rightBottom >>> shift, lastBin)]++;
+                int mask = (Math.max(Math.max(leftTop, rightTop), Math.max(leftBottom, rightBottom)) - saturation) >> 31;
+                sumOfLeftTop += leftTop & mask;
+                sumOfRightTop += rightTop & mask;
+                sumOfLeftBottom += leftBottom & mask;
+                sumOfRightBottom += rightBottom & mask;
+                valid -= mask;
+            }
+        }
+
+        sums[LEFT_TOP] += sumOfLeftTop;
+        sums[RIGHT_TOP] += sumOfRightTop;
+        sums[LEFT_BOTTOM] += sumOfLeftBottom;
+        sums[RIGHT_BOTTOM] += sumOfRightBottom;
+        sums[QUAD_COUNT] += valid;
+    }
+
+    /**
+     * The same as accumulateWithHistogram() for the packed RAW10 format. Every 5 bytes hold 4 pixels:
+     * the 8 most significant bits of each pixel, then a byte with the 2 least significant bits of
+     * each pixel. (pixel 0 in bits 0-1) A group of 4 pixels covers 2 quads of a row.
+     * @param quadCols The number of quads in a row. It must be even.
+     * @param histogram The histograms indexed by [position * bins + bin], or null.
+     */
+    private static void accumulateRaw10(ByteBuffer buffer, int quadCols, int quadRowBegin, int quadRowEnd,
+                                        int rowStride, int saturation, long[] sums,
+                                        int[] histogram, int bins, int shift) {
+        long sumOfLeftTop = 0;
+        long sumOfRightTop = 0;
+        long sumOfLeftBottom = 0;
+        long sumOfRightBottom = 0;
+        long valid = 0;
+        int lastBin = bins - 1;
+
+        for (int quadRow=quadRowBegin; quadRow<quadRowEnd; quadRow++) {
+            int top = quadRow * 2 * rowStride;
+            int bottom = top + rowStride;
+            int end = top + (quadCols / 2) * 5;
+            for (; top<end; top+=5, bottom+=5) {
+                // the 4 most significant bytes in one little-endian read, then the byte of least significant bits
+                int msbOfTop = buffer.getInt(top);
+                int lsbOfTop = buffer.get(top + 4);
+                int msbOfBottom = buffer.getInt(bottom);
+                int lsbOfBottom = buffer.get(bottom + 4);
+                for (int i=0; i<2; i++) {
+                    int leftTop = ((msbOfTop & 0xFF) << 2) | (lsbOfTop & 0x3);
+                    int rightTop = ((msbOfTop >>> 6) & 0x3FC) | ((lsbOfTop >>> 2) & 0x3);
+                    int leftBottom = ((msbOfBottom & 0xFF) << 2) | (lsbOfBottom & 0x3);
+                    int rightBottom = ((msbOfBottom >>> 6) & 0x3FC) | ((lsbOfBottom >>> 2) & 0x3);
+                    msbOfTop >>>= 16;
+                    lsbOfTop >>>= 4;
+                    msbOfBottom >>>= 16;
+                    lsbOfBottom >>>= 4;
+                    if (histogram != null) {
+                        histogram[LEFT_TOP * bins + Math.min(leftTop >>> shift, lastBin)]++;
+                        histogram[RIGHT_TOP * bins + Math.min(rightTop >>> shift, lastBin)]++;
+                        histogram[LEFT_BOTTOM * bins + Math.min(leftBottom >>> shift, lastBin)]++;
+                        histogram[RIGHT_BOTTOM * bins + Math.min(rightBottom >>> shift, lastBin)]++;
+                    }
+                    int mask = (Math.max(Math.max(leftTop, rightTop), Math.max(leftBottom, rightBottom)) - saturation) >> 31;
+                    sumOfLeftTop += leftTop & mask;
+                    sumOfRightTop += rightTop & mask;
+                    sumOfLeftBottom += leftBottom & mask;
+                    sumOfRightBottom += rightBottom & mask;
+                    valid -= mask;
+                }
+            }
+        }
+
+        sums[LEFT_TOP] += sumOfLeftTop;
+        sums[RIGHT_TOP] += sumOfRightTop;
+        sums[LEFT_BOTTOM] += sumOfLeftBottom;
+        sums[RIGHT_BOTTOM] += sumOfRightBottom;
+        sums[QUAD_COUNT] += valid;
+    }
+
+    /**
+     * The same as accumulateWithHistogram() for the packed RAW12 format. Every 3 bytes hold 2 pixels:
+     * the 8 most significant bits of each pixel, then a byte with the 4 least significant bits of
+     * each pixel. (pixel 0 in bits 0-3) A group of 2 pixels is a half quad.
+     * @param histogram The histograms indexed by [position * bins + bin], or null.
+     */
+    private static void accumulateRaw12(ByteBuffer buffer, int quadCols, int quadRowBegin, int quadRowEnd,
+                                        int rowStride, int saturation, long[] sums,
+                                        int[] histogram, int bins, int shift) {
+        long sumOfLeftTop = 0;
+        long sumOfRightTop = 0;
+        long sumOfLeftBottom = 0;
+        long sumOfRightBottom = 0;
+        long valid = 0;
+        int lastBin = bins - 1;
+
+        for (int quadRow=quadRowBegin; quadRow<quadRowEnd; quadRow++) {
+            int top = quadRow * 2 * rowStride;
+            int bottom = top + rowStride;
+            int end = top + quadCols * 3;
+            for (; top<end; top+=3, bottom+=3) {
+                int msbOfTop = buffer.getShort(top);
+                int lsbOfTop = buffer.get(top + 2);
+                int msbOfBottom = buffer.getShort(bottom);
+                int lsbOfBottom = buffer.get(bottom + 2);
+                int leftTop = ((msbOfTop & 0xFF) << 4) | (lsbOfTop & 0xF);
+                int rightTop = ((msbOfTop >>> 4) & 0xFF0) | ((lsbOfTop >>> 4) & 0xF);
+                int leftBottom = ((msbOfBottom & 0xFF) << 4) | (lsbOfBottom & 0xF);
+                int rightBottom = ((msbOfBottom >>> 4) & 0xFF0) | ((lsbOfBottom >>> 4) & 0xF);
+                if (histogram != null) {
+                    histogram[LEFT_TOP * bins + Math.min(leftTop >>> shift, lastBin)]++;
+                    histogram[RIGHT_TOP * bins + Math.min(rightTop >>> shift, lastBin)]++;
+                    histogram[LEFT_BOTTOM * bins + Math.min(leftBottom >>> shift, lastBin)]++;
+                    histogram[RIGHT_BOTTOM * bins + Math.min(rightBottom >>> shift, lastBin)]++;
+                }
+                int mask = (Math.max(Math.max(leftTop, rightTop), Math.max(leftBottom, rightBottom)) - saturation) >> 31;
+                sumOfLeftTop += leftTop & mask;
+                sumOfRightTop += rightTop & mask;
+                sumOfLeftBottom += leftBottom & mask;
+                sumOfRightBottom += rightBottom & mask;
+                valid -= mask;
+            }
+        }
+
+        sums[LEFT_TOP] += sumOfLeftTop;
+        sums[RIGHT_TOP] += sumOfRightTop;
+        sums[LEFT_BOTTOM] += sumOfLeftBottom;
+        sums[RIGHT_BOTTOM] += sumOfRightBottom;
+        sums[QUAD_COUNT] += valid;
+    }
+
+    /**
+     * To read one pixel of a RAW row in any supported format. It is used where only a few pixels are visited.
+     * @param buffer The RAW data in little-endian.
+     * @param format The RAW format.
+     * @param rowOffset The offset of the row in bytes.
+     * @param x The column of the pixel.
+     * @param pixelStride The pixel stride in bytes. Only used by RAW16.
+     * @return The pixel value.
+     */
+    static int pixelAt(ByteBuffer buffer, int format, int rowOffset, int x, int pixelStride) {
+        switch (format)
+        {
+            case FORMAT_RAW10: {
+                int group = rowOffset + (x >> 2) * 5;
+                int lsb = ((buffer.get(group + 4) & 0xFF) >>> ((x & 3) * 2)) & 0x3;
+                return ((buffer.get(group + (x & 3)) & 0xFF) << 2) | lsb;
+            }
+            case FORMAT_RAW12: {
+                int group = rowOffset + (x >> 1) * 3;
+                int lsb = ((buffer.get(group + 2) & 0xFF) >>> ((x & 1) * 4)) & 0xF;
+                return ((buffer.get(group + (x & 1)) & 0xFF) << 4) | lsb;
+            }
+            default:
+                return buffer.getShort(rowOffset + x * pixelStride) & 0xFFFF;
+        }
+    }
+
+    /**
+     * To decode a whole RAW row in any supported format. It is used where every pixel is needed more than once.
+     * @param buffer The RAW data in little-endian.
+     * @param format The RAW format.
+     * @param rowOffset The offset of the row in bytes.
+     * @param width The number of pixels to decode.
+     * @param pixelStride The pixel stride in bytes. Only used by RAW16.
+     * @param row Output. The pixel values, at least width long.
+     */
+    static void readRow(ByteBuffer buffer, int format, int rowOffset, int width, int pixelStride, int[] row) {
+        switch (format)
+        {
+            case FORMAT_RAW10: {
+                int x = 0;
+                int group = rowOffset;
+                for (; x+4<=width; x+=4, group+=5) {
+                    int lsb = buffer.get(group + 4) & 0xFF;
+                    row[x] = ((buffer.get(group) & 0xFF) << 2) | (lsb & 0x3);
+                    row[x + 1] = ((buffer.get(group + 1) & 0xFF) << 2) | ((lsb >>> 2) & 0x3);
+                    row[x + 2] = ((buffer.get(group + 2) & 0xFF) << 2) | ((lsb >>> 4) & 0x3);
+                    row[x + 3] = ((buffer.get(group + 3) & 0xFF) << 2) | (lsb >>> 6);
+                }
+                for (; x<width; x++) {
+                    row[x] = pixelAt(buffer, format, rowOffset, x, pixelStride);
+                }
+                break;
+            }
+            case FORMAT_RAW12: {
+                int x = 0;
+                int group = rowOffset;
+                for (; x+2<=width; x+=2, group+=3) {
+                    int lsb = buffer.get(group + 2) & 0xFF;
+                    row[x] = ((buffer.get(group) & 0xFF) << 4) | (lsb & 0xF);
+                    row[x + 1] = ((buffer.get(group + 1) & 0xFF) << 4) | (lsb >>> 4);
+                }
+                for (; x<width; x++) {
+                    row[x] = pixelAt(buffer, format, rowOffset, x, pixelStride);
+                }
+                break;
+            }
+            default:
+                for (int x=0, offset=rowOffset; x<width; x++, offset+=pixelStride) {
+                    row[x] = buffer.getShort(offset) & 0xFFFF;
+                }
+                break;
+        }
+    }
+
+    /**
+     * To add the pixel values and their squares of every step-th quad to the sums.
+     * The sampled quads are centered in each step x step block.
+     * @param buffer The RAW data in little-endian.
+     * @param format The RAW format.
+     * @param quadCols The number of quads in a row.
+     * @param quadRows The number of quad rows.
+     * @param step The sampling step in quads.
+     * @param rowStride The row stride in bytes.
+     * @param pixelStride The pixel stride in bytes.
+     * @param saturation The saturation level. A quad with a pixel at or above it is skipped.
+     * @param sums The sums indexed by the position in the quad, and the number of accumulated quads.
+     * @param squares The sums of squares indexed by the position in the quad.
+     * @param histogram The histograms indexed by [position * bins + bin], or null.
+     * @param bins The number of bins of each position.
+     * @param shift A pixel value is shifted right by this amount to get its bin.
+     */
+    private static void accumulateSampled(ByteBuffer buffer, int format, int quadCols, int quadRows, int step,
+                                          int rowStride, int pixelStride, int saturation, long[] sums, long[] squares,
+                                          int[] histogram, int bins, int shift) {
+        long sumOfLeftTop = 0, squareOfLeftTop = 0;
+        long sumOfRightTop = 0, squareOfRightTop = 0;
+        long sumOfLeftBottom = 0, squareOfLeftBottom = 0;
+        long sumOfRightBottom = 0, squareOfRightBottom = 0;
+        long count = 0;
+        int offset = step / 2;
+        int lastBin = bins - 1;
+
+        for (int quadRow=offset; quadRow<quadRows; quadRow+=step) {
+            int top = quadRow * 2 * rowStride;
+            int bottom = top + rowStride;
+            for (int quadCol=offset; quadCol<quadCols; quadCol+=step) {
+                int x = quadCol * 2;
+                long leftTop = pixelAt(buffer, format, top, x, pixelStride);
+                long rightTop = pixelAt(buffer, format, top, x + 1, pixelStride);
+                long leftBottom = pixelAt(buffer, format, bottom, x, pixelStride);
+                long rightBottom = pixelAt(buffer, format, bottom, x + 1, pixelStride);
+                if (histogram != null) {
+                    histogram[LEFT_TOP * bins + Math.min((int)(leftTop >>> shift), lastBin)]++;
+                    histogram[RIGHT_TOP * bins + Math.min((int)(rightTop >>> shift), lastBin)]++;
+                    histogram[LEFT_BOTTOM * bins + Math.min((int)(leftBottom >>> shift), lastBin)]++;
+                    histogram[RIGHT_BOTTOM * bins + Math.min((int)(rightBottom >>> shift), lastBin)]++;
+                }
+                if (leftTop >= saturation || rightTop >= saturation || leftBottom >= saturation || rightBottom >= saturation) {
+                    continue;
+                }
+                sumOfLeftTop += leftTop;
+                squareOfLeftTop += leftTop * leftTop;
+                sumOfRightTop += rightTop;
+                squareOfRightTop += rightTop * rightTop;
+                sumOfLeftBottom += leftBottom;
+                squareOfLeftBottom += leftBottom * leftBottom;
+                sumOfRightBottom += rightBottom;
+                squareOfRightBottom += rightBottom * rightBottom;
+                count++;
+            }
+        }
+
+        sums[LEFT_TOP] += sumOfLeftTop;
+        sums[RIGHT_TOP] += sumOfRightTop;
+        sums[LEFT_BOTTOM] += sumOfLeftBottom;
+        sums[RIGHT_BOTTOM] += sumOfRightBottom;
+        squares[LEFT_TOP] += squareOfLeftTop;
+        squares[RIGHT_TOP] += squareOfRightTop;
+        squares[LEFT_BOTTOM] += squareOfLeftBottom;
+        squares[RIGHT_BOTTOM] += squareOfRightBottom;
+        sums[QUAD_COUNT] += count;
+    }
+
+    /**
+     * A task which sums a band of quad rows. The band is split in halves until it is
+     * not larger than the band size, and the partial sums are merged on the way back.
+     * The histogram of a band is counted locally and added to the shared histogram at the end.
+     */
+    private static class BandTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer mBuffer;
+        private final int mFormat;
+        private final int mQuadCols;
+        private final int mQuadRowBegin;
+        private final int mQuadRowEnd;
+        private final int mBandQuadRows;
+        private final int mRowStride;
+        private final int mPixelStride;
+        private final int mSaturation;
+        private final int[] mHistogram;
+        private final int mBins;
+        private final int mShift;
+
+        BandTask(ByteBuffer buffer, int format, int quadCols, int quadRowBegin, int quadRowEnd, int bandQuadRows, int rowStride, int pixelStride,
+                 int saturation, int[] histogram, int bins, int shift) {
+            mBuffer = buffer;
+            mFormat = format;
+            mQuadCols = quadCols;
+            mQuadRowBegin = quadRowBegin;
+            mQuadRowEnd = quadRowEnd;
+            mBandQuadRows = bandQuadRows;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+            mSaturation = saturation;
+            mHistogram = histogram;
+            mBins = bins;
+            mShift = shift;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (mQuadRowEnd - mQuadRowBegin <= mBandQuadRows) {
+                long[] sums = new long[SUMS_SIZE];
+                if (mHistogram == null) {
+                    accumulateRows(mBuffer, mFormat, mQuadCols, mQuadRowBegin, mQuadRowEnd, mRowStride, mPixelStride, mSaturation, sums,
+                            null, 0, 0);
+                    return sums;
+                }
+                int[] histogram = new int[mHistogram.length];
+                accumulateRows(mBuffer, mFormat, mQuadCols, mQuadRowBegin, mQuadRowEnd, mRowStride, mPixelStride, mSaturation, sums,
+                        histogram, mBins, mShift);
+                synchronized (mHistogram) {
+                    for (int i=0; i<histogram.length; i++) {
+                        mHistogram[i] += histogram[i];
+                    }
+                }
+                return sums;
+            }
+            int middle = (mQuadRowBegin + mQuadRowEnd) >>> 1;
+            BandTask upper = new BandTask(mBuffer, mFormat, mQuadCols, mQuadRowBegin, middle, mBandQuadRows, mRowStride, mPixelStride,
+                    mSaturation, mHistogram, mBins, mShift);
+            BandTask lower = new BandTask(mBuffer, mFormat, mQuadCols, middle, mQuadRowEnd, mBandQuadRows, mRowStride, mPixelStride,
+                    mSaturation, mHistogram, mBins, mShift);
+            upper.fork();
+            long[] sums = lower.compute();
+            long[] upperSums = upper.join();
+            for (int i=0; i<SUMS_SIZE; i++) {
+                sums[i] += upperSums[i];
+            }
+            return sums;
+        }
+    }
+
+    public int getColorFilter() { return mColorFilter; }
+
+    /**
+     * @param channel The channel index. (CHANNEL_R, CHANNEL_GR, CHANNEL_GB or CHANNEL_B)
+     * @return The sum of the channel, with the black level subtracted.
+     */
+    public long getSum(int channel) {
+        int position = mChannelPosition[channel];
+        return mPositionSums[position] - mQuadCount * mBlackLevel[position];
+    }
+
+    /**
+     * @param channel The channel index.
+     * @return The number of pixels accumulated into the channel. The saturated quads are not included.
+     */
+    public long getCount(int channel) { return mQuadCount; }
+
+    /**
+     * @param channel The channel index.
+     * @return The average pixel value of the channel.
+     */
+    public float getAverage(int channel) {
+        long count = getCount(channel);
+        return (count > 0)? (float)((double)getSum(channel) / count) : 0.0f;
+    }
+
+    /**
+     * The sample variance of a channel. Only valid in sampling mode.
+     * @param channel The channel index.
+     * @return The variance of the sampled pixel values, or 0 if it is not available.
+     */
+    public double getVariance(int channel) {
+        long count = getCount(channel);
+        if (mSamplingStep <= 1 || count < 2) {
+            return 0.0;
+        }
+        // the variance does not depend on the black level, so the raw sums are used with the raw squares
+        double sum = mPositionSums[mChannelPosition[channel]];
+        double square = mPositionSquares[mChannelPosition[channel]];
+        return Math.max(0.0, (square - sum * sum / count) / (count - 1));
+    }
+
+    /**
+     * To estimate the relative error of the gain mean(G)/mean(channel) against a full pass.
+     * It is derived from the standard errors of the sampled means and bounded at three sigma.
+     * @param channel CHANNEL_R or CHANNEL_B.
+     * @return The relative error, e.g. 0.01 for 1%. 0 if every quad was visited.
+     */
+    public double estimateGainError(int channel) {
+        long count = getCount(channel);
+        if (mSamplingStep <= 1 || count < 2) {
+            return 0.0;
+        }
+        double mean = (double)getSum(channel) / count;
+        double meanOfG = (double)(getSum(CHANNEL_GR) + getSum(CHANNEL_GB)) / (2.0 * count);
+        if (mean <= 0.0 || meanOfG <= 0.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double varianceOfG = (getVariance(CHANNEL_GR) + getVariance(CHANNEL_GB)) / 4.0;
+        double relative = getVariance(channel) / (mean * mean * count) + varianceOfG / (meanOfG * meanOfG * count);
+        return ERROR_BOUND_SIGMA * Math.sqrt(relative);
+    }
+
+    public int getHistogramBins() { return mHistogramBins; }
+
+    /**
+     * @param channel The channel index.
+     * @param bin The bin index.
+     * @return The number of pixels of the channel in the bin. 0 if the histogram is disabled.
+     */
+    public int getHistogramCount(int channel, int bin) {
+        if (mHistogram == null) {
+            return 0;
+        }
+        return mHistogram[mChannelPosition[channel] * mHistogramBins + bin];
+    }
+
+    /**
+     * To copy the histogram of a channel.
+     * @param channel The channel index.
+     * @param histogram Output. An array of at least getHistogramBins() elements, so it can be reused.
+     */
+    public void getHistogram(int channel, int[] histogram) {
+        if (mHistogram == null) {
+            throw new IllegalStateException("histogram is disabled");
+        }
+        System.arraycopy(mHistogram, mChannelPosition[channel] * mHistogramBins, histogram, 0, mHistogramBins);
+    }
+
+    /**
+     * The fraction of pixels at or above a value, e.g. to detect clipping. The saturated quads are included.
+     * The value is rounded down to the start of its bin.
+     * @param channel The channel index.
+     * @param value The pixel value.
+     * @return The fraction in [0, 1]. 0 if the histogram is disabled.
+     */
+    public float getFractionAtOrAbove(int channel, int value) {
+        if (mHistogram == null || mVisitedQuadCount == 0) {
+            return 0.0f;
+        }
+        int base = mChannelPosition[channel] * mHistogramBins;
+        long count = 0;
+        for (int bin=Math.min(value >>> mHistogramShift, mHistogramBins); bin<mHistogramBins; bin++) {
+            count += mHistogram[base + bin];
+        }
+        return (float)((double)count / mVisitedQuadCount);
+    }
+
+    /**
+     * The fraction of pixels below a value, e.g. to detect underexposure.
+     * The value is rounded down to the start of its bin.
+     * @param channel The channel index.
+     * @param value The pixel value.
+     * @return The fraction in [0, 1]. 0 if the histogram is disabled.
+     */
+    public float getFractionBelow(int channel, int value) {
+        if (mHistogram == null || mVisitedQuadCount == 0) {
+            return 0.0f;
+        }
+        return 1.0f - getFractionAtOrAbove(channel, value);
+    }
+}
@@ -0,0 +1,386 @@
+package com.med.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * This class persists the WB calibration results in a small binary file, so the gains can be applied
+ * as soon as the camera is opened instead of calibrating again.
+ * An entry is keyed by the camera id, the sensor mode (the active array size), the ISO and the exposure time.
+ * Only the latest MAX_ENTRIES entries are kept.
+ *
+ * The lens shading gain map of a camera and sensor mode is kept alongside its WB results.
+ *
+ * The file is: MAGIC, VERSION, the number of entries, the entries, the number of shading maps, the maps,
+ * and the CRC32 of everything before it. A version 1 file has no shading maps.
+ * A missing or corrupted file is treated as an empty store.
+ */
+public class CalibrationStore {
+    /**
+     * "WBCS"
+     */
+    private static final int MAGIC = 0x57424353;
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_SHADING_MAPS = 1;
+
+    /**
+     * The maximum number of gains of a shading map, which is a 64 x 64 grid of 4 channels.
+     */
+    private static final int MAX_SHADING_GAINS = 64 * 64 * 4;
+
+    /**
+     * The maximum number of entries. The oldest entry is dropped when it is exceeded.
+     */
+    public static final int MAX_ENTRIES = 16;
+
+    /**
+     * A calibration result.
+     */
+    public static class Entry {
+        private final String mCameraId;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mIso;
+        private final long mExposureTime;
+        private final long mTimestamp;
+        private final float mGainR;
+        private final float mGainB;
+
+        /**
+         * Constructor.
+         * @param cameraId The camera id.
+         * @param width The width of the sensor active array.
+         * @param height The height of the sensor active array.
+         * @param iso The ISO of the calibrated frame, or 0 if it is not known.
+         * @param exposureTime The exposure time of the calibrated frame in nanoseconds, or 0 if it is not known.
+         * @param timestamp The time of the calibration. (System.currentTimeMillis())
+         * @param gainR The R gain.
+         * @param gainB The B gain.
+         */
+        public Entry(String cameraId, int width, int height, int iso, long exposureTime, long timestamp, float gainR, float gainB) {
+            mCameraId = cameraId;
+            mWidth = width;
+            mHeight = height;
+            mIso = iso;
+            mExposureTime = exposureTime;
+            mTimestamp = timestamp;
+            mGainR = gainR;
+            mGainB = gainB;
+        }
+
+        public String getCameraId() { return mCameraId; }
+        public int getWidth() { return mWidth; }
+        public int getHeight() { return mHeight; }
+        public int getIso() { return mIso; }
+        public long getExposureTime() { return mExposureTime; }
+        public long getTimestamp() { return mTimestamp; }
+        public float getGainR() { return mGainR; }
+        public float getGainB() { return mGainB; }
+
+        /**
+         * @return True if the entry was calibrated on the same camera and sensor mode.
+         */
+        boolean isSameSensor(String cameraId, int width, int height) {
+            return mCameraId.equals(cameraId) && mWidth == width && mHeight == height;
+        }
+
+        boolean isSameKey(Entry entry) {
+            return isSameSensor(entry.mCameraId, entry.mWidth, entry.mHeight)
+                    && mIso == entry.mIso && mExposureTime == entry.mExposureTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("camera %s %dx%d ISO %d exposure %d ns at %d: R %f, B %f",
+                    mCameraId, mWidth, mHeight, mIso, mExposureTime, mTimestamp, mGainR, mGainB);
+        }
+    }
+
+    /**
+     * A lens shading gain map. See LensShadingCalibrator for the layout of the gains.
+     */
+    public static class ShadingMap {
+        private final String mCameraId;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mColumns;
+        private final int mRows;
+        private final float[] mGains;
+
+        /**
+         * Constructor.
+         * @param cameraId The camera id.
+         * @param width The width of the sensor active array.
+         * @param height The height of the sensor active array.
+         * @param columns The number of grid points in horizontal.
+         * @param rows The number of grid points in vertical.
+         * @param gains The gains of columns * rows points of 4 channels. (LensShadingCalibrator.getGains())
+         */
+        public ShadingMap(String cameraId, int width, int height, int columns, int rows, float[] gains) {
+            if (gains.length != columns * rows * 4 || gains.length > MAX_SHADING_GAINS) {
+                throw new IllegalArgumentException(String.format("invalid shading map: %d x %d, %d gains", columns, rows, gains.length));
+            }
+            mCameraId = cameraId;
+            mWidth = width;
+            mHeight = height;
+            mColumns = columns;
+            mRows = rows;
+            mGains = gains;
+        }
+
+        public String getCameraId() { return mCameraId; }
+        public int getWidth() { return mWidth; }
+        public int getHeight() { return mHeight; }
+        public int getColumns() { return mColumns; }
+        public int getRows() { return mRows; }
+        public float[] getGains() { return mGains.clone(); }
+
+        boolean isSameSensor(String cameraId, int width, int height) {
+            return mCameraId.equals(cameraId) && mWidth == width && mHeight == height;
+        }
+    }
+
+    private final File mFile;
+
+    /**
+     * The entries from the oldest to the latest.
+     */
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    /**
+     * The shading maps from the oldest to the latest, one per camera and sensor mode.
+     */
+    private final List<ShadingMap> mShadingMaps = new ArrayList<>();
+
+    /**
+     * Constructor. The file is not read until load() is called.
+     * @param file The file of the store.
+     */
+    public CalibrationStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * To read the file. The entries in memory are replaced.
+     * @return False if the file is missing or corrupted, and the store is empty.
+     */
+    public synchronized boolean load() {
+        mEntries.clear();
+        mShadingMaps.clear();
+        if (!mFile.isFile()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream input = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(mFile)), crc))) {
+            if (input.readInt() != MAGIC) {
+                return false;
+            }
+            int version = input.readInt();
+            if (version != VERSION && version != VERSION_WITHOUT_SHADING_MAPS) {
+                return false;
+            }
+            int count = input.readInt();
+            if (count < 0 || count > MAX_ENTRIES) {
+                return false;
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i=0; i<count; i++) {
+                entries.add(new Entry(input.readUTF(), input.readInt(), input.readInt(), input.readInt(),
+                        input.readLong(), input.readLong(), input.readFloat(), input.readFloat()));
+            }
+            List<ShadingMap> shadingMaps = new ArrayList<>();
+            if (version != VERSION_WITHOUT_SHADING_MAPS) {
+                int mapCount = input.readInt();
+                if (mapCount < 0 || mapCount > MAX_ENTRIES) {
+                    return false;
+                }
+                for (int i=0; i<mapCount; i++) {
+                    String cameraId = input.readUTF();
+                    int width = input.readInt();
+                    int height = input.readInt();
+                    int columns = input.readInt();
+                    int rows = input.readInt();
+                    if (columns < 2 || rows < 2 || columns * rows * 4 > MAX_SHADING_GAINS) {
+                        return false;
+                    }
+                    float[] gains = new float[columns * rows * 4];
+                    for (int j=0; j<gains.length; j++) {
+                        gains[j] = input.readFloat();
+                    }
+                    shadingMaps.add(new ShadingMap(cameraId, width, height, columns, rows, gains));
+                }
+            }
+            long checksum = crc.getValue();
+            if (input.readLong() != checksum) {
+                return false;
+            }
+            mEntries.addAll(entries);
+            mShadingMaps.addAll(shadingMaps);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * To write the entries to the file. A temporary file is written and renamed, so a crash
+     * while saving does not corrupt the previous file.
+     * @throws IOException If the file can not be written.
+     */
+    public synchronized void save() throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), crc))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(mEntries.size());
+            for (Entry entry : mEntries) {
+                output.writeUTF(entry.mCameraId);
+                output.writeInt(entry.mWidth);
+                output.writeInt(entry.mHeight);
+                output.writeInt(entry.mIso);
+                output.writeLong(entry.mExposureTime);
+                output.writeLong(entry.mTimestamp);
+                output.writeFloat(entry.mGainR);
+                output.writeFloat(entry.mGainB);
+            }
+            output.writeInt(mShadingMaps.size());
+            for (ShadingMap map : mShadingMaps) {
+                output.writeUTF(map.mCameraId);
+                output.writeInt(map.mWidth);
+                output.writeInt(map.mHeight);
+                output.writeInt(map.mColumns);
+                output.writeInt(map.mRows);
+                for (float gain : map.mGains) {
+                    output.writeFloat(gain);
+                }
+            }
+            output.writeLong(crc.getValue());
+        }
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("failed to rename " + tempFile + " to " + mFile);
+        }
+    }
+
+    /**
+     * To add a calibration result. An entry with the same key is replaced.
+     * @param entry The result.
+     */
+    public synchronized void put(Entry entry) {
+        for (int i=0; i<mEntries.size(); i++) {
+            if (mEntries.get(i).isSameKey(entry)) {
+                mEntries.remove(i);
+                break;
+            }
+        }
+        mEntries.add(entry);
+        while (mEntries.size() > MAX_ENTRIES) {
+            mEntries.remove(0);
+        }
+    }
+
+    /**
+     * @param cameraId The camera id.
+     * @param width The width of the sensor active array.
+     * @param height The height of the sensor active array.
+     * @return The latest result of the camera and sensor mode at any exposure, or null.
+     */
+    public synchronized Entry getLatest(String cameraId, int width, int height) {
+        for (int i=mEntries.size()-1; i>=0; i--) {
+            Entry entry = mEntries.get(i);
+            if (entry.isSameSensor(cameraId, width, height)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param cameraId The camera id.
+     * @param width The width of the sensor active array.
+     * @param height The height of the sensor active array.
+     * @param iso The current ISO.
+     * @param exposureTime The current exposure time in nanoseconds.
+     * @return The result of the camera and sensor mode whose ISO x exposure time is the nearest in stops,
+     *         the latest one of equal distance, or null. An entry without an exposure is only taken
+     *         if no entry has one.
+     */
+    public synchronized Entry getNearest(String cameraId, int width, int height, int iso, long exposureTime) {
+        double exposure = (double)iso * exposureTime;
+        Entry nearest = null;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int i=mEntries.size()-1; i>=0; i--) {
+            Entry entry = mEntries.get(i);
+            if (!entry.isSameSensor(cameraId, width, height)) {
+                continue;
+            }
+            double entryExposure = (double)entry.mIso * entry.mExposureTime;
+            double distance = (exposure > 0.0 && entryExposure > 0.0)? Math.abs(Math.log(entryExposure / exposure)) : Double.MAX_VALUE;
+            if (nearest == null || distance < nearestDistance) {
+                nearest = entry;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @return The result of the camera and sensor mode at the exposure, or null.
+     */
+    public synchronized Entry get(String cameraId, int width, int height, int iso, long exposureTime) {
+        Entry key = new Entry(cameraId, width, height, iso, exposureTime, 0, 0.0f, 0.0f);
+        for (Entry entry : mEntries) {
+            if (entry.isSameKey(key)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * To add a shading map. The map of the same camera and sensor mode is replaced.
+     * @param map The shading map.
+     */
+    public synchronized void putShadingMap(ShadingMap map) {
+        for (int i=0; i<mShadingMaps.size(); i++) {
+            if (mShadingMaps.get(i).isSameSensor(map.mCameraId, map.mWidth, map.mHeight)) {
+                mShadingMaps.remove(i);
+                break;
+            }
+        }
+        mShadingMaps.add(map);
+        while (mShadingMaps.size() > MAX_ENTRIES) {
+            mShadingMaps.remove(0);
+        }
+    }
+
+    /**
+     * @param cameraId The camera id.
+     * @param width The width of the sensor active array.
+     * @param height The height of the sensor active array.
+     * @return The shading map of the camera and sensor mode, or null.
+     */
+    public synchronized ShadingMap getShadingMap(String cameraId, int width, int height) {
+        for (ShadingMap map : mShadingMaps) {
+            if (map.isSameSensor(cameraId, width, height)) {
+                return map;
+            }
+        }
+        return null;
+    }
+}
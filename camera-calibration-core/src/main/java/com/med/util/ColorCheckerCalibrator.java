@@ -0,0 +1,372 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class solves the 3x3 color correction matrix of a sensor from a RAW capture of a ColorChecker chart.
+ * The chart region is summed by ZoneStatistics in a single pass, with 4 x 4 zones per patch. Only the
+ * inner 2 x 2 zones of a patch are averaged, so the black borders between the patches are excluded.
+ * The WB gains are taken from the neutral patches, and the matrix maps the white-balanced sensor RGB to
+ * linear sRGB, as COLOR_CORRECTION_TRANSFORM expects. Every row of the matrix sums to 1, so the neutral
+ * patches stay neutral, and each row is a 2x2 least-squares problem.
+ */
+public class ColorCheckerCalibrator {
+    /**
+     * The patches are in 4 rows of 6, from the dark skin patch at the left-top to the black patch at the right-bottom.
+     */
+    public static final int PATCH_COLS = 6;
+    public static final int PATCH_ROWS = 4;
+    public static final int PATCH_COUNT = PATCH_COLS * PATCH_ROWS;
+
+    private static final int ZONES_PER_PATCH = 4;
+
+    /**
+     * The neutral patches used for the WB gains and the exposure: neutral 8, 6.5, 5 and 3.5.
+     * The white patch may be clipped and the black patch is too noisy.
+     */
+    private static final int FIRST_NEUTRAL_PATCH = 19;
+    private static final int LAST_NEUTRAL_PATCH = 22;
+    private static final int MID_GRAY_PATCH = 21;
+
+    /**
+     * The sRGB values of the patches. (8-bit, D65)
+     */
+    private static final int[] REFERENCE_SRGB = {
+            115,  82,  68,   194, 150, 130,    98, 122, 157,    87, 108,  67,   133, 128, 177,   103, 189, 170,
+            214, 126,  44,    80,  91, 166,   193,  90,  99,    94,  60, 108,   157, 188,  64,   224, 163,  46,
+             56,  61, 150,    70, 148,  73,   175,  54,  60,   231, 199,  31,   187,  86, 149,     8, 133, 161,
+            243, 243, 242,   200, 200, 200,   160, 160, 160,   122, 122, 121,    85,  85,  85,    52,  52,  52
+    };
+
+    /**
+     * The quads at or above CLIPPING_LEVEL of the white level are excluded, and a patch is dropped
+     * if less than half of its quads are left.
+     */
+    private static final float CLIPPING_LEVEL = 0.98f;
+
+    /**
+     * The chart is rejected if the mid-gray patch is below this fraction of the range above black.
+     */
+    private static final float MIN_MID_GRAY_LEVEL = 0.02f;
+
+    /**
+     * The chart is rejected if the green of the inner zones of a patch differs by more than this fraction,
+     * which means the chart is not aligned to the region.
+     */
+    private static final float MAX_PATCH_VARIATION = 0.15f;
+
+    private static final int MIN_VALID_PATCHES = 12;
+
+    private static final float[] REFERENCE_LINEAR = new float[PATCH_COUNT * 3];
+    static {
+        for (int i=0; i<REFERENCE_LINEAR.length; i++) {
+            REFERENCE_LINEAR[i] = srgbToLinear(REFERENCE_SRGB[i] / 255.0f);
+        }
+    }
+
+    private final ZoneStatistics mStatistics;
+    private int mWhiteLevel = WBCalibrator.DEFAULT_WHITE_LEVEL;
+    private int mBlackLevel = 0;
+
+    /**
+     * The average R, G and B of every patch, with the black level subtracted.
+     */
+    private final float[] mPatches = new float[PATCH_COUNT * 3];
+    private final boolean[] mValid = new boolean[PATCH_COUNT];
+
+    private final float[] mCcm = {1.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 1.0f};
+    private float mGainR = 1.0f;
+    private float mGainB = 1.0f;
+    private float mError = 0.0f;
+
+    /**
+     * Constructor.
+     * @param colorFilter The color filter arrangement. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+     */
+    public ColorCheckerCalibrator(int colorFilter) {
+        mStatistics = new ZoneStatistics(PATCH_COLS * ZONES_PER_PATCH, PATCH_ROWS * ZONES_PER_PATCH, colorFilter);
+        setSensorLevels(null, WBCalibrator.DEFAULT_WHITE_LEVEL);
+    }
+
+    /**
+     * @param blackLevelPattern The black level offsets in the order left-top, right-top, left-bottom, right-bottom.
+     *                          (CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN) Null for no black level.
+     * @param whiteLevel The maximum raw value. (CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL) 0 for the default 10-bit level.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mWhiteLevel = (whiteLevel > 0)? whiteLevel : WBCalibrator.DEFAULT_WHITE_LEVEL;
+        int black = 0;
+        if (blackLevelPattern != null) {
+            for (int level : blackLevelPattern) {
+                black = Math.max(black, level);
+            }
+        }
+        mBlackLevel = black;
+        mStatistics.setBlackLevelPattern(blackLevelPattern);
+        mStatistics.setSaturationLevel((int)(mWhiteLevel * CLIPPING_LEVEL));
+    }
+
+    /**
+     * @param pool The pool to sum the zone rows on, or null to sum on the calling thread.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        mStatistics.setParallel(pool);
+    }
+
+    /**
+     * To solve the color correction matrix. The result is only updated if the chart can be used.
+     * The left of the region is rounded down to a multiple of 4 pixels and the top to an even row,
+     * so the region starts at a whole quad and a whole RAW10 group.
+     * @param buffer The RAW data of the whole frame.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes. Only used by RAW16.
+     * @param chartX The left of the patch area of the chart in pixels.
+     * @param chartY The top of the patch area in pixels.
+     * @param chartWidth The width of the patch area in pixels.
+     * @param chartHeight The height of the patch area in pixels.
+     * @return Null if the matrix is updated, otherwise the reason.
+     */
+    public String calibrate(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride,
+                            int chartX, int chartY, int chartWidth, int chartHeight) {
+        if (chartX < 0 || chartY < 0 || chartWidth > width - chartX || chartHeight > height - chartY) {
+            return String.format("the chart region %d,%d %dx%d is out of the %dx%d frame", chartX, chartY, chartWidth, chartHeight, width, height);
+        }
+        // every zone needs at least one quad
+        if (chartWidth < PATCH_COLS * ZONES_PER_PATCH * 2 || chartHeight < PATCH_ROWS * ZONES_PER_PATCH * 2) {
+            return String.format("the chart region %dx%d is too small", chartWidth, chartHeight);
+        }
+        int left = chartX & ~3;
+        int top = chartY & ~1;
+        int offset;
+        switch (format)
+        {
+            case BayerStatistics.FORMAT_RAW10:
+                offset = left / 4 * 5;
+                break;
+            case BayerStatistics.FORMAT_RAW12:
+                offset = left / 2 * 3;
+                break;
+            default:
+                offset = left * pixelStride;
+                break;
+        }
+        ByteBuffer region = buffer.duplicate();
+        region.clear();
+        region.position(top * rowStride + offset);
+        int regionWidth = chartWidth + chartX - left;
+        int regionHeight = chartHeight + chartY - top;
+        mStatistics.compute(region.slice(), format, regionWidth, regionHeight, rowStride, pixelStride);
+
+        String error = averagePatches(regionWidth, regionHeight);
+        if (error != null) {
+            return error;
+        }
+        return solve();
+    }
+
+    /**
+     * To average the inner zones of every patch.
+     */
+    private String averagePatches(int width, int height) {
+        int zonesX = mStatistics.getZonesX();
+        int expectedCount = (width / 2 / zonesX) * (height / 2 / mStatistics.getZonesY());
+        for (int patch=0; patch<PATCH_COUNT; patch++) {
+            int firstZoneX = (patch % PATCH_COLS) * ZONES_PER_PATCH + 1;
+            int firstZoneY = (patch / PATCH_COLS) * ZONES_PER_PATCH + 1;
+            long sumR = 0;
+            long sumG = 0;
+            long sumB = 0;
+            int count = 0;
+            float minG = Float.MAX_VALUE;
+            float maxG = 0.0f;
+            for (int zoneY=firstZoneY; zoneY<firstZoneY+2; zoneY++) {
+                for (int zoneX=firstZoneX; zoneX<firstZoneX+2; zoneX++) {
+                    int zone = zoneY * zonesX + zoneX;
+                    long g = mStatistics.getSum(zone, BayerStatistics.CHANNEL_GR) + mStatistics.getSum(zone, BayerStatistics.CHANNEL_GB);
+                    sumR += mStatistics.getSum(zone, BayerStatistics.CHANNEL_R);
+                    sumG += g;
+                    sumB += mStatistics.getSum(zone, BayerStatistics.CHANNEL_B);
+                    count += mStatistics.getCount(zone);
+                    if (mStatistics.getCount(zone) > 0) {
+                        float averageG = (float)g / mStatistics.getCount(zone);
+                        minG = Math.min(minG, averageG);
+                        maxG = Math.max(maxG, averageG);
+                    }
+                }
+            }
+            mValid[patch] = count * 2 >= expectedCount * 4 && count > 0;
+            if (!mValid[patch]) {
+                continue;
+            }
+            mPatches[patch*3] = (float)sumR / count;
+            mPatches[patch*3+1] = (float)sumG / (count * 2);
+            mPatches[patch*3+2] = (float)sumB / count;
+            float meanG = mPatches[patch*3+1] * 2.0f;
+            // the dark patches are dominated by noise
+            if (meanG > (mWhiteLevel - mBlackLevel) * MIN_MID_GRAY_LEVEL && (maxG - minG) > meanG * MAX_PATCH_VARIATION) {
+                return String.format("patch %d is not uniform, align the chart to the region", patch + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * To solve the WB gains and the matrix from the patch averages.
+     */
+    private String solve() {
+        double neutralR = 0.0;
+        double neutralG = 0.0;
+        double neutralB = 0.0;
+        for (int patch=FIRST_NEUTRAL_PATCH; patch<=LAST_NEUTRAL_PATCH; patch++) {
+            if (mValid[patch]) {
+                neutralR += mPatches[patch*3];
+                neutralG += mPatches[patch*3+1];
+                neutralB += mPatches[patch*3+2];
+            }
+        }
+        if (!mValid[MID_GRAY_PATCH] || mPatches[MID_GRAY_PATCH*3+1] < (mWhiteLevel - mBlackLevel) * MIN_MID_GRAY_LEVEL) {
+            return "the chart is underexposed";
+        }
+        if (neutralR <= 0.0 || neutralB <= 0.0) {
+            return "the neutral patches have no red or blue";
+        }
+        float gainR = (float)(neutralG / neutralR);
+        float gainB = (float)(neutralG / neutralB);
+
+        // the white-balanced sensor RGB, scaled to the reference by the neutral patches
+        float[] camera = new float[PATCH_COUNT * 3];
+        double gainNumerator = 0.0;
+        double gainDenominator = 0.0;
+        int validCount = 0;
+        for (int patch=0; patch<PATCH_COUNT; patch++) {
+            if (!mValid[patch]) {
+                continue;
+            }
+            validCount++;
+            camera[patch*3] = mPatches[patch*3] * gainR;
+            camera[patch*3+1] = mPatches[patch*3+1];
+            camera[patch*3+2] = mPatches[patch*3+2] * gainB;
+            if (patch >= FIRST_NEUTRAL_PATCH && patch <= LAST_NEUTRAL_PATCH) {
+                gainNumerator += (double)REFERENCE_LINEAR[patch*3+1] * camera[patch*3+1];
+                gainDenominator += (double)camera[patch*3+1] * camera[patch*3+1];
+            }
+        }
+        if (validCount < MIN_VALID_PATCHES) {
+            return String.format("only %d patches are usable, the chart is clipped", validCount);
+        }
+        float exposure = (float)(gainNumerator / gainDenominator);
+        for (int i=0; i<camera.length; i++) {
+            camera[i] *= exposure;
+        }
+
+        float[] ccm = solveMatrix(camera, REFERENCE_LINEAR, mValid);
+        if (ccm == null) {
+            return "the patches are degenerate";
+        }
+        double squares = 0.0;
+        for (int patch=0; patch<PATCH_COUNT; patch++) {
+            if (!mValid[patch]) {
+                continue;
+            }
+            for (int row=0; row<3; row++) {
+                float value = ccm[row*3] * camera[patch*3] + ccm[row*3+1] * camera[patch*3+1] + ccm[row*3+2] * camera[patch*3+2];
+                float diff = value - REFERENCE_LINEAR[patch*3+row];
+                squares += diff * diff;
+            }
+        }
+        System.arraycopy(ccm, 0, mCcm, 0, 9);
+        mGainR = gainR;
+        mGainB = gainB;
+        mError = (float)Math.sqrt(squares / (validCount * 3));
+        return null;
+    }
+
+    /**
+     * To solve the matrix M which minimizes |M * camera - target| of the valid patches, with every row of M summing to 1.
+     * With the row (a, b, 1 - a - b), a row is a 2x2 least-squares problem in (a, b).
+     * @param camera The RGB of the patches.
+     * @param target The RGB the patches should be mapped to.
+     * @param valid The patches to fit.
+     * @return The row-major matrix, or null if the patches do not span the color space.
+     */
+    static float[] solveMatrix(float[] camera, float[] target, boolean[] valid) {
+        float[] ccm = new float[9];
+        for (int row=0; row<3; row++) {
+            double uu = 0.0;
+            double uv = 0.0;
+            double vv = 0.0;
+            double ud = 0.0;
+            double vd = 0.0;
+            for (int patch=0; patch<valid.length; patch++) {
+                if (!valid[patch]) {
+                    continue;
+                }
+                double b = camera[patch*3+2];
+                double u = camera[patch*3] - b;
+                double v = camera[patch*3+1] - b;
+                double d = target[patch*3+row] - b;
+                uu += u * u;
+                uv += u * v;
+                vv += v * v;
+                ud += u * d;
+                vd += v * d;
+            }
+            double determinant = uu * vv - uv * uv;
+            if (Math.abs(determinant) < 1e-12 * (uu * vv + 1e-30)) {
+                return null;
+            }
+            float a = (float)((ud * vv - vd * uv) / determinant);
+            float b = (float)((vd * uu - ud * uv) / determinant);
+            ccm[row*3] = a;
+            ccm[row*3+1] = b;
+            ccm[row*3+2] = 1.0f - a - b;
+        }
+        return ccm;
+    }
+
+    private static float srgbToLinear(float value) {
+        return (value <= 0.04045f)? value / 12.92f : (float)Math.pow((value + 0.055f) / 1.055f, 2.4);
+    }
+
+    /**
+     * @return A copy of the row-major matrix from the white-balanced sensor RGB to linear sRGB.
+     *         Use ColorMatrix.toRational() to get the elements of ColorSpaceTransform.
+     */
+    public float[] getCcm() {
+        return mCcm.clone();
+    }
+
+    public float getGainR() { return mGainR; }
+    public float getGainB() { return mGainB; }
+
+    /**
+     * @return The RMS error of the fitted patches in linear sRGB. (0 to 1)
+     */
+    public float getError() { return mError; }
+
+    /**
+     * @param patch The patch index. (0 to PATCH_COUNT - 1)
+     * @return False if the patch was clipped and not fitted in the latest calibration.
+     */
+    public boolean isPatchValid(int patch) { return mValid[patch]; }
+
+    /**
+     * @param patch The patch index. (0 to PATCH_COUNT - 1)
+     * @param rgb Output. The average R, G and B of the patch, with the black level subtracted.
+     */
+    public void getPatchAverage(int patch, float[] rgb) {
+        System.arraycopy(mPatches, patch * 3, rgb, 0, 3);
+    }
+
+    /**
+     * @param patch The patch index. (0 to PATCH_COUNT - 1)
+     * @param rgb Output. The linear sRGB of the patch.
+     */
+    public static void getReference(int patch, float[] rgb) {
+        System.arraycopy(REFERENCE_LINEAR, patch * 3, rgb, 0, 3);
+    }
+}
@@ -0,0 +1,92 @@
+package com.med.util;
+
+/**
+ * The 3x3 color matrix math of the color correction.
+ * A matrix is a row-major float[9]. A rational matrix is the int[18] layout of ColorSpaceTransform:
+ * numerator and denominator of every element in row-major order.
+ */
+public class ColorMatrix {
+    /**
+     * The denominator of the rational matrices made by this class.
+     */
+    public static final int DENOMINATOR = 1000000;
+
+    private static final float[] RGB_TO_YUV = new float [] {
+            0.299f, -0.169f, 0.5f,
+            0.587f, -0.331f, -0.419f,
+            0.114f, 0.5f, -0.081f
+    };
+
+    private static final float[] YUV_TO_RGB = new float [] {
+            1.0f, 1.0f, 1.0f,
+            -0.00093f, -0.3437f, 1.77216f,
+            1.401687f, -0.71417f, 0.00099f
+    };
+
+    private ColorMatrix() {
+    }
+
+    /**
+     * To adapt a color correction matrix to a saturation level. The chroma of the result is scaled in YUV.
+     * @param elements The rational color correction matrix.
+     * @param saturation The scale of U and V, e.g. 1 to keep the saturation.
+     * @return The new rational matrix.
+     */
+    public static int[] adaptSaturation(int[] elements, float saturation) {
+        float [] adjust = new float[] {
+                1.0f, 0.0f, 0.0f,
+                0.0f, saturation, 0.0f,
+                0.0f, 0.0f, saturation
+        };
+        float [] rgb = transpose(multiply(multiply(multiply(toFloat(elements), RGB_TO_YUV), adjust), YUV_TO_RGB));
+        return toRational(rgb);
+    }
+
+    /**
+     * @param elements A rational matrix.
+     * @return The matrix in float.
+     */
+    public static float[] toFloat(int[] elements) {
+        float [] result = new float[9];
+        for (int i=0; i<9; i++) {
+            result[i] = elements[i*2] / (float)elements[i*2+1];
+        }
+        return result;
+    }
+
+    /**
+     * @param matrix A matrix in float.
+     * @return The rational matrix with DENOMINATOR as the denominator of every element.
+     */
+    public static int[] toRational(float[] matrix) {
+        int [] result = new int[18];
+        for (int i=0; i<9; i++) {
+            result[i*2] = Math.round(matrix[i] * (float)DENOMINATOR);
+            result[i*2+1] = DENOMINATOR;
+        }
+        return result;
+    }
+
+    /**
+     * @return m1 x m2
+     */
+    public static float[] multiply(float[] m1, float[] m2) {
+        float [] result = new float[9];
+        for (int col=0; col<3; col++) {
+            for (int row=0; row<3; row++) {
+                result[col*3+row] = m1[col*3] * m2[row] + m1[col*3+1] * m2[row+3] + m1[col*3+2] * m2[row+6];
+            }
+        }
+        return result;
+    }
+
+    public static float[] transpose(float[] m) {
+        float [] result = new float[9];
+        for (int col=0; col<3; col++) {
+            for (int row=0; row<3; row++) {
+                result[col*3+row] = m[row*3+col];
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,194 @@
+package com.med.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A compact list of the defective pixels of a sensor. A defect takes one int: (y * width + x) * 2 + type.
+ * The list is kept in raster order, which is the order DefectPixelDetector finds the defects in,
+ * so a pixel is looked up by a binary search and two maps are merged in one pass.
+ *
+ * The file is: MAGIC, VERSION, width, height, the number of defects, the defects, and the CRC32 of everything before it.
+ */
+public class DefectMap {
+    /**
+     * The pixel is much brighter than its neighbors, e.g. a hot pixel in a dark frame.
+     */
+    public static final int TYPE_HOT = 0;
+
+    /**
+     * The pixel is much darker than its neighbors, e.g. a dead pixel in a flat frame.
+     */
+    public static final int TYPE_DEAD = 1;
+
+    /**
+     * "WBDP"
+     */
+    private static final int MAGIC = 0x57424450;
+    private static final int VERSION = 1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int mWidth;
+    private final int mHeight;
+    private int[] mDefects = new int[INITIAL_CAPACITY];
+    private int mCount = 0;
+
+    /**
+     * Constructor.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     */
+    public DefectMap(int width, int height) {
+        if ((long)width * height * 2 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("the frame is too large: %d x %d", width, height));
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+
+    /**
+     * @return The number of defects.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * To append a defect. The defects must be appended in raster order, as DefectPixelDetector does.
+     * @param x The column of the pixel.
+     * @param y The row of the pixel.
+     * @param type TYPE_HOT or TYPE_DEAD.
+     */
+    void append(int x, int y, int type) {
+        if (mCount == mDefects.length) {
+            mDefects = Arrays.copyOf(mDefects, mCount * 2);
+        }
+        mDefects[mCount++] = (y * mWidth + x) * 2 + type;
+    }
+
+    public int getX(int index) { return (mDefects[index] >> 1) % mWidth; }
+    public int getY(int index) { return (mDefects[index] >> 1) / mWidth; }
+    public int getType(int index) { return mDefects[index] & 1; }
+
+    /**
+     * @param x The column of the pixel.
+     * @param y The row of the pixel.
+     * @return True if the pixel is defective.
+     */
+    public boolean contains(int x, int y) {
+        int key = (y * mWidth + x) * 2;
+        int index = Arrays.binarySearch(mDefects, 0, mCount, key);
+        if (index >= 0) {
+            return true;
+        }
+        // the insertion point is the dead defect of the pixel, if any
+        index = -index - 1;
+        return index < mCount && mDefects[index] == key + TYPE_DEAD;
+    }
+
+    /**
+     * To add the defects of another map of the same size, e.g. the dead pixels of a flat frame to
+     * the hot pixels of a dark frame. A pixel found in both maps keeps the type of this map.
+     * @param other The other map.
+     */
+    public void merge(DefectMap other) {
+        if (other.mWidth != mWidth || other.mHeight != mHeight) {
+            throw new IllegalArgumentException("the maps are of different sizes");
+        }
+        int[] merged = new int[Math.max(mCount + other.mCount, INITIAL_CAPACITY)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < mCount || j < other.mCount) {
+            if (j == other.mCount || (i < mCount && (mDefects[i] >> 1) <= (other.mDefects[j] >> 1))) {
+                if (j < other.mCount && (mDefects[i] >> 1) == (other.mDefects[j] >> 1)) {
+                    j++;
+                }
+                merged[n++] = mDefects[i++];
+            }
+            else {
+                merged[n++] = other.mDefects[j++];
+            }
+        }
+        mDefects = merged;
+        mCount = n;
+    }
+
+    /**
+     * To read a map from a file.
+     * @param file The file of the map.
+     * @return The map, or null if the file is missing or corrupted.
+     */
+    public static DefectMap load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream input = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            int width = input.readInt();
+            int height = input.readInt();
+            int count = input.readInt();
+            if (width <= 0 || height <= 0 || count < 0 || count > (long)width * height) {
+                return null;
+            }
+            DefectMap map = new DefectMap(width, height);
+            map.mDefects = new int[Math.max(count, INITIAL_CAPACITY)];
+            for (int i=0; i<count; i++) {
+                map.mDefects[i] = input.readInt();
+            }
+            map.mCount = count;
+            long checksum = crc.getValue();
+            if (input.readLong() != checksum) {
+                return null;
+            }
+            return map;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * To write the map to a file. A temporary file is written and renamed, as CalibrationStore does.
+     * @param file The file of the map.
+     * @throws IOException If the file can not be written.
+     */
+    public void save(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), crc))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(mWidth);
+            output.writeInt(mHeight);
+            output.writeInt(mCount);
+            for (int i=0; i<mCount; i++) {
+                output.writeInt(mDefects[i]);
+            }
+            output.writeLong(crc.getValue());
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("failed to rename " + tempFile + " to " + file);
+        }
+    }
+}
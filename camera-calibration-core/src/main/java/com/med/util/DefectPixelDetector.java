@@ -0,0 +1,123 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This class finds the stuck, hot and dead pixels of a RAW frame, e.g. a dark frame for hot pixels
+ * and a flat frame for dead pixels.
+ * A pixel is compared with its 8 neighbors of the same color in the 5x5 window around it: it is a
+ * defect if it is above the brightest neighbor or below the darkest neighbor by more than the threshold.
+ *
+ * The frame is read once, row by row. Every row is decoded into a ring of 5 int rows, and a row is
+ * checked as soon as the 2 rows below it are decoded, so the window is always in the cache and
+ * nothing is allocated per pixel. The 2 pixels at the frame borders are not checked.
+ */
+public class DefectPixelDetector {
+    private static final int WINDOW = 5;
+    private static final int RADIUS = WINDOW / 2;
+
+    /**
+     * The default thresholds. A pixel is a defect if it differs from the range of its neighbors by more
+     * than max(absolute, relative * the average of the neighbors).
+     */
+    public static final int DEFAULT_ABSOLUTE_THRESHOLD = 48;
+    public static final float DEFAULT_RELATIVE_THRESHOLD = 0.25f;
+
+    /**
+     * The default maximum number of defects. The detection stops there, as the frame is not usable.
+     */
+    public static final int DEFAULT_MAX_DEFECTS = 65536;
+
+    private int mAbsoluteThreshold = DEFAULT_ABSOLUTE_THRESHOLD;
+    private float mRelativeThreshold = DEFAULT_RELATIVE_THRESHOLD;
+    private int mMaxDefects = DEFAULT_MAX_DEFECTS;
+
+    private int[][] mRows = new int[WINDOW][0];
+
+    /**
+     * @param absolute The minimum difference in raw values.
+     * @param relative The minimum difference as a fraction of the average of the neighbors.
+     */
+    public void setThresholds(int absolute, float relative) {
+        if (absolute < 1 || relative < 0.0f) {
+            throw new IllegalArgumentException(String.format("invalid thresholds: %d, %f", absolute, relative));
+        }
+        mAbsoluteThreshold = absolute;
+        mRelativeThreshold = relative;
+    }
+
+    /**
+     * @param maxDefects The maximum number of defects of a frame.
+     */
+    public void setMaxDefects(int maxDefects) {
+        mMaxDefects = maxDefects;
+    }
+
+    /**
+     * To find the defects of a RAW frame.
+     * @param buffer The RAW data. Its byte order is set to little-endian.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes. Only used by RAW16.
+     * @param map Output. The defects are appended in raster order, so the map should be empty.
+     * @return False if the frame has more than the maximum number of defects. The map holds the first ones.
+     */
+    public boolean detect(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride, DefectMap map) {
+        if (format != BayerStatistics.FORMAT_RAW16 && format != BayerStatistics.FORMAT_RAW10 && format != BayerStatistics.FORMAT_RAW12) {
+            throw new IllegalArgumentException(String.format("unsupported RAW format: 0x%x", format));
+        }
+        if (map.getWidth() != width || map.getHeight() != height) {
+            throw new IllegalArgumentException("the map is not of the frame size");
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (mRows[0].length != width) {
+            mRows = new int[WINDOW][width];
+        }
+
+        int limit = map.size() + mMaxDefects;
+        for (int y=0; y<height; y++) {
+            BayerStatistics.readRow(buffer, format, y * rowStride, width, pixelStride, mRows[y % WINDOW]);
+            int centerY = y - RADIUS;
+            if (centerY < RADIUS) {
+                continue;
+            }
+            int[] top = mRows[(centerY - RADIUS) % WINDOW];
+            int[] center = mRows[centerY % WINDOW];
+            int[] bottom = mRows[y % WINDOW];
+            for (int x=RADIUS; x<width-RADIUS; x++) {
+                int n0 = top[x - 2];
+                int n1 = top[x];
+                int n2 = top[x + 2];
+                int n3 = center[x - 2];
+                int n4 = center[x + 2];
+                int n5 = bottom[x - 2];
+                int n6 = bottom[x];
+                int n7 = bottom[x + 2];
+                int max = Math.max(Math.max(Math.max(n0, n1), Math.max(n2, n3)), Math.max(Math.max(n4, n5), Math.max(n6, n7)));
+                int min = Math.min(Math.min(Math.min(n0, n1), Math.min(n2, n3)), Math.min(Math.min(n4, n5), Math.min(n6, n7)));
+                int value = center[x];
+                if (value <= max && value >= min) {
+                    continue;
+                }
+                int sum = n0 + n1 + n2 + n3 + n4 + n5 + n6 + n7;
+                int threshold = Math.max(mAbsoluteThreshold, (int)(mRelativeThreshold * sum / 8.0f));
+                if (value - max > threshold) {
+                    map.append(x, centerY, DefectMap.TYPE_HOT);
+                }
+                else if (min - value > threshold) {
+                    map.append(x, centerY, DefectMap.TYPE_DEAD);
+                }
+                else {
+                    continue;
+                }
+                if (map.size() >= limit) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
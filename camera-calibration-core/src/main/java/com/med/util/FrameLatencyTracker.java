@@ -0,0 +1,284 @@
+package com.med.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * This class measures the latency of the live view from the sensor to the screen, frame by frame.
+ * The events of a frame come from different threads: the capture callback when the exposure starts,
+ * the image reader when the frame arrives, and the renderer when it is posted to the screen.
+ * They are joined by the sensor timestamp of the frame, which the capture callback and the image share,
+ * in a ring of primitive arrays, so recording an event allocates nothing.
+ *
+ * If the sensor timestamps are in the time base of the clock of the events (SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME
+ * and SystemClock.elapsedRealtimeNanos()), the latency is from the start of the exposure, otherwise it is from
+ * the capture callback. The times are passed in by the caller, so the class does not depend on the clock.
+ */
+public class FrameLatencyTracker {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * An event is joined to one of this many latest frames. The older frames are not looked up.
+     */
+    private static final int SEARCH_WINDOW = 32;
+
+    private static final int[] REPORT_PERCENTILES = {50, 95, 99};
+
+    private final int mCapacity;
+    private final long[] mTimestamp;
+    private final long[] mStartedTime;
+    private final long[] mImageTime;
+    private final long[] mPostedTime;
+
+    /**
+     * The number of frames ever added. The frame n is in the slot n % capacity.
+     */
+    private long mFrameCount = 0;
+    private boolean mSensorRealtime = false;
+
+    /**
+     * The scratch of the percentiles, so they allocate nothing either.
+     */
+    private final long[] mSorted;
+
+    public FrameLatencyTracker() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     * @param capacity The number of latest frames which are kept.
+     */
+    public FrameLatencyTracker(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("the capacity must be at least 2");
+        }
+        mCapacity = capacity;
+        mTimestamp = new long[capacity];
+        mStartedTime = new long[capacity];
+        mImageTime = new long[capacity];
+        mPostedTime = new long[capacity];
+        mSorted = new long[capacity];
+    }
+
+    /**
+     * @param realtime True if the sensor timestamps are in the time base of the event times.
+     *                 (CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME)
+     */
+    public synchronized void setSensorRealtime(boolean realtime) {
+        mSensorRealtime = realtime;
+    }
+
+    /**
+     * To remove every frame, e.g. when the session is restarted.
+     */
+    public synchronized void clear() {
+        mFrameCount = 0;
+    }
+
+    /**
+     * To be called from CaptureCallback.onCaptureStarted().
+     * @param timestamp The sensor timestamp of the frame.
+     * @param now The time of the call in nanoseconds.
+     */
+    public synchronized void onCaptureStarted(long timestamp, long now) {
+        mStartedTime[slotOf(timestamp)] = now;
+    }
+
+    /**
+     * To be called when the image of the frame is acquired.
+     * @param timestamp The sensor timestamp of the frame. (Image.getTimestamp())
+     * @param now The time of the call in nanoseconds.
+     */
+    public synchronized void onImage(long timestamp, long now) {
+        mImageTime[slotOf(timestamp)] = now;
+    }
+
+    /**
+     * To be called when unlockCanvasAndPost() of the frame returns.
+     * @param timestamp The sensor timestamp of the frame.
+     * @param now The time of the call in nanoseconds.
+     */
+    public synchronized void onPosted(long timestamp, long now) {
+        mPostedTime[slotOf(timestamp)] = now;
+    }
+
+    /**
+     * @return The slot of the frame. A frame which is not among the latest ones is added.
+     */
+    private int slotOf(long timestamp) {
+        long oldest = Math.max(0, mFrameCount - Math.min(SEARCH_WINDOW, mCapacity));
+        for (long frame=mFrameCount-1; frame>=oldest; frame--) {
+            int slot = (int)(frame % mCapacity);
+            if (mTimestamp[slot] == timestamp) {
+                return slot;
+            }
+        }
+        int slot = (int)(mFrameCount % mCapacity);
+        mTimestamp[slot] = timestamp;
+        mStartedTime[slot] = 0;
+        mImageTime[slot] = 0;
+        mPostedTime[slot] = 0;
+        mFrameCount++;
+        return slot;
+    }
+
+    /**
+     * @return The number of frames in the ring.
+     */
+    private int size() {
+        return (int)Math.min(mFrameCount, mCapacity);
+    }
+
+    /**
+     * @return The latency of a frame to the screen in nanoseconds, or -1 if it is not posted or has no start.
+     */
+    private long latencyOf(int slot) {
+        if (mPostedTime[slot] == 0) {
+            return -1;
+        }
+        if (mSensorRealtime) {
+            return mPostedTime[slot] - mTimestamp[slot];
+        }
+        return (mStartedTime[slot] != 0)? mPostedTime[slot] - mStartedTime[slot] : -1;
+    }
+
+    /**
+     * @return The time from the image to the screen in nanoseconds, or -1.
+     */
+    private long processingOf(int slot) {
+        return (mPostedTime[slot] != 0 && mImageTime[slot] != 0)? mPostedTime[slot] - mImageTime[slot] : -1;
+    }
+
+    /**
+     * @return The number of the latest frames which are posted to the screen.
+     */
+    public synchronized int getPostedCount() {
+        int count = 0;
+        for (int slot=0; slot<size(); slot++) {
+            if (mPostedTime[slot] != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of the latest frames which are started but not posted, not counting the latest ones which may still come.
+     */
+    public synchronized int getDroppedCount() {
+        long newestPosted = 0;
+        for (int slot=0; slot<size(); slot++) {
+            newestPosted = Math.max(newestPosted, mPostedTime[slot]);
+        }
+        int count = 0;
+        for (int slot=0; slot<size(); slot++) {
+            if (mPostedTime[slot] == 0 && mStartedTime[slot] != 0 && mStartedTime[slot] < newestPosted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile The percentile, from 1 to 100.
+     * @return The latency of the latest frames from the sensor to the screen in nanoseconds, or -1 if no frame is posted.
+     */
+    public synchronized long getLatencyPercentile(int percentile) {
+        int count = 0;
+        for (int slot=0; slot<size(); slot++) {
+            long latency = latencyOf(slot);
+            if (latency >= 0) {
+                mSorted[count++] = latency;
+            }
+        }
+        return percentile(count, percentile);
+    }
+
+    /**
+     * @param percentile The percentile, from 1 to 100.
+     * @return The time of the latest frames from the image to the screen in nanoseconds, or -1 if no frame is posted.
+     */
+    public synchronized long getProcessingPercentile(int percentile) {
+        int count = 0;
+        for (int slot=0; slot<size(); slot++) {
+            long processing = processingOf(slot);
+            if (processing >= 0) {
+                mSorted[count++] = processing;
+            }
+        }
+        return percentile(count, percentile);
+    }
+
+    /**
+     * @return The nearest-rank percentile of the first count values of mSorted.
+     */
+    private long percentile(int count, int percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        Arrays.sort(mSorted, 0, count);
+        int rank = (int)Math.ceil(count * Math.max(1, Math.min(percentile, 100)) / 100.0);
+        return mSorted[rank - 1];
+    }
+
+    /**
+     * @return The rate of the latest frames posted to the screen, in frames per second.
+     */
+    public synchronized float getFps() {
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        int count = 0;
+        for (int slot=0; slot<size(); slot++) {
+            long posted = mPostedTime[slot];
+            if (posted != 0) {
+                first = Math.min(first, posted);
+                last = Math.max(last, posted);
+                count++;
+            }
+        }
+        return (count > 1 && last > first)? (count - 1) * 1e9f / (last - first) : 0.0f;
+    }
+
+    /**
+     * @return A line of the latency and the frame rate for an overlay.
+     */
+    public synchronized String getSummary() {
+        return String.format(Locale.US, "%.1f fps, latency p50 %.1f p95 %.1f p99 %.1f ms",
+                getFps(), getLatencyPercentile(50) / 1e6, getLatencyPercentile(95) / 1e6, getLatencyPercentile(99) / 1e6);
+    }
+
+    /**
+     * @return The report of the latest frames: the statistics, then a CSV line of every frame with its times
+     *         in milliseconds, relative to the sensor timestamp if it is in the same time base.
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "frames: %d, posted: %d, dropped: %d, %.2f fps\n", size(), getPostedCount(), getDroppedCount(), getFps()));
+        report.append(mSensorRealtime? "latency from the start of exposure\n" : "latency from the capture callback\n");
+        for (int percentile : REPORT_PERCENTILES) {
+            report.append(String.format(Locale.US, "p%d latency: %.2f ms, processing: %.2f ms\n", percentile,
+                    getLatencyPercentile(percentile) / 1e6, getProcessingPercentile(percentile) / 1e6));
+        }
+        report.append("timestamp,started_ms,image_ms,posted_ms,latency_ms\n");
+        long oldest = mFrameCount - size();
+        for (long frame=oldest; frame<mFrameCount; frame++) {
+            int slot = (int)(frame % mCapacity);
+            long timestamp = mTimestamp[slot];
+            report.append(timestamp)
+                    .append(',').append(relative(mStartedTime[slot], timestamp))
+                    .append(',').append(relative(mImageTime[slot], timestamp))
+                    .append(',').append(relative(mPostedTime[slot], timestamp))
+                    .append(',').append(latencyOf(slot) >= 0? String.format(Locale.US, "%.3f", latencyOf(slot) / 1e6) : "")
+                    .append('\n');
+        }
+        return report.toString();
+    }
+
+    private String relative(long time, long timestamp) {
+        if (time == 0) {
+            return "";
+        }
+        return String.format(Locale.US, "%.3f", (mSensorRealtime? time - timestamp : time) / 1e6);
+    }
+}
@@ -0,0 +1,186 @@
+package com.med.util;
+
+/**
+ * A bounded queue of frames between the thread which receives them and the thread which processes them.
+ * What happens when the queue is full is the declared policy of the stream:
+ * POLICY_DROP_OLDEST replaces the oldest waiting frame, as the live view wants the latest one,
+ * POLICY_DROP_NEWEST discards the new frame, as a sequence which must stay in order,
+ * POLICY_BLOCK makes the receiving thread wait, so the backpressure reaches the producer and no frame is lost here.
+ * The dropped frames are handed to the recycler, e.g. to close an Image.
+ * The counters tell how many frames are dropped and how many wait longer than the late threshold.
+ * @param <T> The type of the frames.
+ */
+public class FrameQueue<T> {
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_DROP_NEWEST = 1;
+    public static final int POLICY_BLOCK = 2;
+
+    public interface Recycler<T> {
+        /**
+         * Called with a frame which is dropped, or which is left in the queue when it is closed.
+         * @param frame The frame.
+         */
+        void recycle(T frame);
+    }
+
+    private final int mPolicy;
+    private final Recycler<T> mRecycler;
+    private final Object[] mFrames;
+    private final long[] mArrivalTime;
+    private int mHead = 0;
+    private int mSize = 0;
+    private boolean mClosed = false;
+
+    /**
+     * A frame is late if it waits longer than this in the queue.
+     */
+    private long mLateThreshold = Long.MAX_VALUE;
+
+    private long mOfferedCount = 0;
+    private long mTakenCount = 0;
+    private long mDroppedCount = 0;
+    private long mLateCount = 0;
+    private long mBlockedCount = 0;
+
+    /**
+     * Constructor.
+     * @param capacity The maximum number of waiting frames.
+     * @param policy POLICY_DROP_OLDEST, POLICY_DROP_NEWEST or POLICY_BLOCK.
+     * @param recycler The recycler of the dropped frames.
+     */
+    public FrameQueue(int capacity, int policy, Recycler<T> recycler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("the capacity must be at least 1");
+        }
+        if (policy != POLICY_DROP_OLDEST && policy != POLICY_DROP_NEWEST && policy != POLICY_BLOCK) {
+            throw new IllegalArgumentException("unknown policy: " + policy);
+        }
+        mPolicy = policy;
+        mRecycler = recycler;
+        mFrames = new Object[capacity];
+        mArrivalTime = new long[capacity];
+    }
+
+    /**
+     * @param nanoseconds A frame is counted as late if it waits longer than this. (e.g. the frame duration)
+     */
+    public synchronized void setLateThreshold(long nanoseconds) {
+        mLateThreshold = nanoseconds;
+    }
+
+    /**
+     * To add a frame. By the policy, a frame may be dropped or the call may wait while the queue is full.
+     * @param frame The frame.
+     * @throws InterruptedException If the thread is interrupted while it waits. The frame is recycled.
+     */
+    public synchronized void offer(T frame) throws InterruptedException {
+        mOfferedCount++;
+        if (mSize == mFrames.length && !mClosed) {
+            switch (mPolicy)
+            {
+                case POLICY_DROP_OLDEST:
+                    drop(removeHead());
+                    break;
+                case POLICY_DROP_NEWEST:
+                    drop(frame);
+                    return;
+                default:
+                    mBlockedCount++;
+                    try {
+                        while (mSize == mFrames.length && !mClosed) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        drop(frame);
+                        throw e;
+                    }
+                    break;
+            }
+        }
+        if (mClosed) {
+            drop(frame);
+            return;
+        }
+        int tail = (mHead + mSize) % mFrames.length;
+        mFrames[tail] = frame;
+        mArrivalTime[tail] = System.nanoTime();
+        mSize++;
+        notifyAll();
+    }
+
+    /**
+     * To take the oldest frame. It waits until there is a frame or the queue is closed.
+     * @return The frame, or null if the queue is closed.
+     * @throws InterruptedException If the thread is interrupted while it waits.
+     */
+    public synchronized T take() throws InterruptedException {
+        while (mSize == 0 && !mClosed) {
+            wait();
+        }
+        if (mSize == 0) {
+            return null;
+        }
+        long waitTime = System.nanoTime() - mArrivalTime[mHead];
+        if (waitTime > mLateThreshold) {
+            mLateCount++;
+        }
+        mTakenCount++;
+        T frame = removeHead();
+        notifyAll();
+        return frame;
+    }
+
+    /**
+     * To close the queue. The waiting frames are recycled, the waiting threads return and the later frames are dropped.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        while (mSize > 0) {
+            mRecycler.recycle(removeHead());
+        }
+        notifyAll();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T removeHead() {
+        T frame = (T)mFrames[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mSize--;
+        return frame;
+    }
+
+    private void drop(T frame) {
+        mDroppedCount++;
+        mRecycler.recycle(frame);
+    }
+
+    public int getPolicy() { return mPolicy; }
+    public synchronized int size() { return mSize; }
+    public synchronized long getOfferedCount() { return mOfferedCount; }
+    public synchronized long getTakenCount() { return mTakenCount; }
+    public synchronized long getDroppedCount() { return mDroppedCount; }
+    public synchronized long getLateCount() { return mLateCount; }
+
+    /**
+     * @return The number of frames which waited for room in the queue. (POLICY_BLOCK)
+     */
+    public synchronized long getBlockedCount() { return mBlockedCount; }
+
+    /**
+     * @return The name of a policy.
+     */
+    public static String policyName(int policy) {
+        switch (policy)
+        {
+            case POLICY_DROP_OLDEST:
+                return "drop-oldest";
+            case POLICY_DROP_NEWEST:
+                return "drop-newest";
+            case POLICY_BLOCK:
+                return "block";
+            default:
+                return "unknown";
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.med.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * This class holds the WB gains calibrated under the reference illuminants of a camera, and interpolates
+ * the gains of the live illuminant between them.
+ * The illuminants are placed on the axis ln(gainB / gainR), which is monotonic in the color temperature.
+ * A lookup only walks the few calibrated nodes, so it is cheap enough for every frame.
+ * The gains are interpolated in log scale and the color temperature in mired (1 / CCT).
+ *
+ * The file is: MAGIC, VERSION, the number of illuminants, the R/B gains of each illuminant (0 if not
+ * calibrated), and the CRC32 of everything before it.
+ */
+public class IlluminantGainTable {
+    public static final int ILLUMINANT_A = 0;
+    public static final int ILLUMINANT_TL84 = 1;
+    public static final int ILLUMINANT_D50 = 2;
+    public static final int ILLUMINANT_D65 = 3;
+    public static final int ILLUMINANT_COUNT = 4;
+
+    /**
+     * The layout of the lookup result.
+     */
+    public static final int LOOKUP_GAIN_R = 0;
+    public static final int LOOKUP_GAIN_B = 1;
+    public static final int LOOKUP_CCT = 2;
+    public static final int LOOKUP_SIZE = 3;
+
+    /**
+     * "WBIT"
+     */
+    private static final int MAGIC = 0x57424954;
+    private static final int VERSION = 1;
+
+    private static final String[] NAMES = {"A", "TL84", "D50", "D65"};
+
+    /**
+     * The correlated color temperatures of the reference illuminants in Kelvin.
+     */
+    private static final int[] CCT = {2856, 4000, 5003, 6504};
+
+    private final float[] mGainR = new float[ILLUMINANT_COUNT];
+    private final float[] mGainB = new float[ILLUMINANT_COUNT];
+
+    /**
+     * The calibrated illuminants sorted by ln(gainB / gainR). It is rebuilt when the gains are changed.
+     */
+    private final int[] mNodes = new int[ILLUMINANT_COUNT];
+    private final float[] mNodeX = new float[ILLUMINANT_COUNT];
+    private int mNodeCount = 0;
+
+    /**
+     * @param illuminant The reference illuminant. (ILLUMINANT_*)
+     * @return The name of the illuminant.
+     */
+    public static String getName(int illuminant) {
+        return NAMES[illuminant];
+    }
+
+    /**
+     * @param illuminant The reference illuminant. (ILLUMINANT_*)
+     * @return The correlated color temperature of the illuminant in Kelvin.
+     */
+    public static int getCct(int illuminant) {
+        return CCT[illuminant];
+    }
+
+    /**
+     * To set the gains calibrated under a reference illuminant.
+     * @param illuminant The reference illuminant. (ILLUMINANT_*)
+     * @param gainR The R gain.
+     * @param gainB The B gain.
+     */
+    public synchronized void setGains(int illuminant, float gainR, float gainB) {
+        if (illuminant < 0 || illuminant >= ILLUMINANT_COUNT) {
+            throw new IllegalArgumentException("invalid illuminant: " + illuminant);
+        }
+        if (!(gainR > 0.0f) || !(gainB > 0.0f)) {
+            throw new IllegalArgumentException(String.format("invalid gains: %f, %f", gainR, gainB));
+        }
+        mGainR[illuminant] = gainR;
+        mGainB[illuminant] = gainB;
+        buildNodes();
+    }
+
+    /**
+     * @return True if the gains of the illuminant are calibrated.
+     */
+    public synchronized boolean hasGains(int illuminant) {
+        return mGainR[illuminant] > 0.0f;
+    }
+
+    public synchronized float getGainR(int illuminant) {
+        return mGainR[illuminant];
+    }
+
+    public synchronized float getGainB(int illuminant) {
+        return mGainB[illuminant];
+    }
+
+    /**
+     * @return The number of calibrated illuminants. At least 2 are needed to interpolate.
+     */
+    public synchronized int getCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * To remove all the gains.
+     */
+    public synchronized void clear() {
+        for (int i=0; i<ILLUMINANT_COUNT; i++) {
+            mGainR[i] = 0.0f;
+            mGainB[i] = 0.0f;
+        }
+        mNodeCount = 0;
+    }
+
+    /**
+     * To find the gains of the live illuminant.
+     * The gains estimated from the live statistics only place the illuminant between the reference
+     * illuminants. The returned gains are interpolated from the table, so the green-magenta error of
+     * the estimate is removed. It is clamped to the first and the last reference illuminants.
+     * @param gainR The R gain estimated from the live statistics, e.g. the gray-world gain.
+     * @param gainB The B gain estimated from the live statistics.
+     * @param result Output. The interpolated R/B gains and color temperature. (LOOKUP_*)
+     * @return False if no illuminant is calibrated.
+     */
+    public synchronized boolean lookup(float gainR, float gainB, float[] result) {
+        if (mNodeCount == 0) {
+            return false;
+        }
+        float x = (float)Math.log(gainB / gainR);
+        int lower = 0;
+        float t = 0.0f;
+        if (mNodeCount > 1) {
+            if (x >= mNodeX[mNodeCount - 1]) {
+                lower = mNodeCount - 2;
+                t = 1.0f;
+            }
+            else if (x > mNodeX[0]) {
+                while (x > mNodeX[lower + 1]) {
+                    lower++;
+                }
+                t = (x - mNodeX[lower]) / (mNodeX[lower + 1] - mNodeX[lower]);
+            }
+        }
+        int i0 = mNodes[lower];
+        int i1 = mNodes[Math.min(lower + 1, mNodeCount - 1)];
+        result[LOOKUP_GAIN_R] = (float)Math.exp(lerp((float)Math.log(mGainR[i0]), (float)Math.log(mGainR[i1]), t));
+        result[LOOKUP_GAIN_B] = (float)Math.exp(lerp((float)Math.log(mGainB[i0]), (float)Math.log(mGainB[i1]), t));
+        result[LOOKUP_CCT] = 1.0f / lerp(1.0f / CCT[i0], 1.0f / CCT[i1], t);
+        return true;
+    }
+
+    private static float lerp(float v0, float v1, float t) {
+        return v0 + (v1 - v0) * t;
+    }
+
+    /**
+     * To sort the calibrated illuminants by ln(gainB / gainR). There are at most 4, so it is an insertion sort.
+     */
+    private void buildNodes() {
+        mNodeCount = 0;
+        for (int i=0; i<ILLUMINANT_COUNT; i++) {
+            if (mGainR[i] > 0.0f) {
+                float x = (float)Math.log(mGainB[i] / mGainR[i]);
+                int n = mNodeCount++;
+                while (n > 0 && mNodeX[n - 1] > x) {
+                    mNodes[n] = mNodes[n - 1];
+                    mNodeX[n] = mNodeX[n - 1];
+                    n--;
+                }
+                mNodes[n] = i;
+                mNodeX[n] = x;
+            }
+        }
+    }
+
+    /**
+     * To read the table from a file. The gains in memory are replaced.
+     * @param file The file of the table.
+     * @return False if the file is missing or corrupted, and the table is empty.
+     */
+    public synchronized boolean load(File file) {
+        clear();
+        if (!file.isFile()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream input = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readInt() != ILLUMINANT_COUNT) {
+                return false;
+            }
+            float[] gains = new float[ILLUMINANT_COUNT * 2];
+            for (int i=0; i<gains.length; i++) {
+                gains[i] = input.readFloat();
+            }
+            long checksum = crc.getValue();
+            if (input.readLong() != checksum) {
+                return false;
+            }
+            for (int i=0; i<ILLUMINANT_COUNT; i++) {
+                mGainR[i] = gains[i*2];
+                mGainB[i] = gains[i*2+1];
+            }
+            buildNodes();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * To write the table to a file. A temporary file is written and renamed, as CalibrationStore does.
+     * @param file The file of the table.
+     * @throws IOException If the file can not be written.
+     */
+    public synchronized void save(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), crc))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(ILLUMINANT_COUNT);
+            for (int i=0; i<ILLUMINANT_COUNT; i++) {
+                output.writeFloat(mGainR[i]);
+                output.writeFloat(mGainB[i]);
+            }
+            output.writeLong(crc.getValue());
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("failed to rename " + tempFile + " to " + file);
+        }
+    }
+}
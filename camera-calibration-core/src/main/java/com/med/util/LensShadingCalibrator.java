@@ -0,0 +1,184 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class computes the lens shading gain map of a sensor from a RAW capture of a uniform target.
+ * The map is a grid of points which spans the whole frame, from the left-top to the right-bottom pixel,
+ * like CaptureResult.STATISTICS_LENS_SHADING_CORRECTION_MAP. Every point holds a gain per channel,
+ * which brings the channel to the level of its brightest point, so the smallest gain is 1.
+ *
+ * The frame is summed by ZoneStatistics in a single pass, with 2 zones between two grid points in both
+ * directions. The block of a point is the zones touching it: 4 inside the frame, 2 on the edges and 1
+ * at the corners. No pixel is visited twice, so it is as fast as the WB calibration.
+ */
+public class LensShadingCalibrator {
+    /**
+     * The size of the gain map of most HALs.
+     */
+    public static final int DEFAULT_COLUMNS = 17;
+    public static final int DEFAULT_ROWS = 13;
+
+    /**
+     * The quads at or above CLIPPING_LEVEL of the white level are excluded, and the frame is rejected
+     * if a block has no quad left.
+     */
+    private static final float CLIPPING_LEVEL = 0.98f;
+
+    /**
+     * The frame is rejected if the brightest block of a channel is below this fraction of the range above black.
+     */
+    private static final float MIN_LEVEL = 0.1f;
+
+    /**
+     * The frame is rejected if a gain exceeds this, which means the target is not uniform or not lit evenly.
+     */
+    private static final float MAX_GAIN = 8.0f;
+
+    private final int mColumns;
+    private final int mRows;
+    private final ZoneStatistics mStatistics;
+    private int mWhiteLevel = WBCalibrator.DEFAULT_WHITE_LEVEL;
+    private int mBlackLevel = 0;
+
+    /**
+     * The gains of the latest calibration. The gain of a channel at a point is at [(row * columns + column) * NUM_OF_CHANNELS + channel].
+     */
+    private final float[] mGains;
+
+    /**
+     * The block averages of the frame being calibrated, in the layout of mGains.
+     */
+    private final float[] mAverages;
+
+    /**
+     * Constructor.
+     * @param columns The number of grid points in horizontal. At least 2.
+     * @param rows The number of grid points in vertical. At least 2.
+     * @param colorFilter The color filter arrangement. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+     */
+    public LensShadingCalibrator(int columns, int rows, int colorFilter) {
+        if (columns < 2 || rows < 2) {
+            throw new IllegalArgumentException(String.format("the gain map must have at least 2 x 2 points: %d x %d", columns, rows));
+        }
+        mColumns = columns;
+        mRows = rows;
+        mStatistics = new ZoneStatistics((columns - 1) * 2, (rows - 1) * 2, colorFilter);
+        mGains = new float[columns * rows * BayerStatistics.NUM_OF_CHANNELS];
+        mAverages = new float[mGains.length];
+        Arrays.fill(mGains, 1.0f);
+        setSensorLevels(null, WBCalibrator.DEFAULT_WHITE_LEVEL);
+    }
+
+    /**
+     * @param blackLevelPattern The black level offsets in the order left-top, right-top, left-bottom, right-bottom.
+     *                          (CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN) Null for no black level.
+     * @param whiteLevel The maximum raw value. (CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL) 0 for the default 10-bit level.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mWhiteLevel = (whiteLevel > 0)? whiteLevel : WBCalibrator.DEFAULT_WHITE_LEVEL;
+        int black = 0;
+        if (blackLevelPattern != null) {
+            for (int level : blackLevelPattern) {
+                black = Math.max(black, level);
+            }
+        }
+        mBlackLevel = black;
+        mStatistics.setBlackLevelPattern(blackLevelPattern);
+        mStatistics.setSaturationLevel((int)(mWhiteLevel * CLIPPING_LEVEL));
+    }
+
+    /**
+     * @param pool The pool to sum the zone rows on, or null to sum on the calling thread.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        mStatistics.setParallel(pool);
+    }
+
+    /**
+     * To compute the gain map of a flat-field frame. The map is only updated if the frame can be used.
+     * @param buffer The RAW data.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes. Only used by RAW16.
+     * @return Null if the map is updated, otherwise the reason.
+     */
+    public String calibrate(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride) {
+        mStatistics.compute(buffer, format, width, height, rowStride, pixelStride);
+
+        int zonesX = mStatistics.getZonesX();
+        int zonesY = mStatistics.getZonesY();
+        float[] peak = new float[BayerStatistics.NUM_OF_CHANNELS];
+        long[] sums = new long[BayerStatistics.NUM_OF_CHANNELS];
+        for (int row=0; row<mRows; row++) {
+            int zoneYBegin = Math.max(row * 2 - 1, 0);
+            int zoneYEnd = Math.min(row * 2 + 1, zonesY);
+            for (int column=0; column<mColumns; column++) {
+                int zoneXBegin = Math.max(column * 2 - 1, 0);
+                int zoneXEnd = Math.min(column * 2 + 1, zonesX);
+                Arrays.fill(sums, 0);
+                long count = 0;
+                for (int zoneY=zoneYBegin; zoneY<zoneYEnd; zoneY++) {
+                    for (int zoneX=zoneXBegin; zoneX<zoneXEnd; zoneX++) {
+                        int zone = zoneY * zonesX + zoneX;
+                        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+                            sums[channel] += mStatistics.getSum(zone, channel);
+                        }
+                        count += mStatistics.getCount(zone);
+                    }
+                }
+                if (count == 0) {
+                    return String.format("the block of point (%d, %d) is clipped", column, row);
+                }
+                int base = (row * mColumns + column) * BayerStatistics.NUM_OF_CHANNELS;
+                for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+                    float average = (float)sums[channel] / count;
+                    mAverages[base + channel] = average;
+                    peak[channel] = Math.max(peak[channel], average);
+                }
+            }
+        }
+
+        float minLevel = (mWhiteLevel - mBlackLevel) * MIN_LEVEL;
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            if (peak[channel] < minLevel) {
+                return "the flat field is underexposed";
+            }
+        }
+        for (int i=0; i<mAverages.length; i++) {
+            float average = mAverages[i];
+            if (average * MAX_GAIN < peak[i % BayerStatistics.NUM_OF_CHANNELS]) {
+                int point = i / BayerStatistics.NUM_OF_CHANNELS;
+                return String.format("the gain of point (%d, %d) exceeds %.1f, the target is not uniform", point % mColumns, point / mColumns, MAX_GAIN);
+            }
+        }
+        for (int i=0; i<mAverages.length; i++) {
+            mGains[i] = peak[i % BayerStatistics.NUM_OF_CHANNELS] / mAverages[i];
+        }
+        return null;
+    }
+
+    public int getColumns() { return mColumns; }
+    public int getRows() { return mRows; }
+
+    /**
+     * @param column The column of the grid point.
+     * @param row The row of the grid point.
+     * @param channel The channel index. (BayerStatistics.CHANNEL_*)
+     * @return The gain of the channel at the point. 1 before the first calibration.
+     */
+    public float getGain(int column, int row, int channel) {
+        return mGains[(row * mColumns + column) * BayerStatistics.NUM_OF_CHANNELS + channel];
+    }
+
+    /**
+     * @return A copy of the gain map, in the layout [(row * columns + column) * NUM_OF_CHANNELS + channel].
+     */
+    public float[] getGains() {
+        return mGains.clone();
+    }
+}
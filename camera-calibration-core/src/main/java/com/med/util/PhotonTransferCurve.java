@@ -0,0 +1,269 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * This class measures the photon transfer curve of a sensor: the temporal noise versus the signal of
+ * every Bayer channel, from pairs of RAW frames of a uniform target taken with the same settings.
+ * The fixed pattern noise is the same in both frames of a pair, so the variance of their difference
+ * is twice the temporal variance. The signal is the mean of both frames above black.
+ *
+ * A pair is read in one pass, row by row, straight from the two buffers; no frame is copied.
+ * The sums of a row are exact integers, and the rows are merged into Welford's running mean and
+ * variance (with the pairwise update of Chan et al.), so there is no division per pixel and no
+ * cancellation on large frames.
+ *
+ * After the pairs of several exposure levels are added, fit() solves variance = signal / K + read noise^2
+ * for every channel, where K is the conversion gain in electrons per DN.
+ */
+public class PhotonTransferCurve {
+    /**
+     * The maximum number of pairs, e.g. 16 exposure levels at 4 ISOs.
+     */
+    public static final int MAX_POINTS = 64;
+
+    /**
+     * The points above this fraction of the range above black are left out of the fit, as the
+     * clipped pixels of the brighter frames reduce the variance.
+     */
+    private static final float LINEAR_LEVEL = 0.8f;
+
+    /**
+     * The error of a variance is proportional to the variance, so a point is weighted by 1 / variance^2
+     * in the fit, and the dark points which set the read noise are not drowned by the bright ones.
+     * The weight of a variance below this (squared) is capped.
+     */
+    private static final double MIN_VARIANCE = 0.01;
+
+    private static final int QUAD_COUNT = BayerStatistics.NUM_OF_CHANNELS;
+
+    private final int[] mChannelPosition;
+    private final int[] mBlackLevel = new int[QUAD_COUNT];
+    private int mWhiteLevel = WBCalibrator.DEFAULT_WHITE_LEVEL;
+
+    private int[] mRowA = new int[0];
+    private int[] mRowB = new int[0];
+
+    /**
+     * The running statistics of the pair being added, indexed by the position in the quad:
+     * the number of pixels, the mean of a + b, the mean of a - b and the sum of squared deviations of a - b.
+     */
+    private final long[] mCount = new long[QUAD_COUNT];
+    private final double[] mSumMean = new double[QUAD_COUNT];
+    private final double[] mDiffMean = new double[QUAD_COUNT];
+    private final double[] mDiffM2 = new double[QUAD_COUNT];
+
+    /**
+     * The points of the curve. The value of a channel of a point is at [point * NUM_OF_CHANNELS + channel].
+     */
+    private final float[] mSignal = new float[MAX_POINTS * QUAD_COUNT];
+    private final float[] mVariance = new float[MAX_POINTS * QUAD_COUNT];
+    private int mPointCount = 0;
+
+    private final float[] mConversionGain = new float[QUAD_COUNT];
+    private final float[] mReadNoise = new float[QUAD_COUNT];
+
+    /**
+     * Constructor.
+     * @param colorFilter The color filter arrangement. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+     */
+    public PhotonTransferCurve(int colorFilter) {
+        mChannelPosition = BayerStatistics.channelPositions(colorFilter);
+    }
+
+    /**
+     * @param blackLevelPattern The black level offsets in the order left-top, right-top, left-bottom, right-bottom.
+     *                          (CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN) Null for no black level.
+     * @param whiteLevel The maximum raw value. (CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL) 0 for the default 10-bit level.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mWhiteLevel = (whiteLevel > 0)? whiteLevel : WBCalibrator.DEFAULT_WHITE_LEVEL;
+        for (int i=0; i<QUAD_COUNT; i++) {
+            mBlackLevel[i] = (blackLevelPattern != null)? blackLevelPattern[i] : 0;
+        }
+    }
+
+    /**
+     * To remove every point and result.
+     */
+    public void clear() {
+        mPointCount = 0;
+        Arrays.fill(mConversionGain, 0.0f);
+        Arrays.fill(mReadNoise, 0.0f);
+    }
+
+    /**
+     * To add the point of a pair of frames. Both frames must have the same format, size and strides.
+     * The pixels at or above the white level in either frame are skipped.
+     * @param bufferA The RAW data of the first frame. Its byte order is set to little-endian.
+     * @param bufferB The RAW data of the second frame. Its byte order is set to little-endian.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes. Only used by RAW16.
+     * @param x The left of the region in pixels, e.g. the center of the frame where the shading is low.
+     * @param y The top of the region in pixels.
+     * @param width The width of the region in pixels.
+     * @param height The height of the region in pixels.
+     * @return Null if the point is added, otherwise the reason.
+     */
+    public String addPair(ByteBuffer bufferA, ByteBuffer bufferB, int format, int rowStride, int pixelStride, int x, int y, int width, int height) {
+        if (format != BayerStatistics.FORMAT_RAW16 && format != BayerStatistics.FORMAT_RAW10 && format != BayerStatistics.FORMAT_RAW12) {
+            return String.format("unsupported RAW format: 0x%x", format);
+        }
+        if (mPointCount == MAX_POINTS) {
+            return String.format("the curve already has %d points", MAX_POINTS);
+        }
+        // the region starts at a quad, so the position of a pixel is its parity
+        int left = x & ~1;
+        int top = y & ~1;
+        int right = x + width;
+        int bottom = y + height;
+        if (right - left < 2 || bottom - top < 2) {
+            return "the region is too small";
+        }
+        bufferA.order(ByteOrder.LITTLE_ENDIAN);
+        bufferB.order(ByteOrder.LITTLE_ENDIAN);
+        if (mRowA.length < right) {
+            mRowA = new int[right];
+            mRowB = new int[right];
+        }
+        Arrays.fill(mCount, 0);
+        Arrays.fill(mSumMean, 0.0);
+        Arrays.fill(mDiffMean, 0.0);
+        Arrays.fill(mDiffM2, 0.0);
+
+        int saturation = mWhiteLevel;
+        for (int row=top; row<bottom; row++) {
+            BayerStatistics.readRow(bufferA, format, row * rowStride, right, pixelStride, mRowA);
+            BayerStatistics.readRow(bufferB, format, row * rowStride, right, pixelStride, mRowB);
+            for (int parity=0; parity<2; parity++) {
+                long count = 0;
+                long sum = 0;
+                long diffSum = 0;
+                long diffSquares = 0;
+                for (int column=left+parity; column<right; column+=2) {
+                    int a = mRowA[column];
+                    int b = mRowB[column];
+                    if (a >= saturation || b >= saturation) {
+                        continue;
+                    }
+                    int diff = a - b;
+                    count++;
+                    sum += a + b;
+                    diffSum += diff;
+                    diffSquares += (long)diff * diff;
+                }
+                if (count > 0) {
+                    merge((row & 1) * 2 + parity, count, sum, diffSum, diffSquares);
+                }
+            }
+        }
+
+        int base = mPointCount * QUAD_COUNT;
+        for (int channel=0; channel<QUAD_COUNT; channel++) {
+            int position = mChannelPosition[channel];
+            if (mCount[position] < 2) {
+                return "the region is clipped";
+            }
+            mSignal[base + channel] = (float)(mSumMean[position] / 2.0 - mBlackLevel[position]);
+            mVariance[base + channel] = (float)(mDiffM2[position] / (mCount[position] - 1) / 2.0);
+        }
+        mPointCount++;
+        return null;
+    }
+
+    /**
+     * To merge the exact sums of a row into the running statistics of a position.
+     */
+    private void merge(int position, long count, long sum, long diffSum, long diffSquares) {
+        double rowDiffMean = (double)diffSum / count;
+        double rowDiffM2 = diffSquares - (double)diffSum * rowDiffMean;
+        long total = mCount[position] + count;
+        double delta = rowDiffMean - mDiffMean[position];
+        mDiffMean[position] += delta * count / total;
+        mDiffM2[position] += rowDiffM2 + delta * delta * mCount[position] * count / total;
+        mSumMean[position] += ((double)sum / count - mSumMean[position]) * count / total;
+        mCount[position] = total;
+    }
+
+    /**
+     * To fit the conversion gain and the read noise of every channel to the points in the linear range,
+     * by weighted least squares.
+     * @return Null if every channel is solved, otherwise the reason.
+     */
+    public String fit() {
+        float linearLevel = (mWhiteLevel - Math.max(Math.max(mBlackLevel[0], mBlackLevel[1]), Math.max(mBlackLevel[2], mBlackLevel[3]))) * LINEAR_LEVEL;
+        for (int channel=0; channel<QUAD_COUNT; channel++) {
+            int n = 0;
+            double sumW = 0;
+            double sumX = 0;
+            double sumY = 0;
+            double sumXX = 0;
+            double sumXY = 0;
+            for (int point=0; point<mPointCount; point++) {
+                float signal = mSignal[point * QUAD_COUNT + channel];
+                if (signal > linearLevel) {
+                    continue;
+                }
+                float variance = mVariance[point * QUAD_COUNT + channel];
+                double weight = 1.0 / Math.max((double)variance * variance, MIN_VARIANCE);
+                n++;
+                sumW += weight;
+                sumX += weight * signal;
+                sumY += weight * variance;
+                sumXX += weight * signal * signal;
+                sumXY += weight * signal * variance;
+            }
+            double denominator = sumW * sumXX - sumX * sumX;
+            if (n < 2 || denominator <= 1e-9 * sumW * sumXX) {
+                return "at least 2 exposure levels in the linear range are needed";
+            }
+            double slope = (sumW * sumXY - sumX * sumY) / denominator;
+            double intercept = (sumY - slope * sumX) / sumW;
+            if (slope <= 0.0) {
+                return "the noise does not grow with the signal, the target is not uniform or not lit steadily";
+            }
+            mConversionGain[channel] = (float)(1.0 / slope);
+            mReadNoise[channel] = (float)(Math.sqrt(Math.max(intercept, 0.0)) / slope);
+        }
+        return null;
+    }
+
+    public int getPointCount() { return mPointCount; }
+
+    /**
+     * @param point The index of the point, in the order the pairs are added.
+     * @param channel The channel index. (BayerStatistics.CHANNEL_*)
+     * @return The mean signal above black in DN.
+     */
+    public float getSignal(int point, int channel) {
+        return mSignal[point * QUAD_COUNT + channel];
+    }
+
+    /**
+     * @param point The index of the point, in the order the pairs are added.
+     * @param channel The channel index. (BayerStatistics.CHANNEL_*)
+     * @return The temporal noise variance in DN^2.
+     */
+    public float getVariance(int point, int channel) {
+        return mVariance[point * QUAD_COUNT + channel];
+    }
+
+    /**
+     * @param channel The channel index. (BayerStatistics.CHANNEL_*)
+     * @return The conversion gain of the latest fit in electrons per DN.
+     */
+    public float getConversionGain(int channel) {
+        return mConversionGain[channel];
+    }
+
+    /**
+     * @param channel The channel index. (BayerStatistics.CHANNEL_*)
+     * @return The read noise of the latest fit in electrons.
+     */
+    public float getReadNoise(int channel) {
+        return mReadNoise[channel];
+    }
+}
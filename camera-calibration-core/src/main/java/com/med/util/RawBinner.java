@@ -0,0 +1,273 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class renders a RAW frame for the live view. Every 2x2 quad of the color filter array becomes one
+ * ARGB pixel: R and B are taken as they are and G is the mean of Gr and Gb, after the black level is
+ * subtracted and the white-balance gains are applied. The result goes through a gamma lookup table.
+ * A 12 MP frame gives a 3 MP image, and a step above 1 takes every step-th quad for a smaller view.
+ * The gains are kept as fixed-point scales straight into the table, so there is no floating point per pixel.
+ * In parallel mode the output rows are split into bands on a ForkJoinPool.
+ */
+public class RawBinner {
+    /**
+     * The number of entries of the gamma table, over the range from black to white.
+     */
+    public static final int LUT_SIZE = 1024;
+
+    public static final float DEFAULT_GAMMA = 2.2f;
+
+    /**
+     * A gain is capped to this, so the fixed-point products stay in an int.
+     */
+    private static final float MAX_GAIN = 16.0f;
+
+    private static final int SCALE_BITS = 12;
+
+    /**
+     * A band of the parallel mode has at least this many output rows.
+     */
+    private static final int MIN_BAND_ROWS = 16;
+
+    private final int[] mChannelPosition;
+    private final int[] mBlackLevel = new int[BayerStatistics.NUM_OF_CHANNELS];
+    private int mWhiteLevel = WBCalibrator.DEFAULT_WHITE_LEVEL;
+    private final float[] mGains = {1.0f, 1.0f, 1.0f, 1.0f};
+
+    /**
+     * The fixed-point scale from a value above black to a table index, indexed by the position in the quad.
+     * It is replaced as a whole when the gains change, so a frame uses the gains of one call.
+     */
+    private volatile int[] mScale;
+
+    /**
+     * The gamma table. It is replaced as a whole too, so a frame is never rendered with half of each table.
+     */
+    private volatile int[] mLut;
+
+    private ForkJoinPool mPool = null;
+
+    /**
+     * Constructor.
+     * @param colorFilter The color filter arrangement. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+     */
+    public RawBinner(int colorFilter) {
+        mChannelPosition = BayerStatistics.channelPositions(colorFilter);
+        setGamma(DEFAULT_GAMMA);
+        updateScale();
+    }
+
+    /**
+     * To enable or disable the parallel mode. The bands of rows are rendered on the pool.
+     * @param pool The pool, or null to render on the calling thread.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @param blackLevelPattern The black level offsets in the order left-top, right-top, left-bottom, right-bottom.
+     *                          (CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN) Null for no black level.
+     * @param whiteLevel The maximum raw value. (CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL) 0 for the default 10-bit level.
+     */
+    public synchronized void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mWhiteLevel = (whiteLevel > 0)? whiteLevel : WBCalibrator.DEFAULT_WHITE_LEVEL;
+        for (int i=0; i<BayerStatistics.NUM_OF_CHANNELS; i++) {
+            mBlackLevel[i] = (blackLevelPattern != null)? blackLevelPattern[i] : 0;
+        }
+        updateScale();
+    }
+
+    /**
+     * To set the white-balance gains, as in RggbChannelVector. It can be called from another thread while a frame is rendered.
+     * @param gainR The gain of R.
+     * @param gainGr The gain of the G on the rows of R.
+     * @param gainGb The gain of the G on the rows of B.
+     * @param gainB The gain of B.
+     */
+    public synchronized void setGains(float gainR, float gainGr, float gainGb, float gainB) {
+        mGains[BayerStatistics.CHANNEL_R] = gainR;
+        mGains[BayerStatistics.CHANNEL_GR] = gainGr;
+        mGains[BayerStatistics.CHANNEL_GB] = gainGb;
+        mGains[BayerStatistics.CHANNEL_B] = gainB;
+        updateScale();
+    }
+
+    /**
+     * @param gamma The gamma of the output, e.g. 2.2. 1 for linear. It can be called while a frame is rendered.
+     */
+    public synchronized void setGamma(float gamma) {
+        double exponent = 1.0 / Math.max(gamma, 0.1f);
+        int[] lut = new int[LUT_SIZE];
+        for (int i=0; i<LUT_SIZE; i++) {
+            lut[i] = (int)Math.round(255.0 * Math.pow((double)i / (LUT_SIZE - 1), exponent));
+        }
+        mLut = lut;
+    }
+
+    private void updateScale() {
+        int[] scale = new int[BayerStatistics.NUM_OF_CHANNELS];
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            int position = mChannelPosition[channel];
+            int range = Math.max(mWhiteLevel - mBlackLevel[position], 1);
+            float gain = Math.max(0.0f, Math.min(mGains[channel], MAX_GAIN));
+            scale[position] = Math.round(gain * (LUT_SIZE - 1) / range * (1 << SCALE_BITS));
+        }
+        mScale = scale;
+    }
+
+    /**
+     * @param size The width or the height of the frame in pixels.
+     * @param step The step in quads.
+     * @return The width or the height of the output in pixels.
+     */
+    public static int outputSize(int size, int step) {
+        return size / 2 / step;
+    }
+
+    /**
+     * To render a RAW frame.
+     * @param buffer The RAW data. Its byte order is set to little-endian.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes. Only used by RAW16.
+     * @param step Every step-th quad in both directions is rendered. 1 for every quad.
+     * @param argb The output, at least outputSize(width, step) * outputSize(height, step) pixels, in rows of
+     *             outputSize(width, step) pixels. It can be passed to Bitmap.setPixels().
+     */
+    public void bin(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride, int step, int[] argb) {
+        if (format != BayerStatistics.FORMAT_RAW16 && format != BayerStatistics.FORMAT_RAW10 && format != BayerStatistics.FORMAT_RAW12) {
+            throw new IllegalArgumentException(String.format("unsupported RAW format: 0x%x", format));
+        }
+        if (step < 1) {
+            throw new IllegalArgumentException("the step must be at least 1");
+        }
+        int outputWidth = outputSize(width, step);
+        int outputHeight = outputSize(height, step);
+        if (argb.length < outputWidth * outputHeight) {
+            throw new IllegalArgumentException(String.format("the output has %d pixels, %d needed", argb.length, outputWidth * outputHeight));
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        Frame frame = new Frame(buffer, format, rowStride, pixelStride, step, outputWidth, argb, mScale, mLut);
+        if (mPool != null && outputHeight >= MIN_BAND_ROWS * 2) {
+            mPool.invoke(new BandTask(frame, 0, outputHeight));
+        }
+        else {
+            binRows(frame, 0, outputHeight);
+        }
+    }
+
+    /**
+     * The arguments of a frame, shared by the bands.
+     */
+    private static class Frame {
+        final ByteBuffer mBuffer;
+        final int mFormat;
+        final int mRowStride;
+        final int mPixelStride;
+        final int mStep;
+        final int mOutputWidth;
+        final int[] mArgb;
+        final int[] mScale;
+        final int[] mLut;
+
+        Frame(ByteBuffer buffer, int format, int rowStride, int pixelStride, int step, int outputWidth, int[] argb, int[] scale, int[] lut) {
+            mBuffer = buffer;
+            mFormat = format;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+            mStep = step;
+            mOutputWidth = outputWidth;
+            mArgb = argb;
+            mScale = scale;
+            mLut = lut;
+        }
+    }
+
+    /**
+     * To render the output rows [rowBegin, rowEnd). Every row writes its own pixels only.
+     */
+    private void binRows(Frame frame, int rowBegin, int rowEnd) {
+        ByteBuffer buffer = frame.mBuffer;
+        int format = frame.mFormat;
+        int pixelStride = frame.mPixelStride;
+        int quadStep = frame.mStep * 2;
+        int[] lut = frame.mLut;
+        int last = LUT_SIZE - 1;
+        int saturation = mWhiteLevel;
+        int r = mChannelPosition[BayerStatistics.CHANNEL_R];
+        int gr = mChannelPosition[BayerStatistics.CHANNEL_GR];
+        int gb = mChannelPosition[BayerStatistics.CHANNEL_GB];
+        int b = mChannelPosition[BayerStatistics.CHANNEL_B];
+        int scaleR = frame.mScale[r];
+        int scaleGr = frame.mScale[gr];
+        int scaleGb = frame.mScale[gb];
+        int scaleB = frame.mScale[b];
+        int[] black = mBlackLevel;
+        int[] quad = new int[BayerStatistics.NUM_OF_CHANNELS];
+        for (int row=rowBegin; row<rowEnd; row++) {
+            int top = row * quadStep * frame.mRowStride;
+            int bottom = top + frame.mRowStride;
+            int out = row * frame.mOutputWidth;
+            for (int column=0, x=0; column<frame.mOutputWidth; column++, x+=quadStep) {
+                if (format == BayerStatistics.FORMAT_RAW16) {
+                    quad[0] = buffer.getShort(top + x * pixelStride) & 0xFFFF;
+                    quad[1] = buffer.getShort(top + (x + 1) * pixelStride) & 0xFFFF;
+                    quad[2] = buffer.getShort(bottom + x * pixelStride) & 0xFFFF;
+                    quad[3] = buffer.getShort(bottom + (x + 1) * pixelStride) & 0xFFFF;
+                }
+                else {
+                    quad[0] = BayerStatistics.pixelAt(buffer, format, top, x, pixelStride);
+                    quad[1] = BayerStatistics.pixelAt(buffer, format, top, x + 1, pixelStride);
+                    quad[2] = BayerStatistics.pixelAt(buffer, format, bottom, x, pixelStride);
+                    quad[3] = BayerStatistics.pixelAt(buffer, format, bottom, x + 1, pixelStride);
+                }
+                int red = lut[Math.min((level(quad[r], black[r], saturation) * scaleR) >> SCALE_BITS, last)];
+                int green = lut[Math.min((level(quad[gr], black[gr], saturation) * scaleGr
+                        + level(quad[gb], black[gb], saturation) * scaleGb) >> (SCALE_BITS + 1), last)];
+                int blue = lut[Math.min((level(quad[b], black[b], saturation) * scaleB) >> SCALE_BITS, last)];
+                frame.mArgb[out + column] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+    }
+
+    /**
+     * @return The value above black, clipped to the range of the sensor.
+     */
+    private static int level(int value, int black, int white) {
+        return Math.max(Math.min(value, white) - black, 0);
+    }
+
+    /**
+     * A task which renders a band of rows and splits it in halves for the other workers.
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame mFrame;
+        private final int mRowBegin;
+        private final int mRowEnd;
+
+        BandTask(Frame frame, int rowBegin, int rowEnd) {
+            mFrame = frame;
+            mRowBegin = rowBegin;
+            mRowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (mRowEnd - mRowBegin < MIN_BAND_ROWS * 2) {
+                binRows(mFrame, mRowBegin, mRowEnd);
+                return;
+            }
+            int middle = (mRowBegin + mRowEnd) >>> 1;
+            invokeAll(new BandTask(mFrame, mRowBegin, middle), new BandTask(mFrame, middle, mRowEnd));
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of the latest RAW frames for zero-shutter-lag snapshots.
+ * The frames are copied into direct buffers which are allocated once, in the constructor, so adding a frame
+ * allocates nothing. Every frame is paired with its metadata, e.g. the TotalCaptureResult, by the sensor timestamp.
+ * The metadata may come before or after the frame; the metadata of a frame which is not in the ring yet waits
+ * until the frame is added.
+ * @param <T> The type of the metadata.
+ */
+public class RawFrameRing<T> {
+    private final int mCapacity;
+    private final int mFrameBytes;
+    private final ByteBuffer[] mBuffers;
+    private final long[] mTimestamp;
+    private final int[] mFormat;
+    private final int[] mWidth;
+    private final int[] mHeight;
+    private final int[] mRowStride;
+    private final int[] mPixelStride;
+    private final Object[] mMetadata;
+
+    /**
+     * The metadata of the frames which are not in the ring yet.
+     */
+    private final long[] mPendingTimestamp;
+    private final Object[] mPendingMetadata;
+    private int mPendingNext = 0;
+
+    /**
+     * The number of frames ever added. The frame n is in the slot n % capacity.
+     */
+    private long mFrameCount = 0;
+
+    /**
+     * Constructor. The buffers of every frame are allocated here.
+     * @param capacity The number of latest frames which are kept.
+     * @param frameBytes The size of the largest frame in bytes, e.g. frameBytes() of the sensor resolution.
+     */
+    public RawFrameRing(int capacity, int frameBytes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("the capacity must be at least 1");
+        }
+        if (frameBytes < 1) {
+            throw new IllegalArgumentException("the frame size must be at least 1 byte");
+        }
+        mCapacity = capacity;
+        mFrameBytes = frameBytes;
+        mBuffers = new ByteBuffer[capacity];
+        for (int slot=0; slot<capacity; slot++) {
+            mBuffers[slot] = ByteBuffer.allocateDirect(frameBytes);
+        }
+        mTimestamp = new long[capacity];
+        mFormat = new int[capacity];
+        mWidth = new int[capacity];
+        mHeight = new int[capacity];
+        mRowStride = new int[capacity];
+        mPixelStride = new int[capacity];
+        mMetadata = new Object[capacity];
+        mPendingTimestamp = new long[capacity];
+        mPendingMetadata = new Object[capacity];
+    }
+
+    /**
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param width The width in pixels.
+     * @param height The height in pixels.
+     * @return The size of a frame without row padding in bytes.
+     */
+    public static int frameBytes(int format, int width, int height) {
+        long rowBytes;
+        switch (format)
+        {
+            case BayerStatistics.FORMAT_RAW16:
+                rowBytes = width * 2L;
+                break;
+            case BayerStatistics.FORMAT_RAW10:
+                rowBytes = width * 5L / 4;
+                break;
+            case BayerStatistics.FORMAT_RAW12:
+                rowBytes = width * 3L / 2;
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("unsupported RAW format: 0x%x", format));
+        }
+        long bytes = rowBytes * height;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("the frame is too large: %d x %d", width, height));
+        }
+        return (int)bytes;
+    }
+
+    /**
+     * @param frameBytes The size of a frame in bytes.
+     * @param budgetBytes The memory which the ring may use.
+     * @param maxFrames The most frames which are useful.
+     * @return The number of frames which fit in the budget, at most maxFrames, or 0 if not even one fits.
+     */
+    public static int capacityFor(long frameBytes, long budgetBytes, int maxFrames) {
+        if (frameBytes < 1) {
+            throw new IllegalArgumentException("the frame size must be at least 1 byte");
+        }
+        return (int)Math.max(0, Math.min(maxFrames, budgetBytes / frameBytes));
+    }
+
+    public int getCapacity() { return mCapacity; }
+    public int getFrameBytes() { return mFrameBytes; }
+
+    /**
+     * To remove every frame and metadata, e.g. when the session is restarted. The buffers are kept.
+     */
+    public synchronized void clear() {
+        mFrameCount = 0;
+        for (int slot=0; slot<mCapacity; slot++) {
+            mMetadata[slot] = null;
+            mPendingMetadata[slot] = null;
+        }
+    }
+
+    /**
+     * To copy a frame into the slot of the oldest one. The position of the data is kept.
+     * @param timestamp The sensor timestamp of the frame. (Image.getTimestamp())
+     * @param data The data of the frame, from its position to its limit.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param width The width in pixels.
+     * @param height The height in pixels.
+     * @param rowStride The row stride in bytes.
+     * @param pixelStride The pixel stride in bytes.
+     * @return The slot of the frame.
+     */
+    public synchronized int add(long timestamp, ByteBuffer data, int format, int width, int height, int rowStride, int pixelStride) {
+        if (data.remaining() > mFrameBytes) {
+            throw new IllegalArgumentException(String.format("the frame of %d bytes does not fit in %d bytes", data.remaining(), mFrameBytes));
+        }
+        int slot = (int)(mFrameCount % mCapacity);
+        ByteBuffer buffer = mBuffers[slot];
+        buffer.clear();
+        int position = data.position();
+        buffer.put(data);
+        data.position(position);
+        buffer.flip();
+
+        mTimestamp[slot] = timestamp;
+        mFormat[slot] = format;
+        mWidth[slot] = width;
+        mHeight[slot] = height;
+        mRowStride[slot] = rowStride;
+        mPixelStride[slot] = pixelStride;
+        mMetadata[slot] = null;
+        for (int pending=0; pending<mCapacity; pending++) {
+            if (mPendingMetadata[pending] != null && mPendingTimestamp[pending] == timestamp) {
+                mMetadata[slot] = mPendingMetadata[pending];
+                mPendingMetadata[pending] = null;
+                break;
+            }
+        }
+        mFrameCount++;
+        return slot;
+    }
+
+    /**
+     * To pair the metadata with its frame. If the frame is not in the ring yet, it is paired when the frame is added.
+     * @param timestamp The sensor timestamp of the frame. (CaptureResult.SENSOR_TIMESTAMP)
+     * @param metadata The metadata.
+     */
+    public synchronized void setMetadata(long timestamp, T metadata) {
+        for (int slot=0; slot<size(); slot++) {
+            if (mTimestamp[slot] == timestamp) {
+                mMetadata[slot] = metadata;
+                return;
+            }
+        }
+        mPendingTimestamp[mPendingNext] = timestamp;
+        mPendingMetadata[mPendingNext] = metadata;
+        mPendingNext = (mPendingNext + 1) % mCapacity;
+    }
+
+    /**
+     * @return The number of frames in the ring.
+     */
+    public synchronized int size() {
+        return (int)Math.min(mFrameCount, mCapacity);
+    }
+
+    /**
+     * @return The sensor timestamp of the latest frame, or Long.MIN_VALUE if the ring is empty.
+     */
+    public synchronized long getNewestTimestamp() {
+        if (mFrameCount == 0) {
+            return Long.MIN_VALUE;
+        }
+        return mTimestamp[(int)((mFrameCount - 1) % mCapacity)];
+    }
+
+    /**
+     * @param timestamp The time in the time base of the sensor timestamps.
+     * @return The slot of the frame whose sensor timestamp is the closest to the time, or -1 if the ring is empty.
+     */
+    public synchronized int findClosest(long timestamp) {
+        int closest = -1;
+        long closestDistance = Long.MAX_VALUE;
+        for (int slot=0; slot<size(); slot++) {
+            long distance = Math.abs(mTimestamp[slot] - timestamp);
+            if (distance < closestDistance) {
+                closest = slot;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * To copy the data of a frame, e.g. to save it while the ring goes on.
+     * @param slot The slot of the frame.
+     * @return The data of the frame.
+     */
+    public synchronized byte[] copyData(int slot) {
+        ByteBuffer buffer = mBuffers[slot];
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.get(bytes);
+        buffer.rewind();
+        return bytes;
+    }
+
+    public synchronized long getTimestamp(int slot) { return mTimestamp[slot]; }
+    public synchronized int getFormat(int slot) { return mFormat[slot]; }
+    public synchronized int getWidth(int slot) { return mWidth[slot]; }
+    public synchronized int getHeight(int slot) { return mHeight[slot]; }
+    public synchronized int getRowStride(int slot) { return mRowStride[slot]; }
+    public synchronized int getPixelStride(int slot) { return mPixelStride[slot]; }
+
+    /**
+     * @return The metadata of the frame, or null if it has not come.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T getMetadata(int slot) { return (T)mMetadata[slot]; }
+}
@@ -0,0 +1,229 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class does the gray-world white-balance calibration on a RAW frame.
+ * It holds the math shared by the WBCalibration classes of the apps, which only adapt it to
+ * Image objects, logging and their result callbacks.
+ * The channel sums and histograms are collected by BayerStatistics in a single pass. The frame is
+ * rejected if it is clipped or underexposed, otherwise the R/B gains are updated.
+ */
+public class WBCalibrator {
+    /**
+     * The default white level. (10-bit)
+     */
+    public static final int DEFAULT_WHITE_LEVEL = 1023;
+
+    /**
+     * The number of histogram bins of each channel.
+     */
+    private static final int HISTOGRAM_BINS = 1024;
+
+    /**
+     * A frame is rejected if more than MAX_CLIPPED_FRACTION of any channel is at or above
+     * CLIPPING_LEVEL of the white level. The quads above CLIPPING_LEVEL are also excluded from the sums.
+     */
+    private static final float CLIPPING_LEVEL = 0.98f;
+    private static final float MAX_CLIPPED_FRACTION = 0.01f;
+
+    /**
+     * A frame is rejected if more than MAX_UNDEREXPOSED_FRACTION of green is below
+     * UNDEREXPOSURE_LEVEL of the range above black.
+     */
+    private static final float UNDEREXPOSURE_LEVEL = 1.0f / 16.0f;
+    private static final float MAX_UNDEREXPOSED_FRACTION = 0.9f;
+
+    /**
+     * The default maximum relative error of the R/B gains in fast calibration mode.
+     */
+    private static final float DEFAULT_GAIN_TOLERANCE = 0.01f;
+
+    private static final float NUM_OF_CHANNELS = 4.0f;
+
+    private final BayerStatistics mStatistics;
+
+    private int mWhiteLevel = DEFAULT_WHITE_LEVEL;
+    private int mBlackLevel = 0;
+
+    private float mGainTolerance = DEFAULT_GAIN_TOLERANCE;
+    private float mGainErrorR = 0.0f;
+    private float mGainErrorB = 0.0f;
+    private boolean mFullPassRepeated = false;
+
+    private float mGainR = 1.0f;
+    private float mGainB = 1.0f;
+
+    /**
+     * Constructor.
+     * @param colorFilter The color filter arrangement. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+     */
+    public WBCalibrator(int colorFilter) {
+        mStatistics = new BayerStatistics(colorFilter);
+        setSensorLevels(null, DEFAULT_WHITE_LEVEL);
+    }
+
+    /**
+     * @param format The image format. (Image.getFormat())
+     * @return True if the format can be calibrated. (ImageFormat.RAW_SENSOR, RAW10 and RAW12)
+     */
+    public static boolean isSupportedFormat(int format) {
+        return format == BayerStatistics.FORMAT_RAW16 || format == BayerStatistics.FORMAT_RAW10 || format == BayerStatistics.FORMAT_RAW12;
+    }
+
+    /**
+     * To set the black and white levels of the sensor. The black level is subtracted from the channel sums,
+     * and the quads near the white level are excluded. Both are done inside the statistics pass.
+     * @param blackLevelPattern The black level offsets in the order left-top, right-top, left-bottom, right-bottom.
+     *                          (CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN) Null for no black level.
+     * @param whiteLevel The maximum raw value. (CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL) 0 for the default 10-bit level.
+     */
+    public void setSensorLevels(int[] blackLevelPattern, int whiteLevel) {
+        mWhiteLevel = (whiteLevel > 0)? whiteLevel : DEFAULT_WHITE_LEVEL;
+        mBlackLevel = 0;
+        if (blackLevelPattern != null) {
+            for (int offset : blackLevelPattern) {
+                mBlackLevel = Math.max(mBlackLevel, offset);
+            }
+        }
+        int bitDepth = 32 - Integer.numberOfLeadingZeros(mWhiteLevel);
+        mStatistics.setHistogram(Math.min(HISTOGRAM_BINS, 1 << bitDepth), bitDepth);
+        mStatistics.setBlackLevelPattern(blackLevelPattern);
+        mStatistics.setSaturationLevel((int)(mWhiteLevel * CLIPPING_LEVEL));
+    }
+
+    public int getWhiteLevel() { return mWhiteLevel; }
+
+    /**
+     * @return The largest offset of the black level pattern.
+     */
+    public int getBlackLevel() { return mBlackLevel; }
+
+    /**
+     * To enable or disable the parallel reduction mode.
+     * @param pool The pool to sum the bands of the frame, or null to sum it on the calling thread.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        mStatistics.setParallel(pool);
+    }
+
+    /**
+     * To enable the fast calibration mode. Only every Nth 2x2 quad in both directions is visited.
+     * If the estimated error of the gains exceeds the tolerance, the frame is calibrated again with a full pass.
+     * @param step The sampling step, e.g. 4 to visit 1/16 of the frame. 1 to disable the fast mode.
+     */
+    public void setSamplingStep(int step) {
+        mStatistics.setSamplingStep(step);
+    }
+
+    public int getSamplingStep() { return mStatistics.getSamplingStep(); }
+
+    /**
+     * @param tolerance The maximum relative error of the R/B gains in fast mode, e.g. 0.01 for 1%.
+     */
+    public void setGainTolerance(float tolerance) {
+        mGainTolerance = tolerance;
+    }
+
+    /**
+     * To calibrate a frame. The buffer is read in place.
+     * @param buffer The RAW data.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The row stride in bytes.
+     * @param pixelStride The pixel stride in bytes. (ignored for the packed formats)
+     * @return An error message if the frame is clipped or underexposed, otherwise null.
+     *         The gains are not changed if the frame is rejected.
+     */
+    public String calibrate(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride) {
+        computeStatistics(buffer, format, width, height, rowStride, pixelStride);
+        String error = checkExposure();
+        if (error == null) {
+            updateGains();
+        }
+        return error;
+    }
+
+    /**
+     * To compute the channel sums. In fast mode, a full pass is done if the sampling error is out of tolerance.
+     */
+    private void computeStatistics(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride) {
+        mStatistics.compute(buffer, format, width, height, rowStride, pixelStride);
+        mGainErrorR = (float)mStatistics.estimateGainError(BayerStatistics.CHANNEL_R);
+        mGainErrorB = (float)mStatistics.estimateGainError(BayerStatistics.CHANNEL_B);
+        mFullPassRepeated = false;
+        int step = mStatistics.getSamplingStep();
+        if (step > 1 && (mGainErrorR > mGainTolerance || mGainErrorB > mGainTolerance)) {
+            mStatistics.setSamplingStep(1);
+            mStatistics.compute(buffer, format, width, height, rowStride, pixelStride);
+            mStatistics.setSamplingStep(step);
+            mGainErrorR = 0.0f;
+            mGainErrorB = 0.0f;
+            mFullPassRepeated = true;
+        }
+    }
+
+    /**
+     * To check the histograms of the latest statistics.
+     * @return An error message if the frame is clipped or underexposed, otherwise null.
+     */
+    private String checkExposure() {
+        int clippingLevel = (int)(mWhiteLevel * CLIPPING_LEVEL);
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            float clipped = mStatistics.getFractionAtOrAbove(channel, clippingLevel);
+            if (clipped > MAX_CLIPPED_FRACTION) {
+                return String.format("frame is clipped, %.1f%% of channel %d at or above %d", clipped * 100.0f, channel, clippingLevel);
+            }
+        }
+        int underexposureLevel = mBlackLevel + (int)((mWhiteLevel - mBlackLevel) * UNDEREXPOSURE_LEVEL);
+        float dark = (mStatistics.getFractionBelow(BayerStatistics.CHANNEL_GR, underexposureLevel)
+                + mStatistics.getFractionBelow(BayerStatistics.CHANNEL_GB, underexposureLevel)) / 2.0f;
+        if (dark > MAX_UNDEREXPOSED_FRACTION) {
+            return String.format("frame is underexposed, %.1f%% of green below %d", dark * 100.0f, underexposureLevel);
+        }
+        return null;
+    }
+
+    private void updateGains() {
+        long sumOfR = mStatistics.getSum(BayerStatistics.CHANNEL_R);
+        long sumOfGr = mStatistics.getSum(BayerStatistics.CHANNEL_GR);
+        long sumOfGb = mStatistics.getSum(BayerStatistics.CHANNEL_GB);
+        long sumOfB = mStatistics.getSum(BayerStatistics.CHANNEL_B);
+
+        // get the value of K
+        float K = (sumOfR + sumOfGr + sumOfGb + sumOfB) / NUM_OF_CHANNELS;
+        float factorR = K / (float)sumOfR;
+        float factorG = K / ((sumOfGr + sumOfGb) / 2.0f);
+        float factorB = K / (float)sumOfB;
+
+        mGainR = factorR / factorG;
+        mGainB = factorB / factorG;
+    }
+
+    public float getGainR() { return mGainR; }
+    public float getGainB() { return mGainB; }
+
+    /**
+     * @return The estimated relative error of the R gain against a full pass. 0 after a full pass.
+     */
+    public float getGainErrorR() { return mGainErrorR; }
+
+    /**
+     * @return The estimated relative error of the B gain against a full pass. 0 after a full pass.
+     */
+    public float getGainErrorB() { return mGainErrorB; }
+
+    /**
+     * @return True if the sampling error of the latest frame was out of tolerance, so a full pass was done.
+     */
+    public boolean isFullPassRepeated() { return mFullPassRepeated; }
+
+    /**
+     * @return The statistics of the latest frame.
+     */
+    public BayerStatistics getStatistics() {
+        return mStatistics;
+    }
+}
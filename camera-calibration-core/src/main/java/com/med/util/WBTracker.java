@@ -0,0 +1,143 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class tracks the WB gains on a running RAW stream.
+ * Every Nth frame is calibrated, the gains are smoothed by an exponential moving average,
+ * and a new value is reported only when it moves away from the last reported gains by more
+ * than a threshold. (hysteresis)
+ */
+public class WBTracker {
+    public static final int DEFAULT_FRAME_INTERVAL = 4;
+    public static final float DEFAULT_SMOOTHING = 0.25f;
+    public static final float DEFAULT_THRESHOLD = 0.02f;
+
+    private final WBCalibrator mCalibrator;
+
+    private int mFrameInterval = DEFAULT_FRAME_INTERVAL;
+    private float mSmoothing = DEFAULT_SMOOTHING;
+    private float mThreshold = DEFAULT_THRESHOLD;
+
+    private long mFrameCount = 0;
+    private boolean mHasGains = false;
+    private float mGainR = 1.0f;
+    private float mGainB = 1.0f;
+    private float mReportedGainR = 1.0f;
+    private float mReportedGainB = 1.0f;
+
+    /**
+     * Constructor.
+     * @param calibrator The calibrator used on the sampled frames.
+     */
+    public WBTracker(WBCalibrator calibrator) {
+        mCalibrator = calibrator;
+    }
+
+    /**
+     * @param interval Calibrate every Nth frame. 1 for every frame.
+     */
+    public void setFrameInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("frame interval must be >= 1");
+        }
+        mFrameInterval = interval;
+    }
+
+    /**
+     * @param smoothing The weight of a new measurement in the moving average, in (0, 1]. 1 for no smoothing.
+     */
+    public void setSmoothing(float smoothing) {
+        if (smoothing <= 0.0f || smoothing > 1.0f) {
+            throw new IllegalArgumentException("smoothing must be in (0, 1]");
+        }
+        mSmoothing = smoothing;
+    }
+
+    /**
+     * @param threshold The minimum relative change of the R or B gain to report, e.g. 0.02 for 2%.
+     */
+    public void setThreshold(float threshold) {
+        mThreshold = threshold;
+    }
+
+    /**
+     * To restart the tracking. The next calibrated frame is taken without smoothing.
+     */
+    public void reset() {
+        mFrameCount = 0;
+        mHasGains = false;
+    }
+
+    /**
+     * To feed a frame of the stream. Only every Nth frame is calibrated, the others are not read.
+     * @param buffer The RAW data. It is read in place.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12.
+     * @param width The width in pixels.
+     * @param height The height in pixels.
+     * @param rowStride The row stride in bytes.
+     * @param pixelStride The pixel stride in bytes.
+     * @return True if the gains changed by more than the threshold, and getGainR()/getGainB() should be applied.
+     */
+    public boolean update(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride) {
+        if ((mFrameCount++ % mFrameInterval) != 0) {
+            return false;
+        }
+        if (mCalibrator.calibrate(buffer, format, width, height, rowStride, pixelStride) != null) {
+            return false;
+        }
+        return update(mCalibrator.getGainR(), mCalibrator.getGainB());
+    }
+
+    /**
+     * To feed the measured gains of a sampled frame to the moving average and the hysteresis.
+     * @param gainR The measured R gain.
+     * @param gainB The measured B gain.
+     * @return True if the gains changed by more than the threshold, and getGainR()/getGainB() should be applied.
+     *         False for invalid gains, which are skipped.
+     */
+    public boolean update(float gainR, float gainB) {
+        if (Float.isNaN(gainR) || Float.isInfinite(gainR) || Float.isNaN(gainB) || Float.isInfinite(gainB)) {
+            return false;
+        }
+
+        if (!mHasGains) {
+            mHasGains = true;
+            mGainR = gainR;
+            mGainB = gainB;
+        }
+        else {
+            mGainR += mSmoothing * (gainR - mGainR);
+            mGainB += mSmoothing * (gainB - mGainB);
+        }
+
+        float changeR = Math.abs(mGainR - mReportedGainR) / mReportedGainR;
+        float changeB = Math.abs(mGainB - mReportedGainB) / mReportedGainB;
+        if (changeR <= mThreshold && changeB <= mThreshold) {
+            return false;
+        }
+        mReportedGainR = mGainR;
+        mReportedGainB = mGainB;
+        return true;
+    }
+
+    /**
+     * @return The smoothed R gain which was reported last.
+     */
+    public float getGainR() { return mReportedGainR; }
+
+    /**
+     * @return The smoothed B gain which was reported last.
+     */
+    public float getGainB() { return mReportedGainB; }
+
+    /**
+     * @return The smoothed R gain of the latest sampled frame, reported or not.
+     */
+    public float getSmoothedGainR() { return mGainR; }
+
+    /**
+     * @return The smoothed B gain of the latest sampled frame, reported or not.
+     */
+    public float getSmoothedGainB() { return mGainB; }
+}
@@ -0,0 +1,151 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class converts a YUV_420_888 frame to packed ARGB pixels in software, so the live view can be drawn
+ * from the YUV stream without the JPEG encoding of the camera and the decoding of the app.
+ * The planes are read in place with their own row and pixel strides, so the planar (I420) and the
+ * semi-planar (NV12/NV21) layouts of the HALs are handled alike.
+ * The conversion is full-range BT.601 (JFIF), which is what the camera outputs, in 16-bit fixed point.
+ * In parallel mode the frame is split into bands of row pairs, as two rows share a chroma row.
+ */
+public class YuvConverter {
+    /**
+     * A band of the parallel mode has at least this many rows.
+     */
+    private static final int MIN_BAND_ROWS = 32;
+
+    // the coefficients of full-range BT.601, scaled by 2^16
+    private static final int COEFFICIENT_RV = 91881;
+    private static final int COEFFICIENT_GU = 22554;
+    private static final int COEFFICIENT_GV = 46802;
+    private static final int COEFFICIENT_BU = 116130;
+    private static final int ROUNDING = 1 << 15;
+
+    private ForkJoinPool mPool = null;
+
+    /**
+     * To enable or disable the parallel mode. The bands of rows are converted on the pool.
+     * @param pool The pool, or null to convert on the calling thread.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * To convert a YUV_420_888 frame. The pixel stride of the Y plane is always 1. (see Image.getPlanes())
+     * @param yPlane The Y plane.
+     * @param yRowStride The distance between the starts of two rows of the Y plane in bytes.
+     * @param uPlane The U (Cb) plane.
+     * @param vPlane The V (Cr) plane.
+     * @param uvRowStride The distance between the starts of two rows of the U and V planes in bytes.
+     * @param uvPixelStride The distance between two adjacent pixels of the U and V planes in bytes.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param argb The output, at least width * height pixels, in rows of width pixels. It can be passed to Bitmap.setPixels().
+     */
+    public void convert(ByteBuffer yPlane, int yRowStride, ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+                        int width, int height, int[] argb) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException(String.format("invalid frame size: %dx%d", width, height));
+        }
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException(String.format("the output has %d pixels, %d needed", argb.length, width * height));
+        }
+        if (mPool != null && height >= MIN_BAND_ROWS * 2) {
+            mPool.invoke(new BandTask(yPlane, yRowStride, uPlane, vPlane, uvRowStride, uvPixelStride, width, argb, 0, height));
+        }
+        else {
+            convertRows(yPlane, yRowStride, uPlane, vPlane, uvRowStride, uvPixelStride, width, argb, 0, height);
+        }
+    }
+
+    /**
+     * To convert the rows [rowBegin, rowEnd). The buffers are only read by absolute index, so the bands can share them.
+     */
+    private static void convertRows(ByteBuffer yPlane, int yRowStride, ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+                                    int width, int[] argb, int rowBegin, int rowEnd) {
+        for (int row=rowBegin; row<rowEnd; row++) {
+            int yOffset = row * yRowStride;
+            int uvOffset = (row >> 1) * uvRowStride;
+            int out = row * width;
+            for (int x=0; x<width; x+=2) {
+                // two pixels of a row share the chroma
+                int u = (uPlane.get(uvOffset) & 0xFF) - 128;
+                int v = (vPlane.get(uvOffset) & 0xFF) - 128;
+                uvOffset += uvPixelStride;
+                int r = COEFFICIENT_RV * v + ROUNDING;
+                int g = -COEFFICIENT_GU * u - COEFFICIENT_GV * v + ROUNDING;
+                int b = COEFFICIENT_BU * u + ROUNDING;
+
+                int luma = (yPlane.get(yOffset + x) & 0xFF) << 16;
+                argb[out + x] = pack(luma + r, luma + g, luma + b);
+                if (x + 1 < width) {
+                    luma = (yPlane.get(yOffset + x + 1) & 0xFF) << 16;
+                    argb[out + x + 1] = pack(luma + r, luma + g, luma + b);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The opaque ARGB pixel of the fixed-point R, G and B values.
+     */
+    private static int pack(int r, int g, int b) {
+        return 0xFF000000 | (clamp(r >> 16) << 16) | (clamp(g >> 16) << 8) | clamp(b >> 16);
+    }
+
+    /**
+     * @return The value clamped to [0, 255].
+     */
+    private static int clamp(int value) {
+        // below 0 the sign gives 0, above 255 it gives 255
+        return ((value & ~0xFF) == 0)? value : (~value >> 31) & 0xFF;
+    }
+
+    /**
+     * A task which converts a band of rows and splits it in halves, at a row pair, for the other workers.
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer mYPlane;
+        private final int mYRowStride;
+        private final ByteBuffer mUPlane;
+        private final ByteBuffer mVPlane;
+        private final int mUVRowStride;
+        private final int mUVPixelStride;
+        private final int mWidth;
+        private final int[] mArgb;
+        private final int mRowBegin;
+        private final int mRowEnd;
+
+        BandTask(ByteBuffer yPlane, int yRowStride, ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+                 int width, int[] argb, int rowBegin, int rowEnd) {
+            mYPlane = yPlane;
+            mYRowStride = yRowStride;
+            mUPlane = uPlane;
+            mVPlane = vPlane;
+            mUVRowStride = uvRowStride;
+            mUVPixelStride = uvPixelStride;
+            mWidth = width;
+            mArgb = argb;
+            mRowBegin = rowBegin;
+            mRowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (mRowEnd - mRowBegin < MIN_BAND_ROWS * 2) {
+                convertRows(mYPlane, mYRowStride, mUPlane, mVPlane, mUVRowStride, mUVPixelStride, mWidth, mArgb, mRowBegin, mRowEnd);
+                return;
+            }
+            int middle = ((mRowBegin + mRowEnd) >>> 1) & ~1;
+            invokeAll(new BandTask(mYPlane, mYRowStride, mUPlane, mVPlane, mUVRowStride, mUVPixelStride, mWidth, mArgb, mRowBegin, middle),
+                    new BandTask(mYPlane, mYRowStride, mUPlane, mVPlane, mUVRowStride, mUVPixelStride, mWidth, mArgb, middle, mRowEnd));
+        }
+    }
+}
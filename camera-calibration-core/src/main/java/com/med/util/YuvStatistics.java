@@ -0,0 +1,138 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class measures the residual color cast of a processed YUV_420_888 frame, i.e. a frame which the ISP has
+ * already white-balanced with COLOR_CORRECTION_GAINS, so the gains can be corrected in a closed loop.
+ * Every Nth chroma sample is converted to RGB with full-range BT.601 (JFIF), the average of the 2x2 luma
+ * which shares it, and linearized by the sRGB curve. The clipped and the dark samples are skipped.
+ * On a gray target the linear R/G and B/G are 1 when the gains are right. The ratio is 1 at gray on any
+ * tone curve, so the sRGB curve only has to be close to the one of the camera for the correction step.
+ */
+public class YuvStatistics {
+    /**
+     * A sample is skipped if any 8-bit channel is at or above CLIPPING_LEVEL, or its green is below DARK_LEVEL.
+     */
+    private static final int CLIPPING_LEVEL = 250;
+    private static final int DARK_LEVEL = 16;
+
+    /**
+     * A frame is rejected if less than MIN_VALID_FRACTION of the visited samples are used.
+     */
+    private static final float MIN_VALID_FRACTION = 0.1f;
+
+    // the coefficients of full-range BT.601
+    private static final float COEFFICIENT_RV = 1.402f;
+    private static final float COEFFICIENT_GU = 0.344136f;
+    private static final float COEFFICIENT_GV = 0.714136f;
+    private static final float COEFFICIENT_BU = 1.772f;
+
+    /**
+     * The linear value of each 8-bit sRGB value.
+     */
+    private static final float[] LINEAR = new float[256];
+    static {
+        for (int i=0; i<LINEAR.length; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = (float)((c <= 0.04045)? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    private int mSamplingStep = 1;
+
+    private int mVisitedCount = 0;
+    private int mValidCount = 0;
+    private double mSumOfR = 0.0;
+    private double mSumOfG = 0.0;
+    private double mSumOfB = 0.0;
+
+    /**
+     * @param step Measure every Nth chroma sample of every Nth chroma row. 1 for every sample.
+     */
+    public void setSamplingStep(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("sampling step must be >= 1");
+        }
+        mSamplingStep = step;
+    }
+
+    public int getSamplingStep() { return mSamplingStep; }
+
+    /**
+     * To measure a YUV_420_888 frame. The pixel stride of the Y plane is always 1. (see Image.getPlanes())
+     * The planes are read in place.
+     * @param yPlane The Y plane.
+     * @param yRowStride The distance between the starts of two rows of the Y plane in bytes.
+     * @param uPlane The U (Cb) plane.
+     * @param vPlane The V (Cr) plane.
+     * @param uvRowStride The distance between the starts of two rows of the U and V planes in bytes.
+     * @param uvPixelStride The distance between two adjacent pixels of the U and V planes in bytes.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @return An error message if too few samples are neither clipped nor dark, otherwise null.
+     */
+    public String compute(ByteBuffer yPlane, int yRowStride, ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+                          int width, int height) {
+        if (width < 2 || height < 2) {
+            throw new IllegalArgumentException(String.format("invalid frame size: %dx%d", width, height));
+        }
+        mVisitedCount = 0;
+        mValidCount = 0;
+        mSumOfR = 0.0;
+        mSumOfG = 0.0;
+        mSumOfB = 0.0;
+
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        for (int row=0; row<chromaHeight; row+=mSamplingStep) {
+            int yOffset = row * 2 * yRowStride;
+            int uvOffset = row * uvRowStride;
+            for (int x=0; x<chromaWidth; x+=mSamplingStep) {
+                mVisitedCount++;
+                int luma = (yPlane.get(yOffset + x * 2) & 0xFF) + (yPlane.get(yOffset + x * 2 + 1) & 0xFF)
+                        + (yPlane.get(yOffset + yRowStride + x * 2) & 0xFF) + (yPlane.get(yOffset + yRowStride + x * 2 + 1) & 0xFF);
+                float y = luma / 4.0f;
+                float u = (uPlane.get(uvOffset + x * uvPixelStride) & 0xFF) - 128;
+                float v = (vPlane.get(uvOffset + x * uvPixelStride) & 0xFF) - 128;
+                int r = Math.round(y + COEFFICIENT_RV * v);
+                int g = Math.round(y - COEFFICIENT_GU * u - COEFFICIENT_GV * v);
+                int b = Math.round(y + COEFFICIENT_BU * u);
+                if (r >= CLIPPING_LEVEL || g >= CLIPPING_LEVEL || b >= CLIPPING_LEVEL || g < DARK_LEVEL || r < 0 || b < 0) {
+                    continue;
+                }
+                mValidCount++;
+                mSumOfR += LINEAR[r];
+                mSumOfG += LINEAR[g];
+                mSumOfB += LINEAR[b];
+            }
+        }
+
+        if (mValidCount < mVisitedCount * MIN_VALID_FRACTION) {
+            return String.format("frame is clipped or underexposed, %d of %d samples usable", mValidCount, mVisitedCount);
+        }
+        return null;
+    }
+
+    /**
+     * @return The linear R/G of the latest frame.
+     */
+    public float getRatioR() { return (float)(mSumOfR / mSumOfG); }
+
+    /**
+     * @return The linear B/G of the latest frame.
+     */
+    public float getRatioB() { return (float)(mSumOfB / mSumOfG); }
+
+    /**
+     * @return max(|R/G - 1|, |B/G - 1|) of the latest frame.
+     */
+    public float getResidual() {
+        return Math.max(Math.abs(getRatioR() - 1.0f), Math.abs(getRatioB() - 1.0f));
+    }
+
+    /**
+     * @return The number of samples used in the latest frame.
+     */
+    public int getValidCount() { return mValidCount; }
+}
@@ -0,0 +1,300 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class divides a 16-bit RAW frame into a grid of zones (e.g. 64 x 48) and accumulates
+ * the R, Gr, Gb and B sums of every zone in a single pass over the frame.
+ * The results are kept in flat primitive arrays, so AWB algorithms can work on the small
+ * grid instead of scanning the whole frame again.
+ * The zone boundaries are aligned to the 2x2 quads of the color filter array.
+ * As in BayerStatistics, the black level is subtracted and the saturated quads are skipped inside the pass.
+ */
+public class ZoneStatistics {
+    private final int mZonesX;
+    private final int mZonesY;
+    private final int mColorFilter;
+
+    /**
+     * Maps a position in the 2x2 quad to its channel index.
+     */
+    private final int[] mPositionChannel = new int[BayerStatistics.NUM_OF_CHANNELS];
+
+    /**
+     * The sums of all zones, with the black level subtracted. The sum of a channel in a zone is at [zone * NUM_OF_CHANNELS + channel],
+     * and zone = zoneY * zonesX + zoneX.
+     */
+    private final long[] mSums;
+
+    /**
+     * The number of accumulated quads in every zone. The saturated quads are not included.
+     */
+    private final int[] mCounts;
+
+    /**
+     * The first quad column of every zone column. The last element is the number of quad columns.
+     */
+    private int[] mZoneColBegin;
+    private int mQuadCols = -1;
+
+    private ForkJoinPool mPool = null;
+
+    /**
+     * The black level indexed by the position in the 2x2 quad.
+     */
+    private final int[] mBlackLevel = new int[BayerStatistics.NUM_OF_CHANNELS];
+
+    /**
+     * A quad is excluded from the sums if any of its pixels is at or above this level.
+     */
+    private int mSaturationLevel = BayerStatistics.SATURATION_DISABLED;
+
+    /**
+     * Constructor.
+     * @param zonesX The number of zones in horizontal.
+     * @param zonesY The number of zones in vertical.
+     * @param colorFilter The color filter arrangement. (CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)
+     */
+    public ZoneStatistics(int zonesX, int zonesY, int colorFilter) {
+        if (zonesX < 1 || zonesY < 1) {
+            throw new IllegalArgumentException("the zone grid must have at least one zone");
+        }
+        mZonesX = zonesX;
+        mZonesY = zonesY;
+        mColorFilter = colorFilter;
+        mSums = new long[zonesX * zonesY * BayerStatistics.NUM_OF_CHANNELS];
+        mCounts = new int[zonesX * zonesY];
+
+        int[] channelPositions = BayerStatistics.channelPositions(colorFilter);
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            mPositionChannel[channelPositions[channel]] = channel;
+        }
+    }
+
+    /**
+     * To enable or disable the parallel mode. The zone rows are summed on the pool.
+     * @param pool The pool, or null to compute on the calling thread.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @param pattern The black level offsets of the 2x2 quad in the order left-top, right-top, left-bottom, right-bottom.
+     *                Null to reset to 0.
+     */
+    public void setBlackLevelPattern(int[] pattern) {
+        for (int i=0; i<BayerStatistics.NUM_OF_CHANNELS; i++) {
+            mBlackLevel[i] = (pattern != null)? pattern[i] : 0;
+        }
+    }
+
+    /**
+     * @param level A quad is excluded from the sums if any of its pixels is at or above this level.
+     */
+    public void setSaturationLevel(int level) {
+        mSaturationLevel = Math.min(level, BayerStatistics.SATURATION_DISABLED);
+    }
+
+    /**
+     * To compute the zone statistics of a 16-bit RAW frame. The previous result is discarded.
+     * @param buffer The RAW data. Its byte order is set to little-endian.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes.
+     */
+    public void compute(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride) {
+        compute(buffer, BayerStatistics.FORMAT_RAW16, width, height, rowStride, pixelStride);
+    }
+
+    /**
+     * To compute the zone statistics of a RAW frame. The previous result is discarded.
+     * The packed formats are decoded pixel by pixel, which is slower than RAW16 but still one pass.
+     * @param buffer The RAW data. Its byte order is set to little-endian.
+     * @param format BayerStatistics.FORMAT_RAW16, FORMAT_RAW10 or FORMAT_RAW12. (the same as Image.getFormat())
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param rowStride The distance between the starts of two rows in bytes.
+     * @param pixelStride The distance between two adjacent pixels in bytes. Only used by RAW16.
+     */
+    public void compute(ByteBuffer buffer, int format, int width, int height, int rowStride, int pixelStride) {
+        if (format != BayerStatistics.FORMAT_RAW16 && format != BayerStatistics.FORMAT_RAW10 && format != BayerStatistics.FORMAT_RAW12) {
+            throw new IllegalArgumentException(String.format("unsupported RAW format: 0x%x", format));
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int quadCols = width / 2;
+        int quadRows = height / 2;
+        if (quadCols != mQuadCols) {
+            mQuadCols = quadCols;
+            mZoneColBegin = new int[mZonesX + 1];
+            for (int zoneX=0; zoneX<=mZonesX; zoneX++) {
+                mZoneColBegin[zoneX] = (int)((long)zoneX * quadCols / mZonesX);
+            }
+        }
+
+        if (mPool != null && mZonesY > 1) {
+            mPool.invoke(new ZoneRowTask(buffer, format, quadRows, rowStride, pixelStride, 0, mZonesY));
+        }
+        else {
+            computeZoneRows(buffer, format, quadRows, rowStride, pixelStride, 0, mZonesY);
+        }
+    }
+
+    /**
+     * To compute the zone rows [zoneRowBegin, zoneRowEnd). Every zone row writes its own slots only.
+     */
+    private void computeZoneRows(ByteBuffer buffer, int format, int quadRows, int rowStride, int pixelStride, int zoneRowBegin, int zoneRowEnd) {
+        int quadStride = pixelStride * 2;
+        int saturation = mSaturationLevel;
+        for (int zoneY=zoneRowBegin; zoneY<zoneRowEnd; zoneY++) {
+            int quadRowBegin = (int)((long)zoneY * quadRows / mZonesY);
+            int quadRowEnd = (int)((long)(zoneY + 1) * quadRows / mZonesY);
+            for (int zoneX=0; zoneX<mZonesX; zoneX++) {
+                int colBegin = mZoneColBegin[zoneX];
+                int colEnd = mZoneColBegin[zoneX + 1];
+                long sumOfLeftTop = 0;
+                long sumOfRightTop = 0;
+                long sumOfLeftBottom = 0;
+                long sumOfRightBottom = 0;
+                int count = 0;
+                for (int quadRow=quadRowBegin; quadRow<quadRowEnd; quadRow++) {
+                    if (format != BayerStatistics.FORMAT_RAW16) {
+                        int top = quadRow * 2 * rowStride;
+                        int bottom = top + rowStride;
+                        for (int x=colBegin*2; x<colEnd*2; x+=2) {
+                            int leftTop = BayerStatistics.pixelAt(buffer, format, top, x, pixelStride);
+                            int rightTop = BayerStatistics.pixelAt(buffer, format, top, x + 1, pixelStride);
+                            int leftBottom = BayerStatistics.pixelAt(buffer, format, bottom, x, pixelStride);
+                            int rightBottom = BayerStatistics.pixelAt(buffer, format, bottom, x + 1, pixelStride);
+                            int mask = (Math.max(Math.max(leftTop, rightTop), Math.max(leftBottom, rightBottom)) - saturation) >> 31;
+                            sumOfLeftTop += leftTop & mask;
+                            sumOfRightTop += rightTop & mask;
+                            sumOfLeftBottom += leftBottom & mask;
+                            sumOfRightBottom += rightBottom & mask;
+                            count -= mask;
+                        }
+                        continue;
+                    }
+                    int top = quadRow * 2 * rowStride + colBegin * quadStride;
+                    int bottom = top + rowStride;
+                    int end = top + (colEnd - colBegin) * quadStride;
+                    for (; top<end; top+=quadStride, bottom+=quadStride) {
+                        int leftTop = buffer.getShort(top) & 0xFFFF;
+                        int rightTop = buffer.getShort(top + pixelStride) & 0xFFFF;
+                        int leftBottom = buffer.getShort(bottom) & 0xFFFF;
+                        int rightBottom = buffer.getShort(bottom + pixelStride) & 0xFFFF;
+                        // the mask is all ones if every pixel is below the saturation level, otherwise 0. (no branch)
+                        int mask = (Math.max(Math.max(leftTop, rightTop), Math.max(leftBottom, rightBottom)) - saturation) >> 31;
+                        sumOfLeftTop += leftTop & mask;
+                        sumOfRightTop += rightTop & mask;
+                        sumOfLeftBottom += leftBottom & mask;
+                        sumOfRightBottom += rightBottom & mask;
+                        count -= mask;
+                    }
+                }
+                int zone = zoneY * mZonesX + zoneX;
+                int base = zone * BayerStatistics.NUM_OF_CHANNELS;
+                mSums[base + mPositionChannel[0]] = sumOfLeftTop - (long)count * mBlackLevel[0];
+                mSums[base + mPositionChannel[1]] = sumOfRightTop - (long)count * mBlackLevel[1];
+                mSums[base + mPositionChannel[2]] = sumOfLeftBottom - (long)count * mBlackLevel[2];
+                mSums[base + mPositionChannel[3]] = sumOfRightBottom - (long)count * mBlackLevel[3];
+                mCounts[zone] = count;
+            }
+        }
+    }
+
+    /**
+     * A task which computes a range of zone rows and splits it in halves for the other workers.
+     */
+    private class ZoneRowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer mBuffer;
+        private final int mFormat;
+        private final int mQuadRows;
+        private final int mRowStride;
+        private final int mPixelStride;
+        private final int mZoneRowBegin;
+        private final int mZoneRowEnd;
+
+        ZoneRowTask(ByteBuffer buffer, int format, int quadRows, int rowStride, int pixelStride, int zoneRowBegin, int zoneRowEnd) {
+            mBuffer = buffer;
+            mFormat = format;
+            mQuadRows = quadRows;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+            mZoneRowBegin = zoneRowBegin;
+            mZoneRowEnd = zoneRowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (mZoneRowEnd - mZoneRowBegin <= 1) {
+                computeZoneRows(mBuffer, mFormat, mQuadRows, mRowStride, mPixelStride, mZoneRowBegin, mZoneRowEnd);
+                return;
+            }
+            int middle = (mZoneRowBegin + mZoneRowEnd) >>> 1;
+            invokeAll(new ZoneRowTask(mBuffer, mFormat, mQuadRows, mRowStride, mPixelStride, mZoneRowBegin, middle),
+                    new ZoneRowTask(mBuffer, mFormat, mQuadRows, mRowStride, mPixelStride, middle, mZoneRowEnd));
+        }
+    }
+
+    public int getZonesX() { return mZonesX; }
+    public int getZonesY() { return mZonesY; }
+    public int getZoneCount() { return mZonesX * mZonesY; }
+    public int getColorFilter() { return mColorFilter; }
+
+    /**
+     * @param zone The zone index. (zoneY * zonesX + zoneX)
+     * @param channel The channel index. (BayerStatistics.CHANNEL_*)
+     * @return The sum of the channel in the zone.
+     */
+    public long getSum(int zone, int channel) {
+        return mSums[zone * BayerStatistics.NUM_OF_CHANNELS + channel];
+    }
+
+    /**
+     * @param zone The zone index.
+     * @return The number of pixels of each channel in the zone.
+     */
+    public int getCount(int zone) {
+        return mCounts[zone];
+    }
+
+    /**
+     * @param zone The zone index.
+     * @param channel The channel index.
+     * @return The average pixel value of the channel in the zone.
+     */
+    public float getAverage(int zone, int channel) {
+        int count = mCounts[zone];
+        return (count > 0)? (float)mSums[zone * BayerStatistics.NUM_OF_CHANNELS + channel] / count : 0.0f;
+    }
+
+    /**
+     * @param channel The channel index.
+     * @return The sum of the channel over all zones.
+     */
+    public long getTotalSum(int channel) {
+        long sum = 0;
+        for (int i=channel; i<mSums.length; i+=BayerStatistics.NUM_OF_CHANNELS) {
+            sum += mSums[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return The number of pixels of each channel over all zones.
+     */
+    public long getTotalCount() {
+        long count = 0;
+        for (int c : mCounts) {
+            count += c;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,28 @@
+package com.med.util.awb;
+
+import com.med.util.ZoneStatistics;
+
+/**
+ * An AWB algorithm which estimates the color of the illuminant from the zone statistics.
+ * All algorithms read the same ZoneStatistics, so they can be compared on one frame
+ * without scanning the RAW data again.
+ */
+public interface AwbAlgorithm {
+    int ILLUMINANT_R = 0;
+    int ILLUMINANT_G = 1;
+    int ILLUMINANT_B = 2;
+    int ILLUMINANT_SIZE = 3;
+
+    /**
+     * @return The name of the algorithm, for logs and comparisons.
+     */
+    String getName();
+
+    /**
+     * To estimate the color of the illuminant.
+     * The WB gains are G/R and G/B of the estimated illuminant.
+     * @param statistics The zone statistics of the frame.
+     * @param illuminant Output. The R, G and B of the illuminant. (ILLUMINANT_*)
+     */
+    void estimate(ZoneStatistics statistics, float[] illuminant);
+}
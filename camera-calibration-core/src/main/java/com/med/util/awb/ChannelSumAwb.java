@@ -0,0 +1,24 @@
+package com.med.util.awb;
+
+import com.med.util.BayerStatistics;
+import com.med.util.ZoneStatistics;
+
+/**
+ * The "K over channel sum" method. K is the average of the four channel sums, and the gain of
+ * every channel is K over its sum. The gains are normalized by the smaller green gain.
+ */
+public class ChannelSumAwb implements AwbAlgorithm {
+    @Override
+    public String getName() {
+        return "ChannelSum";
+    }
+
+    @Override
+    public void estimate(ZoneStatistics statistics, float[] illuminant) {
+        // K / sum is the gain of a channel, so the illuminant is proportional to the sum
+        illuminant[ILLUMINANT_R] = statistics.getTotalSum(BayerStatistics.CHANNEL_R);
+        illuminant[ILLUMINANT_G] = Math.max(statistics.getTotalSum(BayerStatistics.CHANNEL_GR),
+                statistics.getTotalSum(BayerStatistics.CHANNEL_GB));
+        illuminant[ILLUMINANT_B] = statistics.getTotalSum(BayerStatistics.CHANNEL_B);
+    }
+}
@@ -0,0 +1,78 @@
+package com.med.util.awb;
+
+import com.med.util.BayerStatistics;
+import com.med.util.ZoneStatistics;
+
+/**
+ * The gray-edge algorithm. The Minkowski p-norm of the edges is assumed to be gray.
+ * The edges are the differences between the averages of adjacent zones, so the grid works
+ * as a pre-smoothing of the frame.
+ */
+public class GrayEdgeAwb implements AwbAlgorithm {
+    private static final double DEFAULT_NORM = 6.0;
+
+    private final double mNorm;
+
+    /**
+     * The zone averages of R, G and B. They are reused while the grid size is unchanged.
+     */
+    private float[] mAverages = new float[0];
+
+    public GrayEdgeAwb() {
+        this(DEFAULT_NORM);
+    }
+
+    /**
+     * Constructor.
+     * @param norm The Minkowski norm p. (p >= 1)
+     */
+    public GrayEdgeAwb(double norm) {
+        if (norm < 1.0) {
+            throw new IllegalArgumentException("norm must be >= 1");
+        }
+        mNorm = norm;
+    }
+
+    @Override
+    public String getName() {
+        return String.format("GrayEdge(p=%.1f)", mNorm);
+    }
+
+    @Override
+    public void estimate(ZoneStatistics statistics, float[] illuminant) {
+        int zonesX = statistics.getZonesX();
+        int zonesY = statistics.getZonesY();
+        int zoneCount = statistics.getZoneCount();
+        if (mAverages.length != zoneCount * ILLUMINANT_SIZE) {
+            mAverages = new float[zoneCount * ILLUMINANT_SIZE];
+        }
+        for (int zone=0; zone<zoneCount; zone++) {
+            int base = zone * ILLUMINANT_SIZE;
+            mAverages[base + ILLUMINANT_R] = statistics.getAverage(zone, BayerStatistics.CHANNEL_R);
+            mAverages[base + ILLUMINANT_G] = (statistics.getAverage(zone, BayerStatistics.CHANNEL_GR)
+                    + statistics.getAverage(zone, BayerStatistics.CHANNEL_GB)) / 2.0f;
+            mAverages[base + ILLUMINANT_B] = statistics.getAverage(zone, BayerStatistics.CHANNEL_B);
+        }
+
+        double[] sums = new double[ILLUMINANT_SIZE];
+        int count = 0;
+        for (int zoneY=0; zoneY<zonesY-1; zoneY++) {
+            for (int zoneX=0; zoneX<zonesX-1; zoneX++) {
+                int base = (zoneY * zonesX + zoneX) * ILLUMINANT_SIZE;
+                int right = base + ILLUMINANT_SIZE;
+                int bottom = base + zonesX * ILLUMINANT_SIZE;
+                for (int c=0; c<ILLUMINANT_SIZE; c++) {
+                    float dx = mAverages[right + c] - mAverages[base + c];
+                    float dy = mAverages[bottom + c] - mAverages[base + c];
+                    sums[c] += Math.pow(Math.sqrt(dx * dx + dy * dy), mNorm);
+                }
+                count++;
+            }
+        }
+
+        double inverse = 1.0 / mNorm;
+        for (int c=0; c<ILLUMINANT_SIZE; c++) {
+            illuminant[c] = (count > 0)? (float)Math.pow(sums[c] / count, inverse) : 0.0f;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.med.util.awb;
+
+import com.med.util.BayerStatistics;
+import com.med.util.ZoneStatistics;
+
+/**
+ * The gray-world algorithm. The average of the scene is assumed to be gray.
+ * A margin can be given to use the central zones only.
+ */
+public class GrayWorldAwb implements AwbAlgorithm {
+    private final float mMargin;
+
+    public GrayWorldAwb() {
+        this(0.0f);
+    }
+
+    /**
+     * Constructor.
+     * @param margin The fraction of zones to skip on each side, e.g. 0.25 to use the central half in both directions.
+     */
+    public GrayWorldAwb(float margin) {
+        if (margin < 0.0f || margin >= 0.5f) {
+            throw new IllegalArgumentException("margin must be in [0, 0.5)");
+        }
+        mMargin = margin;
+    }
+
+    @Override
+    public String getName() {
+        return (mMargin > 0.0f)? "GrayWorld(ROI)" : "GrayWorld";
+    }
+
+    @Override
+    public void estimate(ZoneStatistics statistics, float[] illuminant) {
+        int zonesX = statistics.getZonesX();
+        int zonesY = statistics.getZonesY();
+        int marginX = (int)(zonesX * mMargin);
+        int marginY = (int)(zonesY * mMargin);
+        long sumOfR = 0;
+        long sumOfG = 0;
+        long sumOfB = 0;
+        for (int zoneY=marginY; zoneY<zonesY-marginY; zoneY++) {
+            for (int zoneX=marginX; zoneX<zonesX-marginX; zoneX++) {
+                int zone = zoneY * zonesX + zoneX;
+                sumOfR += statistics.getSum(zone, BayerStatistics.CHANNEL_R);
+                sumOfG += statistics.getSum(zone, BayerStatistics.CHANNEL_GR) + statistics.getSum(zone, BayerStatistics.CHANNEL_GB);
+                sumOfB += statistics.getSum(zone, BayerStatistics.CHANNEL_B);
+            }
+        }
+        // every channel has the same number of pixels in a zone, so the sums are proportional to the averages
+        illuminant[ILLUMINANT_R] = sumOfR;
+        illuminant[ILLUMINANT_G] = sumOfG / 2.0f;
+        illuminant[ILLUMINANT_B] = sumOfB;
+    }
+}
@@ -0,0 +1,55 @@
+package com.med.util.awb;
+
+import com.med.util.BayerStatistics;
+import com.med.util.ZoneStatistics;
+
+/**
+ * The shades-of-gray algorithm. The Minkowski p-norm of the zone averages is assumed to be gray.
+ * p = 1 is gray-world, and a large p approaches white-patch.
+ */
+public class ShadesOfGrayAwb implements AwbAlgorithm {
+    private static final double DEFAULT_NORM = 6.0;
+
+    private final double mNorm;
+
+    public ShadesOfGrayAwb() {
+        this(DEFAULT_NORM);
+    }
+
+    /**
+     * Constructor.
+     * @param norm The Minkowski norm p. (p >= 1)
+     */
+    public ShadesOfGrayAwb(double norm) {
+        if (norm < 1.0) {
+            throw new IllegalArgumentException("norm must be >= 1");
+        }
+        mNorm = norm;
+    }
+
+    @Override
+    public String getName() {
+        return String.format("ShadesOfGray(p=%.1f)", mNorm);
+    }
+
+    @Override
+    public void estimate(ZoneStatistics statistics, float[] illuminant) {
+        double sumOfR = 0.0;
+        double sumOfG = 0.0;
+        double sumOfB = 0.0;
+        long count = 0;
+        for (int zone=0; zone<statistics.getZoneCount(); zone++) {
+            // every zone is weighted by its number of pixels
+            int weight = statistics.getCount(zone);
+            sumOfR += weight * Math.pow(statistics.getAverage(zone, BayerStatistics.CHANNEL_R), mNorm);
+            sumOfG += weight * Math.pow((statistics.getAverage(zone, BayerStatistics.CHANNEL_GR)
+                    + statistics.getAverage(zone, BayerStatistics.CHANNEL_GB)) / 2.0f, mNorm);
+            sumOfB += weight * Math.pow(statistics.getAverage(zone, BayerStatistics.CHANNEL_B), mNorm);
+            count += weight;
+        }
+        double inverse = 1.0 / mNorm;
+        illuminant[ILLUMINANT_R] = (float)Math.pow(sumOfR / count, inverse);
+        illuminant[ILLUMINANT_G] = (float)Math.pow(sumOfG / count, inverse);
+        illuminant[ILLUMINANT_B] = (float)Math.pow(sumOfB / count, inverse);
+    }
+}
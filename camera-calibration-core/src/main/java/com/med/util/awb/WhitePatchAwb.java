@@ -0,0 +1,31 @@
+package com.med.util.awb;
+
+import com.med.util.BayerStatistics;
+import com.med.util.ZoneStatistics;
+
+/**
+ * The white-patch (max-RGB) algorithm. The brightest response of every channel is assumed to be white.
+ * The maximum is taken over the zone averages, so a single hot pixel does not dominate.
+ */
+public class WhitePatchAwb implements AwbAlgorithm {
+    @Override
+    public String getName() {
+        return "WhitePatch";
+    }
+
+    @Override
+    public void estimate(ZoneStatistics statistics, float[] illuminant) {
+        float maxOfR = 0.0f;
+        float maxOfG = 0.0f;
+        float maxOfB = 0.0f;
+        for (int zone=0; zone<statistics.getZoneCount(); zone++) {
+            maxOfR = Math.max(maxOfR, statistics.getAverage(zone, BayerStatistics.CHANNEL_R));
+            maxOfG = Math.max(maxOfG, (statistics.getAverage(zone, BayerStatistics.CHANNEL_GR)
+                    + statistics.getAverage(zone, BayerStatistics.CHANNEL_GB)) / 2.0f);
+            maxOfB = Math.max(maxOfB, statistics.getAverage(zone, BayerStatistics.CHANNEL_B));
+        }
+        illuminant[ILLUMINANT_R] = maxOfR;
+        illuminant[ILLUMINANT_G] = maxOfG;
+        illuminant[ILLUMINANT_B] = maxOfB;
+    }
+}
@@ -0,0 +1,79 @@
+package com.med.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Synthetic Bayer frames for the unit tests.
+ */
+final class BayerFrames {
+    interface PixelFunction {
+        int valueAt(int x, int y);
+    }
+
+    private BayerFrames() {
+    }
+
+    /**
+     * @param colorFilter The color filter arrangement.
+     * @param channelValues The values of R, Gr, Gb and B.
+     * @return A frame where every pixel holds the value of its channel.
+     */
+    static PixelFunction uniform(int colorFilter, int[] channelValues) {
+        int[] positionValues = new int[BayerStatistics.NUM_OF_CHANNELS];
+        int[] positions = BayerStatistics.channelPositions(colorFilter);
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            positionValues[positions[channel]] = channelValues[channel];
+        }
+        return (x, y) -> positionValues[(y & 1) * 2 + (x & 1)];
+    }
+
+    /**
+     * @return A 16-bit frame with one pixel every pixelStride bytes and rowStride bytes per row.
+     */
+    static ByteBuffer raw16(int width, int height, int rowStride, int pixelStride, PixelFunction function) {
+        ByteBuffer buffer = ByteBuffer.allocate(rowStride * height).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                buffer.putShort(y * rowStride + x * pixelStride, (short)function.valueAt(x, y));
+            }
+        }
+        return buffer;
+    }
+
+    static ByteBuffer raw16(int width, int height, PixelFunction function) {
+        return raw16(width, height, width * 2, 2, function);
+    }
+
+    /**
+     * @return A MIPI RAW10 frame. Every 4 pixels take 5 bytes, the 5th byte holds the 2 LSBs of each pixel.
+     */
+    static ByteBuffer raw10(int width, int height, int rowStride, PixelFunction function) {
+        ByteBuffer buffer = ByteBuffer.allocate(rowStride * height);
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int value = function.valueAt(x, y);
+                int group = y * rowStride + (x / 4) * 5;
+                buffer.put(group + x % 4, (byte)(value >> 2));
+                buffer.put(group + 4, (byte)(buffer.get(group + 4) | ((value & 0x3) << ((x % 4) * 2))));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * @return A MIPI RAW12 frame. Every 2 pixels take 3 bytes, the 3rd byte holds the 4 LSBs of each pixel.
+     */
+    static ByteBuffer raw12(int width, int height, int rowStride, PixelFunction function) {
+        ByteBuffer buffer = ByteBuffer.allocate(rowStride * height);
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int value = function.valueAt(x, y);
+                int group = y * rowStride + (x / 2) * 3;
+                buffer.put(group + x % 2, (byte)(value >> 4));
+                buffer.put(group + 2, (byte)(buffer.get(group + 2) | ((value & 0xF) << ((x % 2) * 4))));
+            }
+        }
+        return buffer;
+    }
+}
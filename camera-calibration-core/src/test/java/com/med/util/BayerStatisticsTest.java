@@ -0,0 +1,167 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class BayerStatisticsTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final long QUADS = (WIDTH / 2) * (HEIGHT / 2);
+    private static final int[] CHANNEL_VALUES = {100, 200, 210, 50};
+
+    /**
+     * A frame with a ramp in both directions, so a swapped row or column changes the sums.
+     */
+    private static final BayerFrames.PixelFunction RAMP = (x, y) -> (x * 7 + y * 3 + (x & 1) * 64 + (y & 1) * 128) & 0x3FF;
+
+    @Test
+    public void compute_uniformFrame_sumsEveryChannelOfEveryColorFilter() {
+        int[] colorFilters = {BayerStatistics.COLOR_FILTER_RGGB, BayerStatistics.COLOR_FILTER_GRBG,
+                BayerStatistics.COLOR_FILTER_GBRG, BayerStatistics.COLOR_FILTER_BGGR};
+        for (int colorFilter : colorFilters) {
+            BayerStatistics statistics = new BayerStatistics(colorFilter);
+            statistics.compute(BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(colorFilter, CHANNEL_VALUES)), WIDTH, HEIGHT, WIDTH * 2, 2);
+            for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+                assertEquals(CHANNEL_VALUES[channel] * QUADS, statistics.getSum(channel));
+                assertEquals(QUADS, statistics.getCount(channel));
+                assertEquals(CHANNEL_VALUES[channel], statistics.getAverage(channel), 1e-3f);
+            }
+        }
+    }
+
+    @Test
+    public void compute_strides_areHonored() {
+        int rowStride = WIDTH * 4 + 64;
+        ByteBuffer buffer = BayerFrames.raw16(WIDTH, HEIGHT, rowStride, 4, RAMP);
+        BayerStatistics strided = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        strided.compute(buffer, WIDTH, HEIGHT, rowStride, 4);
+        BayerStatistics packed = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        packed.compute(BayerFrames.raw16(WIDTH, HEIGHT, RAMP), WIDTH, HEIGHT, WIDTH * 2, 2);
+        assertSameSums(packed, strided);
+    }
+
+    @Test
+    public void compute_parallel_matchesSequential() {
+        int height = 1080;
+        ByteBuffer buffer = BayerFrames.raw16(WIDTH, height, RAMP);
+        BayerStatistics sequential = new BayerStatistics(BayerStatistics.COLOR_FILTER_GRBG);
+        sequential.setHistogram(1024, 10);
+        sequential.compute(buffer, WIDTH, height, WIDTH * 2, 2);
+        BayerStatistics parallel = new BayerStatistics(BayerStatistics.COLOR_FILTER_GRBG);
+        parallel.setHistogram(1024, 10);
+        parallel.setParallel(new ForkJoinPool(4));
+        parallel.compute(buffer, WIDTH, height, WIDTH * 2, 2);
+        assertSameSums(sequential, parallel);
+        assertSameHistograms(sequential, parallel);
+    }
+
+    @Test
+    public void compute_packedFormats_matchRaw16() {
+        BayerStatistics raw16 = new BayerStatistics(BayerStatistics.COLOR_FILTER_BGGR);
+        raw16.setHistogram(1024, 10);
+        raw16.compute(BayerFrames.raw16(WIDTH, HEIGHT, RAMP), WIDTH, HEIGHT, WIDTH * 2, 2);
+
+        int raw10Stride = WIDTH * 5 / 4 + 16;
+        BayerStatistics raw10 = new BayerStatistics(BayerStatistics.COLOR_FILTER_BGGR);
+        raw10.setHistogram(1024, 10);
+        raw10.compute(BayerFrames.raw10(WIDTH, HEIGHT, raw10Stride, RAMP), BayerStatistics.FORMAT_RAW10, WIDTH, HEIGHT, raw10Stride, 0);
+        assertSameSums(raw16, raw10);
+        assertSameHistograms(raw16, raw10);
+
+        int raw12Stride = WIDTH * 3 / 2;
+        BayerStatistics raw12 = new BayerStatistics(BayerStatistics.COLOR_FILTER_BGGR);
+        raw12.setHistogram(1024, 10);
+        raw12.compute(BayerFrames.raw12(WIDTH, HEIGHT, raw12Stride, RAMP), BayerStatistics.FORMAT_RAW12, WIDTH, HEIGHT, raw12Stride, 0);
+        assertSameSums(raw16, raw12);
+        assertSameHistograms(raw16, raw12);
+    }
+
+    @Test
+    public void compute_sampled_packedFormatMatchesRaw16() {
+        BayerStatistics raw16 = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        raw16.setSamplingStep(4);
+        raw16.compute(BayerFrames.raw16(WIDTH, HEIGHT, RAMP), WIDTH, HEIGHT, WIDTH * 2, 2);
+        int raw10Stride = WIDTH * 5 / 4;
+        BayerStatistics raw10 = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        raw10.setSamplingStep(4);
+        raw10.compute(BayerFrames.raw10(WIDTH, HEIGHT, raw10Stride, RAMP), BayerStatistics.FORMAT_RAW10, WIDTH, HEIGHT, raw10Stride, 0);
+        assertSameSums(raw16, raw10);
+        assertEquals(QUADS / 16, raw16.getCount(BayerStatistics.CHANNEL_R));
+    }
+
+    @Test
+    public void compute_sampledUniformFrame_hasNoGainError() {
+        BayerStatistics statistics = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        statistics.setSamplingStep(4);
+        statistics.compute(BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, CHANNEL_VALUES)),
+                WIDTH, HEIGHT, WIDTH * 2, 2);
+        assertEquals(CHANNEL_VALUES[BayerStatistics.CHANNEL_R], statistics.getAverage(BayerStatistics.CHANNEL_R), 1e-3f);
+        assertEquals(0.0, statistics.estimateGainError(BayerStatistics.CHANNEL_R), 1e-9);
+        assertEquals(0.0, statistics.estimateGainError(BayerStatistics.CHANNEL_B), 1e-9);
+    }
+
+    @Test
+    public void compute_blackLevel_isSubtracted() {
+        int[] black = {64, 64, 64, 64};
+        BayerStatistics statistics = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        statistics.setBlackLevelPattern(black);
+        statistics.compute(BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, CHANNEL_VALUES)),
+                WIDTH, HEIGHT, WIDTH * 2, 2);
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            assertEquals(CHANNEL_VALUES[channel] - 64, statistics.getAverage(channel), 1e-3f);
+        }
+    }
+
+    @Test
+    public void compute_saturatedQuads_areExcluded() {
+        // the left half of the frame is clipped in the R pixels
+        BayerFrames.PixelFunction uniform = BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, CHANNEL_VALUES);
+        BayerFrames.PixelFunction clipped = (x, y) -> (x < WIDTH / 2 && (x & 1) == 0 && (y & 1) == 0)? 1023 : uniform.valueAt(x, y);
+        BayerStatistics statistics = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        statistics.setHistogram(1024, 10);
+        statistics.setSaturationLevel(1000);
+        statistics.compute(BayerFrames.raw16(WIDTH, HEIGHT, clipped), WIDTH, HEIGHT, WIDTH * 2, 2);
+        assertEquals(QUADS / 2, statistics.getCount(BayerStatistics.CHANNEL_GR));
+        assertEquals(CHANNEL_VALUES[BayerStatistics.CHANNEL_R], statistics.getAverage(BayerStatistics.CHANNEL_R), 1e-3f);
+        // the histogram still sees the clipped pixels
+        assertEquals(0.5f, statistics.getFractionAtOrAbove(BayerStatistics.CHANNEL_R, 1000), 1e-6f);
+        assertEquals(0.0f, statistics.getFractionAtOrAbove(BayerStatistics.CHANNEL_B, 1000), 1e-6f);
+    }
+
+    @Test
+    public void getFractionBelow_countsDarkPixels() {
+        BayerStatistics statistics = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        statistics.setHistogram(1024, 10);
+        statistics.compute(BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, CHANNEL_VALUES)),
+                WIDTH, HEIGHT, WIDTH * 2, 2);
+        assertEquals(1.0f, statistics.getFractionBelow(BayerStatistics.CHANNEL_B, 51), 1e-6f);
+        assertEquals(0.0f, statistics.getFractionBelow(BayerStatistics.CHANNEL_GR, 200), 1e-6f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compute_unsupportedFormat_throws() {
+        BayerStatistics statistics = new BayerStatistics(BayerStatistics.COLOR_FILTER_RGGB);
+        statistics.compute(ByteBuffer.allocate(16), 0x23, 2, 2, 4, 2);
+    }
+
+    private static void assertSameSums(BayerStatistics expected, BayerStatistics actual) {
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            assertEquals(expected.getSum(channel), actual.getSum(channel));
+            assertEquals(expected.getCount(channel), actual.getCount(channel));
+        }
+    }
+
+    private static void assertSameHistograms(BayerStatistics expected, BayerStatistics actual) {
+        int[] expectedHistogram = new int[expected.getHistogramBins()];
+        int[] actualHistogram = new int[actual.getHistogramBins()];
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            expected.getHistogram(channel, expectedHistogram);
+            actual.getHistogram(channel, actualHistogram);
+            assertArrayEquals(expectedHistogram, actualHistogram);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static org.junit.Assert.*;
+
+public class CalibrationStoreTest {
+    private static File newFile() throws IOException {
+        File file = File.createTempFile("calibration", ".bin");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+        return file;
+    }
+
+    @Test
+    public void save_thenLoad_keepsTheEntries() throws IOException {
+        File file = newFile();
+        CalibrationStore store = new CalibrationStore(file);
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 10000000L, 1000L, 1.9f, 1.6f));
+        store.put(new CalibrationStore.Entry("1", 3264, 2448, 400, 33000000L, 2000L, 2.1f, 1.4f));
+        store.save();
+
+        CalibrationStore loaded = new CalibrationStore(file);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.size());
+        CalibrationStore.Entry entry = loaded.get("0", 4000, 3000, 100, 10000000L);
+        assertNotNull(entry);
+        assertEquals(1000L, entry.getTimestamp());
+        assertEquals(1.9f, entry.getGainR(), 0.0f);
+        assertEquals(1.6f, entry.getGainB(), 0.0f);
+    }
+
+    @Test
+    public void put_sameKey_replacesTheEntry() {
+        CalibrationStore store = new CalibrationStore(new File("unused"));
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 10000000L, 1000L, 1.9f, 1.6f));
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 10000000L, 3000L, 2.0f, 1.5f));
+        assertEquals(1, store.size());
+        assertEquals(2.0f, store.get("0", 4000, 3000, 100, 10000000L).getGainR(), 0.0f);
+    }
+
+    @Test
+    public void getLatest_returnsTheLatestEntryOfTheSensorMode() {
+        CalibrationStore store = new CalibrationStore(new File("unused"));
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 10000000L, 1000L, 1.9f, 1.6f));
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 800, 30000000L, 2000L, 2.2f, 1.3f));
+        store.put(new CalibrationStore.Entry("0", 2000, 1500, 100, 10000000L, 3000L, 1.0f, 1.0f));
+        assertEquals(2.2f, store.getLatest("0", 4000, 3000).getGainR(), 0.0f);
+        assertNull(store.getLatest("1", 4000, 3000));
+    }
+
+    @Test
+    public void getNearest_returnsTheEntryOfTheNearestExposure() {
+        CalibrationStore store = new CalibrationStore(new File("unused"));
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 10000000L, 1000L, 1.9f, 1.6f));
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 800, 30000000L, 2000L, 2.2f, 1.3f));
+        store.put(new CalibrationStore.Entry("0", 2000, 1500, 200, 10000000L, 3000L, 1.0f, 1.0f));
+        // 1.5 stops above the first entry, 2.1 stops below the second
+        assertEquals(1.9f, store.getNearest("0", 4000, 3000, 200, 14000000L).getGainR(), 0.0f);
+        assertEquals(2.2f, store.getNearest("0", 4000, 3000, 400, 33000000L).getGainR(), 0.0f);
+        // the same ISO x exposure time at another ISO
+        assertEquals(2.2f, store.getNearest("0", 4000, 3000, 1600, 15000000L).getGainR(), 0.0f);
+        assertNull(store.getNearest("1", 4000, 3000, 100, 10000000L));
+    }
+
+    @Test
+    public void getNearest_equalDistanceOrNoExposure_takesTheLatest() {
+        CalibrationStore store = new CalibrationStore(new File("unused"));
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 0, 0L, 1000L, 1.5f, 1.5f));
+        assertEquals(1.5f, store.getNearest("0", 4000, 3000, 100, 10000000L).getGainR(), 0.0f);
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 5000000L, 2000L, 1.9f, 1.6f));
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 20000000L, 3000L, 2.2f, 1.3f));
+        assertEquals(2.2f, store.getNearest("0", 4000, 3000, 100, 10000000L).getGainR(), 0.0f);
+        // the current exposure is not known yet
+        assertEquals(2.2f, store.getNearest("0", 4000, 3000, 0, 0L).getGainR(), 0.0f);
+    }
+
+    @Test
+    public void put_tooManyEntries_dropsTheOldest() {
+        CalibrationStore store = new CalibrationStore(new File("unused"));
+        for (int i=0; i<CalibrationStore.MAX_ENTRIES + 2; i++) {
+            store.put(new CalibrationStore.Entry("0", 4000, 3000, 100 + i, 10000000L, i, 1.0f, 1.0f));
+        }
+        assertEquals(CalibrationStore.MAX_ENTRIES, store.size());
+        assertNull(store.get("0", 4000, 3000, 100, 10000000L));
+        assertNotNull(store.get("0", 4000, 3000, 102, 10000000L));
+    }
+
+    @Test
+    public void load_missingOrCorruptedFile_givesAnEmptyStore() throws IOException {
+        File file = newFile();
+        CalibrationStore store = new CalibrationStore(file);
+        assertFalse(store.load());
+
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 10000000L, 1000L, 1.9f, 1.6f));
+        store.save();
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(20);
+            raw.write(0x55);
+        }
+        assertFalse(store.load());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void save_thenLoad_keepsTheShadingMaps() throws IOException {
+        File file = newFile();
+        CalibrationStore store = new CalibrationStore(file);
+        float[] gains = new float[3 * 2 * 4];
+        for (int i=0; i<gains.length; i++) {
+            gains[i] = 1.0f + i * 0.1f;
+        }
+        store.put(new CalibrationStore.Entry("0", 4000, 3000, 100, 10000000L, 1000L, 1.9f, 1.6f));
+        store.putShadingMap(new CalibrationStore.ShadingMap("0", 4000, 3000, 3, 2, gains));
+        store.putShadingMap(new CalibrationStore.ShadingMap("0", 4000, 3000, 3, 2, gains.clone()));
+        store.save();
+
+        CalibrationStore loaded = new CalibrationStore(file);
+        assertTrue(loaded.load());
+        assertEquals(1, loaded.size());
+        CalibrationStore.ShadingMap map = loaded.getShadingMap("0", 4000, 3000);
+        assertNotNull(map);
+        assertEquals(3, map.getColumns());
+        assertEquals(2, map.getRows());
+        assertArrayEquals(gains, map.getGains(), 0.0f);
+        assertNull(loaded.getShadingMap("0", 2000, 1500));
+    }
+
+    @Test
+    public void load_version1File_hasNoShadingMaps() throws IOException {
+        File file = newFile();
+        CRC32 crc = new CRC32();
+        try (DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new FileOutputStream(file), crc))) {
+            output.writeInt(0x57424353);
+            output.writeInt(1);
+            output.writeInt(1);
+            output.writeUTF("0");
+            output.writeInt(4000);
+            output.writeInt(3000);
+            output.writeInt(100);
+            output.writeLong(10000000L);
+            output.writeLong(1000L);
+            output.writeFloat(1.9f);
+            output.writeFloat(1.6f);
+            output.writeLong(crc.getValue());
+        }
+        CalibrationStore store = new CalibrationStore(file);
+        assertTrue(store.load());
+        assertEquals(1.9f, store.getLatest("0", 4000, 3000).getGainR(), 0.0f);
+        assertNull(store.getShadingMap("0", 4000, 3000));
+    }
+}
@@ -0,0 +1,163 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ColorCheckerCalibratorTest {
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 320;
+    private static final int CHART_X = 40;
+    private static final int CHART_Y = 20;
+    private static final int PATCH_SIZE = 64;
+    private static final int BORDER = 6;
+    private static final int BLACK_LEVEL = 64;
+    private static final int WHITE_LEVEL = 1023;
+    private static final float SCALE = 600.0f;
+    private static final float GAIN_R = 2.0f;
+    private static final float GAIN_B = 1.6f;
+
+    /**
+     * The matrix of the synthetic sensor, from the white-balanced sensor RGB to linear sRGB.
+     */
+    private static final float[] SENSOR_CCM = {
+            1.6f, -0.4f, -0.2f,
+            -0.3f, 1.5f, -0.2f,
+            -0.1f, -0.5f, 1.6f
+    };
+
+    private static float[] invert(float[] m) {
+        float det = m[0] * (m[4] * m[8] - m[5] * m[7]) - m[1] * (m[3] * m[8] - m[5] * m[6]) + m[2] * (m[3] * m[7] - m[4] * m[6]);
+        return new float[] {
+                (m[4] * m[8] - m[5] * m[7]) / det, (m[2] * m[7] - m[1] * m[8]) / det, (m[1] * m[5] - m[2] * m[4]) / det,
+                (m[5] * m[6] - m[3] * m[8]) / det, (m[0] * m[8] - m[2] * m[6]) / det, (m[2] * m[3] - m[0] * m[5]) / det,
+                (m[3] * m[7] - m[4] * m[6]) / det, (m[1] * m[6] - m[0] * m[7]) / det, (m[0] * m[4] - m[1] * m[3]) / det
+        };
+    }
+
+    /**
+     * @return The RAW values of R, Gr, Gb and B of every patch, as the synthetic sensor sees the chart.
+     */
+    private static int[][] patchValues() {
+        float[] inverse = invert(SENSOR_CCM);
+        float[] reference = new float[3];
+        int[][] values = new int[ColorCheckerCalibrator.PATCH_COUNT][];
+        for (int patch=0; patch<ColorCheckerCalibrator.PATCH_COUNT; patch++) {
+            ColorCheckerCalibrator.getReference(patch, reference);
+            float[] sensor = new float[3];
+            for (int row=0; row<3; row++) {
+                sensor[row] = inverse[row*3] * reference[0] + inverse[row*3+1] * reference[1] + inverse[row*3+2] * reference[2];
+            }
+            int r = BLACK_LEVEL + Math.round(sensor[0] * SCALE / GAIN_R);
+            int g = BLACK_LEVEL + Math.round(sensor[1] * SCALE);
+            int b = BLACK_LEVEL + Math.round(sensor[2] * SCALE / GAIN_B);
+            values[patch] = new int[] {r, g, g, b};
+        }
+        return values;
+    }
+
+    /**
+     * @return A RGGB frame with the chart at (CHART_X, CHART_Y), black borders between the patches and gray around the chart.
+     */
+    private static BayerFrames.PixelFunction chart() {
+        int[][] values = patchValues();
+        BayerFrames.PixelFunction border = BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, new int[] {80, 80, 80, 80});
+        BayerFrames.PixelFunction surround = BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, new int[] {300, 300, 300, 300});
+        BayerFrames.PixelFunction[] patches = new BayerFrames.PixelFunction[values.length];
+        for (int i=0; i<values.length; i++) {
+            patches[i] = BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, values[i]);
+        }
+        return (x, y) -> {
+            int cx = x - CHART_X;
+            int cy = y - CHART_Y;
+            if (cx < 0 || cy < 0 || cx >= PATCH_SIZE * ColorCheckerCalibrator.PATCH_COLS || cy >= PATCH_SIZE * ColorCheckerCalibrator.PATCH_ROWS) {
+                return surround.valueAt(x, y);
+            }
+            if (cx % PATCH_SIZE < BORDER || cy % PATCH_SIZE < BORDER) {
+                return border.valueAt(x, y);
+            }
+            return patches[(cy / PATCH_SIZE) * ColorCheckerCalibrator.PATCH_COLS + cx / PATCH_SIZE].valueAt(x, y);
+        };
+    }
+
+    private static ColorCheckerCalibrator newCalibrator() {
+        ColorCheckerCalibrator calibrator = new ColorCheckerCalibrator(BayerStatistics.COLOR_FILTER_RGGB);
+        calibrator.setSensorLevels(new int[] {BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL}, WHITE_LEVEL);
+        return calibrator;
+    }
+
+    private static void assertSensorMatrix(ColorCheckerCalibrator calibrator) {
+        assertEquals(GAIN_R, calibrator.getGainR(), 0.02f);
+        assertEquals(GAIN_B, calibrator.getGainB(), 0.02f);
+        float[] ccm = calibrator.getCcm();
+        for (int i=0; i<9; i++) {
+            assertEquals("element " + i, SENSOR_CCM[i], ccm[i], 0.03f);
+        }
+        for (int row=0; row<3; row++) {
+            assertEquals(1.0f, ccm[row*3] + ccm[row*3+1] + ccm[row*3+2], 1e-5f);
+        }
+        assertTrue(calibrator.getError() < 0.01f);
+    }
+
+    @Test
+    public void calibrate_raw16Chart_recoversTheSensorMatrix() {
+        ByteBuffer frame = BayerFrames.raw16(WIDTH, HEIGHT, chart());
+        ColorCheckerCalibrator calibrator = newCalibrator();
+        assertNull(calibrator.calibrate(frame, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2,
+                CHART_X, CHART_Y, PATCH_SIZE * ColorCheckerCalibrator.PATCH_COLS, PATCH_SIZE * ColorCheckerCalibrator.PATCH_ROWS));
+        assertSensorMatrix(calibrator);
+    }
+
+    @Test
+    public void calibrate_raw10Chart_recoversTheSensorMatrix() {
+        int rowStride = WIDTH * 5 / 4;
+        ByteBuffer frame = BayerFrames.raw10(WIDTH, HEIGHT, rowStride, chart());
+        ColorCheckerCalibrator calibrator = newCalibrator();
+        assertNull(calibrator.calibrate(frame, BayerStatistics.FORMAT_RAW10, WIDTH, HEIGHT, rowStride, 0,
+                CHART_X, CHART_Y, PATCH_SIZE * ColorCheckerCalibrator.PATCH_COLS, PATCH_SIZE * ColorCheckerCalibrator.PATCH_ROWS));
+        assertSensorMatrix(calibrator);
+    }
+
+    @Test
+    public void calibrate_misalignedChart_isRejected() {
+        ByteBuffer frame = BayerFrames.raw16(WIDTH, HEIGHT, chart());
+        ColorCheckerCalibrator calibrator = newCalibrator();
+        String error = calibrator.calibrate(frame, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2,
+                CHART_X + PATCH_SIZE / 2, CHART_Y, PATCH_SIZE * ColorCheckerCalibrator.PATCH_COLS, PATCH_SIZE * ColorCheckerCalibrator.PATCH_ROWS);
+        assertNotNull(error);
+        float[] identity = {1.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 1.0f};
+        assertArrayEquals(identity, calibrator.getCcm(), 0.0f);
+    }
+
+    @Test
+    public void calibrate_regionOutOfTheFrame_isRejected() {
+        ByteBuffer frame = BayerFrames.raw16(WIDTH, HEIGHT, chart());
+        ColorCheckerCalibrator calibrator = newCalibrator();
+        int chartWidth = PATCH_SIZE * ColorCheckerCalibrator.PATCH_COLS;
+        int chartHeight = PATCH_SIZE * ColorCheckerCalibrator.PATCH_ROWS;
+        assertNotNull(calibrator.calibrate(frame, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2,
+                WIDTH - chartWidth + 2, CHART_Y, chartWidth, chartHeight));
+        assertNotNull(calibrator.calibrate(frame, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2,
+                CHART_X, -2, chartWidth, chartHeight));
+        assertNotNull(calibrator.calibrate(frame, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2,
+                CHART_X, CHART_Y, 24, 16));
+    }
+
+    @Test
+    public void solveMatrix_grayPatchesOnly_isDegenerate() {
+        float[] camera = new float[ColorCheckerCalibrator.PATCH_COUNT * 3];
+        float[] target = new float[camera.length];
+        boolean[] valid = new boolean[ColorCheckerCalibrator.PATCH_COUNT];
+        for (int patch=0; patch<valid.length; patch++) {
+            float level = 0.1f + patch * 0.03f;
+            for (int c=0; c<3; c++) {
+                camera[patch*3+c] = level;
+                target[patch*3+c] = level;
+            }
+            valid[patch] = true;
+        }
+        assertNull(ColorCheckerCalibrator.solveMatrix(camera, target, valid));
+    }
+}
@@ -0,0 +1,45 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ColorMatrixTest {
+    private static final int[] IDENTITY = {
+            10, 10,   0, 10,   0, 10,
+             0, 10,  10, 10,   0, 10,
+             0, 10,   0, 10,  10, 10
+    };
+
+    @Test
+    public void adaptSaturation_unitSaturation_keepsTheMatrix() {
+        float[] result = ColorMatrix.toFloat(ColorMatrix.adaptSaturation(IDENTITY, 1.0f));
+        assertArrayEquals(ColorMatrix.toFloat(IDENTITY), result, 0.005f);
+    }
+
+    @Test
+    public void adaptSaturation_zeroSaturation_givesEqualRgb() {
+        // without chroma every output channel is the luma, so the rows are the same
+        float[] result = ColorMatrix.toFloat(ColorMatrix.adaptSaturation(IDENTITY, 0.0f));
+        for (int col=0; col<3; col++) {
+            assertEquals(result[col], result[3 + col], 0.005f);
+            assertEquals(result[col], result[6 + col], 0.005f);
+        }
+    }
+
+    @Test
+    public void toRational_usesTheFixedDenominator() {
+        int[] rational = ColorMatrix.toRational(new float[] {1.0f, -0.5f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 1.0f});
+        assertEquals(1000000, rational[0]);
+        assertEquals(-500000, rational[2]);
+        assertEquals(ColorMatrix.DENOMINATOR, rational[3]);
+    }
+
+    @Test
+    public void multiply_byIdentity_keepsTheMatrix() {
+        float[] m = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        float[] identity = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        assertArrayEquals(m, ColorMatrix.multiply(m, identity), 0.0f);
+        assertArrayEquals(new float[] {1, 4, 7, 2, 5, 8, 3, 6, 9}, ColorMatrix.transpose(m), 0.0f);
+    }
+}
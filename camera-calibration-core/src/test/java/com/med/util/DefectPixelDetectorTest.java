@@ -0,0 +1,107 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DefectPixelDetectorTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    /**
+     * A noisy flat frame with a hot pixel at (10, 7), a dead pixel at (31, 20) and a hot pixel at the border (0, 0).
+     */
+    private static BayerFrames.PixelFunction flatFrame() {
+        Random random = new Random(16);
+        int[] noise = new int[WIDTH * HEIGHT];
+        for (int i=0; i<noise.length; i++) {
+            noise[i] = random.nextInt(21) - 10;
+        }
+        BayerFrames.PixelFunction flat = BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, new int[] {300, 500, 500, 250});
+        return (x, y) -> {
+            if ((x == 10 && y == 7) || (x == 0 && y == 0)) {
+                return 1023;
+            }
+            if (x == 31 && y == 20) {
+                return 20;
+            }
+            return flat.valueAt(x, y) + noise[y * WIDTH + x];
+        };
+    }
+
+    private static void assertDefects(DefectMap map) {
+        assertEquals(2, map.size());
+        assertEquals(10, map.getX(0));
+        assertEquals(7, map.getY(0));
+        assertEquals(DefectMap.TYPE_HOT, map.getType(0));
+        assertEquals(31, map.getX(1));
+        assertEquals(20, map.getY(1));
+        assertEquals(DefectMap.TYPE_DEAD, map.getType(1));
+        assertTrue(map.contains(31, 20));
+        assertFalse(map.contains(11, 7));
+    }
+
+    @Test
+    public void detect_raw16_findsTheHotAndDeadPixels() {
+        ByteBuffer frame = BayerFrames.raw16(WIDTH, HEIGHT, flatFrame());
+        DefectMap map = new DefectMap(WIDTH, HEIGHT);
+        assertTrue(new DefectPixelDetector().detect(frame, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2, map));
+        assertDefects(map);
+    }
+
+    @Test
+    public void detect_packedFormats_findTheSameDefects() {
+        int stride10 = WIDTH * 5 / 4 + 8;
+        DefectMap map10 = new DefectMap(WIDTH, HEIGHT);
+        assertTrue(new DefectPixelDetector().detect(BayerFrames.raw10(WIDTH, HEIGHT, stride10, flatFrame()),
+                BayerStatistics.FORMAT_RAW10, WIDTH, HEIGHT, stride10, 0, map10));
+        assertDefects(map10);
+
+        int stride12 = WIDTH * 3 / 2;
+        DefectMap map12 = new DefectMap(WIDTH, HEIGHT);
+        assertTrue(new DefectPixelDetector().detect(BayerFrames.raw12(WIDTH, HEIGHT, stride12, flatFrame()),
+                BayerStatistics.FORMAT_RAW12, WIDTH, HEIGHT, stride12, 0, map12));
+        assertDefects(map12);
+    }
+
+    @Test
+    public void detect_tooManyDefects_stops() {
+        ByteBuffer frame = BayerFrames.raw16(WIDTH, HEIGHT, (x, y) -> (x % 4 == 0 && y % 4 == 0)? 1000 : 100);
+        DefectPixelDetector detector = new DefectPixelDetector();
+        detector.setMaxDefects(10);
+        DefectMap map = new DefectMap(WIDTH, HEIGHT);
+        assertFalse(detector.detect(frame, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2, map));
+        assertEquals(10, map.size());
+    }
+
+    @Test
+    public void merge_thenSaveAndLoad_keepsRasterOrder() throws IOException {
+        DefectMap dark = new DefectMap(WIDTH, HEIGHT);
+        dark.append(5, 3, DefectMap.TYPE_HOT);
+        dark.append(40, 30, DefectMap.TYPE_HOT);
+        DefectMap flat = new DefectMap(WIDTH, HEIGHT);
+        flat.append(1, 2, DefectMap.TYPE_DEAD);
+        flat.append(40, 30, DefectMap.TYPE_DEAD);
+        flat.append(63, 47, DefectMap.TYPE_DEAD);
+        dark.merge(flat);
+        assertEquals(4, dark.size());
+
+        File file = File.createTempFile("defects", ".bin");
+        file.deleteOnExit();
+        dark.save(file);
+        DefectMap loaded = DefectMap.load(file);
+        assertNotNull(loaded);
+        assertEquals(4, loaded.size());
+        assertEquals(1, loaded.getX(0));
+        assertEquals(DefectMap.TYPE_HOT, loaded.getType(2));
+        assertEquals(63, loaded.getX(3));
+        assertTrue(loaded.contains(1, 2));
+        assertTrue(loaded.contains(63, 47));
+        assertFalse(loaded.contains(2, 1));
+    }
+}
@@ -0,0 +1,99 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameLatencyTrackerTest {
+    private static final long FRAME_INTERVAL = 33333333L;
+    private static final long MS = 1000000L;
+
+    /**
+     * To add a frame of the live view: the capture callback 2 ms after the exposure starts, the image at the given
+     * latency minus 5 ms, and the post 5 ms after the image.
+     */
+    private static void addFrame(FrameLatencyTracker tracker, int frame, long latency) {
+        long timestamp = 1000 * MS + frame * FRAME_INTERVAL;
+        tracker.onCaptureStarted(timestamp, timestamp + 2 * MS);
+        tracker.onImage(timestamp, timestamp + latency - 5 * MS);
+        tracker.onPosted(timestamp, timestamp + latency);
+    }
+
+    @Test
+    public void percentiles_ofRealtimeTimestamps() {
+        FrameLatencyTracker tracker = new FrameLatencyTracker(100);
+        tracker.setSensorRealtime(true);
+        for (int frame=0; frame<100; frame++) {
+            // 1 to 100 ms
+            addFrame(tracker, frame, (frame % 100 + 1) * MS);
+        }
+        assertEquals(50 * MS, tracker.getLatencyPercentile(50));
+        assertEquals(95 * MS, tracker.getLatencyPercentile(95));
+        assertEquals(99 * MS, tracker.getLatencyPercentile(99));
+        assertEquals(5 * MS, tracker.getProcessingPercentile(50));
+        assertEquals(100, tracker.getPostedCount());
+        // the posts are 1 ms further apart than the frames
+        assertEquals(99 * 1e9 / (99 * FRAME_INTERVAL + 99 * MS), tracker.getFps(), 0.01);
+    }
+
+    @Test
+    public void latency_withoutRealtimeTimestamps_isFromTheCaptureCallback() {
+        FrameLatencyTracker tracker = new FrameLatencyTracker();
+        for (int frame=0; frame<10; frame++) {
+            addFrame(tracker, frame, 40 * MS);
+        }
+        assertEquals(38 * MS, tracker.getLatencyPercentile(50));
+        tracker.setSensorRealtime(true);
+        assertEquals(40 * MS, tracker.getLatencyPercentile(50));
+    }
+
+    @Test
+    public void ring_keepsTheLatestFrames() {
+        FrameLatencyTracker tracker = new FrameLatencyTracker(16);
+        tracker.setSensorRealtime(true);
+        for (int frame=0; frame<40; frame++) {
+            addFrame(tracker, frame, (frame < 24? 200 : 30) * MS);
+        }
+        assertEquals(16, tracker.getPostedCount());
+        assertEquals(30 * MS, tracker.getLatencyPercentile(99));
+        assertEquals(30.0, tracker.getFps(), 0.01);
+    }
+
+    @Test
+    public void events_outOfOrder_areJoinedByTimestamp() {
+        FrameLatencyTracker tracker = new FrameLatencyTracker();
+        tracker.setSensorRealtime(true);
+        long first = 1000 * MS;
+        long second = first + FRAME_INTERVAL;
+        // the image of a frame may come before its capture callback
+        tracker.onImage(first, first + 30 * MS);
+        tracker.onCaptureStarted(second, second + MS);
+        tracker.onCaptureStarted(first, first + MS);
+        tracker.onPosted(first, first + 35 * MS);
+        // the second frame is dropped by acquireLatestImage(), the third is shown
+        long third = second + FRAME_INTERVAL;
+        tracker.onCaptureStarted(third, third + MS);
+        tracker.onImage(third, third + 20 * MS);
+        tracker.onPosted(third, third + 24 * MS);
+
+        assertEquals(2, tracker.getPostedCount());
+        assertEquals(1, tracker.getDroppedCount());
+        assertEquals(24 * MS, tracker.getLatencyPercentile(50));
+        assertEquals(35 * MS, tracker.getLatencyPercentile(100));
+        assertEquals(5 * MS, tracker.getProcessingPercentile(100));
+        String report = tracker.getReport();
+        assertTrue(report, report.startsWith("frames: 3, posted: 2, dropped: 1"));
+        assertTrue(report, report.contains(first + ",1.000,30.000,35.000,35.000\n"));
+        assertTrue(report, report.contains(second + ",1.000,,,\n"));
+    }
+
+    @Test
+    public void empty_hasNoLatency() {
+        FrameLatencyTracker tracker = new FrameLatencyTracker();
+        assertEquals(-1, tracker.getLatencyPercentile(50));
+        assertEquals(0.0f, tracker.getFps(), 0.0f);
+        addFrame(tracker, 0, 30 * MS);
+        tracker.clear();
+        assertEquals(0, tracker.getPostedCount());
+    }
+}
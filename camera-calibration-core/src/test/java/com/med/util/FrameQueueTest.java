@@ -0,0 +1,118 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameQueueTest {
+    private final List<Integer> mRecycled = new ArrayList<>();
+
+    private FrameQueue<Integer> queue(int capacity, int policy) {
+        return new FrameQueue<>(capacity, policy, frame -> {
+            synchronized (mRecycled) {
+                mRecycled.add(frame);
+            }
+        });
+    }
+
+    @Test
+    public void dropOldest_keepsTheLatestFrames() throws InterruptedException {
+        FrameQueue<Integer> queue = queue(2, FrameQueue.POLICY_DROP_OLDEST);
+        for (int frame=0; frame<5; frame++) {
+            queue.offer(frame);
+        }
+        assertEquals(Integer.valueOf(3), queue.take());
+        assertEquals(Integer.valueOf(4), queue.take());
+        assertEquals(3, queue.getDroppedCount());
+        assertEquals(5, queue.getOfferedCount());
+        assertEquals(2, queue.getTakenCount());
+        assertEquals(Arrays.asList(0, 1, 2), mRecycled);
+    }
+
+    @Test
+    public void dropNewest_keepsTheFirstFrames() throws InterruptedException {
+        FrameQueue<Integer> queue = queue(2, FrameQueue.POLICY_DROP_NEWEST);
+        for (int frame=0; frame<5; frame++) {
+            queue.offer(frame);
+        }
+        assertEquals(Integer.valueOf(0), queue.take());
+        queue.offer(5);
+        assertEquals(Integer.valueOf(1), queue.take());
+        assertEquals(Integer.valueOf(5), queue.take());
+        assertEquals(3, queue.getDroppedCount());
+        assertEquals(Arrays.asList(2, 3, 4), mRecycled);
+    }
+
+    @Test
+    public void block_waitsForTheConsumerAndDropsNothing() throws Exception {
+        FrameQueue<Integer> queue = queue(1, FrameQueue.POLICY_BLOCK);
+        List<Integer> taken = new ArrayList<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                Integer frame;
+                while ((frame = queue.take()) != null) {
+                    Thread.sleep(1);
+                    taken.add(frame);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        for (int frame=0; frame<20; frame++) {
+            queue.offer(frame);
+        }
+        while (queue.size() > 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        queue.close();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertEquals(20, taken.size());
+        for (int frame=0; frame<20; frame++) {
+            assertEquals(Integer.valueOf(frame), taken.get(frame));
+        }
+        assertEquals(0, queue.getDroppedCount());
+        assertTrue(queue.getBlockedCount() > 0);
+    }
+
+    @Test
+    public void lateFrames_areCounted() throws InterruptedException {
+        FrameQueue<Integer> queue = queue(4, FrameQueue.POLICY_DROP_OLDEST);
+        queue.setLateThreshold(1000000L);
+        queue.offer(0);
+        queue.offer(1);
+        Thread.sleep(5);
+        queue.take();
+        queue.setLateThreshold(Long.MAX_VALUE);
+        queue.take();
+        assertEquals(1, queue.getLateCount());
+    }
+
+    @Test
+    public void close_recyclesTheWaitingFramesAndReleasesTheThreads() throws Exception {
+        FrameQueue<Integer> queue = queue(1, FrameQueue.POLICY_BLOCK);
+        queue.offer(0);
+        Thread producer = new Thread(() -> {
+            try {
+                queue.offer(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        while (queue.getBlockedCount() == 0) {
+            Thread.sleep(1);
+        }
+        queue.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertNull(queue.take());
+        assertEquals(Arrays.asList(0, 1), mRecycled);
+    }
+}
@@ -0,0 +1,85 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class IlluminantGainTableTest {
+    /**
+     * Typical gains of a sensor: warm light needs a low R gain and a high B gain.
+     */
+    private static IlluminantGainTable typicalTable() {
+        IlluminantGainTable table = new IlluminantGainTable();
+        table.setGains(IlluminantGainTable.ILLUMINANT_A, 1.2f, 2.8f);
+        table.setGains(IlluminantGainTable.ILLUMINANT_TL84, 1.6f, 2.1f);
+        table.setGains(IlluminantGainTable.ILLUMINANT_D65, 2.2f, 1.5f);
+        return table;
+    }
+
+    @Test
+    public void lookup_atAReferenceIlluminant_returnsItsGains() {
+        IlluminantGainTable table = typicalTable();
+        float[] result = new float[IlluminantGainTable.LOOKUP_SIZE];
+        assertTrue(table.lookup(1.6f, 2.1f, result));
+        assertEquals(1.6f, result[IlluminantGainTable.LOOKUP_GAIN_R], 1e-4f);
+        assertEquals(2.1f, result[IlluminantGainTable.LOOKUP_GAIN_B], 1e-4f);
+        assertEquals(4000.0f, result[IlluminantGainTable.LOOKUP_CCT], 1.0f);
+    }
+
+    @Test
+    public void lookup_betweenIlluminants_interpolates() {
+        IlluminantGainTable table = typicalTable();
+        float[] result = new float[IlluminantGainTable.LOOKUP_SIZE];
+        // halfway between TL84 and D65 on the ln(gainB / gainR) axis, with a green-magenta error
+        float x = (float)((Math.log(2.1 / 1.6) + Math.log(1.5 / 2.2)) / 2.0);
+        assertTrue(table.lookup(1.5f, 1.5f * (float)Math.exp(x), result));
+        assertEquals((float)Math.sqrt(1.6 * 2.2), result[IlluminantGainTable.LOOKUP_GAIN_R], 1e-3f);
+        assertEquals((float)Math.sqrt(2.1 * 1.5), result[IlluminantGainTable.LOOKUP_GAIN_B], 1e-3f);
+        float cct = result[IlluminantGainTable.LOOKUP_CCT];
+        assertTrue(cct > 4000.0f && cct < 6504.0f);
+    }
+
+    @Test
+    public void lookup_outsideTheTable_isClamped() {
+        IlluminantGainTable table = typicalTable();
+        float[] result = new float[IlluminantGainTable.LOOKUP_SIZE];
+        assertTrue(table.lookup(0.8f, 3.5f, result));
+        assertEquals(1.2f, result[IlluminantGainTable.LOOKUP_GAIN_R], 1e-4f);
+        assertEquals(2856.0f, result[IlluminantGainTable.LOOKUP_CCT], 1.0f);
+        assertTrue(table.lookup(3.0f, 1.0f, result));
+        assertEquals(1.5f, result[IlluminantGainTable.LOOKUP_GAIN_B], 1e-4f);
+        assertEquals(6504.0f, result[IlluminantGainTable.LOOKUP_CCT], 1.0f);
+    }
+
+    @Test
+    public void lookup_emptyOrSingleIlluminant() {
+        IlluminantGainTable table = new IlluminantGainTable();
+        float[] result = new float[IlluminantGainTable.LOOKUP_SIZE];
+        assertFalse(table.lookup(1.0f, 1.0f, result));
+        table.setGains(IlluminantGainTable.ILLUMINANT_D50, 2.0f, 1.7f);
+        assertTrue(table.lookup(1.0f, 1.0f, result));
+        assertEquals(2.0f, result[IlluminantGainTable.LOOKUP_GAIN_R], 1e-4f);
+        assertEquals(5003.0f, result[IlluminantGainTable.LOOKUP_CCT], 1.0f);
+    }
+
+    @Test
+    public void save_thenLoad_keepsTheGains() throws IOException {
+        File file = File.createTempFile("illuminants", ".bin");
+        file.deleteOnExit();
+        typicalTable().save(file);
+
+        IlluminantGainTable loaded = new IlluminantGainTable();
+        assertTrue(loaded.load(file));
+        assertEquals(3, loaded.getCount());
+        assertFalse(loaded.hasGains(IlluminantGainTable.ILLUMINANT_D50));
+        assertEquals(2.8f, loaded.getGainB(IlluminantGainTable.ILLUMINANT_A), 0.0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setGains_invalidGain_throws() {
+        new IlluminantGainTable().setGains(IlluminantGainTable.ILLUMINANT_A, 0.0f, 1.0f);
+    }
+}
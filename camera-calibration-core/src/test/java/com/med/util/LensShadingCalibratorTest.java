@@ -0,0 +1,98 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class LensShadingCalibratorTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int BLACK_LEVEL = 64;
+
+    /**
+     * The falloff of R, Gr, Gb and B at the corners. Red falls off the most, as it does on most lenses.
+     */
+    private static final float[] FALLOFF = {0.6f, 0.5f, 0.5f, 0.45f};
+    private static final int[] CENTER = {700, 900, 900, 600};
+
+    /**
+     * @return The relative level of the channel at the pixel: 1 at the center, 1 - FALLOFF at the corners.
+     */
+    private static float shading(int channel, float x, float y) {
+        float dx = (x - WIDTH / 2.0f) / (WIDTH / 2.0f);
+        float dy = (y - HEIGHT / 2.0f) / (HEIGHT / 2.0f);
+        return 1.0f - FALLOFF[channel] * (dx * dx + dy * dy) / 2.0f;
+    }
+
+    private static ByteBuffer flatField(float exposure) {
+        int[] positions = BayerStatistics.channelPositions(BayerStatistics.COLOR_FILTER_RGGB);
+        int[] positionChannel = new int[BayerStatistics.NUM_OF_CHANNELS];
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            positionChannel[positions[channel]] = channel;
+        }
+        return BayerFrames.raw16(WIDTH, HEIGHT, (x, y) -> {
+            int channel = positionChannel[(y & 1) * 2 + (x & 1)];
+            return BLACK_LEVEL + Math.round(CENTER[channel] * exposure * shading(channel, x, y));
+        });
+    }
+
+    private static LensShadingCalibrator newCalibrator() {
+        LensShadingCalibrator calibrator = new LensShadingCalibrator(LensShadingCalibrator.DEFAULT_COLUMNS,
+                LensShadingCalibrator.DEFAULT_ROWS, BayerStatistics.COLOR_FILTER_RGGB);
+        calibrator.setSensorLevels(new int[] {BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL}, 1023);
+        return calibrator;
+    }
+
+    @Test
+    public void calibrate_vignettedFlatField_invertsTheShading() {
+        LensShadingCalibrator calibrator = newCalibrator();
+        assertNull(calibrator.calibrate(flatField(1.0f), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+
+        int columns = calibrator.getColumns();
+        int rows = calibrator.getRows();
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            float minGain = Float.MAX_VALUE;
+            for (int row=0; row<rows; row++) {
+                for (int column=0; column<columns; column++) {
+                    minGain = Math.min(minGain, calibrator.getGain(column, row, channel));
+                }
+            }
+            assertEquals(1.0f, minGain, 0.0f);
+
+            // the inner points are centered on their blocks
+            for (int row=1; row<rows-1; row++) {
+                for (int column=1; column<columns-1; column++) {
+                    float x = column * (WIDTH - 1) / (float)(columns - 1);
+                    float y = row * (HEIGHT - 1) / (float)(rows - 1);
+                    float expected = shading(channel, WIDTH / 2.0f, HEIGHT / 2.0f) / shading(channel, x, y);
+                    assertEquals(String.format("channel %d (%d, %d)", channel, column, row),
+                            expected, calibrator.getGain(column, row, channel), expected * 0.02f);
+                }
+            }
+            // the corners have the strongest shading
+            assertTrue(calibrator.getGain(0, 0, channel) > calibrator.getGain(1, 1, channel));
+            assertTrue(calibrator.getGain(columns - 1, rows - 1, channel) > calibrator.getGain(columns - 2, rows - 2, channel));
+        }
+        assertTrue(calibrator.getGain(0, 0, BayerStatistics.CHANNEL_R) > calibrator.getGain(0, 0, BayerStatistics.CHANNEL_B));
+    }
+
+    @Test
+    public void calibrate_underexposedFlatField_keepsTheMap() {
+        LensShadingCalibrator calibrator = newCalibrator();
+        assertNotNull(calibrator.calibrate(flatField(0.05f), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertEquals(1.0f, calibrator.getGain(0, 0, BayerStatistics.CHANNEL_R), 0.0f);
+    }
+
+    @Test
+    public void calibrate_darkCorner_isRejected() {
+        ByteBuffer frame = flatField(1.0f);
+        for (int y=0; y<HEIGHT/8; y++) {
+            for (int x=0; x<WIDTH/8; x++) {
+                frame.putShort((y * WIDTH + x) * 2, (short)(BLACK_LEVEL + 2));
+            }
+        }
+        assertNotNull(newCalibrator().calibrate(frame, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+    }
+}
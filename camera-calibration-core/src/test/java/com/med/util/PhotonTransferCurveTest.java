@@ -0,0 +1,91 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PhotonTransferCurveTest {
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 192;
+    private static final int BLACK_LEVEL = 64;
+    private static final int WHITE_LEVEL = 1023;
+
+    /**
+     * The synthetic sensor: electrons per DN and read noise in electrons.
+     */
+    private static final double CONVERSION_GAIN = 2.0;
+    private static final double READ_NOISE = 3.0;
+
+    /**
+     * @return A frame of a uniform target with shot noise, read noise and a fixed pattern of +/- 3%.
+     */
+    private static ByteBuffer frame(double signal, long seed, int format) {
+        Random random = new Random(seed);
+        BayerFrames.PixelFunction function = (x, y) -> {
+            double pattern = 1.0 + 0.03 * (((x * 7919 + y * 104729) % 21) - 10) / 10.0;
+            double level = signal * pattern;
+            double variance = level / CONVERSION_GAIN + (READ_NOISE / CONVERSION_GAIN) * (READ_NOISE / CONVERSION_GAIN);
+            long value = BLACK_LEVEL + Math.round(level + random.nextGaussian() * Math.sqrt(variance));
+            return (int)Math.max(0, Math.min(WHITE_LEVEL, value));
+        };
+        if (format == BayerStatistics.FORMAT_RAW10) {
+            return BayerFrames.raw10(WIDTH, HEIGHT, WIDTH * 5 / 4, function);
+        }
+        return BayerFrames.raw16(WIDTH, HEIGHT, function);
+    }
+
+    private static PhotonTransferCurve measure(int format, int rowStride, int pixelStride, double[] levels) {
+        PhotonTransferCurve curve = new PhotonTransferCurve(BayerStatistics.COLOR_FILTER_RGGB);
+        curve.setSensorLevels(new int[] {BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL}, WHITE_LEVEL);
+        for (int i=0; i<levels.length; i++) {
+            assertNull(curve.addPair(frame(levels[i], i * 2, format), frame(levels[i], i * 2 + 1, format),
+                    format, rowStride, pixelStride, 0, 0, WIDTH, HEIGHT));
+        }
+        return curve;
+    }
+
+    @Test
+    public void fit_raw16Pairs_recoversConversionGainAndReadNoise() {
+        double[] levels = {0, 0, 10, 25, 50, 100, 200, 400, 600};
+        PhotonTransferCurve curve = measure(BayerStatistics.FORMAT_RAW16, WIDTH * 2, 2, levels);
+        assertEquals(levels.length, curve.getPointCount());
+        assertEquals(400.0f, curve.getSignal(7, BayerStatistics.CHANNEL_GR), 400 * 0.01f);
+        assertNull(curve.fit());
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            assertEquals("channel " + channel, CONVERSION_GAIN, curve.getConversionGain(channel), CONVERSION_GAIN * 0.05);
+            // the rounding to DN adds 1/12 DN^2 to the read noise
+            assertEquals("channel " + channel, READ_NOISE, curve.getReadNoise(channel), 0.3);
+        }
+    }
+
+    @Test
+    public void fit_raw10Pairs_matchesRaw16() {
+        double[] levels = {20, 150, 300, 500};
+        PhotonTransferCurve raw16 = measure(BayerStatistics.FORMAT_RAW16, WIDTH * 2, 2, levels);
+        PhotonTransferCurve raw10 = measure(BayerStatistics.FORMAT_RAW10, WIDTH * 5 / 4, 0, levels);
+        for (int point=0; point<levels.length; point++) {
+            for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+                assertEquals(raw16.getSignal(point, channel), raw10.getSignal(point, channel), 1e-3f);
+                assertEquals(raw16.getVariance(point, channel), raw10.getVariance(point, channel), 1e-3f);
+            }
+        }
+    }
+
+    @Test
+    public void fit_clippedPointsAreLeftOut() {
+        double[] levels = {0, 100, 300, 500, 900, 940};
+        PhotonTransferCurve curve = measure(BayerStatistics.FORMAT_RAW16, WIDTH * 2, 2, levels);
+        assertNull(curve.fit());
+        assertEquals(CONVERSION_GAIN, curve.getConversionGain(BayerStatistics.CHANNEL_R), CONVERSION_GAIN * 0.05);
+    }
+
+    @Test
+    public void fit_singleLevel_isRejected() {
+        PhotonTransferCurve curve = measure(BayerStatistics.FORMAT_RAW16, WIDTH * 2, 2, new double[] {200, 200});
+        assertNotNull(curve.fit());
+        assertEquals(0.0f, curve.getConversionGain(BayerStatistics.CHANNEL_B), 0.0f);
+    }
+}
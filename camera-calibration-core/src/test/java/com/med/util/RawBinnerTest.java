@@ -0,0 +1,113 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class RawBinnerTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int BLACK_LEVEL = 64;
+    private static final int WHITE_LEVEL = 1023;
+    private static final int[] BLACK_LEVEL_PATTERN = {BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL, BLACK_LEVEL};
+
+    private static RawBinner linearBinner(int colorFilter) {
+        RawBinner binner = new RawBinner(colorFilter);
+        binner.setSensorLevels(BLACK_LEVEL_PATTERN, WHITE_LEVEL);
+        binner.setGamma(1.0f);
+        return binner;
+    }
+
+    private static int[] bin(RawBinner binner, ByteBuffer buffer, int format, int rowStride, int pixelStride, int step) {
+        int[] argb = new int[RawBinner.outputSize(WIDTH, step) * RawBinner.outputSize(HEIGHT, step)];
+        binner.bin(buffer, format, WIDTH, HEIGHT, rowStride, pixelStride, step, argb);
+        return argb;
+    }
+
+    /**
+     * @return The linear 8-bit output of a value above black.
+     */
+    private static int expected(double level) {
+        return (int)Math.round(255.0 * Math.min(level / (WHITE_LEVEL - BLACK_LEVEL), 1.0));
+    }
+
+    @Test
+    public void bin_uniformFrame_appliesGainsPerChannel() {
+        for (int colorFilter=BayerStatistics.COLOR_FILTER_RGGB; colorFilter<=BayerStatistics.COLOR_FILTER_BGGR; colorFilter++) {
+            int[] values = {BLACK_LEVEL + 200, BLACK_LEVEL + 400, BLACK_LEVEL + 420, BLACK_LEVEL + 300};
+            ByteBuffer buffer = BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(colorFilter, values));
+            RawBinner binner = linearBinner(colorFilter);
+            binner.setGains(2.0f, 1.0f, 1.0f, 1.5f);
+            int[] argb = bin(binner, buffer, BayerStatistics.FORMAT_RAW16, WIDTH * 2, 2, 1);
+            assertEquals(WIDTH / 2 * HEIGHT / 2, argb.length);
+            for (int pixel : argb) {
+                String filter = "color filter " + colorFilter;
+                assertEquals(filter, 0xFF, pixel >>> 24);
+                assertEquals(filter, expected(400), (pixel >> 16) & 0xFF, 1);
+                assertEquals(filter, expected(410), (pixel >> 8) & 0xFF, 1);
+                assertEquals(filter, expected(450), pixel & 0xFF, 1);
+            }
+        }
+    }
+
+    @Test
+    public void bin_clipsBelowBlackAndAboveWhite() {
+        int[] values = {0, WHITE_LEVEL, WHITE_LEVEL, 4000};
+        ByteBuffer buffer = BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, values));
+        RawBinner binner = linearBinner(BayerStatistics.COLOR_FILTER_RGGB);
+        binner.setGains(1.0f, 2.0f, 2.0f, 1.0f);
+        assertEquals(0xFF00FFFF, bin(binner, buffer, BayerStatistics.FORMAT_RAW16, WIDTH * 2, 2, 1)[0]);
+    }
+
+    @Test
+    public void bin_gamma_brightensMidTones() {
+        int[] values = {BLACK_LEVEL + 200, BLACK_LEVEL + 200, BLACK_LEVEL + 200, BLACK_LEVEL + 200};
+        ByteBuffer buffer = BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, values));
+        RawBinner binner = new RawBinner(BayerStatistics.COLOR_FILTER_RGGB);
+        binner.setSensorLevels(BLACK_LEVEL_PATTERN, WHITE_LEVEL);
+        int gray = bin(binner, buffer, BayerStatistics.FORMAT_RAW16, WIDTH * 2, 2, 1)[0] & 0xFF;
+        assertEquals(255.0 * Math.pow(200.0 / (WHITE_LEVEL - BLACK_LEVEL), 1 / RawBinner.DEFAULT_GAMMA), gray, 1.0);
+    }
+
+    @Test
+    public void bin_packedFormatsAndStep_matchRaw16() {
+        Random random = new Random(22);
+        int[] frame = new int[WIDTH * HEIGHT];
+        for (int i=0; i<frame.length; i++) {
+            frame[i] = random.nextInt(WHITE_LEVEL + 1);
+        }
+        BayerFrames.PixelFunction function = (x, y) -> frame[y * WIDTH + x];
+        RawBinner binner = linearBinner(BayerStatistics.COLOR_FILTER_GRBG);
+        binner.setGains(1.8f, 1.0f, 1.0f, 1.4f);
+        int[] raw16 = bin(binner, BayerFrames.raw16(WIDTH, HEIGHT, WIDTH * 2 + 8, 2, function), BayerStatistics.FORMAT_RAW16, WIDTH * 2 + 8, 2, 1);
+        assertArrayEquals(raw16, bin(binner, BayerFrames.raw10(WIDTH, HEIGHT, WIDTH * 5 / 4 + 4, function), BayerStatistics.FORMAT_RAW10, WIDTH * 5 / 4 + 4, 0, 1));
+        assertArrayEquals(raw16, bin(binner, BayerFrames.raw12(WIDTH, HEIGHT, WIDTH * 3 / 2, function), BayerStatistics.FORMAT_RAW12, WIDTH * 3 / 2, 0, 1));
+
+        // a step of 2 takes every other quad of every other quad row
+        int[] stepped = bin(binner, BayerFrames.raw16(WIDTH, HEIGHT, function), BayerStatistics.FORMAT_RAW16, WIDTH * 2, 2, 2);
+        int outputWidth = RawBinner.outputSize(WIDTH, 2);
+        for (int row=0; row<RawBinner.outputSize(HEIGHT, 2); row++) {
+            for (int column=0; column<outputWidth; column++) {
+                assertEquals(raw16[row * 2 * (WIDTH / 2) + column * 2], stepped[row * outputWidth + column]);
+            }
+        }
+    }
+
+    @Test
+    public void bin_parallel_matchesSerial() {
+        Random random = new Random(7);
+        BayerFrames.PixelFunction function = (x, y) -> random.nextInt(WHITE_LEVEL + 1);
+        ByteBuffer buffer = BayerFrames.raw16(WIDTH, HEIGHT * 4, function);
+        RawBinner binner = linearBinner(BayerStatistics.COLOR_FILTER_BGGR);
+        int[] serial = new int[WIDTH / 2 * HEIGHT * 2];
+        binner.bin(buffer, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT * 4, WIDTH * 2, 2, 1, serial);
+        binner.setParallel(new ForkJoinPool(4));
+        int[] parallel = new int[serial.length];
+        binner.bin(buffer, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT * 4, WIDTH * 2, 2, 1, parallel);
+        assertArrayEquals(serial, parallel);
+    }
+}
@@ -0,0 +1,104 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RawFrameRingTest {
+    private static final long FRAME_INTERVAL = 33333333L;
+
+    private static ByteBuffer frame(int bytes, int value) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes);
+        for (int i=0; i<bytes; i++) {
+            buffer.put((byte)(value + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void add(RawFrameRing<String> ring, long timestamp, ByteBuffer data) {
+        ring.add(timestamp, data, BayerStatistics.FORMAT_RAW16, 4, 2, 8, 2);
+    }
+
+    @Test
+    public void add_copiesTheFrameAndKeepsTheSource() {
+        RawFrameRing<String> ring = new RawFrameRing<>(2, 16);
+        ByteBuffer data = frame(16, 7);
+        data.position(2);
+        int slot = ring.add(1000, data, BayerStatistics.FORMAT_RAW10, 8, 1, 14, 0);
+        assertEquals(2, data.position());
+        byte[] bytes = ring.copyData(slot);
+        assertEquals(14, bytes.length);
+        assertEquals(9, bytes[0]);
+        assertEquals(BayerStatistics.FORMAT_RAW10, ring.getFormat(slot));
+        assertEquals(14, ring.getRowStride(slot));
+        // the copy leaves the frame as it is
+        assertArrayEquals(bytes, ring.copyData(slot));
+    }
+
+    @Test
+    public void ring_keepsTheLatestFrames() {
+        RawFrameRing<String> ring = new RawFrameRing<>(3, 16);
+        for (int frame=0; frame<5; frame++) {
+            add(ring, frame * FRAME_INTERVAL, frame(16, frame));
+        }
+        assertEquals(3, ring.size());
+        assertEquals(4 * FRAME_INTERVAL, ring.getNewestTimestamp());
+        int oldest = ring.findClosest(0);
+        assertEquals(2 * FRAME_INTERVAL, ring.getTimestamp(oldest));
+        assertEquals(2, ring.copyData(oldest)[0]);
+    }
+
+    @Test
+    public void findClosest_picksTheNearestTimestamp() {
+        RawFrameRing<String> ring = new RawFrameRing<>(4, 16);
+        assertEquals(-1, ring.findClosest(0));
+        assertEquals(Long.MIN_VALUE, ring.getNewestTimestamp());
+        for (int frame=0; frame<4; frame++) {
+            add(ring, frame * FRAME_INTERVAL, frame(16, frame));
+        }
+        assertEquals(FRAME_INTERVAL, ring.getTimestamp(ring.findClosest(FRAME_INTERVAL + FRAME_INTERVAL / 3)));
+        assertEquals(2 * FRAME_INTERVAL, ring.getTimestamp(ring.findClosest(FRAME_INTERVAL + FRAME_INTERVAL * 2 / 3)));
+        assertEquals(3 * FRAME_INTERVAL, ring.getTimestamp(ring.findClosest(10 * FRAME_INTERVAL)));
+    }
+
+    @Test
+    public void metadata_isPairedByTimestamp_beforeOrAfterTheFrame() {
+        RawFrameRing<String> ring = new RawFrameRing<>(4, 16);
+        // the result of the second frame comes before its image
+        ring.setMetadata(2000, "second");
+        int first = ring.add(1000, frame(16, 0), BayerStatistics.FORMAT_RAW16, 4, 2, 8, 2);
+        assertNull(ring.getMetadata(first));
+        ring.setMetadata(1000, "first");
+        int second = ring.add(2000, frame(16, 1), BayerStatistics.FORMAT_RAW16, 4, 2, 8, 2);
+        assertEquals("first", ring.getMetadata(first));
+        assertEquals("second", ring.getMetadata(second));
+
+        // a slot which is reused drops the metadata of the old frame
+        RawFrameRing<String> single = new RawFrameRing<>(1, 16);
+        single.setMetadata(1000, "old");
+        add(single, 1000, frame(16, 0));
+        add(single, 2000, frame(16, 1));
+        assertNull(single.getMetadata(0));
+        ring.clear();
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void sizes_fromTheResolutionAndTheBudget() {
+        assertEquals(4000 * 3000 * 2, RawFrameRing.frameBytes(BayerStatistics.FORMAT_RAW16, 4000, 3000));
+        assertEquals(4000 * 3000 * 5 / 4, RawFrameRing.frameBytes(BayerStatistics.FORMAT_RAW10, 4000, 3000));
+        assertEquals(4000 * 3000 * 3 / 2, RawFrameRing.frameBytes(BayerStatistics.FORMAT_RAW12, 4000, 3000));
+        assertEquals(8, RawFrameRing.capacityFor(24000000L, 1L << 30, 8));
+        assertEquals(5, RawFrameRing.capacityFor(24000000L, 128000000L, 8));
+        assertEquals(0, RawFrameRing.capacityFor(24000000L, 1000000L, 8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_rejectsAFrameLargerThanTheBuffers() {
+        RawFrameRing<String> ring = new RawFrameRing<>(2, 16);
+        add(ring, 0, frame(17, 0));
+    }
+}
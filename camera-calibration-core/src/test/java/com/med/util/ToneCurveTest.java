@@ -0,0 +1,30 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ToneCurveTest {
+    @Test
+    public void getContrastCurve_levelZero_isTheDefaultCurve() {
+        assertArrayEquals(ToneCurve.getDefaultCurve(), ToneCurve.getContrastCurve(0), 0.0f);
+    }
+
+    @Test
+    public void adjustContrast_keepsTheInputNodesAndClampsTheOutput() {
+        float[] curve = ToneCurve.getDefaultCurve();
+        float[] adjusted = ToneCurve.adjustContrast(curve, 3.0f);
+        for (int idx=0; idx<curve.length; idx+=2) {
+            assertEquals(curve[idx], adjusted[idx], 0.0f);
+            // the factor is limited to 1.5
+            float expected = Math.min(1.0f, Math.max(0.0f, (curve[idx+1] - 0.5f) * 1.5f + 0.5f));
+            assertEquals(expected, adjusted[idx+1], 1e-6f);
+        }
+    }
+
+    @Test
+    public void getDefaultCurve_returnsACopy() {
+        ToneCurve.getDefaultCurve()[1] = 0.5f;
+        assertEquals(0.0f, ToneCurve.getDefaultCurve()[1], 0.0f);
+    }
+}
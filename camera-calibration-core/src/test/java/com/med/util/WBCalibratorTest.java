@@ -0,0 +1,73 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class WBCalibratorTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private static ByteBuffer uniformFrame(int[] channelValues) {
+        return BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, channelValues));
+    }
+
+    @Test
+    public void calibrate_grayCard_givesGreenOverRedAndBlue() {
+        WBCalibrator calibrator = new WBCalibrator(BayerStatistics.COLOR_FILTER_RGGB);
+        assertNull(calibrator.calibrate(uniformFrame(new int[] {100, 200, 200, 50}), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertEquals(2.0f, calibrator.getGainR(), 1e-4f);
+        assertEquals(4.0f, calibrator.getGainB(), 1e-4f);
+    }
+
+    @Test
+    public void calibrate_blackLevel_isRemovedBeforeTheGains() {
+        WBCalibrator calibrator = new WBCalibrator(BayerStatistics.COLOR_FILTER_RGGB);
+        calibrator.setSensorLevels(new int[] {64, 64, 64, 64}, 1023);
+        assertNull(calibrator.calibrate(uniformFrame(new int[] {164, 264, 264, 114}), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertEquals(2.0f, calibrator.getGainR(), 1e-4f);
+        assertEquals(4.0f, calibrator.getGainB(), 1e-4f);
+        assertEquals(64, calibrator.getBlackLevel());
+    }
+
+    @Test
+    public void calibrate_clippedFrame_isRejectedAndKeepsTheGains() {
+        WBCalibrator calibrator = new WBCalibrator(BayerStatistics.COLOR_FILTER_RGGB);
+        assertNull(calibrator.calibrate(uniformFrame(new int[] {100, 200, 200, 50}), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertNotNull(calibrator.calibrate(uniformFrame(new int[] {1023, 1023, 1023, 500}), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertEquals(2.0f, calibrator.getGainR(), 1e-4f);
+        assertEquals(4.0f, calibrator.getGainB(), 1e-4f);
+    }
+
+    @Test
+    public void calibrate_underexposedFrame_isRejected() {
+        WBCalibrator calibrator = new WBCalibrator(BayerStatistics.COLOR_FILTER_RGGB);
+        assertNotNull(calibrator.calibrate(uniformFrame(new int[] {10, 20, 20, 5}), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertEquals(1.0f, calibrator.getGainR(), 0.0f);
+        assertEquals(1.0f, calibrator.getGainB(), 0.0f);
+    }
+
+    @Test
+    public void calibrate_noisyFrameInFastMode_fallsBackToAFullPass() {
+        // a high contrast pattern which the sampled quads do not represent
+        BayerFrames.PixelFunction uniform = BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, new int[] {100, 200, 200, 50});
+        BayerFrames.PixelFunction noisy = (x, y) -> uniform.valueAt(x, y) * (1 + ((x * 31 + y * 17) >> 3) % 4);
+        WBCalibrator calibrator = new WBCalibrator(BayerStatistics.COLOR_FILTER_RGGB);
+        calibrator.setSamplingStep(8);
+        calibrator.setGainTolerance(0.001f);
+        calibrator.calibrate(BayerFrames.raw16(WIDTH, HEIGHT, noisy), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2);
+        assertTrue(calibrator.isFullPassRepeated());
+        assertEquals(0.0f, calibrator.getGainErrorR(), 0.0f);
+        assertEquals(8, calibrator.getSamplingStep());
+    }
+
+    @Test
+    public void isSupportedFormat_acceptsRawFormatsOnly() {
+        assertTrue(WBCalibrator.isSupportedFormat(BayerStatistics.FORMAT_RAW16));
+        assertTrue(WBCalibrator.isSupportedFormat(BayerStatistics.FORMAT_RAW10));
+        assertTrue(WBCalibrator.isSupportedFormat(BayerStatistics.FORMAT_RAW12));
+        assertFalse(WBCalibrator.isSupportedFormat(0x100));
+    }
+}
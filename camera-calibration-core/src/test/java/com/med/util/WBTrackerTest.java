@@ -0,0 +1,128 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class WBTrackerTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static ByteBuffer uniformFrame(int[] channelValues) {
+        return BayerFrames.raw16(WIDTH, HEIGHT, BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, channelValues));
+    }
+
+    private static WBTracker tracker() {
+        return new WBTracker(new WBCalibrator(BayerStatistics.COLOR_FILTER_RGGB));
+    }
+
+    @Test
+    public void update_firstGains_areReportedWithoutSmoothing() {
+        WBTracker tracker = tracker();
+        tracker.setSmoothing(0.25f);
+        assertTrue(tracker.update(2.0f, 4.0f));
+        assertEquals(2.0f, tracker.getGainR(), 1e-6f);
+        assertEquals(4.0f, tracker.getGainB(), 1e-6f);
+    }
+
+    @Test
+    public void update_movingAverage_approachesTheMeasurement() {
+        WBTracker tracker = tracker();
+        tracker.setSmoothing(0.5f);
+        tracker.setThreshold(0.0f);
+        tracker.update(2.0f, 2.0f);
+        assertTrue(tracker.update(3.0f, 1.0f));
+        assertEquals(2.5f, tracker.getGainR(), 1e-6f);
+        assertEquals(1.5f, tracker.getGainB(), 1e-6f);
+        tracker.update(3.0f, 1.0f);
+        assertEquals(2.75f, tracker.getGainR(), 1e-6f);
+        assertEquals(1.25f, tracker.getGainB(), 1e-6f);
+    }
+
+    @Test
+    public void update_changeWithinThreshold_isNotReported() {
+        WBTracker tracker = tracker();
+        tracker.setSmoothing(1.0f);
+        tracker.setThreshold(0.02f);
+        assertTrue(tracker.update(2.0f, 2.0f));
+        // 1.5% is inside the hysteresis, the reported gains stay
+        assertFalse(tracker.update(2.03f, 2.0f));
+        assertEquals(2.0f, tracker.getGainR(), 0.0f);
+        assertEquals(2.03f, tracker.getSmoothedGainR(), 1e-6f);
+        // 2.5% from the reported gain, not from the previous measurement
+        assertTrue(tracker.update(2.05f, 2.0f));
+        assertEquals(2.05f, tracker.getGainR(), 1e-6f);
+    }
+
+    @Test
+    public void update_slowDrift_isReportedOnceItAccumulates() {
+        WBTracker tracker = tracker();
+        tracker.setSmoothing(1.0f);
+        tracker.setThreshold(0.02f);
+        tracker.update(2.0f, 2.0f);
+        int reports = 0;
+        float gainB = 2.0f;
+        for (int i=0; i<10; i++) {
+            gainB *= 1.005f;
+            if (tracker.update(2.0f, gainB)) {
+                reports++;
+            }
+        }
+        // 10 steps of 0.5% cross the 2% threshold twice
+        assertEquals(2, reports);
+    }
+
+    @Test
+    public void update_invalidGains_areSkipped() {
+        WBTracker tracker = tracker();
+        tracker.update(2.0f, 2.0f);
+        assertFalse(tracker.update(Float.NaN, 2.0f));
+        assertFalse(tracker.update(2.0f, Float.POSITIVE_INFINITY));
+        assertEquals(2.0f, tracker.getSmoothedGainR(), 0.0f);
+        assertEquals(2.0f, tracker.getSmoothedGainB(), 0.0f);
+    }
+
+    @Test
+    public void update_frames_onlyEveryNthIsCalibrated() {
+        WBTracker tracker = tracker();
+        tracker.setFrameInterval(3);
+        ByteBuffer gray = uniformFrame(new int[] {100, 200, 200, 50});
+        assertTrue(tracker.update(gray, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertEquals(2.0f, tracker.getGainR(), 1e-4f);
+        assertEquals(4.0f, tracker.getGainB(), 1e-4f);
+        // the next 2 frames are skipped, however far they are
+        ByteBuffer other = uniformFrame(new int[] {200, 200, 200, 200});
+        assertFalse(tracker.update(other, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertFalse(tracker.update(other, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertEquals(2.0f, tracker.getSmoothedGainR(), 1e-4f);
+        assertTrue(tracker.update(other, BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+    }
+
+    @Test
+    public void update_rejectedFrame_keepsTheGains() {
+        WBTracker tracker = tracker();
+        tracker.setFrameInterval(1);
+        assertTrue(tracker.update(uniformFrame(new int[] {100, 200, 200, 50}), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        // underexposed
+        assertFalse(tracker.update(uniformFrame(new int[] {10, 20, 20, 5}), BayerStatistics.FORMAT_RAW16, WIDTH, HEIGHT, WIDTH * 2, 2));
+        assertEquals(2.0f, tracker.getSmoothedGainR(), 1e-4f);
+    }
+
+    @Test
+    public void reset_takesTheNextGainsWithoutSmoothing() {
+        WBTracker tracker = tracker();
+        tracker.setSmoothing(0.25f);
+        tracker.update(2.0f, 2.0f);
+        tracker.reset();
+        assertTrue(tracker.update(4.0f, 1.0f));
+        assertEquals(4.0f, tracker.getGainR(), 1e-6f);
+        assertEquals(1.0f, tracker.getGainB(), 1e-6f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setSmoothing_rejectsZero() {
+        tracker().setSmoothing(0.0f);
+    }
+}
@@ -0,0 +1,147 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest {
+    /**
+     * A frame in the three planes of YUV_420_888, with padded rows.
+     */
+    private static class Frame {
+        final int width;
+        final int height;
+        final int yRowStride;
+        final int uvRowStride;
+        final int uvPixelStride;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+
+        /**
+         * @param uvPixelStride 1 for the planar layout, 2 for the semi-planar layout where V follows U.
+         */
+        Frame(int width, int height, int uvPixelStride, long seed) {
+            this.width = width;
+            this.height = height;
+            this.uvPixelStride = uvPixelStride;
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            yRowStride = width + 16;
+            uvRowStride = chromaWidth * uvPixelStride + 8;
+            Random random = new Random(seed);
+            y = ByteBuffer.allocateDirect(yRowStride * height);
+            for (int i=0; i<y.capacity(); i++) {
+                y.put(i, (byte)random.nextInt(256));
+            }
+            if (uvPixelStride == 1) {
+                u = ByteBuffer.allocateDirect(uvRowStride * chromaHeight);
+                v = ByteBuffer.allocateDirect(uvRowStride * chromaHeight);
+            }
+            else {
+                ByteBuffer chroma = ByteBuffer.allocateDirect(uvRowStride * chromaHeight + 1);
+                chroma.position(0);
+                u = chroma.slice();
+                chroma.position(1);
+                v = chroma.slice();
+            }
+            for (int row=0; row<chromaHeight; row++) {
+                for (int x=0; x<chromaWidth; x++) {
+                    int offset = row * uvRowStride + x * uvPixelStride;
+                    u.put(offset, (byte)random.nextInt(256));
+                    v.put(offset, (byte)random.nextInt(256));
+                }
+            }
+        }
+
+        int luma(int x, int row) {
+            return y.get(row * yRowStride + x) & 0xFF;
+        }
+
+        int chroma(ByteBuffer plane, int x, int row) {
+            return plane.get((row / 2) * uvRowStride + (x / 2) * uvPixelStride) & 0xFF;
+        }
+
+        int[] convert(YuvConverter converter) {
+            int[] argb = new int[width * height];
+            converter.convert(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, argb);
+            return argb;
+        }
+    }
+
+    private static int reference(double value) {
+        return (int)Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    @Test
+    public void convert_matchesFloatingPointBt601() {
+        Frame frame = new Frame(64, 48, 1, 1);
+        int[] argb = frame.convert(new YuvConverter());
+        for (int row=0; row<frame.height; row++) {
+            for (int x=0; x<frame.width; x++) {
+                double luma = frame.luma(x, row);
+                double u = frame.chroma(frame.u, x, row) - 128;
+                double v = frame.chroma(frame.v, x, row) - 128;
+                int pixel = argb[row * frame.width + x];
+                String at = x + "," + row;
+                assertEquals(at, 0xFF, pixel >>> 24);
+                assertEquals(at, reference(luma + 1.402 * v), (pixel >> 16) & 0xFF, 1);
+                assertEquals(at, reference(luma - 0.344136 * u - 0.714136 * v), (pixel >> 8) & 0xFF, 1);
+                assertEquals(at, reference(luma + 1.772 * u), pixel & 0xFF, 1);
+            }
+        }
+    }
+
+    @Test
+    public void convert_neutralChroma_isGray() {
+        int width = 256;
+        ByteBuffer y = ByteBuffer.allocate(width);
+        for (int x=0; x<width; x++) {
+            y.put(x, (byte)x);
+        }
+        ByteBuffer chroma = ByteBuffer.allocate(width / 2);
+        for (int x=0; x<width/2; x++) {
+            chroma.put(x, (byte)128);
+        }
+        int[] argb = new int[width];
+        new YuvConverter().convert(y, width, chroma, chroma, width / 2, 1, width, 1, argb);
+        for (int x=0; x<width; x++) {
+            assertEquals(0xFF000000 | x << 16 | x << 8 | x, argb[x]);
+        }
+    }
+
+    @Test
+    public void convert_semiPlanar_matchesPlanar() {
+        Frame planar = new Frame(90, 30, 1, 7);
+        Frame semiPlanar = new Frame(90, 30, 2, 8);
+        // the same samples in the interleaved layout
+        for (int i=0; i<planar.y.capacity(); i++) {
+            semiPlanar.y.put(i, planar.y.get(i));
+        }
+        for (int row=0; row<15; row++) {
+            for (int x=0; x<45; x++) {
+                semiPlanar.u.put(row * semiPlanar.uvRowStride + x * 2, planar.u.get(row * planar.uvRowStride + x));
+                semiPlanar.v.put(row * semiPlanar.uvRowStride + x * 2, planar.v.get(row * planar.uvRowStride + x));
+            }
+        }
+        assertArrayEquals(planar.convert(new YuvConverter()), semiPlanar.convert(new YuvConverter()));
+    }
+
+    @Test
+    public void convert_parallel_matchesSerialOnOddSize() {
+        Frame frame = new Frame(301, 257, 2, 3);
+        YuvConverter parallel = new YuvConverter();
+        parallel.setParallel(new ForkJoinPool(4));
+        assertArrayEquals(frame.convert(new YuvConverter()), frame.convert(parallel));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void convert_smallOutput_isRejected() {
+        Frame frame = new Frame(16, 16, 1, 0);
+        new YuvConverter().convert(frame.y, frame.yRowStride, frame.u, frame.v, frame.uvRowStride, 1, 16, 16, new int[255]);
+    }
+}
@@ -0,0 +1,139 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class YuvStatisticsTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    /**
+     * A frame in the three planes of YUV_420_888, with padded rows.
+     */
+    private static class Frame {
+        final int yRowStride = WIDTH + 16;
+        final int uvRowStride;
+        final int uvPixelStride;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+
+        /**
+         * @param uvPixelStride 1 for the planar layout, 2 for the semi-planar layout where V follows U.
+         */
+        Frame(int uvPixelStride) {
+            this.uvPixelStride = uvPixelStride;
+            uvRowStride = WIDTH / 2 * uvPixelStride + 8;
+            y = ByteBuffer.allocateDirect(yRowStride * HEIGHT);
+            if (uvPixelStride == 1) {
+                u = ByteBuffer.allocateDirect(uvRowStride * HEIGHT / 2);
+                v = ByteBuffer.allocateDirect(uvRowStride * HEIGHT / 2);
+            }
+            else {
+                ByteBuffer chroma = ByteBuffer.allocateDirect(uvRowStride * HEIGHT / 2 + 1);
+                chroma.position(0);
+                u = chroma.slice();
+                chroma.position(1);
+                v = chroma.slice();
+            }
+        }
+
+        /**
+         * To fill the rows [rowBegin, rowEnd) with the 8-bit sRGB color, in full-range BT.601.
+         */
+        Frame fill(int rowBegin, int rowEnd, int r, int g, int b) {
+            int luma = Math.round(0.299f * r + 0.587f * g + 0.114f * b);
+            int cb = Math.round(128 - 0.168736f * r - 0.331264f * g + 0.5f * b);
+            int cr = Math.round(128 + 0.5f * r - 0.418688f * g - 0.081312f * b);
+            for (int row=rowBegin; row<rowEnd; row++) {
+                for (int x=0; x<WIDTH; x++) {
+                    y.put(row * yRowStride + x, (byte)luma);
+                }
+                if ((row & 1) == 0) {
+                    for (int x=0; x<WIDTH/2; x++) {
+                        u.put(row / 2 * uvRowStride + x * uvPixelStride, (byte)cb);
+                        v.put(row / 2 * uvRowStride + x * uvPixelStride, (byte)cr);
+                    }
+                }
+            }
+            return this;
+        }
+
+        String measure(YuvStatistics statistics) {
+            return statistics.compute(y, yRowStride, u, v, uvRowStride, uvPixelStride, WIDTH, HEIGHT);
+        }
+    }
+
+    /**
+     * @return The 8-bit sRGB value of a linear value.
+     */
+    private static int encode(double linear) {
+        double c = (linear <= 0.0031308)? linear * 12.92 : 1.055 * Math.pow(linear, 1.0 / 2.4) - 0.055;
+        return (int)Math.round(c * 255.0);
+    }
+
+    @Test
+    public void compute_gray_ratiosAreOne() {
+        YuvStatistics statistics = new YuvStatistics();
+        assertNull(new Frame(1).fill(0, HEIGHT, 128, 128, 128).measure(statistics));
+        assertEquals(1.0f, statistics.getRatioR(), 1e-3f);
+        assertEquals(1.0f, statistics.getRatioB(), 1e-3f);
+        assertEquals(0.0f, statistics.getResidual(), 1e-3f);
+        assertEquals(WIDTH / 2 * HEIGHT / 2, statistics.getValidCount());
+    }
+
+    @Test
+    public void compute_colorCast_ratiosAreLinear() {
+        YuvStatistics statistics = new YuvStatistics();
+        // linear R/G = 1.2 and B/G = 0.8, which are about 1.08 and 0.91 in sRGB
+        Frame frame = new Frame(1).fill(0, HEIGHT, encode(0.24), encode(0.2), encode(0.16));
+        assertNull(frame.measure(statistics));
+        assertEquals(1.2f, statistics.getRatioR(), 0.03f);
+        assertEquals(0.8f, statistics.getRatioB(), 0.03f);
+        assertEquals(0.2f, statistics.getResidual(), 0.03f);
+    }
+
+    @Test
+    public void compute_semiPlanar_equalsPlanar() {
+        YuvStatistics planar = new YuvStatistics();
+        YuvStatistics semiPlanar = new YuvStatistics();
+        assertNull(new Frame(1).fill(0, HEIGHT, 150, 120, 90).measure(planar));
+        assertNull(new Frame(2).fill(0, HEIGHT, 150, 120, 90).measure(semiPlanar));
+        assertEquals(planar.getRatioR(), semiPlanar.getRatioR(), 0.0f);
+        assertEquals(planar.getRatioB(), semiPlanar.getRatioB(), 0.0f);
+    }
+
+    @Test
+    public void compute_clippedRows_areSkipped() {
+        YuvStatistics statistics = new YuvStatistics();
+        Frame frame = new Frame(2).fill(0, HEIGHT / 2, 255, 255, 255).fill(HEIGHT / 2, HEIGHT, encode(0.24), encode(0.2), encode(0.2));
+        assertNull(frame.measure(statistics));
+        assertEquals(WIDTH / 2 * HEIGHT / 4, statistics.getValidCount());
+        assertEquals(1.2f, statistics.getRatioR(), 0.03f);
+        assertEquals(1.0f, statistics.getRatioB(), 0.03f);
+    }
+
+    @Test
+    public void compute_clippedOrDarkFrame_isRejected() {
+        YuvStatistics statistics = new YuvStatistics();
+        assertNotNull(new Frame(1).fill(0, HEIGHT, 255, 255, 255).measure(statistics));
+        assertNotNull(new Frame(1).fill(0, HEIGHT, 4, 4, 4).measure(statistics));
+    }
+
+    @Test
+    public void compute_samplingStep_visitsEveryNthSample() {
+        YuvStatistics statistics = new YuvStatistics();
+        statistics.setSamplingStep(4);
+        assertNull(new Frame(1).fill(0, HEIGHT, encode(0.24), encode(0.2), encode(0.16)).measure(statistics));
+        assertEquals((WIDTH / 2 / 4) * (HEIGHT / 2 / 4), statistics.getValidCount());
+        assertEquals(1.2f, statistics.getRatioR(), 0.03f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setSamplingStep_rejectsZero() {
+        new YuvStatistics().setSamplingStep(0);
+    }
+}
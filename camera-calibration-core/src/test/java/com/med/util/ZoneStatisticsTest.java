@@ -0,0 +1,73 @@
+package com.med.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ZoneStatisticsTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final BayerFrames.PixelFunction RAMP = (x, y) -> (x * 5 + y * 11 + (x & 1) * 32) & 0x3FF;
+
+    @Test
+    public void compute_totals_matchBayerStatistics() {
+        ByteBuffer buffer = BayerFrames.raw16(WIDTH, HEIGHT, RAMP);
+        BayerStatistics statistics = new BayerStatistics(BayerStatistics.COLOR_FILTER_GBRG);
+        statistics.compute(buffer, WIDTH, HEIGHT, WIDTH * 2, 2);
+        ZoneStatistics zones = new ZoneStatistics(16, 12, BayerStatistics.COLOR_FILTER_GBRG);
+        zones.compute(buffer, WIDTH, HEIGHT, WIDTH * 2, 2);
+        for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+            assertEquals(statistics.getSum(channel), zones.getTotalSum(channel));
+        }
+        assertEquals(statistics.getCount(BayerStatistics.CHANNEL_R), zones.getTotalCount());
+    }
+
+    @Test
+    public void compute_parallel_matchesSequential() {
+        ByteBuffer buffer = BayerFrames.raw16(WIDTH, HEIGHT, RAMP);
+        ZoneStatistics sequential = new ZoneStatistics(16, 12, BayerStatistics.COLOR_FILTER_RGGB);
+        sequential.compute(buffer, WIDTH, HEIGHT, WIDTH * 2, 2);
+        ZoneStatistics parallel = new ZoneStatistics(16, 12, BayerStatistics.COLOR_FILTER_RGGB);
+        parallel.setParallel(new ForkJoinPool(4));
+        parallel.compute(buffer, WIDTH, HEIGHT, WIDTH * 2, 2);
+        assertSameZones(sequential, parallel);
+    }
+
+    @Test
+    public void compute_raw10_matchesRaw16() {
+        ZoneStatistics raw16 = new ZoneStatistics(16, 12, BayerStatistics.COLOR_FILTER_RGGB);
+        raw16.compute(BayerFrames.raw16(WIDTH, HEIGHT, RAMP), WIDTH, HEIGHT, WIDTH * 2, 2);
+        int rowStride = WIDTH * 5 / 4;
+        ZoneStatistics raw10 = new ZoneStatistics(16, 12, BayerStatistics.COLOR_FILTER_RGGB);
+        raw10.compute(BayerFrames.raw10(WIDTH, HEIGHT, rowStride, RAMP), BayerStatistics.FORMAT_RAW10, WIDTH, HEIGHT, rowStride, 0);
+        assertSameZones(raw16, raw10);
+    }
+
+    @Test
+    public void compute_zones_followTheScene() {
+        // the left half is red, the right half is blue
+        BayerFrames.PixelFunction red = BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, new int[] {400, 100, 100, 50});
+        BayerFrames.PixelFunction blue = BayerFrames.uniform(BayerStatistics.COLOR_FILTER_RGGB, new int[] {50, 100, 100, 400});
+        BayerFrames.PixelFunction scene = (x, y) -> (x < WIDTH / 2)? red.valueAt(x, y) : blue.valueAt(x, y);
+        ZoneStatistics zones = new ZoneStatistics(4, 3, BayerStatistics.COLOR_FILTER_RGGB);
+        zones.compute(BayerFrames.raw16(WIDTH, HEIGHT, scene), WIDTH, HEIGHT, WIDTH * 2, 2);
+        for (int zoneY=0; zoneY<3; zoneY++) {
+            assertEquals(400.0f, zones.getAverage(zoneY * 4, BayerStatistics.CHANNEL_R), 1e-3f);
+            assertEquals(400.0f, zones.getAverage(zoneY * 4 + 3, BayerStatistics.CHANNEL_B), 1e-3f);
+        }
+        assertEquals((WIDTH / 8) * (HEIGHT / 6), zones.getCount(0));
+    }
+
+    private static void assertSameZones(ZoneStatistics expected, ZoneStatistics actual) {
+        assertEquals(expected.getZoneCount(), actual.getZoneCount());
+        for (int zone=0; zone<expected.getZoneCount(); zone++) {
+            assertEquals(expected.getCount(zone), actual.getCount(zone));
+            for (int channel=0; channel<BayerStatistics.NUM_OF_CHANNELS; channel++) {
+                assertEquals(expected.getSum(zone, channel), actual.getSum(zone, channel));
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.med.util.awb;
+
+import com.med.util.BayerStatistics;
+import com.med.util.ZoneStatistics;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class AwbAlgorithmTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    /**
+     * A gray scene with a horizontal ramp of reflectance under an illuminant of (R, G, B) = (0.5, 1, 0.25).
+     */
+    private static ZoneStatistics grayScene() {
+        ByteBuffer buffer = ByteBuffer.allocate(WIDTH * HEIGHT * 2).order(ByteOrder.LITTLE_ENDIAN);
+        float[] positionGain = {0.5f, 1.0f, 1.0f, 0.25f};
+        for (int y=0; y<HEIGHT; y++) {
+            for (int x=0; x<WIDTH; x++) {
+                float reflectance = 200.0f + 3.0f * (x / 20) * (x / 20);
+                buffer.putShort((y * WIDTH + x) * 2, (short)(reflectance * positionGain[(y & 1) * 2 + (x & 1)]));
+            }
+        }
+        ZoneStatistics statistics = new ZoneStatistics(16, 12, BayerStatistics.COLOR_FILTER_RGGB);
+        statistics.compute(buffer, WIDTH, HEIGHT, WIDTH * 2, 2);
+        return statistics;
+    }
+
+    @Test
+    public void estimate_grayScene_findsTheIlluminant() {
+        ZoneStatistics statistics = grayScene();
+        AwbAlgorithm[] algorithms = {
+                new ChannelSumAwb(),
+                new GrayWorldAwb(),
+                new GrayWorldAwb(0.25f),
+                new WhitePatchAwb(),
+                new ShadesOfGrayAwb(),
+                new GrayEdgeAwb(),
+        };
+        float[] illuminant = new float[AwbAlgorithm.ILLUMINANT_SIZE];
+        for (AwbAlgorithm algorithm : algorithms) {
+            algorithm.estimate(statistics, illuminant);
+            float g = illuminant[AwbAlgorithm.ILLUMINANT_G];
+            assertEquals(algorithm.getName(), 0.5f, illuminant[AwbAlgorithm.ILLUMINANT_R] / g, 0.01f);
+            assertEquals(algorithm.getName(), 0.25f, illuminant[AwbAlgorithm.ILLUMINANT_B] / g, 0.01f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void grayWorld_invalidMargin_throws() {
+        new GrayWorldAwb(0.5f);
+    }
+}